@@ -152,6 +152,67 @@ public interface IQueue {
      */
     public IQueueMessage take() throws QueueException;
 
+    /**
+     * Queues a batch of messages.
+     * 
+     * <p>
+     * Implementation flow: same as {@link #queue(IQueueMessage)}, but
+     * implementation may put all messages to queue storage in one single
+     * operation.
+     * </p>
+     * 
+     * @param msgs
+     * @return number of messages that have been queued. Queuing stops at the
+     *         first message that can not be put to queue storage (e.g. queue
+     *         storage is full); messages queued before that remain in queue
+     *         storage.
+     * @throws QueueException.CannotSerializeQueueMessage
+     *             if one of the supplied messages can not be serialize
+     * @throws QueueException
+     *             other queue exception
+     * @since 0.5.2
+     */
+    public int queueAll(Collection<? extends IQueueMessage> msgs) throws QueueException;
+
+    /**
+     * Takes a batch of messages out of queue.
+     * 
+     * <p>
+     * Implementation flow: same as {@link #take()}, but implementation may
+     * take all messages out of queue storage (and write them to ephemeral
+     * storage) in one single operation.
+     * </p>
+     * 
+     * @param maxMessages
+     *            max number of messages to take
+     * @return taken messages (up to {@code maxMessages}), empty collection if
+     *         queue storage is empty
+     * @throws QueueException.EphemeralIsFull
+     *             if ephemeral storage is full and no message can be taken
+     * @throws QueueException.CannotDeserializeQueueMessage
+     *             if a queue message can not be deserialized
+     * @throws QueueException
+     *             other queue exception
+     * @since 0.5.2
+     */
+    public Collection<IQueueMessage> takeBatch(int maxMessages) throws QueueException;
+
+    /**
+     * Called when finish processing a batch of messages to cleanup ephemeral
+     * storage.
+     * 
+     * <p>
+     * Implementation flow: same as {@link #finish(IQueueMessage)}, but
+     * implementation may remove all messages from ephemeral storage in one
+     * single operation.
+     * </p>
+     * 
+     * @param msgs
+     * @throws QueueException
+     * @since 0.5.2
+     */
+    public void finishAll(Collection<? extends IQueueMessage> msgs) throws QueueException;
+
     /**
      * Gets all orphan messages (messages that were left in ephemeral storage
      * for a long time).
@@ -1,8 +1,13 @@
 package com.github.ddth.queue.impl;
 
 import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 
 import com.github.ddth.queue.IQueue;
+import com.github.ddth.queue.IQueueMessage;
+import com.github.ddth.queue.utils.QueueException;
 
 /**
  * Abstract queue implementation.
@@ -33,4 +38,82 @@ public abstract class AbstractQueue implements IQueue, Closeable, AutoCloseable
         destroy();
     }
 
+    /**
+     * {@inheritDoc}
+     * 
+     * <p>
+     * This method calls {@link #queue(IQueueMessage)} for each message. Queue
+     * implementation should override this method to provide a more efficient
+     * implementation.
+     * </p>
+     * 
+     * @since 0.5.2
+     */
+    @Override
+    public int queueAll(Collection<? extends IQueueMessage> msgs) throws QueueException {
+        int numQueued = 0;
+        if (msgs != null) {
+            try {
+                for (IQueueMessage msg : msgs) {
+                    if (!queue(msg)) {
+                        break;
+                    }
+                    numQueued++;
+                }
+            } catch (QueueException.QueueIsFull e) {
+                // stop at the first message that can not be queued
+            }
+        }
+        return numQueued;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * <p>
+     * This method calls {@link #take()} until {@code maxMessages} messages
+     * have been taken or queue storage is empty. Queue implementation should
+     * override this method to provide a more efficient implementation.
+     * </p>
+     * 
+     * @since 0.5.2
+     */
+    @Override
+    public Collection<IQueueMessage> takeBatch(int maxMessages) throws QueueException {
+        List<IQueueMessage> result = new ArrayList<>(Math.max(0, Math.min(maxMessages, 1024)));
+        try {
+            while (result.size() < maxMessages) {
+                IQueueMessage msg = take();
+                if (msg == null) {
+                    break;
+                }
+                result.add(msg);
+            }
+        } catch (QueueException.EphemeralIsFull e) {
+            if (result.size() == 0) {
+                throw e;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * <p>
+     * This method calls {@link #finish(IQueueMessage)} for each message. Queue
+     * implementation should override this method to provide a more efficient
+     * implementation.
+     * </p>
+     * 
+     * @since 0.5.2
+     */
+    @Override
+    public void finishAll(Collection<? extends IQueueMessage> msgs) throws QueueException {
+        if (msgs != null) {
+            for (IQueueMessage msg : msgs) {
+                finish(msg);
+            }
+        }
+    }
 }
@@ -1,8 +1,10 @@
 package com.github.ddth.queue.impl;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
@@ -297,6 +299,135 @@ public class DisruptorQueue extends AbstractEphemeralSupportQueue {
         return msg;
     }
 
+    /**
+     * Puts a batch of messages to the ring buffer, claiming a range of
+     * sequences once for the whole batch.
+     * 
+     * @param msgs
+     * @return number of messages that have been put to the ring buffer (less
+     *         than {@code msgs.size()} if the ring buffer does not have enough
+     *         free slots)
+     * @since 0.5.2
+     */
+    protected int putToRingBuffer(List<IQueueMessage> msgs) {
+        LOCK_PUT.lock();
+        try {
+            int n = (int) Math.min(msgs.size(), ringBuffer.remainingCapacity());
+            if (n < 1) {
+                return 0;
+            }
+            long hi;
+            try {
+                hi = ringBuffer.tryNext(n);
+            } catch (InsufficientCapacityException e) {
+                return 0;
+            }
+            long lo = hi - (n - 1);
+            for (int i = 0; i < n; i++) {
+                ringBuffer.get(lo + i).set(msgs.get(i));
+            }
+            ringBuffer.publish(lo, hi);
+            return n;
+        } finally {
+            LOCK_PUT.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @since 0.5.2
+     */
+    @Override
+    public int queueAll(Collection<? extends IQueueMessage> _msgs) {
+        if (_msgs == null || _msgs.size() == 0) {
+            return 0;
+        }
+        List<IQueueMessage> msgs = new ArrayList<>(_msgs.size());
+        Date now = new Date();
+        for (IQueueMessage _msg : _msgs) {
+            IQueueMessage msg = _msg.clone();
+            msg.qNumRequeues(0).qOriginalTimestamp(now).qTimestamp(now);
+            msgs.add(msg);
+        }
+        return putToRingBuffer(msgs);
+    }
+
+    /**
+     * Takes up to {@code maxMessages} messages from the ring buffer, advancing
+     * the consumed sequence once for the whole batch.
+     * 
+     * @param maxMessages
+     * @return
+     * @since 0.5.2
+     */
+    protected List<IQueueMessage> takeFromRingBuffer(int maxMessages) {
+        LOCK_TAKE.lock();
+        try {
+            long l = consumedSeq.get() + 1;
+            if (l + maxMessages - 1 > knownPublishedSeq) {
+                updatePublishedSequence();
+            }
+            int n = (int) Math.min(maxMessages, knownPublishedSeq - l + 1);
+            List<IQueueMessage> result = new ArrayList<>(Math.max(n, 0));
+            for (int i = 0; i < n; i++) {
+                result.add(ringBuffer.get(l + i).get());
+            }
+            if (n > 0) {
+                consumedSeq.set(l + n - 1);
+            }
+            return result;
+        } finally {
+            LOCK_TAKE.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @throws QueueException.EphemeralIsFull
+     *             if the ephemeral storage is full
+     * @since 0.5.2
+     */
+    @Override
+    public Collection<IQueueMessage> takeBatch(int maxMessages)
+            throws QueueException.EphemeralIsFull {
+        if (!isEphemeralDisabled()) {
+            int ephemeralMaxSize = getEphemeralMaxSize();
+            if (ephemeralMaxSize > 0) {
+                int remaining = ephemeralMaxSize - ephemeralStorage.size();
+                if (remaining <= 0) {
+                    throw new QueueException.EphemeralIsFull(ephemeralMaxSize);
+                }
+                maxMessages = Math.min(maxMessages, remaining);
+            }
+        }
+        if (maxMessages < 1) {
+            return new ArrayList<>();
+        }
+        List<IQueueMessage> result = takeFromRingBuffer(maxMessages);
+        if (!isEphemeralDisabled()) {
+            for (IQueueMessage msg : result) {
+                ephemeralStorage.putIfAbsent(msg.qId(), msg);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @since 0.5.2
+     */
+    @Override
+    public void finishAll(Collection<? extends IQueueMessage> msgs) {
+        if (!isEphemeralDisabled() && msgs != null) {
+            for (IQueueMessage msg : msgs) {
+                ephemeralStorage.remove(msg.qId());
+            }
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
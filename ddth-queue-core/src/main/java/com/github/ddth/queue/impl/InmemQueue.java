@@ -1,11 +1,14 @@
 package com.github.ddth.queue.impl;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map.Entry;
 import java.util.Queue;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
@@ -227,6 +230,99 @@ public class InmemQueue extends AbstractEphemeralSupportQueue {
         return msg;
     }
 
+    /**
+     * {@inheritDoc}
+     * 
+     * @since 0.5.2
+     */
+    @Override
+    public int queueAll(Collection<? extends IQueueMessage> msgs) {
+        int numQueued = 0;
+        if (msgs != null) {
+            Date now = new Date();
+            for (IQueueMessage _msg : msgs) {
+                IQueueMessage msg = _msg.clone();
+                msg.qNumRequeues(0).qOriginalTimestamp(now).qTimestamp(now);
+                if (!queue.offer(msg)) {
+                    break;
+                }
+                numQueued++;
+            }
+        }
+        return numQueued;
+    }
+
+    /**
+     * Takes up to {@code maxMessages} messages from the internal queue.
+     * 
+     * <p>
+     * If the internal queue is a {@link BlockingQueue}, messages are drained
+     * in one single call (see {@link BlockingQueue#drainTo(Collection, int)}).
+     * </p>
+     * 
+     * @param maxMessages
+     * @return
+     * @since 0.5.2
+     */
+    protected List<IQueueMessage> takeFromQueue(int maxMessages) {
+        List<IQueueMessage> result = new ArrayList<>(Math.min(maxMessages, 1024));
+        if (queue instanceof BlockingQueue) {
+            ((BlockingQueue<IQueueMessage>) queue).drainTo(result, maxMessages);
+        } else {
+            IQueueMessage msg;
+            while (result.size() < maxMessages && (msg = queue.poll()) != null) {
+                result.add(msg);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @throws QueueException.EphemeralIsFull
+     *             if the ephemeral storage is full
+     * @since 0.5.2
+     */
+    @Override
+    public Collection<IQueueMessage> takeBatch(int maxMessages)
+            throws QueueException.EphemeralIsFull {
+        if (!isEphemeralDisabled()) {
+            int ephemeralMaxSize = getEphemeralMaxSize();
+            if (ephemeralMaxSize > 0) {
+                int remaining = ephemeralMaxSize - ephemeralStorage.size();
+                if (remaining <= 0) {
+                    throw new QueueException.EphemeralIsFull(ephemeralMaxSize);
+                }
+                maxMessages = Math.min(maxMessages, remaining);
+            }
+        }
+        if (maxMessages < 1) {
+            return new ArrayList<>();
+        }
+        List<IQueueMessage> result = takeFromQueue(maxMessages);
+        if (!isEphemeralDisabled()) {
+            for (IQueueMessage msg : result) {
+                ephemeralStorage.putIfAbsent(msg.qId(), msg);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @since 0.5.2
+     */
+    @Override
+    public void finishAll(Collection<? extends IQueueMessage> msgs) {
+        if (!isEphemeralDisabled() && msgs != null) {
+            for (IQueueMessage msg : msgs) {
+                ephemeralStorage.remove(msg.qId());
+            }
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
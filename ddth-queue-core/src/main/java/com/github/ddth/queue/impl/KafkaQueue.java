@@ -1,33 +1,118 @@
 package com.github.ddth.queue.impl;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
-import java.util.concurrent.TimeUnit;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.apache.commons.lang3.StringUtils;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.StringSerializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.github.ddth.kafka.KafkaClient;
 import com.github.ddth.kafka.KafkaClient.ProducerType;
-import com.github.ddth.kafka.KafkaMessage;
 import com.github.ddth.queue.IPartitionSupport;
 import com.github.ddth.queue.IQueue;
 import com.github.ddth.queue.IQueueMessage;
+import com.github.ddth.queue.impl.kafka.IKafkaPartitioningStrategy;
+import com.github.ddth.queue.impl.kafka.KafkaInFlightStore;
+import com.github.ddth.queue.impl.kafka.KafkaPartitionRateMeter;
+import com.github.ddth.queue.impl.kafka.KafkaPoller;
+import com.github.ddth.queue.impl.kafka.KafkaPollerGroup;
+import com.github.ddth.queue.impl.kafka.RocksDbKafkaInFlightStore;
 import com.github.ddth.queue.utils.QueueException;
 
 /**
  * (Experimental) Kafka implementation of {@link IQueue}.
  * 
+ * <p>
+ * Messages are consumed via a {@link KafkaPoller}: records are polled in
+ * batches (up to {@link #getMaxPollRecords()} records per poll) into a local
+ * buffer, which is drained by {@link #take()} and {@link #takeBatch(int)}.
+ * With {@link #setNumConsumers(int)} greater than 1, the topic's partitions
+ * are shared among that many consumers, each polling on its own dedicated
+ * thread (see {@link KafkaPollerGroup}); with
+ * {@link #setOrderedPartitions(boolean)}, at most one message per partition
+ * is handed out at a time, so messages of a partition are processed in order.
+ * </p>
+ * 
+ * <p>
+ * Backpressure: with {@link #setBufferMaxRecords(int)} and/or
+ * {@link #setBufferMaxBytes(long)}, consumers poll on dedicated threads and
+ * pause their partitions while the local buffer is full, resuming them once
+ * it has been drained below {@link #getBufferLowWatermarkRatio()}; consumers
+ * keep polling meanwhile so that they are not kicked out of the consumer
+ * group by slow processing.
+ * </p>
+ * 
+ * <p>
+ * Offsets are committed on {@link #finish(IQueueMessage)}: a partition's
+ * offset is committed up to the lowest offset that has been taken but not yet
+ * finished (at-least-once delivery). Commits are asynchronous and batched,
+ * every {@link #getCommitBatchSize()} finished messages or every
+ * {@link #getCommitIntervalMs()} milliseconds. Set consumer property
+ * {@code enable.auto.commit=true} to let Kafka commit offsets periodically
+ * instead ({@link #finish(IQueueMessage)} is then a no-op).
+ * </p>
+ * 
+ * <p>
+ * Retries (see {@link #setRetryDelaysMs(long...)}): requeued messages are
+ * produced to a ladder of retry topics (e.g. {@code topic.retry.5s},
+ * {@code topic.retry.1m}, {@code topic.retry.10m}) chosen by
+ * {@link IQueueMessage#qNumRequeues()}, and are handed out again only once
+ * the retry topic's delay has elapsed. Retry topics must exist (or be
+ * auto-created by Kafka brokers).
+ * </p>
+ * 
+ * <p>
+ * Partitioning: messages are keyed by partition key (or by id if the message
+ * has no partition key) and Kafka producer hashes the key to choose the
+ * partition, unless a {@link IKafkaPartitioningStrategy} is set (see
+ * {@link #setPartitioningStrategy(IKafkaPartitioningStrategy)}). Produced
+ * messages are counted per partition, see {@link #getProduceRates()}.
+ * </p>
+ * 
+ * <p>
+ * Ephemeral storage: messages taken but not yet finished, see
+ * {@link #ephemeralSize()}, kept in a {@link KafkaInFlightStore} (in-memory,
+ * or backed by a local RocksDB if {@link #setInFlightStorageDir(String)} is
+ * set) along with the time they were taken, see
+ * {@link #getOrphanMessages(long)}. Queue size is computed from consumer
+ * group's lag, see {@link #queueSize()}.
+ * </p>
+ * 
  * @author Thanh Ba Nguyen <bnguyen2k@gmail.com>
  * @since 0.3.2
  */
-public abstract class KafkaQueue extends AbstractQueue {
+public abstract class KafkaQueue extends AbstractEphemeralSupportQueue {
 
     private final Logger LOGGER = LoggerFactory.getLogger(KafkaQueue.class);
 
     private KafkaClient kafkaClient;
-    private boolean myOwnKafkaClient = true;
 
     private String bootstrapServers = "localhost:9092";
     private String topicName = "ddth-queue";
@@ -35,6 +120,40 @@ public abstract class KafkaQueue extends AbstractQueue {
     private ProducerType producerType = ProducerType.LEADER_ACK;
     private Properties producerProps, consumerProps;
     private boolean sendAsync = true;
+    private long producerLingerMs = 0;
+    private int producerBatchSize = 16384;
+    private String producerCompressionType = "none";
+    private KafkaProducer<String, byte[]> kafkaProducer;
+    private long pollTimeoutMs = 1000;
+    private int maxPollRecords = 500;
+    private int commitBatchSize = 100;
+    private long commitIntervalMs = 1000;
+
+    private int numConsumers = 1;
+    private boolean orderedPartitions = false;
+    private int partitionBufferMaxRecords = 100;
+    private int bufferMaxRecords = 0;
+    private long bufferMaxBytes = 0;
+    private double bufferLowWatermarkRatio = 0.5;
+
+    private KafkaPollerGroup kafkaPollers;
+    private boolean commitOnFinish = true;
+    private String inFlightStorageDir;
+    private long[] retryDelaysMs = {};
+    private IKafkaPartitioningStrategy partitioningStrategy;
+    private long produceRateWindowMs = 10000;
+    private KafkaPartitionRateMeter produceRateMeter;
+    private KafkaInFlightStore inFlightStore;
+
+    private long queueSizeCacheMs = 1000;
+    private volatile long cachedQueueSize = -1, cachedQueueSizeTimestamp = 0;
+    private final Object queueSizeLock = new Object();
+    /* used to fetch offsets, guarded by queueSizeLock */
+    private KafkaConsumer<String, byte[]> offsetsConsumer;
+    /* refreshes the cached queue size off the caller's thread */
+    private ExecutorService queueSizeRefresher;
+    private volatile long recoveredInFlightCheckTimestamp = 0;
+    private final AtomicBoolean queueSizeRefreshing = new AtomicBoolean(false);
 
     /**
      * Sends message to Kafka asynchronously or not (default {@code true}).
@@ -49,6 +168,12 @@ public abstract class KafkaQueue extends AbstractQueue {
     /**
      * Sends message to Kafka asynchronously or not.
      * 
+     * <p>
+     * If {@code true}, {@link #queue(IQueueMessage)} returns as soon as the
+     * message has been handed to the producer (send failures are logged); use
+     * {@link #queueAsync(IQueueMessage)} to get notified of the outcome.
+     * </p>
+     * 
      * @param value
      * @return
      */
@@ -57,6 +182,380 @@ public abstract class KafkaQueue extends AbstractQueue {
         return this;
     }
 
+    /**
+     * Producer's {@code linger.ms}: time to wait for more messages to batch
+     * together (default {@code 0}).
+     * 
+     * @return
+     * @since 0.5.2
+     */
+    public long getProducerLingerMs() {
+        return producerLingerMs;
+    }
+
+    /**
+     * Producer's {@code linger.ms}: time to wait for more messages to batch
+     * together.
+     * 
+     * @param producerLingerMs
+     * @return
+     * @since 0.5.2
+     */
+    public KafkaQueue setProducerLingerMs(long producerLingerMs) {
+        this.producerLingerMs = producerLingerMs;
+        return this;
+    }
+
+    /**
+     * Producer's {@code batch.size}: max size (in bytes) of a batch of
+     * messages sent to one partition (default {@code 16384}).
+     * 
+     * @return
+     * @since 0.5.2
+     */
+    public int getProducerBatchSize() {
+        return producerBatchSize;
+    }
+
+    /**
+     * Producer's {@code batch.size}: max size (in bytes) of a batch of
+     * messages sent to one partition.
+     * 
+     * @param producerBatchSize
+     * @return
+     * @since 0.5.2
+     */
+    public KafkaQueue setProducerBatchSize(int producerBatchSize) {
+        this.producerBatchSize = producerBatchSize;
+        return this;
+    }
+
+    /**
+     * Producer's {@code compression.type}: {@code none}, {@code gzip},
+     * {@code snappy} or {@code lz4} (default {@code none}).
+     * 
+     * @return
+     * @since 0.5.2
+     */
+    public String getProducerCompressionType() {
+        return producerCompressionType;
+    }
+
+    /**
+     * Producer's {@code compression.type}: {@code none}, {@code gzip},
+     * {@code snappy} or {@code lz4}.
+     * 
+     * @param producerCompressionType
+     * @return
+     * @since 0.5.2
+     */
+    public KafkaQueue setProducerCompressionType(String producerCompressionType) {
+        this.producerCompressionType = producerCompressionType;
+        return this;
+    }
+
+    /**
+     * Max time (in milliseconds) to wait for records in one poll (default
+     * {@code 1000}).
+     * 
+     * @return
+     * @since 0.5.2
+     */
+    public long getPollTimeoutMs() {
+        return pollTimeoutMs;
+    }
+
+    /**
+     * Max time (in milliseconds) to wait for records in one poll.
+     * 
+     * @param pollTimeoutMs
+     * @return
+     * @since 0.5.2
+     */
+    public KafkaQueue setPollTimeoutMs(long pollTimeoutMs) {
+        this.pollTimeoutMs = pollTimeoutMs;
+        return this;
+    }
+
+    /**
+     * Max number of records returned by one poll, which also bounds the local
+     * buffer (default {@code 500}).
+     * 
+     * @return
+     * @since 0.5.2
+     */
+    public int getMaxPollRecords() {
+        return maxPollRecords;
+    }
+
+    /**
+     * Max number of records returned by one poll, which also bounds the local
+     * buffer.
+     * 
+     * <p>
+     * Note: consumer property {@code max.poll.records} set via
+     * {@link #setKafkaConsumerProperties(Properties)} takes precedence.
+     * </p>
+     * 
+     * @param maxPollRecords
+     * @return
+     * @since 0.5.2
+     */
+    public KafkaQueue setMaxPollRecords(int maxPollRecords) {
+        this.maxPollRecords = maxPollRecords;
+        return this;
+    }
+
+    /**
+     * Number of Kafka consumers (default {@code 1}).
+     * 
+     * @return
+     * @since 0.5.2
+     */
+    public int getNumConsumers() {
+        return numConsumers;
+    }
+
+    /**
+     * Number of Kafka consumers: the topic's partitions are shared among them.
+     * If greater than 1, each consumer polls on its own dedicated thread;
+     * otherwise the only consumer polls from the threads calling
+     * {@link #take()}.
+     * 
+     * @param numConsumers
+     * @return
+     * @since 0.5.2
+     */
+    public KafkaQueue setNumConsumers(int numConsumers) {
+        this.numConsumers = numConsumers;
+        return this;
+    }
+
+    /**
+     * Hand out at most one message per partition at a time (default
+     * {@code false})?
+     * 
+     * @return
+     * @since 0.5.2
+     */
+    public boolean isOrderedPartitions() {
+        return orderedPartitions;
+    }
+
+    /**
+     * Hand out at most one message per partition at a time: the next message
+     * of a partition can be taken only after the previous one has been
+     * finished (or requeued), so messages of a partition are processed in
+     * order even by many threads.
+     * 
+     * @param orderedPartitions
+     * @return
+     * @since 0.5.2
+     */
+    public KafkaQueue setOrderedPartitions(boolean orderedPartitions) {
+        this.orderedPartitions = orderedPartitions;
+        return this;
+    }
+
+    /**
+     * If {@link #isOrderedPartitions()}, max number of messages of a partition
+     * in a consumer's local buffer (default {@code 100}).
+     * 
+     * @return
+     * @since 0.5.2
+     */
+    public int getPartitionBufferMaxRecords() {
+        return partitionBufferMaxRecords;
+    }
+
+    /**
+     * If {@link #isOrderedPartitions()}, max number of messages of a partition
+     * in a consumer's local buffer: the partition is paused when it has this
+     * many buffered messages, so that messages of other partitions can still
+     * be polled and taken meanwhile.
+     * 
+     * @param partitionBufferMaxRecords
+     * @return
+     * @since 0.5.2
+     */
+    public KafkaQueue setPartitionBufferMaxRecords(int partitionBufferMaxRecords) {
+        this.partitionBufferMaxRecords = partitionBufferMaxRecords;
+        return this;
+    }
+
+    /**
+     * Max number of messages in a consumer's local buffer (default {@code 0}:
+     * {@link #getMaxPollRecords()}).
+     * 
+     * @return
+     * @since 0.5.2
+     */
+    public int getBufferMaxRecords() {
+        return bufferMaxRecords;
+    }
+
+    /**
+     * Max number of messages in a consumer's local buffer. If greater than
+     * zero, consumers poll on dedicated threads and pause their partitions
+     * while the buffer is full.
+     * 
+     * @param bufferMaxRecords
+     * @return
+     * @since 0.5.2
+     */
+    public KafkaQueue setBufferMaxRecords(int bufferMaxRecords) {
+        this.bufferMaxRecords = bufferMaxRecords;
+        return this;
+    }
+
+    /**
+     * Max total size (in bytes) of messages in a consumer's local buffer
+     * (default {@code 0}: no byte budget).
+     * 
+     * @return
+     * @since 0.5.2
+     */
+    public long getBufferMaxBytes() {
+        return bufferMaxBytes;
+    }
+
+    /**
+     * Max total size (in bytes) of messages in a consumer's local buffer. If
+     * greater than zero, consumers poll on dedicated threads and pause their
+     * partitions while the buffer is full.
+     * 
+     * @param bufferMaxBytes
+     * @return
+     * @since 0.5.2
+     */
+    public KafkaQueue setBufferMaxBytes(long bufferMaxBytes) {
+        this.bufferMaxBytes = bufferMaxBytes;
+        return this;
+    }
+
+    /**
+     * Partitions paused because a consumer's local buffer is full are resumed
+     * once the buffer is at or below this ratio of its budgets (default
+     * {@code 0.5}).
+     * 
+     * @return
+     * @since 0.5.2
+     */
+    public double getBufferLowWatermarkRatio() {
+        return bufferLowWatermarkRatio;
+    }
+
+    /**
+     * Partitions paused because a consumer's local buffer is full are resumed
+     * once the buffer is at or below this ratio of its budgets.
+     * 
+     * @param bufferLowWatermarkRatio
+     *            between {@code 0} and {@code 1}
+     * @return
+     * @since 0.5.2
+     */
+    public KafkaQueue setBufferLowWatermarkRatio(double bufferLowWatermarkRatio) {
+        this.bufferLowWatermarkRatio = bufferLowWatermarkRatio;
+        return this;
+    }
+
+    /**
+     * Directory of the local RocksDB storing in-flight messages (default
+     * {@code null}: in-flight messages are kept in memory only).
+     * 
+     * @return
+     * @since 0.5.2
+     */
+    public String getInFlightStorageDir() {
+        return inFlightStorageDir;
+    }
+
+    /**
+     * Keeps a copy of in-flight (taken but not yet finished) messages in a
+     * local RocksDB, so that messages in flight when the application stopped
+     * can still be found by {@link #getOrphanMessages(long)} after restart,
+     * see {@link RocksDbKafkaInFlightStore}.
+     * 
+     * @param inFlightStorageDir
+     * @return
+     * @since 0.5.2
+     */
+    public KafkaQueue setInFlightStorageDir(String inFlightStorageDir) {
+        this.inFlightStorageDir = inFlightStorageDir;
+        return this;
+    }
+
+    /**
+     * Offsets are committed every this number of finished messages (default
+     * {@code 100}).
+     * 
+     * @return
+     * @since 0.5.2
+     */
+    public int getCommitBatchSize() {
+        return commitBatchSize;
+    }
+
+    /**
+     * Offsets are committed every this number of finished messages.
+     * 
+     * @param commitBatchSize
+     * @return
+     * @since 0.5.2
+     */
+    public KafkaQueue setCommitBatchSize(int commitBatchSize) {
+        this.commitBatchSize = commitBatchSize;
+        return this;
+    }
+
+    /**
+     * Offsets are committed every this number of milliseconds (default
+     * {@code 1000}).
+     * 
+     * @return
+     * @since 0.5.2
+     */
+    public long getCommitIntervalMs() {
+        return commitIntervalMs;
+    }
+
+    /**
+     * Offsets are committed every this number of milliseconds.
+     * 
+     * @param commitIntervalMs
+     * @return
+     * @since 0.5.2
+     */
+    public KafkaQueue setCommitIntervalMs(long commitIntervalMs) {
+        this.commitIntervalMs = commitIntervalMs;
+        return this;
+    }
+
+    /**
+     * How long (in milliseconds) the value of {@link #queueSize()} is cached
+     * (default {@code 1000}).
+     * 
+     * @return
+     * @since 0.5.2
+     */
+    public long getQueueSizeCacheMs() {
+        return queueSizeCacheMs;
+    }
+
+    /**
+     * How long (in milliseconds) the value of {@link #queueSize()} is cached.
+     * Computing queue size costs a few round trips to Kafka brokers; value
+     * {@code 0} disables caching.
+     * 
+     * @param queueSizeCacheMs
+     * @return
+     * @since 0.5.2
+     */
+    public KafkaQueue setQueueSizeCacheMs(long queueSizeCacheMs) {
+        this.queueSizeCacheMs = queueSizeCacheMs;
+        return this;
+    }
+
     public ProducerType getProducerType() {
         return producerType;
     }
@@ -91,7 +590,8 @@ public abstract class KafkaQueue extends AbstractQueue {
     }
 
     /**
-     * Gets Kafka producer's custom configuration properties.
+     * Gets Kafka producer's custom configuration properties (they take
+     * precedence over other producer settings).
      * 
      * @return
      * @since 0.4.0
@@ -148,6 +648,171 @@ public abstract class KafkaQueue extends AbstractQueue {
         return this;
     }
 
+    /**
+     * Strategy to choose partitions of produced messages (default
+     * {@code null}: Kafka producer hashes record's key).
+     * 
+     * @return
+     * @since 0.5.2
+     */
+    public IKafkaPartitioningStrategy getPartitioningStrategy() {
+        return partitioningStrategy;
+    }
+
+    /**
+     * Sets strategy to choose partitions of produced messages, e.g.
+     * {@link com.github.ddth.queue.impl.kafka.StickyRandomPartitioningStrategy}
+     * or
+     * {@link com.github.ddth.queue.impl.kafka.HotKeySplittingPartitioningStrategy}.
+     * 
+     * <p>
+     * If {@link #isOrderedPartitions()}, per-key ordering is strict: messages
+     * with partition key are always partitioned by hashing the key, the
+     * strategy applies to messages without partition key only.
+     * </p>
+     * 
+     * @param partitioningStrategy
+     * @return
+     * @since 0.5.2
+     */
+    public KafkaQueue setPartitioningStrategy(IKafkaPartitioningStrategy partitioningStrategy) {
+        this.partitioningStrategy = partitioningStrategy;
+        return this;
+    }
+
+    /**
+     * Per-partition produce rates are computed over windows of this number
+     * of milliseconds (default {@code 10000}).
+     * 
+     * @return
+     * @since 0.5.2
+     */
+    public long getProduceRateWindowMs() {
+        return produceRateWindowMs;
+    }
+
+    /**
+     * Per-partition produce rates are computed over windows of this number
+     * of milliseconds.
+     * 
+     * @param produceRateWindowMs
+     * @return
+     * @since 0.5.2
+     */
+    public KafkaQueue setProduceRateWindowMs(long produceRateWindowMs) {
+        this.produceRateWindowMs = produceRateWindowMs;
+        return this;
+    }
+
+    /**
+     * Number of messages produced (and acknowledged by Kafka) by this queue
+     * instance, per partition.
+     * 
+     * @return
+     * @since 0.5.2
+     */
+    public Map<TopicPartition, Long> getProduceCounts() {
+        return produceRateMeter != null ? produceRateMeter.getCounts() : Collections.emptyMap();
+    }
+
+    /**
+     * Produce rates (messages per second) of this queue instance per
+     * partition, over the last {@link #getProduceRateWindowMs()}
+     * milliseconds. A partition receiving a much higher rate than others
+     * reveals skewed partition keys.
+     * 
+     * @return
+     * @since 0.5.2
+     */
+    public Map<TopicPartition, Double> getProduceRates() {
+        return produceRateMeter != null ? produceRateMeter.getRates() : Collections.emptyMap();
+    }
+
+    /**
+     * Delays (in milliseconds) of retry topics (default: empty, requeued
+     * messages are produced to the main topic).
+     * 
+     * @return
+     * @since 0.5.2
+     */
+    public long[] getRetryDelaysMs() {
+        return retryDelaysMs.clone();
+    }
+
+    /**
+     * Sets delays (in milliseconds) of retry topics, in ascending order, e.g.
+     * {@code 5000, 60000, 600000}.
+     * 
+     * <p>
+     * A message requeued for the n-th time (see
+     * {@link #requeue(IQueueMessage)}) is produced to the n-th retry topic (the
+     * last one if n exceeds the number of retry topics) and can be taken again
+     * only after the topic's delay has elapsed. Retry topic names are built by
+     * {@link #retryTopicName(String, long)}.
+     * </p>
+     * 
+     * @param retryDelaysMs
+     * @return
+     * @since 0.5.2
+     */
+    public KafkaQueue setRetryDelaysMs(long... retryDelaysMs) {
+        this.retryDelaysMs = retryDelaysMs != null ? retryDelaysMs.clone() : new long[0];
+        return this;
+    }
+
+    /**
+     * Builds name of a retry topic: {@code <topic>.retry.<delay>}, where delay
+     * is formatted as {@code 10m}, {@code 5s}, {@code 1h} or
+     * {@code 250ms}.
+     * 
+     * @param topicName
+     * @param delayMs
+     * @return
+     * @since 0.5.2
+     */
+    public static String retryTopicName(String topicName, long delayMs) {
+        String delay;
+        if (delayMs > 0 && delayMs % 3600000 == 0) {
+            delay = delayMs / 3600000 + "h";
+        } else if (delayMs > 0 && delayMs % 60000 == 0) {
+            delay = delayMs / 60000 + "m";
+        } else if (delayMs > 0 && delayMs % 1000 == 0) {
+            delay = delayMs / 1000 + "s";
+        } else {
+            delay = delayMs + "ms";
+        }
+        return topicName + ".retry." + delay;
+    }
+
+    /**
+     * Names of retry topics, see {@link #setRetryDelaysMs(long...)}.
+     * 
+     * @return
+     * @since 0.5.2
+     */
+    public List<String> getRetryTopicNames() {
+        List<String> result = new ArrayList<>(retryDelaysMs.length);
+        for (long delayMs : retryDelaysMs) {
+            result.add(retryTopicName(topicName, delayMs));
+        }
+        return result;
+    }
+
+    /**
+     * Topic to produce a requeued message to.
+     * 
+     * @param numRequeues
+     * @return
+     * @since 0.5.2
+     */
+    protected String requeueTopicName(int numRequeues) {
+        if (retryDelaysMs.length == 0 || numRequeues <= 0) {
+            return topicName;
+        }
+        return retryTopicName(topicName,
+                retryDelaysMs[Math.min(numRequeues, retryDelaysMs.length) - 1]);
+    }
+
     /**
      * Kafka's group-id to consume messages.
      * 
@@ -162,21 +827,29 @@ public abstract class KafkaQueue extends AbstractQueue {
         return this;
     }
 
+    /**
+     * @return
+     * @deprecated since 0.5.2, {@link KafkaQueue} uses its own Kafka producer
+     *             and consumers
+     */
+    @Deprecated
     protected KafkaClient getKafkaClient() {
         return kafkaClient;
     }
 
     /**
-     * An external {@link KafkaClient} can be used. If not set,
-     * {@link KafkaQueue} will automatically create a {@link KafkaClient} for
-     * its own use.
-     * 
      * @param kafkaClient
      * @return
+     * @deprecated since 0.5.2, {@link KafkaQueue} uses its own Kafka producer
+     *             and consumers: {@link #init()} fails if a
+     *             {@link KafkaClient} has been set. Use
+     *             {@link #setKafkaBootstrapServers(String)},
+     *             {@link #setKafkaProducerProperties(Properties)} and
+     *             {@link #setKafkaConsumerProperties(Properties)} instead.
      */
+    @Deprecated
     public KafkaQueue setKafkaClient(KafkaClient kafkaClient) {
         this.kafkaClient = kafkaClient;
-        myOwnKafkaClient = false;
         return this;
     }
 
@@ -189,26 +862,143 @@ public abstract class KafkaQueue extends AbstractQueue {
      * @throws Exception
      */
     public KafkaQueue init() throws Exception {
-        if (kafkaClient == null) {
-            kafkaClient = new KafkaClient(bootstrapServers);
-            kafkaClient.setProducerProperties(consumerProps).setConsumerProperties(consumerProps);
-            kafkaClient.init();
-            myOwnKafkaClient = true;
+        if (kafkaClient != null) {
+            throw new IllegalStateException("KafkaClient is no longer supported, "
+                    + "set bootstrap servers and producer/consumer properties instead.");
+        }
+        kafkaProducer = createKafkaProducer();
+        produceRateMeter = new KafkaPartitionRateMeter(produceRateWindowMs);
+        commitOnFinish = consumerProps == null || !"true".equalsIgnoreCase(
+                consumerProps.getProperty(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG));
+        inFlightStore = !StringUtils.isBlank(inFlightStorageDir)
+                ? new RocksDbKafkaInFlightStore(inFlightStorageDir, this::serialize,
+                        this::deserialize)
+                : new KafkaInFlightStore();
+        inFlightStore.init();
+        List<String> topics = new ArrayList<>();
+        topics.add(topicName);
+        Map<String, Long> topicDelaysMs = new HashMap<>();
+        for (long delayMs : retryDelaysMs) {
+            String retryTopic = retryTopicName(topicName, delayMs);
+            topics.add(retryTopic);
+            topicDelaysMs.put(retryTopic, delayMs);
         }
+        List<KafkaPoller> pollers = new ArrayList<>();
+        for (int i = 0, n = Math.max(1, numConsumers); i < n; i++) {
+            pollers.add(new KafkaPoller(createKafkaConsumer(), pollTimeoutMs)
+                    .setBufferCapacity(bufferMaxRecords > 0 ? bufferMaxRecords : maxPollRecords)
+                    .setBufferMaxBytes(bufferMaxBytes)
+                    .setBufferLowWatermarkRatio(bufferLowWatermarkRatio)
+                    .setCommitOffsets(commitOnFinish).setCommitBatchSize(commitBatchSize)
+                    .setCommitIntervalMs(commitIntervalMs).setOrderedPartitions(orderedPartitions)
+                    .setPartitionBufferCapacity(partitionBufferMaxRecords)
+                    .setTopicDelaysMs(topicDelaysMs));
+        }
+        boolean backpressure = bufferMaxRecords > 0 || bufferMaxBytes > 0;
+        kafkaPollers = new KafkaPollerGroup(pollers, pollTimeoutMs, backpressure).start(topics);
         return this;
     }
 
+    /**
+     * Creates the {@link KafkaProducer} to send messages to the topic.
+     * 
+     * @return
+     * @since 0.5.2
+     */
+    protected KafkaProducer<String, byte[]> createKafkaProducer() {
+        Properties props = new Properties();
+        props.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
+        switch (producerType) {
+        case NO_ACK:
+            props.put(ProducerConfig.ACKS_CONFIG, "0");
+            break;
+        case ALL_ACKS:
+            props.put(ProducerConfig.ACKS_CONFIG, "all");
+            break;
+        default:
+            props.put(ProducerConfig.ACKS_CONFIG, "1");
+        }
+        props.put(ProducerConfig.LINGER_MS_CONFIG, String.valueOf(producerLingerMs));
+        props.put(ProducerConfig.BATCH_SIZE_CONFIG, String.valueOf(producerBatchSize));
+        props.put(ProducerConfig.COMPRESSION_TYPE_CONFIG, producerCompressionType);
+        props.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, StringSerializer.class.getName());
+        props.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG,
+                ByteArraySerializer.class.getName());
+        if (producerProps != null) {
+            props.putAll(producerProps);
+        }
+        return new KafkaProducer<>(props);
+    }
+
+    /**
+     * Creates the {@link KafkaConsumer} to consume messages from the topic
+     * (not yet subscribed).
+     * 
+     * @return
+     * @since 0.5.2
+     */
+    protected KafkaConsumer<String, byte[]> createKafkaConsumer() {
+        Properties props = new Properties();
+        props.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
+        props.put(ConsumerConfig.GROUP_ID_CONFIG, consumerGroupId);
+        props.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest");
+        props.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, "false");
+        props.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, String.valueOf(maxPollRecords));
+        props.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG,
+                StringDeserializer.class.getName());
+        props.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG,
+                ByteArrayDeserializer.class.getName());
+        if (consumerProps != null) {
+            props.putAll(consumerProps);
+        }
+        return new KafkaConsumer<>(props);
+    }
+
     /**
      * Destroy method.
      */
     public void destroy() {
-        if (kafkaClient != null && myOwnKafkaClient) {
+        if (queueSizeRefresher != null) {
+            queueSizeRefresher.shutdownNow();
+            queueSizeRefresher = null;
+        }
+        synchronized (queueSizeLock) {
+            if (offsetsConsumer != null) {
+                try {
+                    offsetsConsumer.close();
+                } catch (Exception e) {
+                    LOGGER.warn(e.getMessage(), e);
+                } finally {
+                    offsetsConsumer = null;
+                }
+            }
+        }
+        if (kafkaPollers != null) {
             try {
-                kafkaClient.destroy();
+                kafkaPollers.close();
             } catch (Exception e) {
                 LOGGER.warn(e.getMessage(), e);
             } finally {
-                kafkaClient = null;
+                kafkaPollers = null;
+            }
+        }
+        if (inFlightStore != null) {
+            try {
+                inFlightStore.close();
+            } catch (Exception e) {
+                LOGGER.warn(e.getMessage(), e);
+            } finally {
+                inFlightStore = null;
+            }
+        }
+        if (kafkaProducer != null) {
+            try {
+                // pending messages are sent before the producer is closed
+                kafkaProducer.close();
+            } catch (Exception e) {
+                LOGGER.warn(e.getMessage(), e);
+            } finally {
+                kafkaProducer = null;
             }
         }
     }
@@ -246,9 +1036,87 @@ public abstract class KafkaQueue extends AbstractQueue {
      * @since 0.3.3
      */
     protected IQueueMessage takeFromQueue() {
-        KafkaMessage kMsg = kafkaClient.consumeMessage(consumerGroupId, true, topicName, 1000,
-                TimeUnit.MILLISECONDS);
-        return kMsg != null ? deserialize(kMsg.content()) : null;
+        ConsumerRecord<String, byte[]> record = kafkaPollers.take();
+        return record != null ? toQueueMessage(record) : null;
+    }
+
+    /**
+     * Deserializes a taken record and marks it as in-flight until finished.
+     * 
+     * @param record
+     * @return
+     * @since 0.5.2
+     */
+    private IQueueMessage toQueueMessage(ConsumerRecord<String, byte[]> record) {
+        IQueueMessage msg;
+        try {
+            msg = deserialize(record.value());
+        } catch (RuntimeException e) {
+            // do not block offset commits with a record that can never be
+            // finished
+            kafkaPollers.ack(record);
+            throw e;
+        }
+        Object qId = msg != null ? msg.qId() : null;
+        if (!isEphemeralEnabled() || qId == null) {
+            kafkaPollers.ack(record);
+        } else {
+            inFlightStore.add(record, msg);
+        }
+        return msg;
+    }
+
+    /**
+     * Acknowledges the record of a finished message.
+     * 
+     * @param msg
+     * @since 0.5.2
+     */
+    private void ack(IQueueMessage msg) {
+        Object qId = msg.qId();
+        if (qId == null) {
+            return;
+        }
+        KafkaInFlightStore.Entry entry = inFlightStore.remove(qId);
+        if (entry != null && entry.getRecord() != null) {
+            kafkaPollers.ack(entry.getRecord());
+        }
+    }
+
+    /**
+     * Is ephemeral storage in use? It is not if disabled via
+     * {@link #setEphemeralDisabled(boolean)}, or if offsets are auto-committed
+     * by Kafka consumer.
+     * 
+     * @return
+     * @since 0.5.2
+     */
+    protected boolean isEphemeralEnabled() {
+        return commitOnFinish && !isEphemeralDisabled();
+    }
+
+    /**
+     * Max number of messages can be taken now, limited by ephemeral storage's
+     * max size. Messages recovered from {@link #setInFlightStorageDir(String)}
+     * after a restart do not count: they are redelivered by Kafka only if
+     * messages can still be taken.
+     * 
+     * @param maxMessages
+     * @return
+     * @throws QueueException.EphemeralIsFull
+     *             if ephemeral storage is full
+     * @since 0.5.2
+     */
+    private int ensureEphemeralCapacity(int maxMessages) {
+        int ephemeralMaxSize = getEphemeralMaxSize();
+        if (!isEphemeralEnabled() || ephemeralMaxSize <= 0) {
+            return maxMessages;
+        }
+        int capacity = ephemeralMaxSize - inFlightStore.numTaken();
+        if (capacity <= 0) {
+            throw new QueueException.EphemeralIsFull(ephemeralMaxSize);
+        }
+        return Math.min(maxMessages, capacity);
     }
 
     /**
@@ -259,19 +1127,123 @@ public abstract class KafkaQueue extends AbstractQueue {
      * @return
      */
     protected boolean putToQueue(IQueueMessage msg) {
-        byte[] msgData = serialize(msg);
-        Object pKey = msg instanceof IPartitionSupport ? ((IPartitionSupport) msg).qPartitionKey()
-                : msg.qId();
-        if (pKey == null) {
-            pKey = msg.qId();
-        }
-        KafkaMessage kMsg = pKey != null ? new KafkaMessage(topicName, pKey.toString(), msgData)
-                : new KafkaMessage(topicName, msgData);
-        if (sendAsync) {
-            return kafkaClient.sendMessageRaw(producerType, kMsg) != null;
-        } else {
-            return kafkaClient.sendMessage(producerType, kMsg) != null;
+        return putToQueue(msg, topicName);
+    }
+
+    /**
+     * Puts a message to a topic, partitioning message by
+     * {@link IQueueMessage#qId()}
+     * 
+     * @param msg
+     * @param topic
+     * @return
+     * @since 0.5.2
+     */
+    protected boolean putToQueue(IQueueMessage msg, String topic) {
+        CompletableFuture<Boolean> future = putToQueueAsync(msg, topic);
+        // messages that failed already (e.g. can not be serialized) are
+        // reported synchronously
+        if (sendAsync && !future.isCompletedExceptionally()) {
+            future.whenComplete((result, e) -> {
+                if (e != null) {
+                    LOGGER.warn("Error while sending message to Kafka: " + e.getMessage());
+                }
+            });
+            return true;
+        }
+        return awaitResult(future);
+    }
+
+    /**
+     * Waits for the outcome of {@link #putToQueueAsync(IQueueMessage)}.
+     * 
+     * @param future
+     * @return
+     * @since 0.5.2
+     */
+    private boolean awaitResult(CompletableFuture<Boolean> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof QueueException) {
+                throw (QueueException) cause;
+            }
+            LOGGER.warn("Error while sending message to Kafka: " + cause.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Puts a message to Kafka queue asynchronously, partitioning message by
+     * {@link IQueueMessage#qId()}
+     * 
+     * @param msg
+     * @return future that completes (from producer's callback) when the
+     *         message has been acknowledged by Kafka
+     * @since 0.5.2
+     */
+    protected CompletableFuture<Boolean> putToQueueAsync(IQueueMessage msg) {
+        return putToQueueAsync(msg, topicName);
+    }
+
+    /**
+     * Puts a message to a topic asynchronously, partitioning message by
+     * {@link IQueueMessage#qId()}
+     * 
+     * @param msg
+     * @param topic
+     * @return future that completes (from producer's callback) when the
+     *         message has been acknowledged by Kafka
+     * @since 0.5.2
+     */
+    protected CompletableFuture<Boolean> putToQueueAsync(IQueueMessage msg, String topic) {
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        try {
+            byte[] msgData = serialize(msg);
+            String partitionKey = msg instanceof IPartitionSupport
+                    ? ((IPartitionSupport) msg).qPartitionKey() : null;
+            Object pKey = partitionKey != null ? partitionKey : msg.qId();
+            Integer partition = choosePartition(topic, partitionKey);
+            ProducerRecord<String, byte[]> record = new ProducerRecord<>(topic, partition,
+                    pKey != null ? pKey.toString() : null, msgData);
+            kafkaProducer.send(record, (metadata, e) -> {
+                if (e != null) {
+                    future.completeExceptionally(e);
+                } else {
+                    produceRateMeter
+                            .record(new TopicPartition(metadata.topic(), metadata.partition()));
+                    future.complete(Boolean.TRUE);
+                }
+            });
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
         }
+        return future;
+    }
+
+    /**
+     * Chooses the partition of a message via the partitioning strategy, if
+     * any.
+     * 
+     * @param topic
+     * @param partitionKey
+     * @return {@code null} to let Kafka producer choose
+     * @since 0.5.2
+     */
+    private Integer choosePartition(String topic, String partitionKey) {
+        IKafkaPartitioningStrategy strategy = partitioningStrategy;
+        if (strategy == null || (orderedPartitions && partitionKey != null)) {
+            return null;
+        }
+        // partitions' metadata is cached by the producer
+        List<PartitionInfo> partitions = kafkaProducer.partitionsFor(topic);
+        int numPartitions = partitions != null ? partitions.size() : 0;
+        return numPartitions > 0 ? strategy.partition(topic, partitionKey, numPartitions)
+                : null;
     }
 
     /**
@@ -285,32 +1257,78 @@ public abstract class KafkaQueue extends AbstractQueue {
         return putToQueue(msg);
     }
 
+    /**
+     * Async variant of {@link #queue(IQueueMessage)}.
+     * 
+     * @param _msg
+     * @return future that completes (from producer's callback) when the
+     *         message has been acknowledged by Kafka, or completes
+     *         exceptionally if sending failed
+     * @since 0.5.2
+     */
+    public CompletableFuture<Boolean> queueAsync(IQueueMessage _msg) {
+        IQueueMessage msg = _msg.clone();
+        Date now = new Date();
+        msg.qNumRequeues(0).qOriginalTimestamp(now).qTimestamp(now);
+        return putToQueueAsync(msg);
+    }
+
     /**
      * {@inheritDoc}
+     * 
+     * <p>
+     * If retry topics are configured (see {@link #setRetryDelaysMs(long...)}),
+     * the message is produced to the retry topic matching its number of
+     * requeues.
+     * </p>
+     * 
+     * <p>
+     * The original record is acknowledged only once Kafka has acknowledged the
+     * requeued copy, even in async mode (see {@link #setSendAsync(boolean)}).
+     * </p>
      */
     @Override
     public boolean requeue(final IQueueMessage _msg) {
         IQueueMessage msg = _msg.clone();
         Date now = new Date();
         msg.qIncNumRequeues().qTimestamp(now);
-        return putToQueue(msg);
+        boolean result = awaitResult(
+                putToQueueAsync(msg, requeueTopicName(msg.qNumRequeues())));
+        if (result) {
+            ack(_msg);
+        }
+        return result;
     }
 
     /**
      * {@inheritDoc}
+     * 
+     * <p>
+     * The original record is acknowledged only once Kafka has acknowledged the
+     * requeued copy, even in async mode (see {@link #setSendAsync(boolean)}).
+     * </p>
      */
     @Override
     public boolean requeueSilent(IQueueMessage _msg) {
         IQueueMessage msg = _msg.clone();
-        return putToQueue(msg);
+        boolean result = awaitResult(putToQueueAsync(msg));
+        if (result) {
+            ack(_msg);
+        }
+        return result;
     }
 
     /**
      * {@inheritDoc}
+     * 
+     * <p>
+     * The message's offset becomes committable once all messages before it
+     * (in the same partition) have been finished.
+     * </p>
      */
     @Override
     public void finish(IQueueMessage msg) {
-        // EMPTY
+        ack(msg);
     }
 
     /**
@@ -318,42 +1336,305 @@ public abstract class KafkaQueue extends AbstractQueue {
      */
     @Override
     public IQueueMessage take() {
+        ensureEphemeralCapacity(1);
         return takeFromQueue();
     }
 
     /**
      * {@inheritDoc}
      * 
-     * This method throws {@link QueueException.OperationNotSupported}
+     * <p>
+     * This method returns messages from the local buffer, polling one batch
+     * from Kafka if the buffer is empty.
+     * </p>
+     * 
+     * @since 0.5.2
+     */
+    @Override
+    public Collection<IQueueMessage> takeBatch(int maxMessages) {
+        if (maxMessages <= 0) {
+            return Collections.emptyList();
+        }
+        List<ConsumerRecord<String, byte[]>> records = kafkaPollers
+                .takeBatch(ensureEphemeralCapacity(maxMessages));
+        List<IQueueMessage> result = new ArrayList<>(records.size());
+        for (ConsumerRecord<String, byte[]> record : records) {
+            result.add(toQueueMessage(record));
+        }
+        return result;
+    }
+
+    /**
+     * Drops in-flight messages recovered from
+     * {@link #setInFlightStorageDir(String)} whose records' offsets have been
+     * committed since: their partitions have been consumed past them (e.g. by
+     * another consumer of the group after a rebalance), hence they are no
+     * longer in flight. Checked at most once every
+     * {@link #getQueueSizeCacheMs()} milliseconds.
+     * 
+     * @since 0.5.2
+     */
+    private void expireRecoveredInFlight() {
+        if (inFlightStore.numRecovered() == 0 || recoveredInFlightCheckTimestamp
+                + queueSizeCacheMs > System.currentTimeMillis()) {
+            return;
+        }
+        recoveredInFlightCheckTimestamp = System.currentTimeMillis();
+        Set<TopicPartition> tps = new HashSet<>();
+        for (KafkaInFlightStore.Entry entry : inFlightStore.getRecoveredEntries()) {
+            tps.add(new TopicPartition(entry.getTopic(), entry.getPartition()));
+        }
+        Map<TopicPartition, Long> committedOffsets = new HashMap<>();
+        synchronized (queueSizeLock) {
+            try {
+                if (offsetsConsumer == null) {
+                    offsetsConsumer = createKafkaConsumer();
+                }
+                for (TopicPartition tp : tps) {
+                    OffsetAndMetadata committed = offsetsConsumer.committed(tp);
+                    if (committed != null) {
+                        committedOffsets.put(tp, committed.offset());
+                    }
+                }
+            } catch (Exception e) {
+                LOGGER.warn("Error while fetching committed offsets: " + e.getMessage());
+                return;
+            }
+        }
+        expireRecoveredInFlight(committedOffsets);
+    }
+
+    /**
+     * Drops recovered in-flight messages whose offsets are below their
+     * partitions' committed offsets.
+     * 
+     * @param committedOffsets
+     * @since 0.5.2
+     */
+    private void expireRecoveredInFlight(Map<TopicPartition, Long> committedOffsets) {
+        if (inFlightStore == null || inFlightStore.numRecovered() == 0) {
+            return;
+        }
+        int numExpired = inFlightStore.removeRecovered(entry -> {
+            Long committed = committedOffsets
+                    .get(new TopicPartition(entry.getTopic(), entry.getPartition()));
+            return committed != null && entry.getOffset() < committed.longValue();
+        });
+        if (numExpired > 0) {
+            LOGGER.info("Dropped [" + numExpired
+                    + "] recovered in-flight message(s) whose offsets have been committed");
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * <p>
+     * Orphan messages are in-flight messages taken more than
+     * {@code thresholdTimestampMs} milliseconds ago, ordered by the time they
+     * were taken.
+     * </p>
+     * 
+     * @since 0.5.2
      */
     @Override
     public Collection<IQueueMessage> getOrphanMessages(long thresholdTimestampMs) {
-        throw new QueueException.OperationNotSupported();
+        if (!isEphemeralEnabled()) {
+            return null;
+        }
+        expireRecoveredInFlight();
+        List<IQueueMessage> result = new ArrayList<>();
+        for (KafkaInFlightStore.Entry entry : inFlightStore
+                .getEntriesTakenBefore(System.currentTimeMillis() - thresholdTimestampMs)) {
+            result.add(entry.getMessage());
+        }
+        return result;
     }
 
     /**
      * {@inheritDoc}
+     * 
+     * <p>
+     * The message is produced to the topic again, then its original record is
+     * acknowledged as if it were finished: its partition's offset can move
+     * forward without reprocessing messages that have been finished.
+     * </p>
+     * 
+     * @return {@code false} if the message is not in flight, or could not be
+     *         produced
+     * @since 0.5.2
      */
     @Override
     public boolean moveFromEphemeralToQueueStorage(IQueueMessage msg) {
-        throw new UnsupportedOperationException(
-                "Method [moveFromEphemeralToQueueStorage] is not supported!");
+        if (!isEphemeralEnabled() || msg.qId() == null || !inFlightStore.contains(msg.qId())) {
+            return false;
+        }
+        // wait for Kafka's acknowledgement even in async mode: the original
+        // record must not be committed before its copy has been stored
+        boolean result = awaitResult(putToQueueAsync(msg.clone()));
+        if (result) {
+            ack(msg);
+        }
+        return result;
     }
 
     /**
      * {@inheritDoc}
+     * 
+     * <p>
+     * Queue size is the consumer group's lag: sum of (end offset - committed
+     * offset) over all partitions of the topic and retry topics. For
+     * partitions being consumed by this queue instance, records that have been
+     * taken are excluded (see {@link #ephemeralSize()}). The value is cached
+     * for {@link #getQueueSizeCacheMs()} milliseconds.
+     * </p>
+     * 
+     * <p>
+     * Only the very first call blocks while offsets are fetched from brokers.
+     * Once the cached value has expired, it is refreshed by a background
+     * thread and callers get the last cached value in the meantime. With
+     * caching disabled, every call fetches offsets synchronously.
+     * </p>
+     * 
+     * @return {@code -1} if the lag could not be computed, capped at
+     *         {@link Integer#MAX_VALUE}
      */
     @Override
     public int queueSize() {
-        return -1;
+        if (queueSizeCacheMs <= 0) {
+            synchronized (queueSizeLock) {
+                return toInt(fetchQueueSize());
+            }
+        }
+        if (cachedQueueSizeTimestamp == 0) {
+            synchronized (queueSizeLock) {
+                if (cachedQueueSizeTimestamp == 0) {
+                    refreshQueueSize();
+                }
+            }
+        } else if (cachedQueueSizeTimestamp + queueSizeCacheMs <= System.currentTimeMillis()
+                && queueSizeRefreshing.compareAndSet(false, true)) {
+            try {
+                getQueueSizeRefresher().execute(() -> {
+                    try {
+                        synchronized (queueSizeLock) {
+                            refreshQueueSize();
+                        }
+                    } finally {
+                        queueSizeRefreshing.set(false);
+                    }
+                });
+            } catch (RuntimeException e) {
+                queueSizeRefreshing.set(false);
+                LOGGER.warn("Cannot refresh queue size: " + e.getMessage());
+            }
+        }
+        return toInt(cachedQueueSize);
+    }
+
+    private static int toInt(long value) {
+        return value > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) value;
+    }
+
+    private synchronized ExecutorService getQueueSizeRefresher() {
+        if (queueSizeRefresher == null) {
+            queueSizeRefresher = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "KafkaQueue-queueSize-" + topicName);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return queueSizeRefresher;
+    }
+
+    /**
+     * Fetches queue size and updates the cached value. Must be called while
+     * holding {@code queueSizeLock}.
+     */
+    private void refreshQueueSize() {
+        cachedQueueSize = fetchQueueSize();
+        cachedQueueSizeTimestamp = System.currentTimeMillis();
+    }
+
+    /**
+     * Computes queue size from offsets fetched from Kafka brokers. Must be
+     * called while holding {@code queueSizeLock}.
+     * 
+     * @return
+     * @since 0.5.2
+     */
+    private long fetchQueueSize() {
+        try {
+            if (offsetsConsumer == null) {
+                offsetsConsumer = createKafkaConsumer();
+            }
+            List<String> topics = new ArrayList<>();
+            topics.add(topicName);
+            topics.addAll(getRetryTopicNames());
+            List<TopicPartition> tps = new ArrayList<>();
+            for (String topic : topics) {
+                List<PartitionInfo> partitions = offsetsConsumer.partitionsFor(topic);
+                if (partitions != null) {
+                    for (PartitionInfo partition : partitions) {
+                        tps.add(new TopicPartition(partition.topic(), partition.partition()));
+                    }
+                }
+            }
+            Map<TopicPartition, Long> endOffsets = offsetsConsumer.endOffsets(tps);
+            Map<TopicPartition, Long> beginningOffsets = null;
+            Map<TopicPartition, Long> consumedOffsets = Collections.emptyMap();
+            long result = 0;
+            if (kafkaPollers != null && kafkaPollers.isCommitOffsets()) {
+                // buffered records have been polled but not yet taken
+                consumedOffsets = kafkaPollers.consumedOffsets();
+                result += kafkaPollers.bufferSize();
+            }
+            Map<TopicPartition, Long> committedOffsets = new HashMap<>();
+            for (TopicPartition tp : tps) {
+                Long end = endOffsets.get(tp);
+                if (end == null) {
+                    continue;
+                }
+                OffsetAndMetadata committed = offsetsConsumer.committed(tp);
+                long start;
+                if (committed != null) {
+                    start = committed.offset();
+                    committedOffsets.put(tp, start);
+                } else {
+                    if (beginningOffsets == null) {
+                        beginningOffsets = offsetsConsumer.beginningOffsets(tps);
+                    }
+                    Long beginning = beginningOffsets.get(tp);
+                    start = beginning != null ? beginning.longValue() : 0;
+                }
+                Long consumed = consumedOffsets.get(tp);
+                if (consumed != null) {
+                    start = Math.max(start, consumed.longValue());
+                }
+                result += Math.max(0, end.longValue() - start);
+            }
+            expireRecoveredInFlight(committedOffsets);
+            return result;
+        } catch (Exception e) {
+            LOGGER.warn("Error while computing queue size: " + e.getMessage());
+            return -1;
+        }
     }
 
     /**
      * {@inheritDoc}
+     * 
+     * <p>
+     * Ephemeral size is the number of messages taken but not yet finished,
+     * including messages recovered from {@link #setInFlightStorageDir(String)}
+     * after a restart, until Kafka redelivers them or their offsets have been
+     * committed (see {@link #getOrphanMessages(long)} and
+     * {@link #queueSize()}).
+     * </p>
      */
     @Override
     public int ephemeralSize() {
-        return -1;
+        return inFlightStore != null ? inFlightStore.size() : 0;
     }
 
 }
@@ -6,6 +6,10 @@ import org.apache.commons.lang3.StringUtils;
 
 import com.github.ddth.kafka.KafkaClient.ProducerType;
 import com.github.ddth.queue.QueueSpec;
+import com.github.ddth.queue.impl.base.BaseUniversalKafkaQueue;
+import com.github.ddth.queue.impl.kafka.HotKeySplittingPartitioningStrategy;
+import com.github.ddth.queue.impl.kafka.IKafkaPartitioningStrategy;
+import com.github.ddth.queue.impl.kafka.StickyRandomPartitioningStrategy;
 
 /**
  * Factory to create {@link KafkaQueue} instances.
@@ -22,6 +26,155 @@ public abstract class KafkaQueueFactory<T extends KafkaQueue> extends AbstractQu
     public final static String SPEC_FIELD_PRODUCER_PROPERTIES = "producer_properties";
     public final static String SPEC_FIELD_CONSUMER_PROPERTIES = "consumer_properties";
 
+    /**
+     * Max time (in milliseconds) to wait for records in one poll, see
+     * {@link KafkaQueue#setPollTimeoutMs(long)}.
+     * 
+     * @since 0.5.2
+     */
+    public final static String SPEC_FIELD_POLL_TIMEOUT_MS = "poll_timeout_ms";
+
+    /**
+     * Max number of records returned by one poll, see
+     * {@link KafkaQueue#setMaxPollRecords(int)}.
+     * 
+     * @since 0.5.2
+     */
+    public final static String SPEC_FIELD_MAX_POLL_RECORDS = "max_poll_records";
+
+    /**
+     * Number of Kafka consumers, see {@link KafkaQueue#setNumConsumers(int)}.
+     * 
+     * @since 0.5.2
+     */
+    public final static String SPEC_FIELD_NUM_CONSUMERS = "num_consumers";
+
+    /**
+     * Hand out at most one message per partition at a time, see
+     * {@link KafkaQueue#setOrderedPartitions(boolean)}.
+     * 
+     * @since 0.5.2
+     */
+    public final static String SPEC_FIELD_ORDERED_PARTITIONS = "ordered_partitions";
+
+    /**
+     * Max number of messages of a partition in a consumer's local buffer (in
+     * ordered mode), see {@link KafkaQueue#setPartitionBufferMaxRecords(int)}.
+     * 
+     * @since 0.5.2
+     */
+    public final static String SPEC_FIELD_PARTITION_BUFFER_MAX_RECORDS =
+            "partition_buffer_max_records";
+
+    /**
+     * Max number of messages in a consumer's local buffer, see
+     * {@link KafkaQueue#setBufferMaxRecords(int)}.
+     * 
+     * @since 0.5.2
+     */
+    public final static String SPEC_FIELD_BUFFER_MAX_RECORDS = "buffer_max_records";
+
+    /**
+     * Max total size (in bytes) of messages in a consumer's local buffer, see
+     * {@link KafkaQueue#setBufferMaxBytes(long)}.
+     * 
+     * @since 0.5.2
+     */
+    public final static String SPEC_FIELD_BUFFER_MAX_BYTES = "buffer_max_bytes";
+
+    /**
+     * Low watermark ratio to resume paused partitions, see
+     * {@link KafkaQueue#setBufferLowWatermarkRatio(double)}.
+     * 
+     * @since 0.5.2
+     */
+    public final static String SPEC_FIELD_BUFFER_LOW_WATERMARK_RATIO = "buffer_low_watermark_ratio";
+
+    /**
+     * Offsets are committed every this number of finished messages, see
+     * {@link KafkaQueue#setCommitBatchSize(int)}.
+     * 
+     * @since 0.5.2
+     */
+    public final static String SPEC_FIELD_COMMIT_BATCH_SIZE = "commit_batch_size";
+
+    /**
+     * Offsets are committed every this number of milliseconds, see
+     * {@link KafkaQueue#setCommitIntervalMs(long)}.
+     * 
+     * @since 0.5.2
+     */
+    public final static String SPEC_FIELD_COMMIT_INTERVAL_MS = "commit_interval_ms";
+
+    /**
+     * How long (in milliseconds) queue size is cached, see
+     * {@link KafkaQueue#setQueueSizeCacheMs(long)}.
+     * 
+     * @since 0.5.2
+     */
+    public final static String SPEC_FIELD_QUEUE_SIZE_CACHE_MS = "queue_size_cache_ms";
+
+    /**
+     * Producer's {@code linger.ms}, see
+     * {@link KafkaQueue#setProducerLingerMs(long)}.
+     * 
+     * @since 0.5.2
+     */
+    public final static String SPEC_FIELD_PRODUCER_LINGER_MS = "producer_linger_ms";
+
+    /**
+     * Producer's {@code batch.size}, see
+     * {@link KafkaQueue#setProducerBatchSize(int)}.
+     * 
+     * @since 0.5.2
+     */
+    public final static String SPEC_FIELD_PRODUCER_BATCH_SIZE = "producer_batch_size";
+
+    /**
+     * Producer's {@code compression.type}, see
+     * {@link KafkaQueue#setProducerCompressionType(String)}.
+     * 
+     * @since 0.5.2
+     */
+    public final static String SPEC_FIELD_PRODUCER_COMPRESSION_TYPE = "producer_compression_type";
+
+    /**
+     * Partitioning strategy, one of {@link #PARTITIONING_STRATEGY_DEFAULT},
+     * {@link #PARTITIONING_STRATEGY_STICKY_RANDOM} or
+     * {@link #PARTITIONING_STRATEGY_HOT_KEY_SPLIT}, see
+     * {@link KafkaQueue#setPartitioningStrategy(IKafkaPartitioningStrategy)}.
+     * 
+     * @since 0.5.2
+     */
+    public final static String SPEC_FIELD_PARTITIONING_STRATEGY = "partitioning_strategy";
+    public final static String PARTITIONING_STRATEGY_DEFAULT = "default";
+    public final static String PARTITIONING_STRATEGY_STICKY_RANDOM = "sticky_random";
+    public final static String PARTITIONING_STRATEGY_HOT_KEY_SPLIT = "hot_key_split";
+
+    /**
+     * Delays (in milliseconds, comma-separated, e.g. {@code 5000,60000,600000})
+     * of retry topics, see {@link KafkaQueue#setRetryDelaysMs(long...)}.
+     * 
+     * @since 0.5.2
+     */
+    public final static String SPEC_FIELD_RETRY_DELAYS_MS = "retry_delays_ms";
+
+    /**
+     * Directory of the local RocksDB storing in-flight messages, see
+     * {@link KafkaQueue#setInFlightStorageDir(String)}.
+     * 
+     * @since 0.5.2
+     */
+    public final static String SPEC_FIELD_IN_FLIGHT_STORAGE_DIR = "in_flight_storage_dir";
+
+    /**
+     * Write messages in raw-payload format (universal queues only), see
+     * {@link BaseUniversalKafkaQueue#setRawPayload(boolean)}.
+     * 
+     * @since 0.5.2
+     */
+    public final static String SPEC_FIELD_RAW_PAYLOAD = "raw_payload";
+
     private ProducerType defaultProducerType = ProducerType.LEADER_ACK;
     private Properties defaultProducerProps, defaultConsumerProps;
 
@@ -68,6 +221,21 @@ public abstract class KafkaQueueFactory<T extends KafkaQueue> extends AbstractQu
             }
         }
 
+        Long producerLingerMs = spec.getField(SPEC_FIELD_PRODUCER_LINGER_MS, Long.class);
+        if (producerLingerMs != null) {
+            queue.setProducerLingerMs(producerLingerMs.longValue());
+        }
+
+        Integer producerBatchSize = spec.getField(SPEC_FIELD_PRODUCER_BATCH_SIZE, Integer.class);
+        if (producerBatchSize != null) {
+            queue.setProducerBatchSize(producerBatchSize.intValue());
+        }
+
+        String producerCompressionType = spec.getField(SPEC_FIELD_PRODUCER_COMPRESSION_TYPE);
+        if (!StringUtils.isBlank(producerCompressionType)) {
+            queue.setProducerCompressionType(producerCompressionType);
+        }
+
         Properties producerProps = spec.getField(SPEC_FIELD_PRODUCER_PROPERTIES, Properties.class);
         if (producerProps != null) {
             queue.setKafkaProducerProperties(producerProps);
@@ -78,6 +246,111 @@ public abstract class KafkaQueueFactory<T extends KafkaQueue> extends AbstractQu
             queue.setKafkaConsumerProperties(consumerProps);
         }
 
+        Boolean ephemeralDisabled = spec.getField(QueueSpec.FIELD_EPHEMERAL_DISABLED,
+                Boolean.class);
+        if (ephemeralDisabled != null) {
+            queue.setEphemeralDisabled(ephemeralDisabled.booleanValue());
+        }
+        Integer maxEphemeralSize = spec.getField(QueueSpec.FIELD_EPHEMERAL_MAX_SIZE, Integer.class);
+        if (maxEphemeralSize != null) {
+            queue.setEphemeralMaxSize(maxEphemeralSize.intValue());
+        }
+
+        Long pollTimeoutMs = spec.getField(SPEC_FIELD_POLL_TIMEOUT_MS, Long.class);
+        if (pollTimeoutMs != null) {
+            queue.setPollTimeoutMs(pollTimeoutMs.longValue());
+        }
+
+        Integer maxPollRecords = spec.getField(SPEC_FIELD_MAX_POLL_RECORDS, Integer.class);
+        if (maxPollRecords != null) {
+            queue.setMaxPollRecords(maxPollRecords.intValue());
+        }
+
+        Integer numConsumers = spec.getField(SPEC_FIELD_NUM_CONSUMERS, Integer.class);
+        if (numConsumers != null) {
+            queue.setNumConsumers(numConsumers.intValue());
+        }
+
+        Boolean orderedPartitions = spec.getField(SPEC_FIELD_ORDERED_PARTITIONS, Boolean.class);
+        if (orderedPartitions != null) {
+            queue.setOrderedPartitions(orderedPartitions.booleanValue());
+        }
+
+        Integer partitionBufferMaxRecords = spec
+                .getField(SPEC_FIELD_PARTITION_BUFFER_MAX_RECORDS, Integer.class);
+        if (partitionBufferMaxRecords != null) {
+            queue.setPartitionBufferMaxRecords(partitionBufferMaxRecords.intValue());
+        }
+
+        Integer bufferMaxRecords = spec.getField(SPEC_FIELD_BUFFER_MAX_RECORDS, Integer.class);
+        if (bufferMaxRecords != null) {
+            queue.setBufferMaxRecords(bufferMaxRecords.intValue());
+        }
+
+        Long bufferMaxBytes = spec.getField(SPEC_FIELD_BUFFER_MAX_BYTES, Long.class);
+        if (bufferMaxBytes != null) {
+            queue.setBufferMaxBytes(bufferMaxBytes.longValue());
+        }
+
+        Double bufferLowWatermarkRatio = spec.getField(SPEC_FIELD_BUFFER_LOW_WATERMARK_RATIO,
+                Double.class);
+        if (bufferLowWatermarkRatio != null) {
+            queue.setBufferLowWatermarkRatio(bufferLowWatermarkRatio.doubleValue());
+        }
+
+        Integer commitBatchSize = spec.getField(SPEC_FIELD_COMMIT_BATCH_SIZE, Integer.class);
+        if (commitBatchSize != null) {
+            queue.setCommitBatchSize(commitBatchSize.intValue());
+        }
+
+        Long commitIntervalMs = spec.getField(SPEC_FIELD_COMMIT_INTERVAL_MS, Long.class);
+        if (commitIntervalMs != null) {
+            queue.setCommitIntervalMs(commitIntervalMs.longValue());
+        }
+
+        Long queueSizeCacheMs = spec.getField(SPEC_FIELD_QUEUE_SIZE_CACHE_MS, Long.class);
+        if (queueSizeCacheMs != null) {
+            queue.setQueueSizeCacheMs(queueSizeCacheMs.longValue());
+        }
+
+        String partitioningStrategy = spec.getField(SPEC_FIELD_PARTITIONING_STRATEGY);
+        if (!StringUtils.isBlank(partitioningStrategy)) {
+            partitioningStrategy = partitioningStrategy.trim();
+            if (PARTITIONING_STRATEGY_STICKY_RANDOM.equalsIgnoreCase(partitioningStrategy)) {
+                queue.setPartitioningStrategy(new StickyRandomPartitioningStrategy());
+            } else if (PARTITIONING_STRATEGY_HOT_KEY_SPLIT.equalsIgnoreCase(partitioningStrategy)) {
+                queue.setPartitioningStrategy(new HotKeySplittingPartitioningStrategy());
+            } else if (!PARTITIONING_STRATEGY_DEFAULT.equalsIgnoreCase(partitioningStrategy)) {
+                throw new IllegalArgumentException("Invalid value for param ["
+                        + SPEC_FIELD_PARTITIONING_STRATEGY + "]: " + partitioningStrategy);
+            }
+        }
+
+        String retryDelaysMs = spec.getField(SPEC_FIELD_RETRY_DELAYS_MS);
+        if (!StringUtils.isBlank(retryDelaysMs)) {
+            String[] tokens = retryDelaysMs.trim().split("\\s*,\\s*");
+            long[] delays = new long[tokens.length];
+            try {
+                for (int i = 0; i < tokens.length; i++) {
+                    delays[i] = Long.parseLong(tokens[i]);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(
+                        "Invalid value for param [" + SPEC_FIELD_RETRY_DELAYS_MS + "]!", e);
+            }
+            queue.setRetryDelaysMs(delays);
+        }
+
+        String inFlightStorageDir = spec.getField(SPEC_FIELD_IN_FLIGHT_STORAGE_DIR);
+        if (!StringUtils.isBlank(inFlightStorageDir)) {
+            queue.setInFlightStorageDir(inFlightStorageDir);
+        }
+
+        Boolean rawPayload = spec.getField(SPEC_FIELD_RAW_PAYLOAD, Boolean.class);
+        if (rawPayload != null && queue instanceof BaseUniversalKafkaQueue) {
+            ((BaseUniversalKafkaQueue<?>) queue).setRawPayload(rawPayload.booleanValue());
+        }
+
         String consumerGroupId = spec.getField(SPEC_FIELD_CONSUMER_GROUP_ID);
         if (!StringUtils.isBlank(consumerGroupId)) {
             queue.setConsumerGroupId(consumerGroupId);
@@ -0,0 +1,691 @@
+package com.github.ddth.queue.impl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.github.ddth.queue.IPartitionSupport;
+import com.github.ddth.queue.IQueue;
+import com.github.ddth.queue.IQueueMessage;
+import com.github.ddth.queue.impl.redis.RedisLuaScript;
+import com.github.ddth.queue.utils.QueueException;
+import com.github.ddth.queue.utils.QueueUtils;
+
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.JedisCluster;
+import redis.clients.jedis.JedisPoolConfig;
+
+/**
+ * Redis Cluster implementation of {@link IQueue}.
+ * 
+ * <p>
+ * Implementation:
+ * <ul>
+ * <li>A logical queue is split into {@code N} shards (see
+ * {@link #setNumShards(int)}), each shard lives in one single hash slot: all
+ * keys of shard {@code i} share the hash tag <code>{queueName:i}</code>.</li>
+ * <li>Each shard has the same structure as {@link RedisQueue}: a hash
+ * <code>{queueName:i}:h</code> to store messages, a list
+ * <code>{queueName:i}:l</code> as queue of messages' queue_ids and a sorted
+ * set <code>{queueName:i}:s</code> as ephemeral storage.</li>
+ * <li>All operations on a shard are done by LUA scripts (which declare all
+ * their keys, so they are routed to the node that owns the shard's slot).</li>
+ * <li>Producers route messages to shards by
+ * {@link IPartitionSupport#qPartitionKey()} (or by queue_id if the message
+ * has no partition key); consumers take messages from shards in round-robin
+ * manner.</li>
+ * </ul>
+ * </p>
+ * 
+ * <p>
+ * Notes:
+ * <ul>
+ * <li>Messages are FIFO per shard, not across shards.</li>
+ * <li>If ephemeral storage's max size is bound, it is split evenly (rounded up)
+ * across shards.</li>
+ * </ul>
+ * </p>
+ * 
+ * @author Thanh Nguyen <btnguyen2k@gmail.com>
+ * @since 0.5.2
+ */
+public abstract class RedisClusterQueue extends AbstractEphemeralSupportQueue {
+
+    private JedisCluster jedisCluster;
+    private boolean myOwnJedisCluster = true;
+    private String redisClusterNodes = "localhost:7000";
+    private String queueName = "queue";
+    private int numShards = 1;
+
+    private byte[][] listNames, sortedSetNames, hashNames;
+    private AtomicInteger takeCounter = new AtomicInteger();
+
+    /**
+     * Redis cluster's seed nodes (format {@code host1:port1,host2:port2,...}).
+     * 
+     * @return
+     */
+    public String getRedisClusterNodes() {
+        return redisClusterNodes;
+    }
+
+    /**
+     * Sets Redis cluster's seed nodes (format
+     * {@code host1:port1,host2:port2,...}).
+     * 
+     * @param redisClusterNodes
+     * @return
+     */
+    public RedisClusterQueue setRedisClusterNodes(String redisClusterNodes) {
+        this.redisClusterNodes = redisClusterNodes;
+        return this;
+    }
+
+    /**
+     * Name of the queue, used to build Redis keys.
+     * 
+     * @return
+     */
+    public String getQueueName() {
+        return queueName;
+    }
+
+    /**
+     * Sets name of the queue, used to build Redis keys.
+     * 
+     * @param queueName
+     * @return
+     */
+    public RedisClusterQueue setQueueName(String queueName) {
+        this.queueName = queueName;
+        return this;
+    }
+
+    /**
+     * Number of shards the queue is split into.
+     * 
+     * @return
+     */
+    public int getNumShards() {
+        return numShards;
+    }
+
+    /**
+     * Sets number of shards the queue is split into.
+     * 
+     * <p>
+     * Note: all producers and consumers of a queue must use the same number of
+     * shards.
+     * </p>
+     * 
+     * @param numShards
+     * @return
+     */
+    public RedisClusterQueue setNumShards(int numShards) {
+        this.numShards = numShards;
+        return this;
+    }
+
+    protected JedisCluster getJedisCluster() {
+        return jedisCluster;
+    }
+
+    public RedisClusterQueue setJedisCluster(JedisCluster jedisCluster) {
+        this.jedisCluster = jedisCluster;
+        myOwnJedisCluster = false;
+        return this;
+    }
+
+    /**
+     * Redis key of a shard's structure.
+     * 
+     * @param shard
+     * @param suffix
+     *            {@code h} (hash), {@code l} (list) or {@code s} (sorted set)
+     * @return
+     */
+    protected String buildKey(int shard, String suffix) {
+        return "{" + queueName + ":" + shard + "}:" + suffix;
+    }
+
+    /*----------------------------------------------------------------------*/
+    /*
+     * All scripts take 3 keys: KEYS[1] is the List, KEYS[2] is the SortedSet
+     * and KEYS[3] is the Hash of a shard.
+     */
+
+    /**
+     * LUA script to store messages: hset {ARGV[i]:ARGV[i+1]} to the Hash and
+     * rpush ARGV[i] to the List (i=2,4,6...). If ARGV[1] is "1", ARGV[i] is
+     * also removed from the SortedSet.
+     */
+    private final static RedisLuaScript SCRIPT_STORE = new RedisLuaScript(
+            "for i=2,#ARGV,2 do redis.call(\"hset\", KEYS[3], ARGV[i], ARGV[i+1]); "
+                    + "redis.call(\"rpush\", KEYS[1], ARGV[i]); if ARGV[1]==\"1\" then "
+                    + "redis.call(\"zrem\", KEYS[2], ARGV[i]) end; end; return (#ARGV-1)/2");
+
+    /**
+     * LUA script to remove messages ARGV[1..n] from the Hash and the
+     * SortedSet.
+     */
+    private final static RedisLuaScript SCRIPT_REMOVE = new RedisLuaScript(
+            "redis.call(\"hdel\", KEYS[3], unpack(ARGV)); "
+                    + "redis.call(\"zrem\", KEYS[2], unpack(ARGV)); return #ARGV");
+
+    /**
+     * LUA script to take up to ARGV[2] messages: lpop qId from the List, hget
+     * message's content from the Hash, then either remove it from the Hash (if
+     * ARGV[4] is "1", i.e. ephemeral is disabled) or zadd {ARGV[1]:qId} to the
+     * SortedSet. ARGV[3] is ephemeral storage's max size: the number of taken
+     * messages is capped by the SortedSet's free slots, and -1 is returned if
+     * there is no free slot.
+     */
+    private final static RedisLuaScript SCRIPT_TAKE = new RedisLuaScript(
+            "local n=tonumber(ARGV[2]); local max=tonumber(ARGV[3]); "
+                    + "if max>0 then local free=max-redis.call(\"zcard\", KEYS[2]); "
+                    + "if free<=0 then return -1 end; if free<n then n=free end; end; "
+                    + "local result={}; for i=1,n do "
+                    + "local qid=redis.call(\"lpop\", KEYS[1]); if not qid then break end; "
+                    + "local qcontent=redis.call(\"hget\", KEYS[3], qid); "
+                    + "if ARGV[4]==\"1\" then redis.call(\"hdel\", KEYS[3], qid); "
+                    + "else redis.call(\"zadd\", KEYS[2], ARGV[1], qid); end; "
+                    + "if qcontent then result[#result+1]=qcontent end; end; return result");
+
+    /**
+     * LUA script to move message ARGV[1] from the SortedSet to the List.
+     */
+    private final static RedisLuaScript SCRIPT_MOVE = new RedisLuaScript(
+            "local result=redis.call(\"zrem\", KEYS[2], ARGV[1]); "
+                    + "if result==1 then redis.call(\"rpush\", KEYS[1], ARGV[1]); end; "
+                    + "return result");
+
+    /**
+     * LUA script to fetch contents of up to ARGV[2] messages whose score in
+     * the SortedSet is less than or equal to ARGV[1].
+     */
+    private final static RedisLuaScript SCRIPT_GET_ORPHANS = new RedisLuaScript(
+            "local ids=redis.call(\"zrangebyscore\", KEYS[2], \"-inf\", ARGV[1], "
+                    + "\"LIMIT\", 0, tonumber(ARGV[2])); local result={}; for i=1,#ids do "
+                    + "local qcontent=redis.call(\"hget\", KEYS[3], ids[i]); "
+                    + "if qcontent then result[#result+1]=qcontent end; end; return result");
+
+    /**
+     * LUA script to move up to ARGV[2] messages whose score in the SortedSet
+     * is less than or equal to ARGV[1] from the SortedSet to the List. Number
+     * of moved messages is returned.
+     */
+    private final static RedisLuaScript SCRIPT_MOVE_ORPHANS = new RedisLuaScript(
+            "local ids=redis.call(\"zrangebyscore\", KEYS[2], \"-inf\", ARGV[1], "
+                    + "\"LIMIT\", 0, tonumber(ARGV[2])); if #ids>0 then "
+                    + "redis.call(\"zrem\", KEYS[2], unpack(ids)); "
+                    + "redis.call(\"rpush\", KEYS[1], unpack(ids)); end; return #ids");
+
+    /**
+     * Init method.
+     * 
+     * @return
+     */
+    public RedisClusterQueue init() {
+        if (numShards < 1) {
+            throw new IllegalArgumentException("Number of shards must be positive!");
+        }
+        if (jedisCluster == null) {
+            JedisPoolConfig poolConfig = new JedisPoolConfig();
+            poolConfig.setMaxTotal(32);
+            poolConfig.setMinIdle(1);
+            poolConfig.setMaxIdle(16);
+            poolConfig.setMaxWaitMillis(10000);
+            poolConfig.setTestWhileIdle(true);
+
+            Set<HostAndPort> nodes = new HashSet<>();
+            for (String node : StringUtils.split(redisClusterNodes, ", ")) {
+                String[] tokens = node.split(":");
+                String redisHost = tokens.length > 0 ? tokens[0] : "localhost";
+                int redisPort = tokens.length > 1 ? Integer.parseInt(tokens[1]) : 6379;
+                nodes.add(new HostAndPort(redisHost, redisPort));
+            }
+            jedisCluster = new JedisCluster(nodes, poolConfig);
+            myOwnJedisCluster = true;
+        }
+
+        listNames = new byte[numShards][];
+        sortedSetNames = new byte[numShards][];
+        hashNames = new byte[numShards][];
+        for (int i = 0; i < numShards; i++) {
+            listNames[i] = buildKey(i, "l").getBytes(QueueUtils.UTF8);
+            sortedSetNames[i] = buildKey(i, "s").getBytes(QueueUtils.UTF8);
+            hashNames[i] = buildKey(i, "h").getBytes(QueueUtils.UTF8);
+        }
+
+        return this;
+    }
+
+    /**
+     * Destroy method.
+     */
+    public void destroy() {
+        if (jedisCluster != null && myOwnJedisCluster) {
+            try {
+                jedisCluster.close();
+            } catch (IOException e) {
+            }
+            jedisCluster = null;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() {
+        destroy();
+    }
+
+    /**
+     * Serializes a queue message to store in Redis.
+     * 
+     * @param msg
+     * @return
+     */
+    protected abstract byte[] serialize(IQueueMessage msg);
+
+    /**
+     * Deserilizes a queue message.
+     * 
+     * @param msgData
+     * @return
+     */
+    protected abstract IQueueMessage deserialize(byte[] msgData);
+
+    /**
+     * Calculates the shard a message belongs to, based on message's partition
+     * key (or queue_id if message has no partition key).
+     * 
+     * @param msg
+     * @return
+     */
+    protected int shardOf(IQueueMessage msg) {
+        if (numShards == 1) {
+            return 0;
+        }
+        String key = msg instanceof IPartitionSupport ? ((IPartitionSupport) msg).qPartitionKey()
+                : null;
+        if (key == null) {
+            key = msg.qId().toString();
+        }
+        return (key.hashCode() & Integer.MAX_VALUE) % numShards;
+    }
+
+    /**
+     * Groups messages by shards.
+     * 
+     * @param msgs
+     * @return
+     */
+    protected Map<Integer, List<IQueueMessage>> groupByShard(
+            Collection<? extends IQueueMessage> msgs) {
+        Map<Integer, List<IQueueMessage>> result = new LinkedHashMap<>();
+        for (IQueueMessage msg : msgs) {
+            Integer shard = shardOf(msg);
+            List<IQueueMessage> list = result.get(shard);
+            if (list == null) {
+                list = new ArrayList<>();
+                result.put(shard, list);
+            }
+            list.add(msg);
+        }
+        return result;
+    }
+
+    private Object eval(RedisLuaScript script, int shard, byte[]... args) {
+        byte[][] params = new byte[3 + args.length][];
+        params[0] = listNames[shard];
+        params[1] = sortedSetNames[shard];
+        params[2] = hashNames[shard];
+        System.arraycopy(args, 0, params, 3, args.length);
+        return script.eval(jedisCluster, 3, params);
+    }
+
+    private static byte[] toBytes(Object value) {
+        return value instanceof byte[] ? (byte[]) value
+                : String.valueOf(value).getBytes(QueueUtils.UTF8);
+    }
+
+    /**
+     * Stores messages of one single shard.
+     * 
+     * @param shard
+     * @param msgs
+     * @param removeFromEphemeral
+     * @return
+     */
+    protected int store(int shard, Collection<? extends IQueueMessage> msgs,
+            boolean removeFromEphemeral) {
+        byte[][] args = new byte[1 + 2 * msgs.size()][];
+        args[0] = toBytes(removeFromEphemeral ? "1" : "0");
+        int i = 1;
+        for (IQueueMessage msg : msgs) {
+            args[i++] = toBytes(msg.qId().toString());
+            args[i++] = serialize(msg);
+        }
+        Object response = eval(SCRIPT_STORE, shard, args);
+        return response instanceof Long ? ((Long) response).intValue() : 0;
+    }
+
+    /**
+     * Stores a batch of messages, one LUA script call per shard.
+     * 
+     * @param msgs
+     * @param removeFromEphemeral
+     * @return
+     */
+    protected int store(Collection<? extends IQueueMessage> msgs, boolean removeFromEphemeral) {
+        int result = 0;
+        for (Map.Entry<Integer, List<IQueueMessage>> entry : groupByShard(msgs).entrySet()) {
+            result += store(entry.getKey().intValue(), entry.getValue(), removeFromEphemeral);
+        }
+        return result;
+    }
+
+    /**
+     * Removes a batch of messages completely, one LUA script call per shard.
+     * 
+     * @param msgs
+     */
+    protected void remove(Collection<? extends IQueueMessage> msgs) {
+        if (isEphemeralDisabled()) {
+            return;
+        }
+        for (Map.Entry<Integer, List<IQueueMessage>> entry : groupByShard(msgs).entrySet()) {
+            List<IQueueMessage> list = entry.getValue();
+            byte[][] args = new byte[list.size()][];
+            for (int i = 0, n = list.size(); i < n; i++) {
+                args[i] = toBytes(list.get(i).qId().toString());
+            }
+            eval(SCRIPT_REMOVE, entry.getKey().intValue(), args);
+        }
+    }
+
+    /**
+     * Ephemeral storage's max size per shard ({@code 0} means "unbound").
+     * 
+     * @return
+     */
+    protected int ephemeralMaxSizePerShard() {
+        int ephemeralMaxSize = isEphemeralDisabled() ? 0 : getEphemeralMaxSize();
+        return ephemeralMaxSize > 0 ? (ephemeralMaxSize + numShards - 1) / numShards : 0;
+    }
+
+    /**
+     * Takes up to {@code maxMessages} messages from one single shard.
+     * 
+     * @param shard
+     * @param maxMessages
+     * @param result
+     * @return {@code false} if the shard's ephemeral storage is full
+     */
+    protected boolean take(int shard, int maxMessages, Collection<IQueueMessage> result) {
+        long now = System.currentTimeMillis();
+        Object response = eval(SCRIPT_TAKE, shard, toBytes(now), toBytes(maxMessages),
+                toBytes(ephemeralMaxSizePerShard()), toBytes(isEphemeralDisabled() ? "1" : "0"));
+        if (response instanceof Long) {
+            // sentinel value returned by the script: ephemeral storage is full
+            return false;
+        }
+        if (response instanceof List) {
+            for (Object data : (List<?>) response) {
+                IQueueMessage msg = deserialize(toBytes(data));
+                if (msg != null) {
+                    result.add(msg);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean queue(IQueueMessage _msg) {
+        IQueueMessage msg = _msg.clone();
+        Date now = new Date();
+        msg.qNumRequeues(0).qOriginalTimestamp(now).qTimestamp(now);
+        return store(shardOf(msg), Collections.singletonList(msg), false) > 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean requeue(IQueueMessage _msg) {
+        IQueueMessage msg = _msg.clone();
+        Date now = new Date();
+        msg.qIncNumRequeues().qTimestamp(now);
+        return store(shardOf(msg), Collections.singletonList(msg), !isEphemeralDisabled()) > 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean requeueSilent(IQueueMessage _msg) {
+        IQueueMessage msg = _msg.clone();
+        return store(shardOf(msg), Collections.singletonList(msg), !isEphemeralDisabled()) > 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void finish(IQueueMessage msg) {
+        remove(Collections.singletonList(msg));
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @throws QueueException.EphemeralIsFull
+     *             if the ephemeral storage is full
+     */
+    @Override
+    public IQueueMessage take() throws QueueException.EphemeralIsFull {
+        Collection<IQueueMessage> result = takeBatch(1);
+        return result.isEmpty() ? null : result.iterator().next();
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * <p>
+     * Messages are stored by one LUA script call per shard.
+     * </p>
+     */
+    @Override
+    public int queueAll(Collection<? extends IQueueMessage> _msgs) {
+        if (_msgs == null || _msgs.size() == 0) {
+            return 0;
+        }
+        List<IQueueMessage> msgs = new ArrayList<>(_msgs.size());
+        Date now = new Date();
+        for (IQueueMessage _msg : _msgs) {
+            IQueueMessage msg = _msg.clone();
+            msg.qNumRequeues(0).qOriginalTimestamp(now).qTimestamp(now);
+            msgs.add(msg);
+        }
+        return store(msgs, false);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * <p>
+     * Messages are removed by one LUA script call per shard.
+     * </p>
+     */
+    @Override
+    public void finishAll(Collection<? extends IQueueMessage> msgs) {
+        if (msgs != null && msgs.size() > 0) {
+            remove(msgs);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * <p>
+     * Shards are visited in round-robin manner, starting from the shard next
+     * to the one the last call started from, until enough messages have been
+     * taken or all shards have been visited.
+     * </p>
+     * 
+     * @throws QueueException.EphemeralIsFull
+     *             if no message could be taken because ephemeral storage is
+     *             full
+     */
+    @Override
+    public Collection<IQueueMessage> takeBatch(int maxMessages)
+            throws QueueException.EphemeralIsFull {
+        List<IQueueMessage> result = new ArrayList<>();
+        if (maxMessages < 1) {
+            return result;
+        }
+        boolean ephemeralIsFull = false;
+        int start = takeCounter.getAndIncrement() & Integer.MAX_VALUE;
+        for (int i = 0; i < numShards && result.size() < maxMessages; i++) {
+            if (!take((start + i) % numShards, maxMessages - result.size(), result)) {
+                ephemeralIsFull = true;
+            }
+        }
+        if (result.isEmpty() && ephemeralIsFull) {
+            throw new QueueException.EphemeralIsFull(getEphemeralMaxSize());
+        }
+        return result;
+    }
+
+    /**
+     * Default max number of orphan messages returned by
+     * {@link #getOrphanMessages(long)}.
+     */
+    public final static int DEFAULT_ORPHAN_PAGE_SIZE = 100;
+
+    /**
+     * {@inheritDoc}
+     * 
+     * <p>
+     * This method returns up to {@link #DEFAULT_ORPHAN_PAGE_SIZE} orphan
+     * messages, collected from shards in order.
+     * </p>
+     */
+    @Override
+    public Collection<IQueueMessage> getOrphanMessages(long thresholdTimestampMs) {
+        if (isEphemeralDisabled()) {
+            return null;
+        }
+        Collection<IQueueMessage> result = new HashSet<>();
+        byte[] max = toBytes(System.currentTimeMillis() - thresholdTimestampMs);
+        for (int shard = 0; shard < numShards && result.size() < DEFAULT_ORPHAN_PAGE_SIZE;
+                shard++) {
+            Object response = eval(SCRIPT_GET_ORPHANS, shard, max,
+                    toBytes(DEFAULT_ORPHAN_PAGE_SIZE - result.size()));
+            if (response instanceof List) {
+                for (Object data : (List<?>) response) {
+                    IQueueMessage msg = deserialize(toBytes(data));
+                    if (msg != null) {
+                        result.add(msg);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Max number of orphan messages moved per LUA script call by
+     * {@link #moveAllOrphansToQueueStorage(long)}.
+     */
+    public final static int MOVE_ORPHANS_BATCH_SIZE = 1000;
+
+    /**
+     * Moves all orphan messages from ephemeral storage back to queue storage.
+     * 
+     * <p>
+     * Orphan messages are moved entirely on Redis server side, in batches of
+     * {@link #MOVE_ORPHANS_BATCH_SIZE} messages per LUA script call.
+     * </p>
+     * 
+     * @param thresholdTimestampMs
+     *            see {@link #getOrphanMessages(long)}
+     * @return number of messages that have been moved
+     */
+    public long moveAllOrphansToQueueStorage(long thresholdTimestampMs) {
+        if (isEphemeralDisabled()) {
+            return 0;
+        }
+        long total = 0;
+        byte[] max = toBytes(System.currentTimeMillis() - thresholdTimestampMs);
+        byte[] batchSize = toBytes(MOVE_ORPHANS_BATCH_SIZE);
+        for (int shard = 0; shard < numShards; shard++) {
+            while (true) {
+                Object response = eval(SCRIPT_MOVE_ORPHANS, shard, max, batchSize);
+                long numMoved = response instanceof Long ? ((Long) response).longValue() : 0;
+                total += numMoved;
+                if (numMoved < MOVE_ORPHANS_BATCH_SIZE) {
+                    break;
+                }
+            }
+        }
+        return total;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean moveFromEphemeralToQueueStorage(IQueueMessage msg) {
+        if (isEphemeralDisabled()) {
+            return true;
+        }
+        Object response = eval(SCRIPT_MOVE, shardOf(msg), toBytes(msg.qId().toString()));
+        return response instanceof Long && ((Long) response).longValue() == 1;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int queueSize() {
+        long result = 0;
+        for (byte[] key : listNames) {
+            Long value = jedisCluster.llen(key);
+            result += value != null ? value.longValue() : 0;
+        }
+        return (int) result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int ephemeralSize() {
+        if (isEphemeralDisabled()) {
+            return 0;
+        }
+        long result = 0;
+        for (byte[] key : sortedSetNames) {
+            Long value = jedisCluster.zcard(key);
+            result += value != null ? value.longValue() : 0;
+        }
+        return (int) result;
+    }
+}
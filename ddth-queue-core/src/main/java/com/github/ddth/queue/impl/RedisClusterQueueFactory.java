@@ -0,0 +1,54 @@
+package com.github.ddth.queue.impl;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.github.ddth.queue.QueueSpec;
+
+/**
+ * Factory to create {@link RedisClusterQueue} instances.
+ * 
+ * @author Thanh Nguyen <btnguyen2k@gmail.com>
+ * @since 0.5.2
+ */
+public abstract class RedisClusterQueueFactory<T extends RedisClusterQueue>
+        extends AbstractQueueFactory<T> {
+
+    /**
+     * Redis cluster's seed nodes, format {@code host1:port1,host2:port2,...}.
+     */
+    public final static String SPEC_FIELD_CLUSTER_NODES = "cluster_nodes";
+    public final static String SPEC_FIELD_QUEUE_NAME = "queue_name";
+    public final static String SPEC_FIELD_NUM_SHARDS = "num_shards";
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void initQueue(T queue, QueueSpec spec) {
+        Boolean ephemeralDisabled = spec.getField(QueueSpec.FIELD_EPHEMERAL_DISABLED,
+                Boolean.class);
+        if (ephemeralDisabled != null) {
+            queue.setEphemeralDisabled(ephemeralDisabled.booleanValue());
+        }
+        Integer maxEphemeralSize = spec.getField(QueueSpec.FIELD_EPHEMERAL_MAX_SIZE, Integer.class);
+        if (maxEphemeralSize != null) {
+            queue.setEphemeralMaxSize(maxEphemeralSize.intValue());
+        }
+
+        String clusterNodes = spec.getField(SPEC_FIELD_CLUSTER_NODES);
+        if (!StringUtils.isBlank(clusterNodes)) {
+            queue.setRedisClusterNodes(clusterNodes);
+        }
+        String queueName = spec.getField(SPEC_FIELD_QUEUE_NAME);
+        if (!StringUtils.isBlank(queueName)) {
+            queue.setQueueName(queueName);
+        }
+        Integer numShards = spec.getField(SPEC_FIELD_NUM_SHARDS, Integer.class);
+        if (numShards != null) {
+            queue.setNumShards(numShards.intValue());
+        }
+
+        queue.init();
+    }
+
+}
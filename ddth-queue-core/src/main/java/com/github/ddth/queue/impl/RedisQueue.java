@@ -1,19 +1,37 @@
 package com.github.ddth.queue.impl;
 
 import java.text.MessageFormat;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashSet;
-import java.util.Set;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.github.ddth.queue.IQueue;
 import com.github.ddth.queue.IQueueMessage;
+import com.github.ddth.queue.impl.redis.RedisAutoPipeline;
+import com.github.ddth.queue.impl.redis.RedisLuaScript;
+import com.github.ddth.queue.impl.redis.RedisWakeupListener;
+import com.github.ddth.queue.impl.redis.UnixSocketJedisPool;
 import com.github.ddth.queue.utils.QueueException;
 import com.github.ddth.queue.utils.QueueUtils;
 
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.MultiKeyPipelineBase;
 import redis.clients.jedis.Response;
 import redis.clients.jedis.Transaction;
 
@@ -32,26 +50,68 @@ import redis.clients.jedis.Transaction;
  * </ul>
  * </p>
  * 
+ * <p>
+ * If ephemeral storage is disabled, inline-payload layout can be used (see
+ * {@link #setInlinePayload(boolean)}): serialized messages are stored in the
+ * list directly, the hash is not used.
+ * </p>
+ * 
+ * <p>
+ * Alternatively, processing-list layout can be used as ephemeral storage (see
+ * {@link #setProcessingListLayout(boolean)}): each consumer moves taken
+ * messages' queue_ids to its own list, instead of one shared sorted set.
+ * </p>
+ * 
  * @author Thanh Ba Nguyen <bnguyen2k@gmail.com>
  * @since 0.3.1
  */
 public abstract class RedisQueue extends AbstractEphemeralSupportQueue {
 
+    private final static Logger LOGGER = LoggerFactory.getLogger(RedisQueue.class);
+
     private JedisPool jedisPool;
     private boolean myOwnJedisPool = true;
     private String redisHostAndPort = "localhost:6379";
 
     private String _redisHashName = "queue_h";
     private byte[] redisHashName = _redisHashName.getBytes(QueueUtils.UTF8);
+    /* Hash {qId:queued timestamp}, named after the Hash, see getStats() */
+    private byte[] redisQueuedAtHashName = queuedAtHashName(_redisHashName);
 
     private String _redisListName = "queue_l";
     private byte[] redisListName = _redisListName.getBytes(QueueUtils.UTF8);
+    /* List of "work available" signals, named after the List, see take(long, TimeUnit) */
+    private byte[] redisSignalListName = signalListName(_redisListName);
 
     private String _redisSortedSetName = "queue_s";
     private byte[] redisSortedSetName = _redisSortedSetName.getBytes(QueueUtils.UTF8);
 
+    private boolean inlinePayload = false;
+
+    private String _redisChannelName = null;
+    private byte[] redisChannelName = null;
+    private RedisWakeupListener wakeupListener;
+
+    private int maxBlockingTakes = 8;
+    private Semaphore blockingTakes;
+
+    private int autoPipelineConnections = 0;
+    private int autoPipelineMaxBatchSize = 1024;
+    private RedisAutoPipeline autoPipeline;
+
+    private boolean processingListLayout = false;
+    private String consumerId;
+    private long heartbeatIntervalMs = 10000;
+    private byte[] redisProcessingListName, redisHeartbeatName, redisConsumersSetName;
+    private ScheduledExecutorService heartbeatExecutor;
+
+    private long statsCacheMs = 0;
+    private volatile QueueStats cachedStats;
+    private final Object statsLock = new Object();
+
     /**
-     * Redis' host and port scheme (format {@code host:port}).
+     * Redis' host and port scheme (format {@code host:port} or
+     * {@code unix:///path/to/redis.sock}).
      * 
      * @return
      */
@@ -62,6 +122,14 @@ public abstract class RedisQueue extends AbstractEphemeralSupportQueue {
     /**
      * Sets Redis' host and port scheme (format {@code host:port}).
      * 
+     * <p>
+     * Since v0.5.2, format {@code unix:///path/to/redis.sock} is also
+     * supported to connect to a co-located Redis server over a Unix domain
+     * socket, see {@link UnixSocketJedisPool}. It requires Java 16+ at
+     * runtime: {@link #init()} fails with
+     * {@link UnsupportedOperationException} on older runtimes.
+     * </p>
+     * 
      * @param redisHostAndPort
      * @return
      */
@@ -77,9 +145,27 @@ public abstract class RedisQueue extends AbstractEphemeralSupportQueue {
     public RedisQueue setRedisHashName(String redisHashName) {
         _redisHashName = redisHashName;
         this.redisHashName = _redisHashName.getBytes(QueueUtils.UTF8);
+        this.redisQueuedAtHashName = queuedAtHashName(_redisHashName);
         return this;
     }
 
+    private static byte[] queuedAtHashName(String redisHashName) {
+        return (redisHashName + ":queued_at").getBytes(QueueUtils.UTF8);
+    }
+
+    /**
+     * Value stored in the "queued at" Hash for a message.
+     * 
+     * @param msg
+     * @return
+     * @since 0.5.2
+     */
+    private static byte[] queuedAt(IQueueMessage msg) {
+        Date timestamp = msg.qTimestamp();
+        long value = timestamp != null ? timestamp.getTime() : System.currentTimeMillis();
+        return String.valueOf(value).getBytes(QueueUtils.UTF8);
+    }
+
     public String getRedisListName() {
         return _redisListName;
     }
@@ -87,9 +173,14 @@ public abstract class RedisQueue extends AbstractEphemeralSupportQueue {
     public RedisQueue setRedisListName(String redisListName) {
         _redisListName = redisListName;
         this.redisListName = _redisListName.getBytes(QueueUtils.UTF8);
+        this.redisSignalListName = signalListName(_redisListName);
         return this;
     }
 
+    private static byte[] signalListName(String redisListName) {
+        return (redisListName + ":signal").getBytes(QueueUtils.UTF8);
+    }
+
     public String getRedisSortedSetName() {
         return _redisSortedSetName;
     }
@@ -100,6 +191,287 @@ public abstract class RedisQueue extends AbstractEphemeralSupportQueue {
         return this;
     }
 
+    /**
+     * Is inline-payload layout enabled?
+     * 
+     * @return
+     * @since 0.5.2
+     */
+    public boolean isInlinePayload() {
+        return inlinePayload;
+    }
+
+    /**
+     * Enables/Disables inline-payload layout (default {@code false}).
+     * 
+     * <p>
+     * Inline-payload layout is for queues with ephemeral storage disabled:
+     * serialized messages are pushed to the List directly (the Hash is not
+     * used), and messages are taken by a plain {@code LPOP}, without LUA
+     * script. This layout is not compatible with the default one, do not
+     * switch layout on a non-empty queue.
+     * </p>
+     * 
+     * @param inlinePayload
+     * @return
+     * @since 0.5.2
+     */
+    public RedisQueue setInlinePayload(boolean inlinePayload) {
+        this.inlinePayload = inlinePayload;
+        return this;
+    }
+
+    /**
+     * Is processing-list layout enabled?
+     * 
+     * @return
+     * @since 0.5.2
+     */
+    public boolean isProcessingListLayout() {
+        return processingListLayout;
+    }
+
+    /**
+     * Enables/Disables processing-list layout (default {@code false}).
+     * 
+     * <p>
+     * In processing-list layout, the ephemeral storage is a set of lists, one
+     * per consumer (i.e. per queue instance, see {@link #setConsumerId(String)}
+     * ): a taken message's queue_id is moved from the List to the consumer's
+     * processing list {@code <list-name>:processing:<consumer-id>}, finishing
+     * a message removes it from that list. Each consumer registers itself in
+     * the set {@code <list-name>:consumers} and refreshes its heartbeat key
+     * {@code <list-name>:heartbeat:<consumer-id>} every
+     * {@link #getHeartbeatIntervalMs()} ms. This removes the shared sorted set
+     * (and its {@code ZADD}/{@code ZREM} on every take/finish) at the cost of
+     * coarser orphan detection:
+     * <ul>
+     * <li>Orphan messages are messages held by consumers whose last heartbeat
+     * is older than the threshold (or has expired), they are recovered by
+     * moving whole processing lists.</li>
+     * <li>Ephemeral storage's max size is bound per consumer.</li>
+     * </ul>
+     * This layout requires ephemeral storage to be enabled and is not
+     * compatible with the default one, do not switch layout on a non-empty
+     * queue.
+     * </p>
+     * 
+     * @param processingListLayout
+     * @return
+     * @since 0.5.2
+     */
+    public RedisQueue setProcessingListLayout(boolean processingListLayout) {
+        this.processingListLayout = processingListLayout;
+        return this;
+    }
+
+    /**
+     * Id of this consumer, used by processing-list layout.
+     * 
+     * @return
+     * @since 0.5.2
+     */
+    public String getConsumerId() {
+        return consumerId;
+    }
+
+    /**
+     * Sets id of this consumer, used by processing-list layout (default: a
+     * random id generated by {@link #init()}). Consumer ids must be unique
+     * among live queue instances.
+     * 
+     * @param consumerId
+     * @return
+     * @since 0.5.2
+     */
+    public RedisQueue setConsumerId(String consumerId) {
+        this.consumerId = consumerId;
+        return this;
+    }
+
+    /**
+     * Heartbeat interval (in milliseconds) of processing-list layout.
+     * 
+     * @return
+     * @since 0.5.2
+     */
+    public long getHeartbeatIntervalMs() {
+        return heartbeatIntervalMs;
+    }
+
+    /**
+     * Sets heartbeat interval (in milliseconds) of processing-list layout
+     * (default {@code 10000}). Heartbeat keys expire after 3 intervals.
+     * 
+     * <p>
+     * Note: orphan thresholds should be larger than the heartbeat interval,
+     * otherwise messages of live consumers may be considered orphan.
+     * </p>
+     * 
+     * @param heartbeatIntervalMs
+     * @return
+     * @since 0.5.2
+     */
+    public RedisQueue setHeartbeatIntervalMs(long heartbeatIntervalMs) {
+        this.heartbeatIntervalMs = heartbeatIntervalMs;
+        return this;
+    }
+
+    /**
+     * How long (in milliseconds) a stats snapshot is cached locally.
+     * 
+     * @return
+     * @since 0.5.2
+     */
+    public long getStatsCacheMs() {
+        return statsCacheMs;
+    }
+
+    /**
+     * Sets how long (in milliseconds) a stats snapshot is cached locally
+     * ({@code 0} to disable caching, default).
+     * 
+     * <p>
+     * If enabled, {@link #getStats()}, {@link #queueSize()} and
+     * {@link #ephemeralSize()} are served from the cached snapshot: all
+     * callers within an interval share one single Redis request, at the cost
+     * of values being up to {@code statsCacheMs} stale.
+     * </p>
+     * 
+     * @param statsCacheMs
+     * @return
+     * @since 0.5.2
+     */
+    public RedisQueue setStatsCacheMs(long statsCacheMs) {
+        this.statsCacheMs = statsCacheMs;
+        return this;
+    }
+
+    /**
+     * Name of the Pub/Sub channel to notify consumers of new messages.
+     * 
+     * @return
+     * @since 0.5.2
+     */
+    public String getRedisChannelName() {
+        return _redisChannelName;
+    }
+
+    /**
+     * Sets name of the Pub/Sub channel to notify consumers of new messages
+     * ({@code null} or empty to disable notifications, default).
+     * 
+     * <p>
+     * If enabled, a tiny "work available" message is published to the channel
+     * whenever messages are put to queue storage, and
+     * {@link #take(long, TimeUnit)} waits for notifications instead of
+     * blocking a Redis connection with {@code BLPOP}. Notifications are
+     * received by one single listener per channel per JVM, see
+     * {@link RedisWakeupListener}.
+     * </p>
+     * 
+     * <p>
+     * Note: the listener connects to {@link #getRedisHostAndPort()}, hence
+     * notifications are not listened to if the Jedis pool is provided via
+     * {@link #setJedisPool(JedisPool)} (they are still published).
+     * </p>
+     * 
+     * @param redisChannelName
+     * @return
+     * @since 0.5.2
+     */
+    public RedisQueue setRedisChannelName(String redisChannelName) {
+        _redisChannelName = redisChannelName;
+        this.redisChannelName = redisChannelName != null && !redisChannelName.isEmpty()
+                ? redisChannelName.getBytes(QueueUtils.UTF8) : null;
+        return this;
+    }
+
+    /**
+     * Max number of threads blocking a Redis connection at the same time in
+     * {@link #take(long, TimeUnit)}.
+     * 
+     * @return
+     * @since 0.5.2
+     */
+    public int getMaxBlockingTakes() {
+        return maxBlockingTakes;
+    }
+
+    /**
+     * Sets max number of threads blocking a Redis connection at the same time
+     * in {@link #take(long, TimeUnit)} (default {@code 8}).
+     * 
+     * <p>
+     * Blocking commands hold their pooled connection for the whole wait time.
+     * Extra callers wait client-side for a free slot, so that blocked
+     * consumers do not exhaust the Jedis pool (32 connections if the pool is
+     * created by this queue). Must be set before {@link #init()}.
+     * </p>
+     * 
+     * @param maxBlockingTakes
+     * @return
+     * @since 0.5.2
+     */
+    public RedisQueue setMaxBlockingTakes(int maxBlockingTakes) {
+        this.maxBlockingTakes = maxBlockingTakes;
+        return this;
+    }
+
+    /**
+     * Number of connections used for auto-pipelining ({@code 0} means
+     * auto-pipelining is disabled).
+     * 
+     * @return
+     * @since 0.5.2
+     */
+    public int getAutoPipelineConnections() {
+        return autoPipelineConnections;
+    }
+
+    /**
+     * Enables auto-pipelining over {@code autoPipelineConnections} connections
+     * ({@code 0} to disable, default).
+     * 
+     * <p>
+     * If enabled, {@link #queue(IQueueMessage)}, {@link #take()},
+     * {@link #finish(IQueueMessage)} and their async variants are executed by a
+     * {@link RedisAutoPipeline}: commands from all threads are sent in
+     * pipelines over a few dedicated connections, instead of one pooled
+     * connection and one round trip per operation.
+     * </p>
+     * 
+     * @param autoPipelineConnections
+     * @return
+     * @since 0.5.2
+     */
+    public RedisQueue setAutoPipelineConnections(int autoPipelineConnections) {
+        this.autoPipelineConnections = autoPipelineConnections;
+        return this;
+    }
+
+    /**
+     * Max number of commands per pipeline (default {@code 1024}).
+     * 
+     * @return
+     * @since 0.5.2
+     */
+    public int getAutoPipelineMaxBatchSize() {
+        return autoPipelineMaxBatchSize;
+    }
+
+    /**
+     * Sets max number of commands per pipeline.
+     * 
+     * @param autoPipelineMaxBatchSize
+     * @return
+     * @since 0.5.2
+     */
+    public RedisQueue setAutoPipelineMaxBatchSize(int autoPipelineMaxBatchSize) {
+        this.autoPipelineMaxBatchSize = autoPipelineMaxBatchSize;
+        return this;
+    }
+
     protected JedisPool getJedisPool() {
         return jedisPool;
     }
@@ -111,15 +483,64 @@ public abstract class RedisQueue extends AbstractEphemeralSupportQueue {
     }
 
     /*----------------------------------------------------------------------*/
+    /*
+     * LUA scripts are executed via EVALSHA, see RedisLuaScript.
+     */
+
     /**
      * LUA script to take a message out of queue.
      */
-    private String SCRIPT_TAKE;
+    private RedisLuaScript SCRIPT_TAKE;
+
+    /**
+     * LUA script to take a batch of messages out of queue.
+     * 
+     * @since 0.5.2
+     */
+    private RedisLuaScript SCRIPT_TAKE_BATCH;
+
+    /**
+     * LUA script to complete taking a message whose qId has been popped from
+     * the List by a blocking command.
+     * 
+     * @since 0.5.2
+     */
+    private RedisLuaScript SCRIPT_TAKE_POPPED;
 
     /**
      * LUA script to move a message from ephemeral storage to queue storage.
      */
-    private String SCRIPT_MOVE;
+    private RedisLuaScript SCRIPT_MOVE;
+
+    /**
+     * LUA script to fetch a page of orphan messages.
+     * 
+     * @since 0.5.2
+     */
+    private RedisLuaScript SCRIPT_GET_ORPHANS;
+
+    /**
+     * LUA script to move a batch of orphan messages from ephemeral storage to
+     * queue storage.
+     * 
+     * @since 0.5.2
+     */
+    private RedisLuaScript SCRIPT_MOVE_ORPHANS;
+
+    /**
+     * LUA script to count messages in all processing lists (processing-list
+     * layout only).
+     * 
+     * @since 0.5.2
+     */
+    private RedisLuaScript SCRIPT_EPHEMERAL_SIZE;
+
+    /**
+     * LUA script to fetch a stats snapshot.
+     * 
+     * @since 0.5.2
+     */
+    private RedisLuaScript SCRIPT_STATS;
 
     /**
      * Init method.
@@ -127,6 +548,14 @@ public abstract class RedisQueue extends AbstractEphemeralSupportQueue {
      * @return
      */
     public RedisQueue init() {
+        if (inlinePayload && !isEphemeralDisabled()) {
+            throw new IllegalStateException(
+                    "Inline-payload layout requires ephemeral storage to be disabled!");
+        }
+        if (processingListLayout && isEphemeralDisabled()) {
+            throw new IllegalStateException(
+                    "Processing-list layout requires ephemeral storage to be enabled!");
+        }
         if (jedisPool == null) {
             JedisPoolConfig poolConfig = new JedisPoolConfig();
             poolConfig.setMaxTotal(32);
@@ -136,13 +565,30 @@ public abstract class RedisQueue extends AbstractEphemeralSupportQueue {
             // poolConfig.setTestOnBorrow(true);
             poolConfig.setTestWhileIdle(true);
 
-            String[] tokens = redisHostAndPort.split(":");
-            String redisHost = tokens.length > 0 ? tokens[0] : "localhost";
-            int redisPort = tokens.length > 1 ? Integer.parseInt(tokens[1]) : 6379;
-            jedisPool = new JedisPool(poolConfig, redisHost, redisPort);
+            if (UnixSocketJedisPool.isUnixSocket(redisHostAndPort)) {
+                jedisPool = new UnixSocketJedisPool(poolConfig,
+                        UnixSocketJedisPool.socketPath(redisHostAndPort));
+            } else {
+                String[] tokens = redisHostAndPort.split(":");
+                String redisHost = tokens.length > 0 ? tokens[0] : "localhost";
+                int redisPort = tokens.length > 1 ? Integer.parseInt(tokens[1]) : 6379;
+                jedisPool = new JedisPool(poolConfig, redisHost, redisPort);
+            }
             myOwnJedisPool = true;
         }
+        blockingTakes = new Semaphore(Math.max(1, maxBlockingTakes), true);
+        if (redisChannelName != null && wakeupListener == null) {
+            if (myOwnJedisPool) {
+                wakeupListener = RedisWakeupListener.acquire(redisHostAndPort,
+                        _redisChannelName);
+            } else {
+                // the listener's Redis server is not known
+                LOGGER.warn("Jedis pool is provided externally, notifications on channel ["
+                        + _redisChannelName + "] are published but not listened to.");
+            }
+        }
 
+        String scriptTake;
         if (isEphemeralDisabled()) {
             /*
              * Script details (ephemeral is disabled): lpop qId from the List
@@ -152,23 +598,74 @@ public abstract class RedisQueue extends AbstractEphemeralSupportQueue {
              * Script's first argument (ARGV[1]) is the qId's associated
              * timestamp to be used as score value for the SortedSet entry.
              */
-            SCRIPT_TAKE = "local qid=redis.call(\"lpop\",\"{0}\"); if qid then "
+            scriptTake = "local qid=redis.call(\"lpop\",\"{0}\"); if qid then "
                     + "local qcontent=redis.call(\"hget\", \"{2}\", qid); "
-                    + "redis.call(\"hdel\", \"{2}\", qid); return qcontent "
-                    + "else return nil end";
+                    + "redis.call(\"hdel\", \"{2}\", qid); redis.call(\"hdel\", \"{3}\", qid); "
+                    + "return qcontent else return nil end";
         } else {
             /*
              * Script details (ephemeral is enabled): lpop qId from the List and
              * zadd {ARGV[1]:qId} to the SortedSet and hget message's content
              * from the Hash, atomically. Finally, the message's content is
              * returned.
+             * 
+             * Script's second argument (ARGV[2]) is the ephemeral storage's
+             * max size: if positive and the SortedSet already has that many
+             * entries, nothing is taken and -1 is returned.
              */
-            SCRIPT_TAKE = "local qid=redis.call(\"lpop\",\"{0}\"); if qid then "
+            scriptTake = "local max=tonumber(ARGV[2]); "
+                    + "if max>0 and redis.call(\"zcard\", \"{1}\")>=max then return -1 end; "
+                    + "local qid=redis.call(\"lpop\",\"{0}\"); if qid then "
                     + "redis.call(\"zadd\", \"{1}\", ARGV[1], qid); return redis.call(\"hget\", \"{2}\", qid) "
                     + "else return nil end";
         }
-        SCRIPT_TAKE = MessageFormat.format(SCRIPT_TAKE, _redisListName, _redisSortedSetName,
-                _redisHashName);
+        String queuedAtHashName = new String(redisQueuedAtHashName, QueueUtils.UTF8);
+        SCRIPT_TAKE = new RedisLuaScript(MessageFormat.format(scriptTake, _redisListName,
+                _redisSortedSetName, _redisHashName, queuedAtHashName));
+
+        /*
+         * Script details: same as SCRIPT_TAKE, but lpop up to ARGV[2] qIds in
+         * one go and return all messages' contents as a list.
+         * 
+         * Script's first argument (ARGV[1]) is the qIds' associated timestamp
+         * to be used as score value for the SortedSet entries; second
+         * argument (ARGV[2]) is the max number of messages to take; third
+         * argument (ARGV[3]) is the ephemeral storage's max size: the number
+         * of taken messages is capped by the SortedSet's free slots, and -1
+         * is returned if there is no free slot.
+         * 
+         * Note: '{}' is a quoted (literal) empty LUA table in MessageFormat.
+         */
+        String scriptTakeBatch;
+        if (isEphemeralDisabled()) {
+            scriptTakeBatch = "local result='{}'; for i=1,tonumber(ARGV[2]) do "
+                    + "local qid=redis.call(\"lpop\",\"{0}\"); if not qid then break end; "
+                    + "local qcontent=redis.call(\"hget\", \"{2}\", qid); "
+                    + "redis.call(\"hdel\", \"{2}\", qid); redis.call(\"hdel\", \"{3}\", qid); "
+                    + "if qcontent then result[#result+1]=qcontent end; end; return result";
+        } else {
+            scriptTakeBatch = "local n=tonumber(ARGV[2]); local max=tonumber(ARGV[3]); "
+                    + "if max>0 then local free=max-redis.call(\"zcard\", \"{1}\"); "
+                    + "if free<=0 then return -1 end; if free<n then n=free end; end; "
+                    + "local result='{}'; for i=1,n do "
+                    + "local qid=redis.call(\"lpop\",\"{0}\"); if not qid then break end; "
+                    + "redis.call(\"zadd\", \"{1}\", ARGV[1], qid); "
+                    + "local qcontent=redis.call(\"hget\", \"{2}\", qid); "
+                    + "if qcontent then result[#result+1]=qcontent end; end; return result";
+        }
+        SCRIPT_TAKE_BATCH = new RedisLuaScript(MessageFormat.format(scriptTakeBatch,
+                _redisListName, _redisSortedSetName, _redisHashName, queuedAtHashName));
+
+        /*
+         * Script details: (ephemeral storage disabled only) qId (ARGV[1]) has
+         * already been popped from the List (by BLPOP), get and remove its
+         * content from the Hash.
+         */
+        String scriptTakePopped = "local qcontent=redis.call(\"hget\", \"{0}\", ARGV[1]); "
+                + "redis.call(\"hdel\", \"{0}\", ARGV[1]); "
+                + "redis.call(\"hdel\", \"{1}\", ARGV[1]); return qcontent";
+        SCRIPT_TAKE_POPPED = new RedisLuaScript(
+                MessageFormat.format(scriptTakePopped, _redisHashName, queuedAtHashName));
 
         /*
          * Script details: remove qId from the SortedSet and rpush it to the
@@ -176,17 +673,262 @@ public abstract class RedisQueue extends AbstractEphemeralSupportQueue {
          * 
          * Script's first argument (ARGV[1]) is qId.
          */
-        SCRIPT_MOVE = "local result=redis.call(\"zrem\",\"{0}\",ARGV[1]); if result then "
-                + "redis.call(\"rpush\", \"{1}\",  ARGV[1]); return 1; else return 0; end";
-        SCRIPT_MOVE = MessageFormat.format(SCRIPT_MOVE, _redisSortedSetName, _redisListName);
+        String scriptMove = "local result=redis.call(\"zrem\",\"{0}\",ARGV[1]); "
+                + "if result then redis.call(\"rpush\", \"{1}\",  ARGV[1]); return 1; "
+                + "else return 0; end";
+        SCRIPT_MOVE = new RedisLuaScript(
+                MessageFormat.format(scriptMove, _redisSortedSetName, _redisListName));
+
+        /*
+         * Script details: fetch up to ARGV[4] entries {qId, score} from the
+         * SortedSet, whose score is in range [ARGV[2], ARGV[1]] and which come
+         * after the cursor {ARGV[2], ARGV[3]} (entries with same score are
+         * ordered by qId), together with messages' contents from the Hash.
+         * Result is a flat list {qId1, score1, content1, qId2, score2,...}.
+         */
+        String scriptGetOrphans = "local n=tonumber(ARGV[4]); local result='{}'; "
+                + "local count=0; local offset=0; local ids; repeat "
+                + "ids=redis.call(\"zrangebyscore\", \"{0}\", ARGV[2], ARGV[1], "
+                + "\"WITHSCORES\", \"LIMIT\", offset, n); "
+                + "for i=1,#ids,2 do if count<n and (ids[i+1]~=ARGV[2] or ids[i]>ARGV[3]) then "
+                + "count=count+1; result[#result+1]=ids[i]; result[#result+1]=ids[i+1]; "
+                + "result[#result+1]=redis.call(\"hget\", \"{1}\", ids[i]); end; end; "
+                + "offset=offset+n; until count>=n or #ids<2*n; return result";
+        SCRIPT_GET_ORPHANS = new RedisLuaScript(
+                MessageFormat.format(scriptGetOrphans, _redisSortedSetName, _redisHashName));
+
+        /*
+         * Script details: remove up to ARGV[2] qIds whose score is less than
+         * or equal to ARGV[1] from the SortedSet and rpush them to the List,
+         * atomically. Number of moved qIds is returned.
+         */
+        String scriptMoveOrphans = "local ids=redis.call(\"zrangebyscore\", \"{0}\", "
+                + "\"-inf\", ARGV[1], \"LIMIT\", 0, tonumber(ARGV[2])); if #ids>0 then "
+                + "redis.call(\"zrem\", \"{0}\", unpack(ids)); "
+                + "redis.call(\"rpush\", \"{1}\", unpack(ids)); end; return #ids";
+        SCRIPT_MOVE_ORPHANS = new RedisLuaScript(
+                MessageFormat.format(scriptMoveOrphans, _redisSortedSetName, _redisListName));
+
+        /*
+         * Script details: return {List's length, ephemeral storage's size,
+         * oldest score in the SortedSet (or empty), queued timestamp of the
+         * message at the head of the List (or empty)}, see buildStatsScript().
+         */
+        String scriptEphemeralStats = isEphemeralDisabled() ? "result[2]=0; result[3]=\"\"; "
+                : "result[2]=redis.call(\"zcard\", \"{1}\"); "
+                        + "local e=redis.call(\"zrange\", \"{1}\", 0, 0, \"WITHSCORES\"); "
+                        + "result[3]=e[2] or \"\"; ";
+        SCRIPT_STATS = new RedisLuaScript(MessageFormat.format(
+                buildStatsScript(scriptEphemeralStats, 3), _redisListName, _redisSortedSetName,
+                _redisHashName, queuedAtHashName));
+
+        if (processingListLayout) {
+            initProcessingListLayout();
+        }
+
+        if (autoPipelineConnections > 0 && autoPipeline == null) {
+            autoPipeline = new RedisAutoPipeline(jedisPool, autoPipelineConnections,
+                    autoPipelineMaxBatchSize, SCRIPT_TAKE).start();
+        }
 
         return this;
     }
 
+    /**
+     * Sets up processing-list layout: replaces take/move/orphan LUA scripts
+     * and starts heartbeat.
+     * 
+     * <p>
+     * Scripts' parameters: {0} is the List, {1} is this consumer's processing
+     * list, {2} is the Hash, {3} is processing lists' key prefix, {4} is the
+     * consumers Set and {5} is heartbeat keys' prefix.
+     * </p>
+     */
+    private void initProcessingListLayout() {
+        if (StringUtils.isBlank(consumerId)) {
+            consumerId = QueueUtils.IDGEN.generateId128Hex().toLowerCase();
+        }
+        String processingListPrefix = _redisListName + ":processing:";
+        String heartbeatPrefix = _redisListName + ":heartbeat:";
+        String consumersSetName = _redisListName + ":consumers";
+        String processingListName = processingListPrefix + consumerId;
+        redisProcessingListName = processingListName.getBytes(QueueUtils.UTF8);
+        redisHeartbeatName = (heartbeatPrefix + consumerId).getBytes(QueueUtils.UTF8);
+        redisConsumersSetName = consumersSetName.getBytes(QueueUtils.UTF8);
+        Object[] names = { _redisListName, processingListName, _redisHashName,
+                processingListPrefix, consumersSetName, heartbeatPrefix,
+                new String(redisQueuedAtHashName, QueueUtils.UTF8) };
+
+        /*
+         * Script details: same as the default take scripts, but qIds are moved
+         * from the List to this consumer's processing list (as LMOVE would
+         * do), and the ephemeral storage's max size (ARGV[2] or ARGV[3]) is
+         * checked against the processing list's length.
+         */
+        String scriptTake = "local max=tonumber(ARGV[2]); "
+                + "if max>0 and redis.call(\"llen\", \"{1}\")>=max then return -1 end; "
+                + "local qid=redis.call(\"lpop\",\"{0}\"); if qid then "
+                + "redis.call(\"rpush\", \"{1}\", qid); return redis.call(\"hget\", \"{2}\", qid) "
+                + "else return nil end";
+        SCRIPT_TAKE = new RedisLuaScript(MessageFormat.format(scriptTake, names));
+        String scriptTakeBatch = "local n=tonumber(ARGV[2]); local max=tonumber(ARGV[3]); "
+                + "if max>0 then local free=max-redis.call(\"llen\", \"{1}\"); "
+                + "if free<=0 then return -1 end; if free<n then n=free end; end; "
+                + "local result='{}'; for i=1,n do "
+                + "local qid=redis.call(\"lpop\",\"{0}\"); if not qid then break end; "
+                + "redis.call(\"rpush\", \"{1}\", qid); "
+                + "local qcontent=redis.call(\"hget\", \"{2}\", qid); "
+                + "if qcontent then result[#result+1]=qcontent end; end; return result";
+        SCRIPT_TAKE_BATCH = new RedisLuaScript(MessageFormat.format(scriptTakeBatch, names));
+
+        /*
+         * Script details: remove qId (ARGV[1]) from this consumer's processing
+         * list, or from any other consumer's one, and rpush it to the List.
+         */
+        String scriptMove = "local n=redis.call(\"lrem\", \"{1}\", 1, ARGV[1]); "
+                + "if n==0 then for _,c in ipairs(redis.call(\"smembers\", \"{4}\")) do "
+                + "n=redis.call(\"lrem\", \"{3}\"..c, 1, ARGV[1]); if n>0 then break end; "
+                + "end; end; "
+                + "if n>0 then redis.call(\"rpush\", \"{0}\", ARGV[1]); return 1 end; return 0";
+        SCRIPT_MOVE = new RedisLuaScript(MessageFormat.format(scriptMove, names));
+
+        /*
+         * Script details: consumers whose heartbeat is missing or not later
+         * than ARGV[1] are dead; fetch up to ARGV[4] entries from their
+         * processing lists (consumers sorted by id), starting after the cursor
+         * {consumer ARGV[3], position ARGV[2], qId ARGV[5]}. If the qId is no
+         * longer at that position (entries have been moved or finished
+         * meanwhile), resume right after the qId, or from the head of the list
+         * if the qId is gone. Result is a flat list {consumer1, position1,
+         * qId1, content1, consumer2,...}.
+         */
+        String scriptGetOrphans = "local n=tonumber(ARGV[4]); local result='{}'; local count=0; "
+                + "local cs=redis.call(\"smembers\", \"{4}\"); table.sort(cs); "
+                + "for _,c in ipairs(cs) do if count>=n then break end; "
+                + "local hb=redis.call(\"get\", \"{5}\"..c); "
+                + "if c>=ARGV[3] and (not hb or tonumber(hb)<=tonumber(ARGV[1])) then "
+                + "local start=0; if c==ARGV[3] then start=tonumber(ARGV[2]); "
+                + "if ARGV[5]~=\"\" and redis.call(\"lindex\", \"{3}\"..c, start-1)~=ARGV[5] "
+                + "then start=0; for i,id in ipairs(redis.call(\"lrange\", \"{3}\"..c, 0, -1)) "
+                + "do if id==ARGV[5] then start=i; break end; end; end; end; "
+                + "local ids=redis.call(\"lrange\", \"{3}\"..c, start, start+n-count-1); "
+                + "for i,id in ipairs(ids) do count=count+1; result[#result+1]=c; "
+                + "result[#result+1]=tostring(start+i); result[#result+1]=id; "
+                + "result[#result+1]=redis.call(\"hget\", \"{2}\", id); end; end; end; "
+                + "return result";
+        SCRIPT_GET_ORPHANS = new RedisLuaScript(MessageFormat.format(scriptGetOrphans, names));
+
+        /*
+         * Script details: move up to ARGV[2] qIds from processing lists of
+         * dead consumers (see above) to the List; consumers whose heartbeat
+         * has expired and whose processing list is empty are unregistered.
+         * Number of moved qIds is returned.
+         */
+        String scriptMoveOrphans = "local n=tonumber(ARGV[2]); local moved=0; "
+                + "for _,c in ipairs(redis.call(\"smembers\", \"{4}\")) do "
+                + "if moved>=n then break end; local hb=redis.call(\"get\", \"{5}\"..c); "
+                + "if not hb or tonumber(hb)<=tonumber(ARGV[1]) then "
+                + "local ids=redis.call(\"lrange\", \"{3}\"..c, 0, n-moved-1); if #ids>0 then "
+                + "redis.call(\"rpush\", \"{0}\", unpack(ids)); "
+                + "redis.call(\"ltrim\", \"{3}\"..c, #ids, -1); moved=moved+#ids; end; "
+                + "if not hb and redis.call(\"llen\", \"{3}\"..c)==0 then "
+                + "redis.call(\"srem\", \"{4}\", c) end; end; end; return moved";
+        SCRIPT_MOVE_ORPHANS = new RedisLuaScript(MessageFormat.format(scriptMoveOrphans, names));
+
+        /*
+         * Script details: sum of all registered consumers' processing lists'
+         * lengths.
+         */
+        String scriptEphemeralSize = "local result=0; "
+                + "for _,c in ipairs(redis.call(\"smembers\", \"{4}\")) do "
+                + "result=result+redis.call(\"llen\", \"{3}\"..c) end; return result";
+        SCRIPT_EPHEMERAL_SIZE = new RedisLuaScript(
+                MessageFormat.format(scriptEphemeralSize, names));
+        String scriptEphemeralStats = "local n=0; "
+                + "for _,c in ipairs(redis.call(\"smembers\", \"{4}\")) do "
+                + "n=n+redis.call(\"llen\", \"{3}\"..c) end; result[2]=n; result[3]=\"\"; ";
+        SCRIPT_STATS = new RedisLuaScript(
+                MessageFormat.format(buildStatsScript(scriptEphemeralStats, 6), names));
+
+        heartbeat();
+        if (heartbeatExecutor == null) {
+            heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "RedisQueue-heartbeat-" + consumerId);
+                thread.setDaemon(true);
+                return thread;
+            });
+            heartbeatExecutor.scheduleWithFixedDelay(() -> {
+                try {
+                    heartbeat();
+                } catch (Exception e) {
+                    LOGGER.warn("Error while sending heartbeat of consumer [" + consumerId
+                            + "]: " + e.getMessage());
+                }
+            }, heartbeatIntervalMs, heartbeatIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Builds the stats LUA script, {0} is the List. Only the head's queued
+     * timestamp is read, not its content; it is not available with inline
+     * payloads.
+     * 
+     * @param scriptEphemeralStats
+     *            LUA code to set {@code result[2]} (ephemeral storage's size)
+     *            and {@code result[3]} (oldest ephemeral score, or empty)
+     * @param queuedAtHashIndex
+     *            index of the "queued at" Hash's name in the script's format
+     *            arguments
+     * @return
+     */
+    private String buildStatsScript(String scriptEphemeralStats, int queuedAtHashIndex) {
+        String scriptHead = inlinePayload ? "result[4]=\"\"; "
+                : "local h=redis.call(\"lindex\", \"{0}\", 0); if h then "
+                        + "h=redis.call(\"hget\", \"{" + queuedAtHashIndex + "}\", h) end; "
+                        + "result[4]=h or \"\"; ";
+        return "local result='{}'; result[1]=redis.call(\"llen\", \"{0}\"); "
+                + scriptEphemeralStats + scriptHead + "return result";
+    }
+
+    /**
+     * Registers this consumer and refreshes its heartbeat key (processing-list
+     * layout only).
+     * 
+     * @since 0.5.2
+     */
+    protected void heartbeat() {
+        byte[] now = String.valueOf(System.currentTimeMillis()).getBytes(QueueUtils.UTF8);
+        try (Jedis jedis = jedisPool.getResource()) {
+            Transaction jt = jedis.multi();
+            jt.sadd(redisConsumersSetName, consumerId.getBytes(QueueUtils.UTF8));
+            jt.psetex(redisHeartbeatName, 3 * heartbeatIntervalMs, now);
+            jt.exec();
+        }
+    }
+
     /**
      * Destroy method.
      */
     public void destroy() {
+        if (autoPipeline != null) {
+            autoPipeline.stop();
+            autoPipeline = null;
+        }
+        if (heartbeatExecutor != null) {
+            heartbeatExecutor.shutdownNow();
+            heartbeatExecutor = null;
+            try (Jedis jedis = jedisPool.getResource()) {
+                // messages still held by this consumer are now orphan
+                jedis.del(redisHeartbeatName);
+            } catch (Exception e) {
+                LOGGER.warn("Error while removing heartbeat of consumer [" + consumerId + "]: "
+                        + e.getMessage());
+            }
+        }
+        if (wakeupListener != null) {
+            wakeupListener.release();
+            wakeupListener = null;
+        }
         if (jedisPool != null && myOwnJedisPool) {
             jedisPool.destroy();
             jedisPool = null;
@@ -220,12 +962,105 @@ public abstract class RedisQueue extends AbstractEphemeralSupportQueue {
     protected abstract IQueueMessage deserialize(byte[] msgData);
 
     /**
-     * Removes a message completely.
+     * Sorted-set layout: ephemeral storage enabled, processing-list layout
+     * disabled.
      * 
-     * @param msg
      * @return
      */
-    protected boolean remove(IQueueMessage msg) {
+    private boolean isSortedSetLayout() {
+        return !processingListLayout && !isEphemeralDisabled();
+    }
+
+    /**
+     * Publishes a "work available" notification, if notifications are
+     * enabled.
+     * 
+     * <p>
+     * Sorted-set layout: also leaves a signal for consumers blocked in
+     * {@link #take(long, TimeUnit)}.
+     * </p>
+     * 
+     * @param jedis
+     * @since 0.5.2
+     */
+    protected void notifyConsumers(Jedis jedis) {
+        if (redisChannelName != null) {
+            jedis.publish(redisChannelName, NOTIFICATION);
+        }
+        if (isSortedSetLayout()) {
+            signal(jedis);
+        }
+    }
+
+    /**
+     * Publishes a "work available" notification as part of a transaction, if
+     * notifications are enabled.
+     * 
+     * <p>
+     * Sorted-set layout: also leaves a signal for consumers blocked in
+     * {@link #take(long, TimeUnit)}.
+     * </p>
+     * 
+     * @param jt
+     * @since 0.5.2
+     */
+    protected void notifyConsumers(Transaction jt) {
+        if (redisChannelName != null) {
+            jt.publish(redisChannelName, NOTIFICATION);
+        }
+        if (isSortedSetLayout()) {
+            signal(jt);
+        }
+    }
+
+    /**
+     * Pushes a signal to the signal list, which holds at most one signal.
+     * 
+     * @param jedis
+     */
+    private void signal(Jedis jedis) {
+        jedis.rpush(redisSignalListName, NOTIFICATION);
+        jedis.ltrim(redisSignalListName, -1, -1);
+    }
+
+    /**
+     * Pushes a signal to the signal list as part of a transaction or
+     * pipeline.
+     * 
+     * @param jt
+     */
+    private void signal(MultiKeyPipelineBase jt) {
+        jt.rpush(redisSignalListName, NOTIFICATION);
+        jt.ltrim(redisSignalListName, -1, -1);
+    }
+
+    private final static byte[] NOTIFICATION = { '1' };
+
+    /**
+     * Removes messages' queue_ids from ephemeral storage, as part of a
+     * transaction.
+     * 
+     * @param jt
+     * @param fields
+     * @since 0.5.2
+     */
+    protected void removeFromEphemeral(Transaction jt, byte[]... fields) {
+        if (processingListLayout) {
+            for (byte[] field : fields) {
+                jt.lrem(redisProcessingListName, 1, field);
+            }
+        } else {
+            jt.zrem(redisSortedSetName, fields);
+        }
+    }
+
+    /**
+     * Removes a message completely.
+     * 
+     * @param msg
+     * @return
+     */
+    protected boolean remove(IQueueMessage msg) {
         if (isEphemeralDisabled()) {
             return true;
         }
@@ -234,7 +1069,8 @@ public abstract class RedisQueue extends AbstractEphemeralSupportQueue {
 
             byte[] field = msg.qId().toString().getBytes(QueueUtils.UTF8);
             Response<Long> response = jt.hdel(redisHashName, field);
-            jt.zrem(redisSortedSetName, field);
+            jt.hdel(redisQueuedAtHashName, field);
+            removeFromEphemeral(jt, field);
 
             jt.exec();
             Long value = response.get();
@@ -242,6 +1078,74 @@ public abstract class RedisQueue extends AbstractEphemeralSupportQueue {
         }
     }
 
+    /**
+     * Removes a batch of messages completely, in one single transaction.
+     * 
+     * @param msgs
+     * @since 0.5.2
+     */
+    protected void remove(Collection<? extends IQueueMessage> msgs) {
+        if (isEphemeralDisabled() || msgs.size() == 0) {
+            return;
+        }
+        byte[][] fields = new byte[msgs.size()][];
+        int i = 0;
+        for (IQueueMessage msg : msgs) {
+            fields[i++] = msg.qId().toString().getBytes(QueueUtils.UTF8);
+        }
+        try (Jedis jedis = jedisPool.getResource()) {
+            Transaction jt = jedis.multi();
+            jt.hdel(redisHashName, fields);
+            jt.hdel(redisQueuedAtHashName, fields);
+            removeFromEphemeral(jt, fields);
+            jt.exec();
+        }
+    }
+
+    /**
+     * Stores a batch of new messages, in one single transaction.
+     * 
+     * @param msgs
+     * @return
+     * @since 0.5.2
+     */
+    protected int storeNew(Collection<? extends IQueueMessage> msgs) {
+        if (msgs.size() == 0) {
+            return 0;
+        }
+        if (inlinePayload) {
+            byte[][] data = new byte[msgs.size()][];
+            int i = 0;
+            for (IQueueMessage msg : msgs) {
+                data[i++] = serialize(msg);
+            }
+            try (Jedis jedis = jedisPool.getResource()) {
+                jedis.rpush(redisListName, data);
+                notifyConsumers(jedis);
+                return data.length;
+            }
+        }
+        Map<byte[], byte[]> data = new LinkedHashMap<>();
+        Map<byte[], byte[]> queuedAt = new LinkedHashMap<>();
+        byte[][] fields = new byte[msgs.size()][];
+        int i = 0;
+        for (IQueueMessage msg : msgs) {
+            byte[] field = msg.qId().toString().getBytes(QueueUtils.UTF8);
+            data.put(field, serialize(msg));
+            queuedAt.put(field, queuedAt(msg));
+            fields[i++] = field;
+        }
+        try (Jedis jedis = jedisPool.getResource()) {
+            Transaction jt = jedis.multi();
+            jt.hmset(redisHashName, data);
+            jt.hmset(redisQueuedAtHashName, queuedAt);
+            jt.rpush(redisListName, fields);
+            notifyConsumers(jt);
+            jt.exec();
+            return fields.length;
+        }
+    }
+
     /**
      * Stores a new message.
      * 
@@ -250,12 +1154,19 @@ public abstract class RedisQueue extends AbstractEphemeralSupportQueue {
      */
     protected boolean storeNew(IQueueMessage msg) {
         try (Jedis jedis = jedisPool.getResource()) {
+            if (inlinePayload) {
+                jedis.rpush(redisListName, serialize(msg));
+                notifyConsumers(jedis);
+                return true;
+            }
             Transaction jt = jedis.multi();
 
             byte[] field = msg.qId().toString().getBytes(QueueUtils.UTF8);
             byte[] data = serialize(msg);
             jt.hset(redisHashName, field, data);
+            jt.hset(redisQueuedAtHashName, field, queuedAt(msg));
             jt.rpush(redisListName, field);
+            notifyConsumers(jt);
 
             jt.exec();
             return true;
@@ -276,8 +1187,10 @@ public abstract class RedisQueue extends AbstractEphemeralSupportQueue {
             byte[] field = msg.qId().toString().getBytes(QueueUtils.UTF8);
             byte[] data = serialize(msg);
             jt.hset(redisHashName, field, data);
+            jt.hset(redisQueuedAtHashName, field, queuedAt(msg));
             jt.rpush(redisListName, field);
-            jt.zrem(redisSortedSetName, field);
+            removeFromEphemeral(jt, field);
+            notifyConsumers(jt);
 
             jt.exec();
             return true;
@@ -289,6 +1202,9 @@ public abstract class RedisQueue extends AbstractEphemeralSupportQueue {
      */
     @Override
     public boolean queue(IQueueMessage _msg) {
+        if (autoPipeline != null) {
+            return await(queueAsync(_msg));
+        }
         IQueueMessage msg = _msg.clone();
         Date now = new Date();
         msg.qNumRequeues(0).qOriginalTimestamp(now).qTimestamp(now);
@@ -319,7 +1235,11 @@ public abstract class RedisQueue extends AbstractEphemeralSupportQueue {
      */
     @Override
     public void finish(IQueueMessage msg) {
-        remove(msg);
+        if (autoPipeline != null) {
+            await(finishAsync(msg));
+        } else {
+            remove(msg);
+        }
     }
 
     /**
@@ -330,48 +1250,730 @@ public abstract class RedisQueue extends AbstractEphemeralSupportQueue {
      */
     @Override
     public IQueueMessage take() throws QueueException.EphemeralIsFull {
-        if (!isEphemeralDisabled()) {
-            int ephemeralMaxSize = getEphemeralMaxSize();
-            if (ephemeralMaxSize > 0 && ephemeralSize() >= ephemeralMaxSize) {
-                throw new QueueException.EphemeralIsFull(ephemeralMaxSize);
-            }
+        if (autoPipeline != null) {
+            return await(takeAsync());
         }
+        int ephemeralMaxSize = isEphemeralDisabled() ? 0 : getEphemeralMaxSize();
         try (Jedis jedis = jedisPool.getResource()) {
+            if (inlinePayload) {
+                byte[] data = jedis.lpop(redisListName);
+                return data != null ? deserialize(data) : null;
+            }
             long now = System.currentTimeMillis();
-            Object response = jedis.eval(SCRIPT_TAKE, 0, String.valueOf(now));
+            Object response = SCRIPT_TAKE.eval(jedis, 0, String.valueOf(now),
+                    String.valueOf(ephemeralMaxSize));
             if (response == null) {
                 return null;
             }
+            if (response instanceof Long) {
+                // sentinel value returned by the script: ephemeral storage is full
+                throw new QueueException.EphemeralIsFull(ephemeralMaxSize);
+            }
             return deserialize(response instanceof byte[] ? (byte[]) response
                     : response.toString().getBytes(QueueUtils.UTF8));
         }
     }
 
+    /*----------------------------------------------------------------------*/
+
+    /**
+     * Waits for an async operation to complete, unwrapping its exception.
+     * 
+     * @param future
+     * @return
+     */
+    private static <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    private static <T> CompletableFuture<T> failedFuture(Throwable t) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(t);
+        return future;
+    }
+
+    /**
+     * Async variant of {@link #queue(IQueueMessage)}.
+     * 
+     * <p>
+     * If auto-pipelining is disabled, the operation is executed synchronously
+     * and a completed future is returned.
+     * </p>
+     * 
+     * @param _msg
+     * @return
+     * @since 0.5.2
+     */
+    public CompletableFuture<Boolean> queueAsync(IQueueMessage _msg) {
+        if (autoPipeline == null) {
+            try {
+                return CompletableFuture.completedFuture(queue(_msg));
+            } catch (RuntimeException e) {
+                return failedFuture(e);
+            }
+        }
+        IQueueMessage msg = _msg.clone();
+        Date now = new Date();
+        msg.qNumRequeues(0).qOriginalTimestamp(now).qTimestamp(now);
+        final byte[] field = msg.qId().toString().getBytes(QueueUtils.UTF8);
+        final byte[] queuedAt = queuedAt(msg);
+        final byte[] data;
+        try {
+            data = serialize(msg);
+        } catch (RuntimeException e) {
+            return failedFuture(e);
+        }
+        return autoPipeline.submit(pipeline -> {
+            if (inlinePayload) {
+                Response<Long> response = pipeline.rpush(redisListName, data);
+                if (redisChannelName != null) {
+                    pipeline.publish(redisChannelName, NOTIFICATION);
+                }
+                return () -> response.get() != null;
+            }
+            pipeline.multi();
+            pipeline.hset(redisHashName, field, data);
+            pipeline.hset(redisQueuedAtHashName, field, queuedAt);
+            pipeline.rpush(redisListName, field);
+            if (redisChannelName != null) {
+                pipeline.publish(redisChannelName, NOTIFICATION);
+            }
+            if (isSortedSetLayout()) {
+                signal(pipeline);
+            }
+            Response<List<Object>> response = pipeline.exec();
+            return () -> response.get() != null;
+        });
+    }
+
+    /**
+     * Async variant of {@link #take()}. The returned future completes
+     * exceptionally with {@link QueueException.EphemeralIsFull} if the
+     * ephemeral storage is full.
+     * 
+     * <p>
+     * If auto-pipelining is disabled, the operation is executed synchronously
+     * and a completed future is returned.
+     * </p>
+     * 
+     * @return
+     * @since 0.5.2
+     */
+    public CompletableFuture<IQueueMessage> takeAsync() {
+        if (autoPipeline == null) {
+            try {
+                return CompletableFuture.completedFuture(take());
+            } catch (RuntimeException e) {
+                return failedFuture(e);
+            }
+        }
+        final int ephemeralMaxSize = isEphemeralDisabled() ? 0 : getEphemeralMaxSize();
+        final byte[] now = String.valueOf(System.currentTimeMillis()).getBytes(QueueUtils.UTF8);
+        final byte[] max = String.valueOf(ephemeralMaxSize).getBytes(QueueUtils.UTF8);
+        return autoPipeline.submit(pipeline -> {
+            if (inlinePayload) {
+                Response<byte[]> response = pipeline.lpop(redisListName);
+                return () -> response.get() != null ? deserialize(response.get()) : null;
+            }
+            Response<Object> response = SCRIPT_TAKE.eval(pipeline, 0, now, max);
+            return () -> {
+                Object data = response.get();
+                if (data instanceof Long) {
+                    // sentinel value returned by the script: ephemeral storage is full
+                    throw new QueueException.EphemeralIsFull(ephemeralMaxSize);
+                }
+                return data != null ? deserialize((byte[]) data) : null;
+            };
+        });
+    }
+
+    /**
+     * Async variant of {@link #finish(IQueueMessage)}.
+     * 
+     * <p>
+     * If auto-pipelining is disabled, the operation is executed synchronously
+     * and a completed future is returned.
+     * </p>
+     * 
+     * @param msg
+     * @return
+     * @since 0.5.2
+     */
+    public CompletableFuture<Void> finishAsync(IQueueMessage msg) {
+        if (autoPipeline == null || isEphemeralDisabled()) {
+            try {
+                remove(msg);
+                return CompletableFuture.completedFuture(null);
+            } catch (RuntimeException e) {
+                return failedFuture(e);
+            }
+        }
+        final byte[] field = msg.qId().toString().getBytes(QueueUtils.UTF8);
+        return autoPipeline.submit(pipeline -> {
+            pipeline.multi();
+            pipeline.hdel(redisHashName, field);
+            pipeline.hdel(redisQueuedAtHashName, field);
+            if (processingListLayout) {
+                pipeline.lrem(redisProcessingListName, 1, field);
+            } else {
+                pipeline.zrem(redisSortedSetName, field);
+            }
+            Response<List<Object>> response = pipeline.exec();
+            return () -> {
+                response.get();
+                return null;
+            };
+        });
+    }
+
+    /*----------------------------------------------------------------------*/
+
+    /**
+     * Takes a message out of queue, waiting up to the specified wait time if
+     * necessary for a message to become available.
+     * 
+     * <p>
+     * The wait is done server-side, so idle consumers do not poll Redis
+     * server:
+     * <ul>
+     * <li>Processing-list layout (see {@link #setProcessingListLayout(boolean)}):
+     * {@code BRPOPLPUSH} atomically moves the qId from the List to this
+     * consumer's processing list. Note: {@code BRPOPLPUSH} pops from the tail
+     * of the List, so if several messages are queued while waiting, the last
+     * one is taken first.</li>
+     * <li>Ephemeral storage disabled: {@code BLPOP} (then, if messages are not
+     * inlined, the message is removed from the Hash).</li>
+     * <li>Otherwise (sorted-set layout), no blocking command can move a qId to
+     * the SortedSet atomically: {@code BLPOP} waits on a signal list
+     * ({@code <list-name>:signal}, holding at most one signal) that producers
+     * push to whenever messages are put to queue storage, then the message is
+     * taken by the normal take LUA script. Producers must use the same layout
+     * for consumers to be woken up.</li>
+     * </ul>
+     * Blocking commands' timeout has whole-second resolution: the sub-second
+     * part of the wait time is rounded up to one second. At most
+     * {@link #getMaxBlockingTakes()} callers block a Redis connection at the
+     * same time, others wait client-side for a free slot.
+     * </p>
+     * 
+     * <p>
+     * If notifications are enabled (see {@link #setRedisChannelName(String)}),
+     * this method waits for "work available" notifications instead, and
+     * messages are taken by the normal take LUA script.
+     * </p>
+     * 
+     * @param timeout
+     *            how long to wait, {@code 0} or negative value means "do not
+     *            wait"
+     * @param unit
+     * @return the message, or {@code null} if no message is available before
+     *         the wait time elapses
+     * @throws QueueException.EphemeralIsFull
+     *             if the ephemeral storage is full
+     * @since 0.5.2
+     */
+    public IQueueMessage take(long timeout, TimeUnit unit) throws QueueException.EphemeralIsFull {
+        if (wakeupListener != null) {
+            return takeOnNotification(unit.toMillis(timeout));
+        }
+        IQueueMessage msg = take();
+        if (msg != null || timeout <= 0) {
+            return msg;
+        }
+        long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+        try {
+            if (!blockingTakes.tryAcquire(deadline - System.currentTimeMillis(),
+                    TimeUnit.MILLISECONDS)) {
+                return take();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        try (Jedis jedis = jedisPool.getResource()) {
+            long waitMs;
+            while ((waitMs = deadline - System.currentTimeMillis()) > 0) {
+                int waitSecs = toWaitSecs(waitMs);
+                if (processingListLayout) {
+                    msg = takeBlockingToProcessingList(jedis, waitSecs);
+                } else if (isEphemeralDisabled()) {
+                    msg = takeBlockingPop(jedis, waitSecs);
+                } else {
+                    msg = takeOnSignal(jedis, waitSecs);
+                }
+                if (msg != null) {
+                    return msg;
+                }
+            }
+            return null;
+        } finally {
+            blockingTakes.release();
+        }
+    }
+
+    /**
+     * Converts a wait time to blocking commands' timeout, rounding the
+     * sub-second part up ({@code 0} would mean "wait forever").
+     * 
+     * @param waitMs
+     * @return
+     */
+    private static int toWaitSecs(long waitMs) {
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(1, (waitMs + 999) / 1000));
+    }
+
+    /**
+     * Waits (server-side) up to {@code waitSecs} seconds for a qId to move
+     * from the List to this consumer's processing list.
+     * 
+     * @param jedis
+     * @param waitSecs
+     * @return
+     * @throws QueueException.EphemeralIsFull
+     */
+    private IQueueMessage takeBlockingToProcessingList(Jedis jedis, int waitSecs)
+            throws QueueException.EphemeralIsFull {
+        int ephemeralMaxSize = getEphemeralMaxSize();
+        if (ephemeralMaxSize > 0 && jedis.llen(redisProcessingListName) >= ephemeralMaxSize) {
+            throw new QueueException.EphemeralIsFull(ephemeralMaxSize);
+        }
+        byte[] qId = jedis.brpoplpush(redisListName, redisProcessingListName, waitSecs);
+        if (qId == null) {
+            return null;
+        }
+        byte[] data = jedis.hget(redisHashName, qId);
+        if (data == null) {
+            // message has been removed meanwhile
+            jedis.lrem(redisProcessingListName, 1, qId);
+            return null;
+        }
+        return deserialize(data);
+    }
+
+    /**
+     * Waits (server-side) up to {@code waitSecs} seconds to pop a message from
+     * the List, ephemeral storage disabled.
+     * 
+     * @param jedis
+     * @param waitSecs
+     * @return
+     */
+    private IQueueMessage takeBlockingPop(Jedis jedis, int waitSecs) {
+        List<byte[]> popped = jedis.blpop(waitSecs, redisListName);
+        if (popped == null || popped.size() < 2) {
+            return null;
+        }
+        if (inlinePayload) {
+            return deserialize(popped.get(1));
+        }
+        Object response = SCRIPT_TAKE_POPPED.eval(jedis, 0, popped.get(1));
+        return response != null ? deserialize(response instanceof byte[] ? (byte[]) response
+                : response.toString().getBytes(QueueUtils.UTF8)) : null;
+    }
+
+    /**
+     * Waits (server-side) up to {@code waitSecs} seconds for a signal, then
+     * takes a message (sorted-set layout).
+     * 
+     * @param jedis
+     * @param waitSecs
+     * @return
+     * @throws QueueException.EphemeralIsFull
+     */
+    private IQueueMessage takeOnSignal(Jedis jedis, int waitSecs)
+            throws QueueException.EphemeralIsFull {
+        List<byte[]> popped = jedis.blpop(waitSecs, redisSignalListName);
+        if (popped == null || popped.isEmpty()) {
+            return null;
+        }
+        IQueueMessage msg;
+        try {
+            msg = take();
+        } catch (QueueException.EphemeralIsFull e) {
+            // pass the signal on to a consumer that may take
+            signal(jedis);
+            throw e;
+        }
+        // one signal wakes up one consumer: leave a signal for the next one
+        // if there are more messages
+        if (msg != null && !isQueueStorageEmpty()) {
+            signal(jedis);
+        }
+        return msg;
+    }
+
+    /**
+     * Takes a message out of queue, waiting up to {@code timeoutMs} for
+     * "work available" notifications if queue is empty.
+     * 
+     * @param timeoutMs
+     * @return
+     * @throws QueueException.EphemeralIsFull
+     * @since 0.5.2
+     */
+    protected IQueueMessage takeOnNotification(long timeoutMs)
+            throws QueueException.EphemeralIsFull {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        boolean notified = false;
+        while (true) {
+            // obtain the token before taking, so that no notification is missed
+            long token = wakeupListener.currentToken();
+            IQueueMessage msg;
+            try {
+                msg = take();
+            } catch (QueueException.EphemeralIsFull e) {
+                if (notified) {
+                    // pass the notification on to a thread that may take
+                    wakeupListener.wakeup();
+                }
+                throw e;
+            }
+            if (msg != null) {
+                // one notification wakes up one thread: wake up the next
+                // one if there are more messages
+                if (wakeupListener.hasWaiters() && !isQueueStorageEmpty()) {
+                    wakeupListener.wakeup();
+                }
+                return msg;
+            }
+            long waitMs = deadline - System.currentTimeMillis();
+            if (waitMs <= 0) {
+                return null;
+            }
+            try {
+                notified = wakeupListener.await(token, waitMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+    }
+
+    private boolean isQueueStorageEmpty() {
+        try (Jedis jedis = jedisPool.getResource()) {
+            Long result = jedis.llen(redisListName);
+            return result == null || result.longValue() <= 0;
+        }
+    }
+
     /**
      * {@inheritDoc}
+     * 
+     * <p>
+     * All messages are stored in one single transaction.
+     * </p>
+     * 
+     * @since 0.5.2
      */
     @Override
-    public Collection<IQueueMessage> getOrphanMessages(long thresholdTimestampMs) {
+    public int queueAll(Collection<? extends IQueueMessage> _msgs) {
+        if (_msgs == null || _msgs.size() == 0) {
+            return 0;
+        }
+        List<IQueueMessage> msgs = new ArrayList<>(_msgs.size());
+        Date now = new Date();
+        for (IQueueMessage _msg : _msgs) {
+            IQueueMessage msg = _msg.clone();
+            msg.qNumRequeues(0).qOriginalTimestamp(now).qTimestamp(now);
+            msgs.add(msg);
+        }
+        return storeNew(msgs);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * <p>
+     * All messages are removed in one single transaction.
+     * </p>
+     * 
+     * @since 0.5.2
+     */
+    @Override
+    public void finishAll(Collection<? extends IQueueMessage> msgs) {
+        if (msgs != null) {
+            remove(msgs);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * <p>
+     * Messages are taken by one single LUA script call (or one single
+     * {@code LRANGE}+{@code LTRIM} transaction in inline-payload layout).
+     * </p>
+     * 
+     * @throws QueueException.EphemeralIsFull
+     *             if the ephemeral storage is full
+     * @since 0.5.2
+     */
+    @Override
+    public Collection<IQueueMessage> takeBatch(int maxMessages)
+            throws QueueException.EphemeralIsFull {
+        List<IQueueMessage> result = new ArrayList<>();
+        if (maxMessages < 1) {
+            return result;
+        }
+        int ephemeralMaxSize = isEphemeralDisabled() ? 0 : getEphemeralMaxSize();
+        try (Jedis jedis = jedisPool.getResource()) {
+            if (inlinePayload) {
+                Transaction jt = jedis.multi();
+                Response<List<byte[]>> response = jt.lrange(redisListName, 0, maxMessages - 1);
+                jt.ltrim(redisListName, maxMessages, -1);
+                jt.exec();
+                for (byte[] data : response.get()) {
+                    IQueueMessage msg = deserialize(data);
+                    if (msg != null) {
+                        result.add(msg);
+                    }
+                }
+                return result;
+            }
+            long now = System.currentTimeMillis();
+            Object response = SCRIPT_TAKE_BATCH.eval(jedis, 0, String.valueOf(now),
+                    String.valueOf(maxMessages), String.valueOf(ephemeralMaxSize));
+            if (response instanceof Long) {
+                // sentinel value returned by the script: ephemeral storage is full
+                throw new QueueException.EphemeralIsFull(ephemeralMaxSize);
+            }
+            if (response instanceof List) {
+                for (Object data : (List<?>) response) {
+                    IQueueMessage msg = deserialize(data instanceof byte[] ? (byte[]) data
+                            : data.toString().getBytes(QueueUtils.UTF8));
+                    if (msg != null) {
+                        result.add(msg);
+                    }
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * A page of orphan messages, see
+     * {@link RedisQueue#getOrphanMessages(long, String, int)}.
+     * 
+     * @author Thanh Nguyen <btnguyen2k@gmail.com>
+     * @since 0.5.2
+     */
+    public static class OrphanMessagesPage {
+        private final Collection<IQueueMessage> messages;
+        private final String nextCursor;
+
+        public OrphanMessagesPage(Collection<IQueueMessage> messages, String nextCursor) {
+            this.messages = messages;
+            this.nextCursor = nextCursor;
+        }
+
+        /**
+         * Orphan messages of this page.
+         * 
+         * @return
+         */
+        public Collection<IQueueMessage> getMessages() {
+            return messages;
+        }
+
+        /**
+         * Cursor to fetch the next page.
+         * 
+         * @return {@code null} if there is no more orphan message
+         */
+        public String getNextCursor() {
+            return nextCursor;
+        }
+    }
+
+    /**
+     * Default number of orphan messages returned by
+     * {@link #getOrphanMessages(long)}.
+     * 
+     * @since 0.5.2
+     */
+    public final static int DEFAULT_ORPHAN_PAGE_SIZE = 100;
+
+    /**
+     * Gets a page of orphan messages.
+     * 
+     * <p>
+     * Messages' ids and contents are fetched by one single LUA script call per
+     * page. Orphan messages are ordered by the time they were taken. To fetch
+     * all orphan messages, start with {@code cursor=null} and keep calling
+     * this method with {@link OrphanMessagesPage#getNextCursor()} until the
+     * returned cursor is {@code null}.
+     * </p>
+     * 
+     * @param thresholdTimestampMs
+     *            see {@link #getOrphanMessages(long)}
+     * @param cursor
+     *            {@code null} to fetch the first page
+     * @param pageSize
+     * @return {@code null} if ephemeral storage is disabled
+     * @since 0.5.2
+     */
+    public OrphanMessagesPage getOrphanMessages(long thresholdTimestampMs, String cursor,
+            int pageSize) {
         if (isEphemeralDisabled()) {
             return null;
         }
+        if (processingListLayout) {
+            return getOrphanMessagesFromProcessingLists(thresholdTimestampMs, cursor, pageSize);
+        }
+        String cursorScore = "-inf", cursorId = "";
+        if (cursor != null) {
+            int pos = cursor.indexOf(':');
+            if (pos < 1) {
+                throw new IllegalArgumentException("Invalid cursor [" + cursor + "]!");
+            }
+            cursorScore = cursor.substring(0, pos);
+            cursorId = cursor.substring(pos + 1);
+        }
         try (Jedis jedis = jedisPool.getResource()) {
             long now = System.currentTimeMillis();
-            Collection<IQueueMessage> result = new HashSet<IQueueMessage>();
-            byte[] min = "0".getBytes();
-            byte[] max = String.valueOf(now - thresholdTimestampMs).getBytes();
-            Set<byte[]> fields = jedis.zrangeByScore(redisSortedSetName, min, max, 0, 100);
-            for (byte[] field : fields) {
-                byte[] data = jedis.hget(redisHashName, field);
-                IQueueMessage msg = deserialize(data);
+            Object response = SCRIPT_GET_ORPHANS.eval(jedis, 0,
+                    String.valueOf(now - thresholdTimestampMs), cursorScore, cursorId,
+                    String.valueOf(pageSize));
+            List<?> data = response instanceof List ? (List<?>) response : new ArrayList<>();
+            Collection<IQueueMessage> result = new ArrayList<>(data.size() / 3);
+            String lastId = null, lastScore = null;
+            for (int i = 0; i + 2 < data.size(); i += 3) {
+                lastId = new String((byte[]) data.get(i), QueueUtils.UTF8);
+                lastScore = new String((byte[]) data.get(i + 1), QueueUtils.UTF8);
+                byte[] content = (byte[]) data.get(i + 2);
+                IQueueMessage msg = content != null ? deserialize(content) : null;
                 if (msg != null) {
                     result.add(msg);
                 }
             }
-            return result;
+            String nextCursor = data.size() / 3 >= pageSize && lastId != null
+                    ? lastScore + ":" + lastId : null;
+            return new OrphanMessagesPage(result, nextCursor);
+        }
+    }
+
+    /**
+     * Processing-list layout's version of
+     * {@link #getOrphanMessages(long, String, int)}: cursor format is
+     * {@code <position>:<qid-length>:<qid><consumer-id>}, {@code qid} being
+     * the last returned message id. Messages of the previous page may be
+     * moved or finished before the next page is fetched: the next page then
+     * resumes right after the last returned message id, or from the head of
+     * the consumer's processing list if that id is gone (some messages may
+     * then be returned again, none is skipped).
+     */
+    private OrphanMessagesPage getOrphanMessagesFromProcessingLists(long thresholdTimestampMs,
+            String cursor, int pageSize) {
+        String cursorPosition = "0", cursorConsumer = "", cursorId = "";
+        if (cursor != null) {
+            try {
+                int pos1 = cursor.indexOf(':');
+                int pos2 = cursor.indexOf(':', pos1 + 1);
+                int idLength = Integer.parseInt(cursor.substring(pos1 + 1, pos2));
+                cursorPosition = String.valueOf(Long.parseLong(cursor.substring(0, pos1)));
+                cursorId = cursor.substring(pos2 + 1, pos2 + 1 + idLength);
+                cursorConsumer = cursor.substring(pos2 + 1 + idLength);
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("Invalid cursor [" + cursor + "]!");
+            }
+        }
+        try (Jedis jedis = jedisPool.getResource()) {
+            long now = System.currentTimeMillis();
+            Object response = SCRIPT_GET_ORPHANS.eval(jedis, 0,
+                    String.valueOf(now - thresholdTimestampMs), cursorPosition, cursorConsumer,
+                    String.valueOf(pageSize), cursorId);
+            List<?> data = response instanceof List ? (List<?>) response : new ArrayList<>();
+            Collection<IQueueMessage> result = new ArrayList<>(data.size() / 4);
+            String lastConsumer = null, lastPosition = null, lastId = null;
+            for (int i = 0; i + 3 < data.size(); i += 4) {
+                lastConsumer = new String((byte[]) data.get(i), QueueUtils.UTF8);
+                lastPosition = new String((byte[]) data.get(i + 1), QueueUtils.UTF8);
+                lastId = new String((byte[]) data.get(i + 2), QueueUtils.UTF8);
+                byte[] content = (byte[]) data.get(i + 3);
+                IQueueMessage msg = content != null ? deserialize(content) : null;
+                if (msg != null) {
+                    result.add(msg);
+                }
+            }
+            String nextCursor = data.size() / 4 >= pageSize && lastConsumer != null
+                    ? lastPosition + ":" + lastId.length() + ":" + lastId + lastConsumer
+                    : null;
+            return new OrphanMessagesPage(result, nextCursor);
         }
     }
 
+    /**
+     * {@inheritDoc}
+     * 
+     * <p>
+     * This method returns up to {@link #DEFAULT_ORPHAN_PAGE_SIZE} orphan
+     * messages. Use {@link #getOrphanMessages(long, String, int)} to fetch all
+     * orphan messages page by page.
+     * </p>
+     */
+    @Override
+    public Collection<IQueueMessage> getOrphanMessages(long thresholdTimestampMs) {
+        OrphanMessagesPage page = getOrphanMessages(thresholdTimestampMs, null,
+                DEFAULT_ORPHAN_PAGE_SIZE);
+        return page != null ? new HashSet<>(page.getMessages()) : null;
+    }
+
+    /**
+     * Max number of orphan messages moved per LUA script call by
+     * {@link #moveAllOrphansToQueueStorage(long)}.
+     * 
+     * @since 0.5.2
+     */
+    public final static int MOVE_ORPHANS_BATCH_SIZE = 1000;
+
+    /**
+     * Moves all orphan messages from ephemeral storage back to queue storage.
+     * 
+     * <p>
+     * Orphan messages are moved entirely on Redis server side, in batches of
+     * {@link #MOVE_ORPHANS_BATCH_SIZE} messages per LUA script call (so that
+     * a single call does not block Redis server for too long).
+     * </p>
+     * 
+     * @param thresholdTimestampMs
+     *            see {@link #getOrphanMessages(long)}
+     * @return number of messages that have been moved
+     * @since 0.5.2
+     */
+    public long moveAllOrphansToQueueStorage(long thresholdTimestampMs) {
+        if (isEphemeralDisabled()) {
+            return 0;
+        }
+        long total = 0;
+        try (Jedis jedis = jedisPool.getResource()) {
+            String max = String.valueOf(System.currentTimeMillis() - thresholdTimestampMs);
+            String batchSize = String.valueOf(MOVE_ORPHANS_BATCH_SIZE);
+            while (true) {
+                Object response = SCRIPT_MOVE_ORPHANS.eval(jedis, 0, max, batchSize);
+                long numMoved = response instanceof Long ? ((Long) response).longValue() : 0;
+                total += numMoved;
+                if (numMoved < MOVE_ORPHANS_BATCH_SIZE) {
+                    break;
+                }
+            }
+            if (total > 0) {
+                notifyConsumers(jedis);
+            }
+        }
+        return total;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -381,8 +1983,12 @@ public abstract class RedisQueue extends AbstractEphemeralSupportQueue {
             return true;
         }
         try (Jedis jedis = jedisPool.getResource()) {
-            Object response = jedis.eval(SCRIPT_MOVE, 0, msg.qId().toString());
-            return response != null && "1".equals(response.toString());
+            Object response = SCRIPT_MOVE.eval(jedis, 0, msg.qId().toString());
+            boolean moved = response != null && "1".equals(response.toString());
+            if (moved) {
+                notifyConsumers(jedis);
+            }
+            return moved;
         }
     }
 
@@ -391,6 +1997,9 @@ public abstract class RedisQueue extends AbstractEphemeralSupportQueue {
      */
     @Override
     public int queueSize() {
+        if (statsCacheMs > 0) {
+            return (int) getStats().getQueueSize();
+        }
         try (Jedis jedis = jedisPool.getResource()) {
             Long result = jedis.llen(redisListName);
             return result != null ? result.intValue() : 0;
@@ -405,9 +2014,150 @@ public abstract class RedisQueue extends AbstractEphemeralSupportQueue {
         if (isEphemeralDisabled()) {
             return 0;
         }
+        if (statsCacheMs > 0) {
+            return (int) getStats().getEphemeralSize();
+        }
         try (Jedis jedis = jedisPool.getResource()) {
+            if (processingListLayout) {
+                Object result = SCRIPT_EPHEMERAL_SIZE.eval(jedis, 0, new byte[0][]);
+                return result instanceof Long ? ((Long) result).intValue() : 0;
+            }
             Long result = jedis.zcard(redisSortedSetName);
             return result != null ? result.intValue() : 0;
         }
     }
+
+    /**
+     * A snapshot of queue's statistics, see {@link RedisQueue#getStats()}.
+     * 
+     * @author Thanh Nguyen <btnguyen2k@gmail.com>
+     * @since 0.5.2
+     */
+    public static class QueueStats {
+        private final long timestamp, queueSize, ephemeralSize;
+        private final long oldestEphemeralTimestamp, oldestQueuedTimestamp;
+
+        public QueueStats(long timestamp, long queueSize, long ephemeralSize,
+                long oldestEphemeralTimestamp, long oldestQueuedTimestamp) {
+            this.timestamp = timestamp;
+            this.queueSize = queueSize;
+            this.ephemeralSize = ephemeralSize;
+            this.oldestEphemeralTimestamp = oldestEphemeralTimestamp;
+            this.oldestQueuedTimestamp = oldestQueuedTimestamp;
+        }
+
+        /**
+         * When the snapshot was taken (UNIX timestamp in milliseconds).
+         * 
+         * @return
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * Number of messages in queue storage.
+         * 
+         * @return
+         */
+        public long getQueueSize() {
+            return queueSize;
+        }
+
+        /**
+         * Number of messages in ephemeral storage.
+         * 
+         * @return
+         */
+        public long getEphemeralSize() {
+            return ephemeralSize;
+        }
+
+        /**
+         * When the oldest message in ephemeral storage was taken (UNIX
+         * timestamp in milliseconds).
+         * 
+         * @return {@code 0} if ephemeral storage is empty or disabled, or if
+         *         not available (processing-list layout)
+         */
+        public long getOldestEphemeralTimestamp() {
+            return oldestEphemeralTimestamp;
+        }
+
+        /**
+         * When the message at the head of queue storage was queued (UNIX
+         * timestamp in milliseconds).
+         * 
+         * @return {@code 0} if queue storage is empty, or if not available
+         *         (inline payloads)
+         */
+        public long getOldestQueuedTimestamp() {
+            return oldestQueuedTimestamp;
+        }
+    }
+
+    /**
+     * Gets a snapshot of queue's statistics.
+     * 
+     * <p>
+     * All statistics are fetched by one single LUA script call. If stats
+     * caching is enabled (see {@link #setStatsCacheMs(long)}), the snapshot
+     * is fetched at most once per interval, concurrent callers wait for and
+     * share the same snapshot.
+     * </p>
+     * 
+     * <p>
+     * Queued timestamps are kept in a small Hash named
+     * {@code <hash-name>:queued_at} (written and removed along with messages'
+     * contents), so that the oldest queued timestamp is fetched without
+     * fetching the message at the head of queue storage.
+     * </p>
+     * 
+     * @return
+     * @since 0.5.2
+     */
+    public QueueStats getStats() {
+        if (statsCacheMs <= 0) {
+            return fetchStats();
+        }
+        QueueStats stats = cachedStats;
+        if (stats == null || stats.getTimestamp() + statsCacheMs <= System.currentTimeMillis()) {
+            synchronized (statsLock) {
+                stats = cachedStats;
+                if (stats == null
+                        || stats.getTimestamp() + statsCacheMs <= System.currentTimeMillis()) {
+                    stats = fetchStats();
+                    cachedStats = stats;
+                }
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Fetches a stats snapshot from Redis server.
+     * 
+     * @return
+     * @since 0.5.2
+     */
+    protected QueueStats fetchStats() {
+        try (Jedis jedis = jedisPool.getResource()) {
+            long now = System.currentTimeMillis();
+            Object response = SCRIPT_STATS.eval(jedis, 0, new byte[0][]);
+            List<?> data = response instanceof List ? (List<?>) response : new ArrayList<>();
+            long queueSize = data.size() > 0 ? ((Long) data.get(0)).longValue() : 0;
+            long ephemeralSize = data.size() > 1 ? ((Long) data.get(1)).longValue() : 0;
+            long oldestEphemeral = 0;
+            byte[] score = data.size() > 2 ? (byte[]) data.get(2) : null;
+            if (score != null && score.length > 0) {
+                oldestEphemeral = (long) Double.parseDouble(new String(score, QueueUtils.UTF8));
+            }
+            long oldestQueued = 0;
+            byte[] head = data.size() > 3 ? (byte[]) data.get(3) : null;
+            if (head != null && head.length > 0) {
+                oldestQueued = Long.parseLong(new String(head, QueueUtils.UTF8));
+            }
+            return new QueueStats(now, queueSize, ephemeralSize, oldestEphemeral, oldestQueued);
+        }
+    }
 }
@@ -15,8 +15,69 @@ public abstract class RedisQueueFactory<T extends RedisQueue> extends AbstractQu
     public final static String SPEC_FIELD_HASH_NAME = "hash_name";
     public final static String SPEC_FIELD_LIST_NAME = "list_name";
     public final static String SPEC_FIELD_SORTED_SET_NAME = "sorted_set_name";
+
+    /**
+     * Redis server's address, format {@code host:port} or (since v0.5.2)
+     * {@code unix:///path/to/redis.sock}.
+     */
     public final static String SPEC_FIELD_HOST_AND_PORT = "host_and_port";
 
+    /**
+     * Enable inline-payload layout (ephemeral storage must be disabled), see
+     * {@link RedisQueue#setInlinePayload(boolean)}.
+     * 
+     * @since 0.5.2
+     */
+    public final static String SPEC_FIELD_INLINE_PAYLOAD = "inline_payload";
+
+    /**
+     * Pub/Sub channel to notify consumers of new messages, see
+     * {@link RedisQueue#setRedisChannelName(String)}.
+     * 
+     * @since 0.5.2
+     */
+    public final static String SPEC_FIELD_CHANNEL_NAME = "channel_name";
+
+    /**
+     * Number of auto-pipelining connections, see
+     * {@link RedisQueue#setAutoPipelineConnections(int)}.
+     * 
+     * @since 0.5.2
+     */
+    public final static String SPEC_FIELD_AUTO_PIPELINE_CONNECTIONS = "auto_pipeline_connections";
+
+    /**
+     * Enable processing-list layout, see
+     * {@link RedisQueue#setProcessingListLayout(boolean)}.
+     * 
+     * @since 0.5.2
+     */
+    public final static String SPEC_FIELD_PROCESSING_LIST_LAYOUT = "processing_list_layout";
+
+    /**
+     * Consumer id used by processing-list layout, see
+     * {@link RedisQueue#setConsumerId(String)}.
+     * 
+     * @since 0.5.2
+     */
+    public final static String SPEC_FIELD_CONSUMER_ID = "consumer_id";
+
+    /**
+     * How long (in milliseconds) stats snapshots are cached, see
+     * {@link RedisQueue#setStatsCacheMs(long)}.
+     * 
+     * @since 0.5.2
+     */
+    public final static String SPEC_FIELD_STATS_CACHE_MS = "stats_cache_ms";
+
+    /**
+     * Max number of threads blocking a Redis connection at the same time, see
+     * {@link RedisQueue#setMaxBlockingTakes(int)}.
+     * 
+     * @since 0.5.2
+     */
+    public final static String SPEC_FIELD_MAX_BLOCKING_TAKES = "max_blocking_takes";
+
     /**
      * {@inheritDoc}
      */
@@ -47,6 +108,42 @@ public abstract class RedisQueueFactory<T extends RedisQueue> extends AbstractQu
                     + SPEC_FIELD_SORTED_SET_NAME + "] or none at all!");
         }
 
+        Boolean inlinePayload = spec.getField(SPEC_FIELD_INLINE_PAYLOAD, Boolean.class);
+        if (inlinePayload != null) {
+            queue.setInlinePayload(inlinePayload.booleanValue());
+        }
+
+        Boolean processingListLayout = spec.getField(SPEC_FIELD_PROCESSING_LIST_LAYOUT,
+                Boolean.class);
+        if (processingListLayout != null) {
+            queue.setProcessingListLayout(processingListLayout.booleanValue());
+        }
+        String consumerId = spec.getField(SPEC_FIELD_CONSUMER_ID);
+        if (!StringUtils.isBlank(consumerId)) {
+            queue.setConsumerId(consumerId);
+        }
+
+        Long statsCacheMs = spec.getField(SPEC_FIELD_STATS_CACHE_MS, Long.class);
+        if (statsCacheMs != null) {
+            queue.setStatsCacheMs(statsCacheMs.longValue());
+        }
+
+        Integer maxBlockingTakes = spec.getField(SPEC_FIELD_MAX_BLOCKING_TAKES, Integer.class);
+        if (maxBlockingTakes != null) {
+            queue.setMaxBlockingTakes(maxBlockingTakes.intValue());
+        }
+
+        String redisChannelName = spec.getField(SPEC_FIELD_CHANNEL_NAME);
+        if (!StringUtils.isBlank(redisChannelName)) {
+            queue.setRedisChannelName(redisChannelName);
+        }
+
+        Integer autoPipelineConnections = spec.getField(SPEC_FIELD_AUTO_PIPELINE_CONNECTIONS,
+                Integer.class);
+        if (autoPipelineConnections != null) {
+            queue.setAutoPipelineConnections(autoPipelineConnections.intValue());
+        }
+
         String redisHostAndPort = spec.getField(SPEC_FIELD_HOST_AND_PORT);
         if (!StringUtils.isBlank(redisHostAndPort)) {
             queue.setRedisHostAndPort(redisHostAndPort);
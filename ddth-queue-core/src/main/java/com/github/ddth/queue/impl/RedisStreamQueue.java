@@ -0,0 +1,774 @@
+package com.github.ddth.queue.impl;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.ddth.queue.IQueue;
+import com.github.ddth.queue.IQueueMessage;
+import com.github.ddth.queue.impl.redis.RedisLuaScript;
+import com.github.ddth.queue.utils.QueueException;
+import com.github.ddth.queue.utils.QueueUtils;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+
+/**
+ * Redis Streams implementation of {@link IQueue} (requires Redis server
+ * v6.2+).
+ * 
+ * <p>
+ * Implementation:
+ * <ul>
+ * <li>A stream stores messages, one stream entry per message (see
+ * {@link #setRedisStreamName(String)}).</li>
+ * <li>A consumer group (see {@link #setConsumerGroup(String)}) reads messages
+ * from the stream: {@code XREADGROUP} to take messages, the group's pending
+ * entries list acts as ephemeral storage.</li>
+ * <li>{@code XACK} + {@code XDEL} to finish messages, so that the stream only
+ * holds queued and in-flight messages.</li>
+ * <li>A Hash {@code <stream-name>:ids} maps messages' queue_ids to their stream
+ * entry ids, written by the same LUA script call that adds the entries, so
+ * that finish and re-queue resolve entry ids server-side.</li>
+ * <li>A List {@code <stream-name>:signal} holds at most one "work available"
+ * signal, pushed whenever messages are added, for
+ * {@link #take(long, TimeUnit)} to wait on.</li>
+ * </ul>
+ * </p>
+ * 
+ * <p>
+ * Notes:
+ * <ul>
+ * <li>A message's stream entry id is not part of the message, but is looked up
+ * by queue_id: a message can be finished or re-queued by any queue instance,
+ * not only the one that took it.</li>
+ * <li>All queue instances reading from the same stream should use the same
+ * consumer group, but different consumer names. Consumer name defaults to the
+ * host name, so that a restarted instance comes back as the same consumer;
+ * set distinct names (see {@link #setConsumerName(String)}) if several
+ * instances run on the same host.</li>
+ * </ul>
+ * </p>
+ * 
+ * @author Thanh Nguyen <btnguyen2k@gmail.com>
+ * @since 0.5.2
+ */
+public abstract class RedisStreamQueue extends AbstractEphemeralSupportQueue {
+
+    private final static Logger LOGGER = LoggerFactory.getLogger(RedisStreamQueue.class);
+
+    private JedisPool jedisPool;
+    private boolean myOwnJedisPool = true;
+    private String redisHostAndPort = "localhost:6379";
+
+    private String _redisStreamName = "queue_stream";
+    private byte[] redisStreamName = _redisStreamName.getBytes(QueueUtils.UTF8);
+
+    private String _consumerGroup = "queue_group";
+    private byte[] consumerGroup = _consumerGroup.getBytes(QueueUtils.UTF8);
+
+    private String _consumerName = defaultConsumerName();
+    private byte[] consumerName = _consumerName.getBytes(QueueUtils.UTF8);
+
+    /* Hash {queue_id:entry_id}, named after the stream */
+    private byte[] redisIdsHashName = idsHashName(_redisStreamName);
+
+    /* List of "work available" signals, named after the stream */
+    private byte[] redisSignalListName = signalListName(_redisStreamName);
+
+    private int maxBlockingTakes = 8;
+    private Semaphore blockingTakes;
+
+    private static String defaultConsumerName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (Exception e) {
+            return QueueUtils.IDGEN.generateId128Hex();
+        }
+    }
+
+    /**
+     * Redis' host and port scheme (format {@code host:port}).
+     * 
+     * @return
+     */
+    public String getRedisHostAndPort() {
+        return redisHostAndPort;
+    }
+
+    /**
+     * Sets Redis' host and port scheme (format {@code host:port}).
+     * 
+     * @param redisHostAndPort
+     * @return
+     */
+    public RedisStreamQueue setRedisHostAndPort(String redisHostAndPort) {
+        this.redisHostAndPort = redisHostAndPort;
+        return this;
+    }
+
+    public String getRedisStreamName() {
+        return _redisStreamName;
+    }
+
+    public RedisStreamQueue setRedisStreamName(String redisStreamName) {
+        _redisStreamName = redisStreamName;
+        this.redisStreamName = _redisStreamName.getBytes(QueueUtils.UTF8);
+        this.redisIdsHashName = idsHashName(_redisStreamName);
+        this.redisSignalListName = signalListName(_redisStreamName);
+        return this;
+    }
+
+    private static byte[] idsHashName(String redisStreamName) {
+        return (redisStreamName + ":ids").getBytes(QueueUtils.UTF8);
+    }
+
+    private static byte[] signalListName(String redisStreamName) {
+        return (redisStreamName + ":signal").getBytes(QueueUtils.UTF8);
+    }
+
+    public String getConsumerGroup() {
+        return _consumerGroup;
+    }
+
+    public RedisStreamQueue setConsumerGroup(String consumerGroup) {
+        _consumerGroup = consumerGroup;
+        this.consumerGroup = _consumerGroup.getBytes(QueueUtils.UTF8);
+        return this;
+    }
+
+    /**
+     * Name of this queue instance within the consumer group (default: the
+     * host name).
+     * 
+     * @return
+     */
+    public String getConsumerName() {
+        return _consumerName;
+    }
+
+    /**
+     * Sets name of this queue instance within the consumer group.
+     * 
+     * @param consumerName
+     * @return
+     */
+    public RedisStreamQueue setConsumerName(String consumerName) {
+        _consumerName = consumerName;
+        this.consumerName = _consumerName.getBytes(QueueUtils.UTF8);
+        return this;
+    }
+
+    /**
+     * Max number of threads blocking a Redis connection at the same time in
+     * {@link #take(long, TimeUnit)}.
+     * 
+     * @return
+     */
+    public int getMaxBlockingTakes() {
+        return maxBlockingTakes;
+    }
+
+    /**
+     * Sets max number of threads blocking a Redis connection at the same time
+     * in {@link #take(long, TimeUnit)} (default {@code 8}). Extra callers wait
+     * client-side for a free slot. Must be set before {@link #init()}.
+     * 
+     * @param maxBlockingTakes
+     * @return
+     */
+    public RedisStreamQueue setMaxBlockingTakes(int maxBlockingTakes) {
+        this.maxBlockingTakes = maxBlockingTakes;
+        return this;
+    }
+
+    protected JedisPool getJedisPool() {
+        return jedisPool;
+    }
+
+    public RedisStreamQueue setJedisPool(JedisPool jedisPool) {
+        this.jedisPool = jedisPool;
+        myOwnJedisPool = false;
+        return this;
+    }
+
+    /*----------------------------------------------------------------------*/
+    /*
+     * All scripts take 3 keys (KEYS[1] is the stream, KEYS[2] is the
+     * {queue_id:entry_id} Hash and KEYS[3] is the signal List), and ARGV[1] is
+     * the consumer group. Entries have 2 fields: "d" (message's content) and
+     * "q" (message's queue_id).
+     */
+
+    /**
+     * LUA script to create the consumer group (and the stream) if not exist.
+     */
+    private final static RedisLuaScript SCRIPT_INIT = new RedisLuaScript(
+            "local ok=pcall(redis.call, \"XGROUP\", \"CREATE\", KEYS[1], ARGV[1], \"0\", "
+                    + "\"MKSTREAM\"); return ok and 1 or 0");
+
+    /**
+     * LUA script to add messages {queue_id, content} ARGV[2..n] to the
+     * stream, then push a signal.
+     */
+    private final static RedisLuaScript SCRIPT_ADD = new RedisLuaScript(
+            "local n=0; for i=2,#ARGV-1,2 do "
+                    + "local id=redis.call(\"XADD\", KEYS[1], \"*\", \"d\", ARGV[i+1], "
+                    + "\"q\", ARGV[i]); redis.call(\"HSET\", KEYS[2], ARGV[i], id); n=n+1; end; "
+                    + "if n>0 then redis.call(\"RPUSH\", KEYS[3], \"1\"); "
+                    + "redis.call(\"LTRIM\", KEYS[3], -1, -1); end; return n");
+
+    /**
+     * LUA script to take up to ARGV[3] messages for consumer ARGV[2]. Result
+     * is a list of messages' contents.
+     * 
+     * <p>
+     * ARGV[4] is ephemeral storage's max size: the number of taken messages is
+     * capped by the pending entries list's free slots, and -1 is returned if
+     * there is no free slot. If ARGV[5] is "1" (ephemeral is disabled),
+     * messages are read with {@code NOACK} and deleted from the stream.
+     * </p>
+     */
+    private final static RedisLuaScript SCRIPT_TAKE = new RedisLuaScript(
+            "local n=tonumber(ARGV[3]); local max=tonumber(ARGV[4]); "
+                    + "if max>0 then "
+                    + "local free=max-redis.call(\"XPENDING\", KEYS[1], ARGV[1])[1]; "
+                    + "if free<=0 then return -1 end; if free<n then n=free end; end; "
+                    + "local r; if ARGV[5]==\"1\" then "
+                    + "r=redis.call(\"XREADGROUP\", \"GROUP\", ARGV[1], ARGV[2], \"COUNT\", n, "
+                    + "\"NOACK\", \"STREAMS\", KEYS[1], \">\"); else "
+                    + "r=redis.call(\"XREADGROUP\", \"GROUP\", ARGV[1], ARGV[2], \"COUNT\", n, "
+                    + "\"STREAMS\", KEYS[1], \">\"); end; local result={}; if not r then "
+                    + "return result end; for _,e in ipairs(r[1][2]) do "
+                    + "result[#result+1]=e[2][2]; if ARGV[5]==\"1\" then "
+                    + "redis.call(\"XDEL\", KEYS[1], e[1]); "
+                    + "if e[2][4] then redis.call(\"HDEL\", KEYS[2], e[2][4]); end; end; end; "
+                    + "return result");
+
+    /**
+     * LUA script to finish messages ARGV[2..n] (queue_ids): ack and delete
+     * their pending entries.
+     */
+    private final static RedisLuaScript SCRIPT_FINISH = new RedisLuaScript(
+            "local n=0; for i=2,#ARGV do local id=redis.call(\"HGET\", KEYS[2], ARGV[i]); "
+                    + "if id and redis.call(\"XACK\", KEYS[1], ARGV[1], id)==1 then "
+                    + "redis.call(\"XDEL\", KEYS[1], id); redis.call(\"HDEL\", KEYS[2], ARGV[i]); "
+                    + "n=n+1; end; end; return n");
+
+    /**
+     * LUA script to re-queue message ARGV[2] (queue_id): ack and delete its
+     * current entry (if any), then add content ARGV[3] to the stream and push
+     * a signal. If ARGV[4] is "1", the message is added only if its entry was
+     * pending. Returns 1 if the message was added, 0 otherwise.
+     */
+    private final static RedisLuaScript SCRIPT_REQUEUE = new RedisLuaScript(
+            "local acked=0; local id=redis.call(\"HGET\", KEYS[2], ARGV[2]); "
+                    + "if id then acked=redis.call(\"XACK\", KEYS[1], ARGV[1], id); end; "
+                    + "if ARGV[4]==\"1\" and acked==0 then return 0 end; "
+                    + "if id then redis.call(\"XDEL\", KEYS[1], id); end; "
+                    + "id=redis.call(\"XADD\", KEYS[1], \"*\", \"d\", ARGV[3], \"q\", ARGV[2]); "
+                    + "redis.call(\"HSET\", KEYS[2], ARGV[2], id); "
+                    + "redis.call(\"RPUSH\", KEYS[3], \"1\"); "
+                    + "redis.call(\"LTRIM\", KEYS[3], -1, -1); return 1");
+
+    /**
+     * LUA script to fetch up to ARGV[3] pending entries which have been idle
+     * for at least ARGV[2] milliseconds. Result is a list of messages'
+     * contents.
+     */
+    private final static RedisLuaScript SCRIPT_GET_ORPHANS = new RedisLuaScript(
+            "local p=redis.call(\"XPENDING\", KEYS[1], ARGV[1], \"IDLE\", ARGV[2], \"-\", \"+\", "
+                    + "ARGV[3]); local result={}; for _,e in ipairs(p) do "
+                    + "local r=redis.call(\"XRANGE\", KEYS[1], e[1], e[1]); if #r>0 then "
+                    + "result[#result+1]=r[1][2][2]; end; end; return result");
+
+    /**
+     * LUA script to claim up to ARGV[4] pending entries which have been idle
+     * for at least ARGV[3] milliseconds for consumer ARGV[2]. Result is a list
+     * of messages' contents.
+     */
+    private final static RedisLuaScript SCRIPT_CLAIM_ORPHANS = new RedisLuaScript(
+            "local r=redis.call(\"XAUTOCLAIM\", KEYS[1], ARGV[1], ARGV[2], ARGV[3], \"0-0\", "
+                    + "\"COUNT\", ARGV[4]); local result={}; for _,e in ipairs(r[2]) do "
+                    + "if e[2] then result[#result+1]=e[2][2]; end; end; return result");
+
+    /**
+     * LUA script to remove consumer ARGV[2] from the group if it has no
+     * pending entry.
+     */
+    private final static RedisLuaScript SCRIPT_REMOVE_IDLE_CONSUMER = new RedisLuaScript(
+            "local p=redis.call(\"XPENDING\", KEYS[1], ARGV[1], \"-\", \"+\", 1, ARGV[2]); "
+                    + "if #p==0 then redis.call(\"XGROUP\", \"DELCONSUMER\", KEYS[1], ARGV[1], "
+                    + "ARGV[2]); return 1 end; return 0");
+
+    /**
+     * LUA script to get stream's length and number of pending entries.
+     */
+    private final static RedisLuaScript SCRIPT_SIZE = new RedisLuaScript(
+            "return {redis.call(\"XLEN\", KEYS[1]), "
+                    + "redis.call(\"XPENDING\", KEYS[1], ARGV[1])[1]}");
+
+    /**
+     * Init method.
+     * 
+     * @return
+     */
+    public RedisStreamQueue init() {
+        if (jedisPool == null) {
+            JedisPoolConfig poolConfig = new JedisPoolConfig();
+            poolConfig.setMaxTotal(32);
+            poolConfig.setMinIdle(1);
+            poolConfig.setMaxIdle(16);
+            poolConfig.setMaxWaitMillis(10000);
+            poolConfig.setTestWhileIdle(true);
+
+            String[] tokens = redisHostAndPort.split(":");
+            String redisHost = tokens.length > 0 ? tokens[0] : "localhost";
+            int redisPort = tokens.length > 1 ? Integer.parseInt(tokens[1]) : 6379;
+            jedisPool = new JedisPool(poolConfig, redisHost, redisPort);
+            myOwnJedisPool = true;
+        }
+        try (Jedis jedis = jedisPool.getResource()) {
+            eval(jedis, SCRIPT_INIT);
+        }
+        blockingTakes = new Semaphore(Math.max(1, maxBlockingTakes), true);
+        return this;
+    }
+
+    /**
+     * Destroy method.
+     * 
+     * <p>
+     * This queue instance is removed from the consumer group if it has no
+     * pending message, so that consumers do not pile up in the group.
+     * </p>
+     */
+    public void destroy() {
+        if (jedisPool != null && !isEphemeralDisabled()) {
+            try (Jedis jedis = jedisPool.getResource()) {
+                eval(jedis, SCRIPT_REMOVE_IDLE_CONSUMER, consumerName);
+            } catch (Exception e) {
+                LOGGER.warn("Error while removing consumer [" + _consumerName + "]: "
+                        + e.getMessage());
+            }
+        }
+        if (jedisPool != null && myOwnJedisPool) {
+            jedisPool.destroy();
+            jedisPool = null;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() {
+        destroy();
+    }
+
+    /**
+     * Serializes a queue message to store in Redis.
+     * 
+     * @param msg
+     * @return
+     */
+    protected abstract byte[] serialize(IQueueMessage msg);
+
+    /**
+     * Deserilizes a queue message.
+     * 
+     * @param msgData
+     * @return
+     */
+    protected abstract IQueueMessage deserialize(byte[] msgData);
+
+    private Object eval(Jedis jedis, RedisLuaScript script, byte[]... args) {
+        byte[][] params = new byte[4 + args.length][];
+        params[0] = redisStreamName;
+        params[1] = redisIdsHashName;
+        params[2] = redisSignalListName;
+        params[3] = consumerGroup;
+        System.arraycopy(args, 0, params, 4, args.length);
+        return script.eval(jedis, 3, params);
+    }
+
+    private static byte[] toBytes(Object value) {
+        return value instanceof byte[] ? (byte[]) value
+                : String.valueOf(value).getBytes(QueueUtils.UTF8);
+    }
+
+    /**
+     * Deserializes messages from a list of contents.
+     * 
+     * @param response
+     * @param result
+     * @return
+     */
+    protected <C extends Collection<IQueueMessage>> C toMessages(Object response, C result) {
+        if (response instanceof List) {
+            for (Object data : (List<?>) response) {
+                IQueueMessage msg = deserialize(toBytes(data));
+                if (msg != null) {
+                    result.add(msg);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static byte[] qId(IQueueMessage msg) {
+        return msg.qId().toString().getBytes(QueueUtils.UTF8);
+    }
+
+    /**
+     * Adds messages to the stream.
+     * 
+     * @param msgs
+     * @return
+     */
+    protected int add(Collection<? extends IQueueMessage> msgs) {
+        byte[][] args = new byte[2 * msgs.size()][];
+        int i = 0;
+        for (IQueueMessage msg : msgs) {
+            args[i++] = qId(msg);
+            args[i++] = serialize(msg);
+        }
+        try (Jedis jedis = jedisPool.getResource()) {
+            Object response = eval(jedis, SCRIPT_ADD, args);
+            return response instanceof Long ? ((Long) response).intValue() : 0;
+        }
+    }
+
+    /**
+     * Re-adds a message to the stream, removing its old entry (if any).
+     * 
+     * @param msg
+     * @param onlyIfPending
+     * @return
+     */
+    protected boolean readd(IQueueMessage msg, boolean onlyIfPending) {
+        try (Jedis jedis = jedisPool.getResource()) {
+            Object response = eval(jedis, SCRIPT_REQUEUE, qId(msg), serialize(msg),
+                    toBytes(onlyIfPending ? "1" : "0"));
+            return response instanceof Long && ((Long) response).longValue() == 1;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean queue(IQueueMessage _msg) {
+        IQueueMessage msg = _msg.clone();
+        Date now = new Date();
+        msg.qNumRequeues(0).qOriginalTimestamp(now).qTimestamp(now);
+        return add(Collections.singletonList(msg)) > 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean requeue(IQueueMessage _msg) {
+        IQueueMessage msg = _msg.clone();
+        Date now = new Date();
+        msg.qIncNumRequeues().qTimestamp(now);
+        return readd(msg, false);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean requeueSilent(IQueueMessage msg) {
+        return readd(msg.clone(), false);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void finish(IQueueMessage msg) {
+        finishAll(Collections.singletonList(msg));
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @throws QueueException.EphemeralIsFull
+     *             if the ephemeral storage is full
+     */
+    @Override
+    public IQueueMessage take() throws QueueException.EphemeralIsFull {
+        Collection<IQueueMessage> result = takeBatch(1);
+        return result.isEmpty() ? null : result.iterator().next();
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * <p>
+     * All messages are added to the stream by one single LUA script call.
+     * </p>
+     */
+    @Override
+    public int queueAll(Collection<? extends IQueueMessage> _msgs) {
+        if (_msgs == null || _msgs.size() == 0) {
+            return 0;
+        }
+        List<IQueueMessage> msgs = new ArrayList<>(_msgs.size());
+        Date now = new Date();
+        for (IQueueMessage _msg : _msgs) {
+            IQueueMessage msg = _msg.clone();
+            msg.qNumRequeues(0).qOriginalTimestamp(now).qTimestamp(now);
+            msgs.add(msg);
+        }
+        return add(msgs);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * <p>
+     * All messages are acknowledged and deleted by one single LUA script
+     * call, their entry ids are looked up by queue_id server-side.
+     * </p>
+     */
+    @Override
+    public void finishAll(Collection<? extends IQueueMessage> msgs) {
+        if (msgs == null || isEphemeralDisabled()) {
+            return;
+        }
+        List<byte[]> ids = new ArrayList<>(msgs.size());
+        for (IQueueMessage msg : msgs) {
+            ids.add(qId(msg));
+        }
+        if (ids.size() > 0) {
+            try (Jedis jedis = jedisPool.getResource()) {
+                eval(jedis, SCRIPT_FINISH, ids.toArray(new byte[ids.size()][]));
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * <p>
+     * Messages are read by one single {@code XREADGROUP COUNT n} (inside a LUA
+     * script call).
+     * </p>
+     * 
+     * @throws QueueException.EphemeralIsFull
+     *             if the ephemeral storage is full
+     */
+    @Override
+    public Collection<IQueueMessage> takeBatch(int maxMessages)
+            throws QueueException.EphemeralIsFull {
+        List<IQueueMessage> result = new ArrayList<>();
+        if (maxMessages < 1) {
+            return result;
+        }
+        int ephemeralMaxSize = isEphemeralDisabled() ? 0 : getEphemeralMaxSize();
+        try (Jedis jedis = jedisPool.getResource()) {
+            Object response = eval(jedis, SCRIPT_TAKE, consumerName, toBytes(maxMessages),
+                    toBytes(ephemeralMaxSize), toBytes(isEphemeralDisabled() ? "1" : "0"));
+            if (response instanceof Long) {
+                // sentinel value returned by the script: ephemeral storage is full
+                throw new QueueException.EphemeralIsFull(ephemeralMaxSize);
+            }
+            return toMessages(response, result);
+        }
+    }
+
+    /**
+     * Takes a message, waiting up to {@code timeout} for one to be available.
+     * 
+     * <p>
+     * {@code XREADGROUP BLOCK} is not supported by the Jedis client in use
+     * (and not allowed in LUA scripts): {@code BLPOP} waits server-side on the
+     * signal List instead, then the message is taken by the normal take LUA
+     * script. Blocking commands' timeout has whole-second resolution: the
+     * sub-second part of the wait time is rounded up to one second. At most
+     * {@link #getMaxBlockingTakes()} callers block a Redis connection at the
+     * same time, others wait client-side for a free slot.
+     * </p>
+     * 
+     * @param timeout
+     *            how long to wait, {@code 0} or negative value means "do not
+     *            wait"
+     * @param unit
+     * @return the message, or {@code null} if no message is available before
+     *         the wait time elapses
+     * @throws QueueException.EphemeralIsFull
+     *             if the ephemeral storage is full
+     */
+    public IQueueMessage take(long timeout, TimeUnit unit) throws QueueException.EphemeralIsFull {
+        IQueueMessage msg = take();
+        if (msg != null || timeout <= 0) {
+            return msg;
+        }
+        long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+        try {
+            if (!blockingTakes.tryAcquire(deadline - System.currentTimeMillis(),
+                    TimeUnit.MILLISECONDS)) {
+                return take();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        try (Jedis jedis = jedisPool.getResource()) {
+            long waitMs;
+            while ((waitMs = deadline - System.currentTimeMillis()) > 0) {
+                int waitSecs = (int) Math.min(Integer.MAX_VALUE,
+                        Math.max(1, (waitMs + 999) / 1000));
+                List<byte[]> popped = jedis.blpop(waitSecs, redisSignalListName);
+                if (popped == null || popped.isEmpty()) {
+                    continue;
+                }
+                try {
+                    msg = take();
+                } catch (QueueException.EphemeralIsFull e) {
+                    // pass the signal on to a consumer that may take
+                    signal(jedis);
+                    throw e;
+                }
+                if (msg != null) {
+                    // one signal wakes up one consumer: leave a signal for the
+                    // next one if there are more messages
+                    if (queueSize() > 0) {
+                        signal(jedis);
+                    }
+                    return msg;
+                }
+            }
+            return null;
+        } finally {
+            blockingTakes.release();
+        }
+    }
+
+    private void signal(Jedis jedis) {
+        jedis.rpush(redisSignalListName, SIGNAL);
+        jedis.ltrim(redisSignalListName, -1, -1);
+    }
+
+    private final static byte[] SIGNAL = { '1' };
+
+    /**
+     * Default max number of orphan messages returned by
+     * {@link #getOrphanMessages(long)}.
+     */
+    public final static int DEFAULT_ORPHAN_PAGE_SIZE = 100;
+
+    /**
+     * {@inheritDoc}
+     * 
+     * <p>
+     * This method returns up to {@link #DEFAULT_ORPHAN_PAGE_SIZE} pending
+     * messages (of all consumers in the group) which have been idle for at
+     * least {@code thresholdTimestampMs} milliseconds. Messages are not
+     * claimed, they can be passed to
+     * {@link #moveFromEphemeralToQueueStorage(IQueueMessage)}.
+     * </p>
+     */
+    @Override
+    public Collection<IQueueMessage> getOrphanMessages(long thresholdTimestampMs) {
+        if (isEphemeralDisabled()) {
+            return null;
+        }
+        try (Jedis jedis = jedisPool.getResource()) {
+            Object response = eval(jedis, SCRIPT_GET_ORPHANS, toBytes(thresholdTimestampMs),
+                    toBytes(DEFAULT_ORPHAN_PAGE_SIZE));
+            return toMessages(response, new HashSet<IQueueMessage>());
+        }
+    }
+
+    /**
+     * Takes over orphan messages: up to {@code maxMessages} pending messages
+     * (of any consumer in the group) which have been idle for at least
+     * {@code thresholdTimestampMs} milliseconds are claimed by this queue
+     * instance ({@code XAUTOCLAIM}), as if they were taken by
+     * {@link #takeBatch(int)}.
+     * 
+     * @param thresholdTimestampMs
+     * @param maxMessages
+     * @return
+     */
+    public Collection<IQueueMessage> takeOrphanMessages(long thresholdTimestampMs,
+            int maxMessages) {
+        List<IQueueMessage> result = new ArrayList<>();
+        if (isEphemeralDisabled() || maxMessages < 1) {
+            return result;
+        }
+        try (Jedis jedis = jedisPool.getResource()) {
+            Object response = eval(jedis, SCRIPT_CLAIM_ORPHANS, consumerName,
+                    toBytes(thresholdTimestampMs), toBytes(maxMessages));
+            return toMessages(response, result);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * <p>
+     * The message's pending entry is acknowledged and deleted, and the message
+     * is added to the end of the stream.
+     * </p>
+     */
+    @Override
+    public boolean moveFromEphemeralToQueueStorage(IQueueMessage msg) {
+        if (isEphemeralDisabled()) {
+            return true;
+        }
+        return readd(msg, true);
+    }
+
+    private long[] sizes() {
+        try (Jedis jedis = jedisPool.getResource()) {
+            Object response = eval(jedis, SCRIPT_SIZE);
+            List<?> data = response instanceof List ? (List<?>) response : null;
+            if (data == null || data.size() < 2) {
+                return new long[] { 0, 0 };
+            }
+            long xlen = data.get(0) instanceof Long ? ((Long) data.get(0)).longValue() : 0;
+            long pending = data.get(1) instanceof Long ? ((Long) data.get(1)).longValue() : 0;
+            return new long[] { xlen, pending };
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * <p>
+     * Finished messages are deleted from the stream, so queue size is the
+     * stream's length minus number of pending entries.
+     * </p>
+     */
+    @Override
+    public int queueSize() {
+        long[] sizes = sizes();
+        return (int) Math.max(0, sizes[0] - sizes[1]);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int ephemeralSize() {
+        if (isEphemeralDisabled()) {
+            return 0;
+        }
+        return (int) sizes()[1];
+    }
+}
@@ -0,0 +1,63 @@
+package com.github.ddth.queue.impl;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.github.ddth.queue.QueueSpec;
+
+/**
+ * Factory to create {@link RedisStreamQueue} instances.
+ * 
+ * @author Thanh Nguyen <btnguyen2k@gmail.com>
+ * @since 0.5.2
+ */
+public abstract class RedisStreamQueueFactory<T extends RedisStreamQueue>
+        extends AbstractQueueFactory<T> {
+
+    public final static String SPEC_FIELD_STREAM_NAME = "stream_name";
+    public final static String SPEC_FIELD_CONSUMER_GROUP = "consumer_group";
+    public final static String SPEC_FIELD_CONSUMER_NAME = "consumer_name";
+    public final static String SPEC_FIELD_HOST_AND_PORT = "host_and_port";
+    public final static String SPEC_FIELD_MAX_BLOCKING_TAKES = "max_blocking_takes";
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void initQueue(T queue, QueueSpec spec) {
+        Boolean ephemeralDisabled = spec.getField(QueueSpec.FIELD_EPHEMERAL_DISABLED,
+                Boolean.class);
+        if (ephemeralDisabled != null) {
+            queue.setEphemeralDisabled(ephemeralDisabled.booleanValue());
+        }
+        Integer maxEphemeralSize = spec.getField(QueueSpec.FIELD_EPHEMERAL_MAX_SIZE, Integer.class);
+        if (maxEphemeralSize != null) {
+            queue.setEphemeralMaxSize(maxEphemeralSize.intValue());
+        }
+
+        String streamName = spec.getField(SPEC_FIELD_STREAM_NAME);
+        if (!StringUtils.isBlank(streamName)) {
+            queue.setRedisStreamName(streamName);
+        }
+        String consumerGroup = spec.getField(SPEC_FIELD_CONSUMER_GROUP);
+        if (!StringUtils.isBlank(consumerGroup)) {
+            queue.setConsumerGroup(consumerGroup);
+        }
+        String consumerName = spec.getField(SPEC_FIELD_CONSUMER_NAME);
+        if (!StringUtils.isBlank(consumerName)) {
+            queue.setConsumerName(consumerName);
+        }
+
+        Integer maxBlockingTakes = spec.getField(SPEC_FIELD_MAX_BLOCKING_TAKES, Integer.class);
+        if (maxBlockingTakes != null) {
+            queue.setMaxBlockingTakes(maxBlockingTakes.intValue());
+        }
+
+        String redisHostAndPort = spec.getField(SPEC_FIELD_HOST_AND_PORT);
+        if (!StringUtils.isBlank(redisHostAndPort)) {
+            queue.setRedisHostAndPort(redisHostAndPort);
+        }
+
+        queue.init();
+    }
+
+}
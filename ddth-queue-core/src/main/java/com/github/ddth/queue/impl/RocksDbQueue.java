@@ -2,9 +2,11 @@ package com.github.ddth.queue.impl;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.List;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -363,6 +365,134 @@ public abstract class RocksDbQueue extends AbstractEphemeralSupportQueue {
         }
     }
 
+    /**
+     * {@inheritDoc}
+     * 
+     * <p>
+     * All messages are written to queue storage in one single
+     * {@link WriteBatch}.
+     * </p>
+     * 
+     * @since 0.5.2
+     */
+    @Override
+    public int queueAll(Collection<? extends IQueueMessage> msgs) {
+        if (msgs == null || msgs.size() == 0) {
+            return 0;
+        }
+        List<byte[]> values = new ArrayList<>(msgs.size());
+        Date now = new Date();
+        for (IQueueMessage _msg : msgs) {
+            IQueueMessage msg = _msg.clone();
+            msg.qNumRequeues(0).qOriginalTimestamp(now).qTimestamp(now);
+            values.add(serialize(msg));
+        }
+        lockPut.lock();
+        try {
+            try {
+                for (byte[] value : values) {
+                    byte[] key = QueueUtils.IDGEN.generateId128Hex().toLowerCase()
+                            .getBytes(QueueUtils.UTF8);
+                    batchPutToQueue.put(cfQueue, key, value);
+                }
+                rocksDbWrapper.write(writeOptions, batchPutToQueue);
+            } finally {
+                batchPutToQueue.clear();
+            }
+            return values.size();
+        } finally {
+            lockPut.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * <p>
+     * All taken messages are removed from queue storage (and written to
+     * ephemeral storage) in one single {@link WriteBatch}.
+     * </p>
+     * 
+     * @throws QueueException.EphemeralIsFull
+     *             if the ephemeral storage is full
+     * @since 0.5.2
+     */
+    @Override
+    public Collection<IQueueMessage> takeBatch(int maxMessages)
+            throws QueueException.EphemeralIsFull {
+        if (!isEphemeralDisabled()) {
+            int ephemeralMaxSize = getEphemeralMaxSize();
+            if (ephemeralMaxSize > 0) {
+                int remaining = ephemeralMaxSize - ephemeralSize();
+                if (remaining <= 0) {
+                    throw new QueueException.EphemeralIsFull(ephemeralMaxSize);
+                }
+                maxMessages = Math.min(maxMessages, remaining);
+            }
+        }
+        List<IQueueMessage> result = new ArrayList<>(Math.max(0, Math.min(maxMessages, 1024)));
+        if (maxMessages < 1) {
+            return result;
+        }
+        lockTake.lock();
+        try {
+            if (lastFetchedId == null) {
+                itQueue.seekToFirst();
+            } else {
+                itQueue.seek(lastFetchedId);
+            }
+            try {
+                while (result.size() < maxMessages && itQueue.isValid()) {
+                    lastFetchedId = itQueue.key();
+                    byte[] value = itQueue.value();
+                    IQueueMessage msg = deserialize(value);
+                    batchTake.remove(cfQueue, lastFetchedId);
+                    if (msg != null) {
+                        if (!isEphemeralDisabled()) {
+                            byte[] _key = msg.qId().toString().getBytes(QueueUtils.UTF8);
+                            batchTake.put(cfEphemeral, _key, value);
+                        }
+                        result.add(msg);
+                    }
+                    itQueue.next();
+                }
+                if (lastFetchedId != null && batchTake.count() > 0) {
+                    batchTake.put(cfMetadata, keyLastFetchedId, lastFetchedId);
+                    rocksDbWrapper.write(writeOptions, batchTake);
+                }
+            } finally {
+                batchTake.clear();
+            }
+            return result;
+        } finally {
+            lockTake.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * <p>
+     * All messages are removed from ephemeral storage in one single
+     * {@link WriteBatch}.
+     * </p>
+     * 
+     * @since 0.5.2
+     */
+    @Override
+    public void finishAll(Collection<? extends IQueueMessage> msgs) {
+        if (isEphemeralDisabled() || msgs == null || msgs.size() == 0) {
+            return;
+        }
+        try (WriteBatch batchFinish = new WriteBatch()) {
+            for (IQueueMessage msg : msgs) {
+                byte[] key = msg.qId().toString().getBytes(QueueUtils.UTF8);
+                batchFinish.remove(cfEphemeral, key);
+            }
+            rocksDbWrapper.write(writeOptions, batchFinish);
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
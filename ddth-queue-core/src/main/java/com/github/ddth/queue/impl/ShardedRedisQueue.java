@@ -0,0 +1,550 @@
+package com.github.ddth.queue.impl;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.github.ddth.queue.IPartitionSupport;
+import com.github.ddth.queue.IQueue;
+import com.github.ddth.queue.IQueueMessage;
+import com.github.ddth.queue.utils.QueueException;
+import com.github.ddth.queue.utils.QueueUtils;
+
+/**
+ * Sharded Redis implementation of {@link IQueue}: one logical queue spread
+ * across independent (standalone) Redis servers.
+ * 
+ * <p>
+ * Implementation:
+ * <ul>
+ * <li>Each Redis server (see {@link #setRedisHostsAndPorts(String)}) holds
+ * one shard, which has the same structure as {@link RedisQueue}.</li>
+ * <li>Producers route messages to shards by consistent hashing of
+ * {@link IPartitionSupport#qPartitionKey()} (or of queue_id if the message
+ * has no partition key). {@link #finish(IQueueMessage)}, requeue and orphan
+ * handling of a message go to the same shard.</li>
+ * <li>Consumers take messages from shards in round-robin manner. A shard
+ * found empty is skipped for {@link #getEmptyShardBackoffMs()} milliseconds,
+ * or until this queue instance puts a message into it.</li>
+ * </ul>
+ * </p>
+ * 
+ * <p>
+ * Notes:
+ * <ul>
+ * <li>Messages are FIFO per shard, not across shards.</li>
+ * <li>If ephemeral storage's max size is bound, it is split evenly (rounded up)
+ * across shards.</li>
+ * <li>All producers and consumers of a queue must use the same list of Redis
+ * servers. Adding or removing a server re-routes only the keys that hash to
+ * it, but messages already stored on a server stay there.</li>
+ * </ul>
+ * </p>
+ * 
+ * @author Thanh Nguyen <btnguyen2k@gmail.com>
+ * @since 0.5.2
+ */
+public abstract class ShardedRedisQueue extends AbstractEphemeralSupportQueue {
+
+    private String redisHostsAndPorts = "localhost:6379";
+    private String redisHashName = "queue_h";
+    private String redisListName = "queue_l";
+    private String redisSortedSetName = "queue_s";
+    private int virtualNodesPerShard = 160;
+    private long emptyShardBackoffMs = 100;
+
+    private RedisQueue[] shards;
+    private TreeMap<Integer, Integer> ring = new TreeMap<>();
+    private AtomicLongArray emptyUntil;
+    private AtomicInteger takeCounter = new AtomicInteger();
+
+    /**
+     * Redis servers, format {@code host1:port1,host2:port2,...}.
+     * 
+     * @return
+     */
+    public String getRedisHostsAndPorts() {
+        return redisHostsAndPorts;
+    }
+
+    /**
+     * Sets Redis servers, format {@code host1:port1,host2:port2,...}.
+     * 
+     * @param redisHostsAndPorts
+     * @return
+     */
+    public ShardedRedisQueue setRedisHostsAndPorts(String redisHostsAndPorts) {
+        this.redisHostsAndPorts = redisHostsAndPorts;
+        return this;
+    }
+
+    public String getRedisHashName() {
+        return redisHashName;
+    }
+
+    public ShardedRedisQueue setRedisHashName(String redisHashName) {
+        this.redisHashName = redisHashName;
+        return this;
+    }
+
+    public String getRedisListName() {
+        return redisListName;
+    }
+
+    public ShardedRedisQueue setRedisListName(String redisListName) {
+        this.redisListName = redisListName;
+        return this;
+    }
+
+    public String getRedisSortedSetName() {
+        return redisSortedSetName;
+    }
+
+    public ShardedRedisQueue setRedisSortedSetName(String redisSortedSetName) {
+        this.redisSortedSetName = redisSortedSetName;
+        return this;
+    }
+
+    /**
+     * Number of points each shard occupies on the consistent-hash ring.
+     * 
+     * @return
+     */
+    public int getVirtualNodesPerShard() {
+        return virtualNodesPerShard;
+    }
+
+    /**
+     * Sets number of points each shard occupies on the consistent-hash ring
+     * (default {@code 160}).
+     * 
+     * @param virtualNodesPerShard
+     * @return
+     */
+    public ShardedRedisQueue setVirtualNodesPerShard(int virtualNodesPerShard) {
+        this.virtualNodesPerShard = virtualNodesPerShard;
+        return this;
+    }
+
+    /**
+     * How long (in milliseconds) a shard found empty is skipped by consumers.
+     * 
+     * @return
+     */
+    public long getEmptyShardBackoffMs() {
+        return emptyShardBackoffMs;
+    }
+
+    /**
+     * Sets how long (in milliseconds) a shard found empty is skipped by
+     * consumers (default {@code 100}, {@code 0} to never skip).
+     * 
+     * @param emptyShardBackoffMs
+     * @return
+     */
+    public ShardedRedisQueue setEmptyShardBackoffMs(long emptyShardBackoffMs) {
+        this.emptyShardBackoffMs = emptyShardBackoffMs;
+        return this;
+    }
+
+    /**
+     * Number of shards.
+     * 
+     * @return
+     */
+    public int getNumShards() {
+        return shards != null ? shards.length : 0;
+    }
+
+    /**
+     * One shard: a {@link RedisQueue} that (de)serializes messages via the
+     * owning {@link ShardedRedisQueue}.
+     */
+    private class Shard extends RedisQueue {
+        @Override
+        protected byte[] serialize(IQueueMessage msg) {
+            return ShardedRedisQueue.this.serialize(msg);
+        }
+
+        @Override
+        protected IQueueMessage deserialize(byte[] msgData) {
+            return ShardedRedisQueue.this.deserialize(msgData);
+        }
+    }
+
+    /**
+     * Init method.
+     * 
+     * @return
+     */
+    public ShardedRedisQueue init() {
+        String[] hostsAndPorts = StringUtils.split(redisHostsAndPorts, ", ");
+        if (hostsAndPorts == null || hostsAndPorts.length == 0) {
+            throw new IllegalArgumentException("No Redis server specified!");
+        }
+        if (virtualNodesPerShard < 1) {
+            throw new IllegalArgumentException("Number of virtual nodes must be positive!");
+        }
+        int ephemeralMaxSize = getEphemeralMaxSize();
+        int shardEphemeralMaxSize = ephemeralMaxSize > 0
+                ? (ephemeralMaxSize + hostsAndPorts.length - 1) / hostsAndPorts.length : 0;
+        shards = new RedisQueue[hostsAndPorts.length];
+        for (int i = 0; i < hostsAndPorts.length; i++) {
+            Shard shard = new Shard();
+            shard.setRedisHostAndPort(hostsAndPorts[i]).setRedisHashName(redisHashName)
+                    .setRedisListName(redisListName).setRedisSortedSetName(redisSortedSetName)
+                    .setEphemeralDisabled(isEphemeralDisabled())
+                    .setEphemeralMaxSize(shardEphemeralMaxSize);
+            shards[i] = shard.init();
+            for (int v = 0; v < virtualNodesPerShard; v++) {
+                ring.put(hash(hostsAndPorts[i] + "#" + v), i);
+            }
+        }
+        emptyUntil = new AtomicLongArray(shards.length);
+        return this;
+    }
+
+    /**
+     * Destroy method.
+     */
+    public void destroy() {
+        if (shards != null) {
+            for (RedisQueue shard : shards) {
+                try {
+                    shard.destroy();
+                } catch (Exception e) {
+                }
+            }
+            shards = null;
+        }
+        ring.clear();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() {
+        destroy();
+    }
+
+    /**
+     * Serializes a queue message to store in Redis.
+     * 
+     * @param msg
+     * @return
+     */
+    protected abstract byte[] serialize(IQueueMessage msg);
+
+    /**
+     * Deserilizes a queue message.
+     * 
+     * @param msgData
+     * @return
+     */
+    protected abstract IQueueMessage deserialize(byte[] msgData);
+
+    private static int hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(QueueUtils.UTF8));
+            return ((digest[3] & 0xFF) << 24) | ((digest[2] & 0xFF) << 16)
+                    | ((digest[1] & 0xFF) << 8) | (digest[0] & 0xFF);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Calculates the shard a message belongs to, by consistent hashing of
+     * message's partition key (or queue_id if message has no partition key).
+     * 
+     * @param msg
+     * @return
+     */
+    protected int shardOf(IQueueMessage msg) {
+        if (shards.length == 1) {
+            return 0;
+        }
+        String key = msg instanceof IPartitionSupport ? ((IPartitionSupport) msg).qPartitionKey()
+                : null;
+        if (key == null) {
+            key = msg.qId().toString();
+        }
+        SortedMap<Integer, Integer> tail = ring.tailMap(hash(key));
+        return tail.isEmpty() ? ring.firstEntry().getValue() : tail.get(tail.firstKey());
+    }
+
+    /**
+     * Groups messages by shards.
+     * 
+     * @param msgs
+     * @return
+     */
+    protected Map<Integer, List<IQueueMessage>> groupByShard(
+            Collection<? extends IQueueMessage> msgs) {
+        Map<Integer, List<IQueueMessage>> result = new LinkedHashMap<>();
+        for (IQueueMessage msg : msgs) {
+            Integer shard = shardOf(msg);
+            List<IQueueMessage> list = result.get(shard);
+            if (list == null) {
+                list = new ArrayList<>();
+                result.put(shard, list);
+            }
+            list.add(msg);
+        }
+        return result;
+    }
+
+    private void markNotEmpty(int shard) {
+        emptyUntil.set(shard, 0);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean queue(IQueueMessage msg) {
+        int shard = shardOf(msg);
+        boolean result = shards[shard].queue(msg);
+        markNotEmpty(shard);
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean requeue(IQueueMessage msg) {
+        int shard = shardOf(msg);
+        boolean result = shards[shard].requeue(msg);
+        markNotEmpty(shard);
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean requeueSilent(IQueueMessage msg) {
+        int shard = shardOf(msg);
+        boolean result = shards[shard].requeueSilent(msg);
+        markNotEmpty(shard);
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void finish(IQueueMessage msg) {
+        shards[shardOf(msg)].finish(msg);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @throws QueueException.EphemeralIsFull
+     *             if the ephemeral storage is full
+     */
+    @Override
+    public IQueueMessage take() throws QueueException.EphemeralIsFull {
+        Collection<IQueueMessage> result = takeBatch(1);
+        return result.isEmpty() ? null : result.iterator().next();
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * <p>
+     * Messages are stored by one batch call per shard.
+     * </p>
+     */
+    @Override
+    public int queueAll(Collection<? extends IQueueMessage> msgs) {
+        if (msgs == null || msgs.size() == 0) {
+            return 0;
+        }
+        int result = 0;
+        for (Map.Entry<Integer, List<IQueueMessage>> entry : groupByShard(msgs).entrySet()) {
+            int shard = entry.getKey().intValue();
+            result += shards[shard].queueAll(entry.getValue());
+            markNotEmpty(shard);
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * <p>
+     * Messages are removed by one batch call per shard.
+     * </p>
+     */
+    @Override
+    public void finishAll(Collection<? extends IQueueMessage> msgs) {
+        if (msgs != null && msgs.size() > 0) {
+            for (Map.Entry<Integer, List<IQueueMessage>> entry : groupByShard(msgs).entrySet()) {
+                shards[entry.getKey().intValue()].finishAll(entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * <p>
+     * Shards are visited in round-robin manner, starting from the shard next
+     * to the one the last call started from, until enough messages have been
+     * taken or all shards have been visited. Shards recently found empty are
+     * skipped.
+     * </p>
+     * 
+     * @throws QueueException.EphemeralIsFull
+     *             if no message could be taken because ephemeral storage is
+     *             full
+     */
+    @Override
+    public Collection<IQueueMessage> takeBatch(int maxMessages)
+            throws QueueException.EphemeralIsFull {
+        List<IQueueMessage> result = new ArrayList<>();
+        if (maxMessages < 1) {
+            return result;
+        }
+        boolean ephemeralIsFull = false;
+        int numShards = shards.length;
+        int start = takeCounter.getAndIncrement() & Integer.MAX_VALUE;
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < numShards && result.size() < maxMessages; i++) {
+            int shard = (start + i) % numShards;
+            if (emptyUntil.get(shard) > now) {
+                continue;
+            }
+            try {
+                int wanted = maxMessages - result.size();
+                Collection<IQueueMessage> msgs = wanted == 1
+                        ? singleton(shards[shard].take())
+                        : shards[shard].takeBatch(wanted);
+                if (msgs.isEmpty()) {
+                    if (emptyShardBackoffMs > 0) {
+                        emptyUntil.set(shard, now + emptyShardBackoffMs);
+                    }
+                } else {
+                    result.addAll(msgs);
+                }
+            } catch (QueueException.EphemeralIsFull e) {
+                ephemeralIsFull = true;
+            }
+        }
+        if (result.isEmpty() && ephemeralIsFull) {
+            throw new QueueException.EphemeralIsFull(getEphemeralMaxSize());
+        }
+        return result;
+    }
+
+    private static Collection<IQueueMessage> singleton(IQueueMessage msg) {
+        List<IQueueMessage> result = new ArrayList<>(1);
+        if (msg != null) {
+            result.add(msg);
+        }
+        return result;
+    }
+
+    /**
+     * Default max number of orphan messages returned by
+     * {@link #getOrphanMessages(long)}.
+     */
+    public final static int DEFAULT_ORPHAN_PAGE_SIZE = RedisQueue.DEFAULT_ORPHAN_PAGE_SIZE;
+
+    /**
+     * {@inheritDoc}
+     * 
+     * <p>
+     * This method returns up to {@link #DEFAULT_ORPHAN_PAGE_SIZE} orphan
+     * messages, collected from shards in order.
+     * </p>
+     */
+    @Override
+    public Collection<IQueueMessage> getOrphanMessages(long thresholdTimestampMs) {
+        if (isEphemeralDisabled()) {
+            return null;
+        }
+        Collection<IQueueMessage> result = new HashSet<>();
+        for (int shard = 0; shard < shards.length
+                && result.size() < DEFAULT_ORPHAN_PAGE_SIZE; shard++) {
+            RedisQueue.OrphanMessagesPage page = shards[shard]
+                    .getOrphanMessages(thresholdTimestampMs, null,
+                            DEFAULT_ORPHAN_PAGE_SIZE - result.size());
+            result.addAll(page.getMessages());
+        }
+        return result;
+    }
+
+    /**
+     * Moves all orphan messages from ephemeral storage back to queue storage,
+     * see {@link RedisQueue#moveAllOrphansToQueueStorage(long)}.
+     * 
+     * @param thresholdTimestampMs
+     *            see {@link #getOrphanMessages(long)}
+     * @return number of messages that have been moved
+     */
+    public long moveAllOrphansToQueueStorage(long thresholdTimestampMs) {
+        long total = 0;
+        for (int shard = 0; shard < shards.length; shard++) {
+            long numMoved = shards[shard].moveAllOrphansToQueueStorage(thresholdTimestampMs);
+            if (numMoved > 0) {
+                markNotEmpty(shard);
+            }
+            total += numMoved;
+        }
+        return total;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean moveFromEphemeralToQueueStorage(IQueueMessage msg) {
+        int shard = shardOf(msg);
+        boolean result = shards[shard].moveFromEphemeralToQueueStorage(msg);
+        markNotEmpty(shard);
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int queueSize() {
+        long result = 0;
+        for (RedisQueue shard : shards) {
+            result += shard.queueSize();
+        }
+        return (int) result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int ephemeralSize() {
+        if (isEphemeralDisabled()) {
+            return 0;
+        }
+        long result = 0;
+        for (RedisQueue shard : shards) {
+            result += shard.ephemeralSize();
+        }
+        return (int) result;
+    }
+}
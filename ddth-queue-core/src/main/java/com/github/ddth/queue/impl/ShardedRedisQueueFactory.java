@@ -0,0 +1,70 @@
+package com.github.ddth.queue.impl;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.github.ddth.queue.QueueSpec;
+
+/**
+ * Factory to create {@link ShardedRedisQueue} instances.
+ * 
+ * @author Thanh Nguyen <btnguyen2k@gmail.com>
+ * @since 0.5.2
+ */
+public abstract class ShardedRedisQueueFactory<T extends ShardedRedisQueue>
+        extends AbstractQueueFactory<T> {
+
+    /**
+     * Redis servers, one shard per server, format
+     * {@code host1:port1,host2:port2,...}.
+     */
+    public final static String SPEC_FIELD_HOSTS_AND_PORTS = "hosts_and_ports";
+    public final static String SPEC_FIELD_HASH_NAME = RedisQueueFactory.SPEC_FIELD_HASH_NAME;
+    public final static String SPEC_FIELD_LIST_NAME = RedisQueueFactory.SPEC_FIELD_LIST_NAME;
+    public final static String SPEC_FIELD_SORTED_SET_NAME =
+            RedisQueueFactory.SPEC_FIELD_SORTED_SET_NAME;
+    public final static String SPEC_FIELD_VIRTUAL_NODES = "virtual_nodes";
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void initQueue(T queue, QueueSpec spec) {
+        Boolean ephemeralDisabled = spec.getField(QueueSpec.FIELD_EPHEMERAL_DISABLED,
+                Boolean.class);
+        if (ephemeralDisabled != null) {
+            queue.setEphemeralDisabled(ephemeralDisabled.booleanValue());
+        }
+        Integer maxEphemeralSize = spec.getField(QueueSpec.FIELD_EPHEMERAL_MAX_SIZE, Integer.class);
+        if (maxEphemeralSize != null) {
+            queue.setEphemeralMaxSize(maxEphemeralSize.intValue());
+        }
+
+        String redisHostsAndPorts = spec.getField(SPEC_FIELD_HOSTS_AND_PORTS);
+        if (!StringUtils.isBlank(redisHostsAndPorts)) {
+            queue.setRedisHostsAndPorts(redisHostsAndPorts);
+        }
+
+        String redisHashName = spec.getField(SPEC_FIELD_HASH_NAME);
+        String redisListName = spec.getField(SPEC_FIELD_LIST_NAME);
+        String redisSortedSetName = spec.getField(SPEC_FIELD_SORTED_SET_NAME);
+        if (!StringUtils.isBlank(redisHashName) && !StringUtils.isBlank(redisListName)
+                && !StringUtils.isBlank(redisSortedSetName)) {
+            queue.setRedisHashName(redisHashName);
+            queue.setRedisListName(redisListName);
+            queue.setRedisSortedSetName(redisSortedSetName);
+        } else if (!StringUtils.isBlank(redisHashName) || !StringUtils.isBlank(redisListName)
+                || !StringUtils.isBlank(redisSortedSetName)) {
+            throw new IllegalArgumentException("Either supply all parameters ["
+                    + SPEC_FIELD_HASH_NAME + "], [" + SPEC_FIELD_LIST_NAME + "] and ["
+                    + SPEC_FIELD_SORTED_SET_NAME + "] or none at all!");
+        }
+
+        Integer virtualNodes = spec.getField(SPEC_FIELD_VIRTUAL_NODES, Integer.class);
+        if (virtualNodes != null) {
+            queue.setVirtualNodesPerShard(virtualNodes.intValue());
+        }
+
+        queue.init();
+    }
+
+}
@@ -2,6 +2,7 @@ package com.github.ddth.queue.impl.base;
 
 import com.github.ddth.queue.IQueueMessage;
 import com.github.ddth.queue.impl.KafkaQueue;
+import com.github.ddth.queue.impl.kafka.KafkaRawPayloadCodec;
 import com.github.ddth.queue.utils.QueueException;
 
 /**
@@ -15,6 +16,35 @@ import com.github.ddth.queue.utils.QueueException;
 public abstract class BaseUniversalKafkaQueue<T extends BaseUniversalQueueMessage>
         extends KafkaQueue {
 
+    private boolean rawPayload = false;
+
+    /**
+     * Are messages written in raw-payload format (see
+     * {@link KafkaRawPayloadCodec})? Default {@code false} (JSON format, see
+     * {@link BaseUniversalQueueMessage#toBytes()}).
+     * 
+     * @return
+     * @since 0.5.2
+     */
+    public boolean isRawPayload() {
+        return rawPayload;
+    }
+
+    /**
+     * Writes messages in raw-payload format (see {@link KafkaRawPayloadCodec}):
+     * message's content is sent as-is instead of Base64-encoded inside a JSON
+     * document. Messages are read in both formats regardless of this setting,
+     * hence producers can be switched one by one.
+     * 
+     * @param rawPayload
+     * @return
+     * @since 0.5.2
+     */
+    public BaseUniversalKafkaQueue<T> setRawPayload(boolean rawPayload) {
+        this.rawPayload = rawPayload;
+        return this;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -30,7 +60,7 @@ public abstract class BaseUniversalKafkaQueue<T extends BaseUniversalQueueMessag
 
         BaseUniversalQueueMessage msg = (BaseUniversalQueueMessage) _msg;
         try {
-            return msg.toBytes();
+            return rawPayload ? KafkaRawPayloadCodec.encode(msg) : msg.toBytes();
         } catch (Exception e) {
             throw new QueueException.CannotSerializeQueueMessage(e);
         }
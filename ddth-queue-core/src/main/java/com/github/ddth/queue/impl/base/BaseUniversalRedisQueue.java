@@ -1,5 +1,7 @@
 package com.github.ddth.queue.impl.base;
 
+import java.util.concurrent.TimeUnit;
+
 import com.github.ddth.queue.IQueueMessage;
 import com.github.ddth.queue.impl.RedisQueue;
 import com.github.ddth.queue.utils.QueueException;
@@ -44,4 +46,15 @@ public abstract class BaseUniversalRedisQueue<T extends BaseUniversalQueueMessag
     public T take() {
         return (T) super.take();
     }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @since 0.5.2
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public T take(long timeout, TimeUnit unit) {
+        return (T) super.take(timeout, unit);
+    }
 }
@@ -0,0 +1,184 @@
+package com.github.ddth.queue.impl.kafka;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.kafka.common.utils.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.ddth.queue.utils.QueueUtils;
+
+/**
+ * Spreads messages of hot partition keys over several partitions.
+ * 
+ * <p>
+ * Partition keys are counted over time windows of {@link #getWindowMs()}
+ * milliseconds. A key accounting for at least {@link #getHotKeyRatio()} of a
+ * window's messages (and at least {@link #getHotKeyMinCount()} messages) is
+ * hot during the next window: its messages are spread round-robin over
+ * {@link #getSplitPartitions()} consecutive partitions, starting at the
+ * partition Kafka producer would choose for the key. Other keyed messages go
+ * to that partition, as usual. Messages without partition key are handled as
+ * by {@link StickyRandomPartitioningStrategy}.
+ * </p>
+ * 
+ * <p>
+ * Note: messages of a hot key are no longer in the same partition, hence are
+ * not processed in order.
+ * </p>
+ * 
+ * @author Thanh Nguyen <btnguyen2k@gmail.com>
+ * @since 0.5.2
+ */
+public class HotKeySplittingPartitioningStrategy extends StickyRandomPartitioningStrategy {
+
+    private final static Logger LOGGER = LoggerFactory
+            .getLogger(HotKeySplittingPartitioningStrategy.class);
+
+    private int splitPartitions = 4;
+    private double hotKeyRatio = 0.1;
+    private int hotKeyMinCount = 100;
+    private long windowMs = 1000;
+    private int maxTrackedKeys = 10000;
+
+    /* guarded by this */
+    private Map<String, Integer> windowCounts = new HashMap<>();
+    private int windowTotal = 0;
+    private long windowStart = System.currentTimeMillis();
+    private volatile Set<String> hotKeys = Collections.emptySet();
+    private final AtomicInteger roundRobin = new AtomicInteger();
+
+    /**
+     * Number of partitions a hot key is spread over (default {@code 4}).
+     * 
+     * @return
+     */
+    public int getSplitPartitions() {
+        return splitPartitions;
+    }
+
+    public HotKeySplittingPartitioningStrategy setSplitPartitions(int splitPartitions) {
+        this.splitPartitions = Math.max(1, splitPartitions);
+        return this;
+    }
+
+    /**
+     * Min share of a window's messages for a key to be hot (default
+     * {@code 0.1}).
+     * 
+     * @return
+     */
+    public double getHotKeyRatio() {
+        return hotKeyRatio;
+    }
+
+    public HotKeySplittingPartitioningStrategy setHotKeyRatio(double hotKeyRatio) {
+        this.hotKeyRatio = hotKeyRatio;
+        return this;
+    }
+
+    /**
+     * Min number of a window's messages for a key to be hot (default
+     * {@code 100}).
+     * 
+     * @return
+     */
+    public int getHotKeyMinCount() {
+        return hotKeyMinCount;
+    }
+
+    public HotKeySplittingPartitioningStrategy setHotKeyMinCount(int hotKeyMinCount) {
+        this.hotKeyMinCount = hotKeyMinCount;
+        return this;
+    }
+
+    /**
+     * Length of counting windows, in milliseconds (default {@code 1000}).
+     * 
+     * @return
+     */
+    public long getWindowMs() {
+        return windowMs;
+    }
+
+    public HotKeySplittingPartitioningStrategy setWindowMs(long windowMs) {
+        this.windowMs = windowMs;
+        return this;
+    }
+
+    /**
+     * Max number of distinct keys counted per window (default {@code 10000}),
+     * further keys of the window are not counted.
+     * 
+     * @return
+     */
+    public int getMaxTrackedKeys() {
+        return maxTrackedKeys;
+    }
+
+    public HotKeySplittingPartitioningStrategy setMaxTrackedKeys(int maxTrackedKeys) {
+        this.maxTrackedKeys = maxTrackedKeys;
+        return this;
+    }
+
+    /**
+     * Keys detected as hot in the last window.
+     * 
+     * @return
+     */
+    public Set<String> getHotKeys() {
+        return hotKeys;
+    }
+
+    private synchronized void count(String partitionKey) {
+        long now = System.currentTimeMillis();
+        if (now - windowStart >= windowMs) {
+            Set<String> newHotKeys = new HashSet<>();
+            for (Map.Entry<String, Integer> entry : windowCounts.entrySet()) {
+                int count = entry.getValue().intValue();
+                if (count >= hotKeyMinCount && count >= hotKeyRatio * windowTotal) {
+                    newHotKeys.add(entry.getKey());
+                }
+            }
+            if (!newHotKeys.equals(hotKeys) && LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Hot partition keys: " + newHotKeys);
+            }
+            hotKeys = newHotKeys.isEmpty() ? Collections.emptySet() : newHotKeys;
+            windowCounts = new HashMap<>();
+            windowTotal = 0;
+            windowStart = now;
+        }
+        windowTotal++;
+        Integer count = windowCounts.get(partitionKey);
+        if (count != null) {
+            windowCounts.put(partitionKey, count.intValue() + 1);
+        } else if (windowCounts.size() < maxTrackedKeys) {
+            windowCounts.put(partitionKey, 1);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Integer partition(String topic, String partitionKey, int numPartitions) {
+        if (partitionKey == null) {
+            return super.partition(topic, partitionKey, numPartitions);
+        }
+        count(partitionKey);
+        if (numPartitions <= 1 || !hotKeys.contains(partitionKey)) {
+            return null;
+        }
+        // same as Kafka producer's default partitioner
+        int basePartition = Utils.toPositive(Utils.murmur2(partitionKey.getBytes(QueueUtils.UTF8)))
+                % numPartitions;
+        int spread = Math.min(splitPartitions, numPartitions);
+        int offset = (roundRobin.getAndIncrement() & Integer.MAX_VALUE) % spread;
+        return (basePartition + offset) % numPartitions;
+    }
+}
@@ -0,0 +1,27 @@
+package com.github.ddth.queue.impl.kafka;
+
+import com.github.ddth.queue.IPartitionSupport;
+
+/**
+ * Chooses the partition a message is produced to.
+ * 
+ * @author Thanh Nguyen <btnguyen2k@gmail.com>
+ * @since 0.5.2
+ */
+public interface IKafkaPartitioningStrategy {
+
+    /**
+     * Chooses the partition of a message.
+     * 
+     * @param topic
+     * @param partitionKey
+     *            message's partition key (see
+     *            {@link IPartitionSupport#qPartitionKey()}), {@code null} if
+     *            the message has none
+     * @param numPartitions
+     *            number of partitions of the topic (greater than zero)
+     * @return partition number, or {@code null} to let Kafka producer choose
+     *         (by hashing record's key)
+     */
+    Integer partition(String topic, String partitionKey, int numPartitions);
+}
@@ -0,0 +1,362 @@
+package com.github.ddth.queue.impl.kafka;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+
+import com.github.ddth.queue.IQueueMessage;
+
+/**
+ * In-memory store of in-flight messages: messages that have been taken from a
+ * Kafka queue but not yet finished, along with their records and the time
+ * they were taken.
+ * 
+ * <p>
+ * Entries are indexed by message id; more than one entry may exist for the
+ * same id (e.g. a message queued twice), in which case they are removed in
+ * the order they were added.
+ * </p>
+ * 
+ * <p>
+ * Entries recovered from persistent storage (without Kafka record) are
+ * counted by {@link #size()} but not by {@link #numTaken()}: they are not
+ * holding any record of the current consumers. They keep the topic, partition
+ * and offset of their record, so that they can be dropped (see
+ * {@link #removeRecovered(Predicate)}) once the record's offset has been
+ * committed by whichever consumer owns the partition now.
+ * </p>
+ * 
+ * @author Thanh Nguyen <btnguyen2k@gmail.com>
+ * @since 0.5.2
+ */
+public class KafkaInFlightStore implements AutoCloseable {
+
+    /**
+     * An in-flight message.
+     * 
+     * @author Thanh Nguyen <btnguyen2k@gmail.com>
+     * @since 0.5.2
+     */
+    public static class Entry {
+        private final ConsumerRecord<String, byte[]> record;
+        private final String topic;
+        private final int partition;
+        private final long offset;
+        private final IQueueMessage message;
+        private final long takenTimestamp;
+
+        public Entry(ConsumerRecord<String, byte[]> record, IQueueMessage message,
+                long takenTimestamp) {
+            this.record = record;
+            this.topic = record.topic();
+            this.partition = record.partition();
+            this.offset = record.offset();
+            this.message = message;
+            this.takenTimestamp = takenTimestamp;
+        }
+
+        /**
+         * Creates an entry recovered from persistent storage, without Kafka
+         * record.
+         * 
+         * @param topic
+         * @param partition
+         * @param offset
+         * @param message
+         * @param takenTimestamp
+         */
+        public Entry(String topic, int partition, long offset, IQueueMessage message,
+                long takenTimestamp) {
+            this.record = null;
+            this.topic = topic;
+            this.partition = partition;
+            this.offset = offset;
+            this.message = message;
+            this.takenTimestamp = takenTimestamp;
+        }
+
+        /**
+         * The Kafka record the message was read from.
+         * 
+         * @return {@code null} if the entry has been recovered from persistent
+         *         storage (see {@link RocksDbKafkaInFlightStore})
+         */
+        public ConsumerRecord<String, byte[]> getRecord() {
+            return record;
+        }
+
+        /**
+         * Topic of the Kafka record the message was read from.
+         * 
+         * @return
+         */
+        public String getTopic() {
+            return topic;
+        }
+
+        /**
+         * Partition of the Kafka record the message was read from.
+         * 
+         * @return
+         */
+        public int getPartition() {
+            return partition;
+        }
+
+        /**
+         * Offset of the Kafka record the message was read from.
+         * 
+         * @return
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        public IQueueMessage getMessage() {
+            return message;
+        }
+
+        /**
+         * Time (epoch milliseconds) the message was taken.
+         * 
+         * @return
+         */
+        public long getTakenTimestamp() {
+            return takenTimestamp;
+        }
+    }
+
+    /* lists are copied on write, never modified once put to the map */
+    private final ConcurrentMap<Object, List<Entry>> entries = new ConcurrentHashMap<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicInteger numRecovered = new AtomicInteger();
+
+    /**
+     * Init method.
+     * 
+     * @return
+     */
+    public KafkaInFlightStore init() {
+        return this;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Puts an entry loaded from persistent storage, without persisting it
+     * again.
+     * 
+     * @param qId
+     * @param entry
+     */
+    protected void load(Object qId, Entry entry) {
+        entries.compute(qId, (k, v) -> {
+            List<Entry> list = v != null ? new ArrayList<>(v) : new ArrayList<>(1);
+            list.add(entry);
+            size.incrementAndGet();
+            if (entry.record == null) {
+                numRecovered.incrementAndGet();
+            }
+            return list;
+        });
+    }
+
+    /**
+     * Persists the first entry of a message id, called each time it changes.
+     * 
+     * @param qId
+     * @param entry
+     */
+    protected void persist(Object qId, Entry entry) {
+    }
+
+    /**
+     * Removes a message id from persistent storage, called when its last entry
+     * has been removed.
+     * 
+     * @param qId
+     */
+    protected void unpersist(Object qId) {
+    }
+
+    /**
+     * Adds a taken message.
+     * 
+     * <p>
+     * Entries recovered from persistent storage with the same message id are
+     * dropped: the message has been redelivered by Kafka.
+     * </p>
+     * 
+     * @param record
+     * @param msg
+     */
+    public void add(ConsumerRecord<String, byte[]> record, IQueueMessage msg) {
+        Entry entry = new Entry(record, msg, System.currentTimeMillis());
+        entries.compute(msg.qId(), (k, v) -> {
+            List<Entry> list = v != null ? new ArrayList<>(v) : new ArrayList<>(1);
+            int numEntries = list.size();
+            list.removeIf(e -> e.record == null);
+            size.addAndGet(list.size() - numEntries);
+            numRecovered.addAndGet(list.size() - numEntries);
+            list.add(entry);
+            size.incrementAndGet();
+            if (list.size() == 1) {
+                persist(k, entry);
+            }
+            return list;
+        });
+    }
+
+    /**
+     * Removes the first entry of a message id.
+     * 
+     * @param qId
+     * @return the removed entry, {@code null} if there is no entry for the id
+     */
+    public Entry remove(Object qId) {
+        List<Entry> removed = new ArrayList<>(1);
+        entries.computeIfPresent(qId, (k, v) -> {
+            List<Entry> list = new ArrayList<>(v);
+            Entry entry = list.remove(0);
+            removed.add(entry);
+            size.decrementAndGet();
+            if (entry.record == null) {
+                numRecovered.decrementAndGet();
+            }
+            if (list.isEmpty()) {
+                unpersist(k);
+                return null;
+            }
+            persist(k, list.get(0));
+            return list;
+        });
+        return removed.isEmpty() ? null : removed.get(0);
+    }
+
+    /**
+     * Is there any entry for a message id?
+     * 
+     * @param qId
+     * @return
+     */
+    public boolean contains(Object qId) {
+        return entries.containsKey(qId);
+    }
+
+    /**
+     * Number of entries.
+     * 
+     * @return
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * Number of entries taken from Kafka by the current consumers, i.e.
+     * excluding entries recovered from persistent storage.
+     * 
+     * @return
+     */
+    public int numTaken() {
+        return size.get() - numRecovered.get();
+    }
+
+    /**
+     * Number of entries recovered from persistent storage.
+     * 
+     * @return
+     */
+    public int numRecovered() {
+        return numRecovered.get();
+    }
+
+    /**
+     * Gets entries recovered from persistent storage.
+     * 
+     * @return
+     */
+    public List<Entry> getRecoveredEntries() {
+        List<Entry> result = new ArrayList<>();
+        if (numRecovered.get() > 0) {
+            for (List<Entry> list : entries.values()) {
+                for (Entry entry : list) {
+                    if (entry.record == null) {
+                        result.add(entry);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Removes entries recovered from persistent storage that match a filter.
+     * 
+     * @param filter
+     * @return number of removed entries
+     */
+    public int removeRecovered(Predicate<Entry> filter) {
+        int numRemoved = 0;
+        for (Entry entry : getRecoveredEntries()) {
+            if (!filter.test(entry)) {
+                continue;
+            }
+            boolean[] removed = { false };
+            entries.computeIfPresent(entry.message.qId(), (k, v) -> {
+                List<Entry> list = new ArrayList<>(v);
+                int index = list.indexOf(entry);
+                if (index < 0) {
+                    return v;
+                }
+                list.remove(index);
+                removed[0] = true;
+                size.decrementAndGet();
+                numRecovered.decrementAndGet();
+                if (list.isEmpty()) {
+                    unpersist(k);
+                    return null;
+                }
+                if (index == 0) {
+                    persist(k, list.get(0));
+                }
+                return list;
+            });
+            if (removed[0]) {
+                numRemoved++;
+            }
+        }
+        return numRemoved;
+    }
+
+    /**
+     * Gets entries taken before a timestamp, ordered by the time they were
+     * taken.
+     * 
+     * @param timestampMs
+     * @return
+     */
+    public List<Entry> getEntriesTakenBefore(long timestampMs) {
+        List<Entry> result = new ArrayList<>();
+        for (List<Entry> list : entries.values()) {
+            for (Entry entry : list) {
+                if (entry.takenTimestamp < timestampMs) {
+                    result.add(entry);
+                }
+            }
+        }
+        result.sort(Comparator.comparingLong(Entry::getTakenTimestamp));
+        return result;
+    }
+}
@@ -0,0 +1,155 @@
+package com.github.ddth.queue.impl.kafka;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+
+/**
+ * Tracks offsets of consumed records per partition and computes which
+ * offsets are safe to commit.
+ * 
+ * <p>
+ * A record is pending from the time it is polled until it is acknowledged via
+ * {@link #ack(ConsumerRecord)}. The committable offset of a partition is the
+ * lowest pending offset (or the offset following the last polled record if
+ * nothing is pending): all records before it have been acknowledged, so a
+ * restart never skips unfinished records.
+ * </p>
+ * 
+ * <p>
+ * Records are matched by identity: acknowledging a record that has been
+ * redelivered (e.g. after a rebalance) does not acknowledge the new copy.
+ * </p>
+ * 
+ * @author Thanh Nguyen <btnguyen2k@gmail.com>
+ * @since 0.5.2
+ */
+public class KafkaOffsetTracker {
+
+    private static class PartitionState {
+        final TreeMap<Long, ConsumerRecord<?, ?>> pending = new TreeMap<>();
+        long nextOffset = -1, committedOffset = -1;
+
+        long committableOffset() {
+            return pending.isEmpty() ? nextOffset : pending.firstKey();
+        }
+    }
+
+    private final Map<TopicPartition, PartitionState> partitions = new HashMap<>();
+    private int numPending = 0;
+
+    private static TopicPartition topicPartition(ConsumerRecord<?, ?> record) {
+        return new TopicPartition(record.topic(), record.partition());
+    }
+
+    /**
+     * Starts tracking a polled record.
+     * 
+     * @param record
+     */
+    public synchronized void track(ConsumerRecord<?, ?> record) {
+        TopicPartition tp = topicPartition(record);
+        PartitionState state = partitions.get(tp);
+        if (state == null) {
+            state = new PartitionState();
+            partitions.put(tp, state);
+        }
+        if (state.pending.put(record.offset(), record) == null) {
+            numPending++;
+        }
+        state.nextOffset = Math.max(state.nextOffset, record.offset() + 1);
+    }
+
+    /**
+     * Acknowledges a record: it has been processed (or will never be).
+     * 
+     * @param record
+     * @return {@code false} if the record is not being tracked (e.g. its
+     *         partition has been revoked)
+     */
+    public synchronized boolean ack(ConsumerRecord<?, ?> record) {
+        PartitionState state = partitions.get(topicPartition(record));
+        if (state != null && state.pending.remove(record.offset(), record)) {
+            numPending--;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Number of records polled but not yet acknowledged.
+     * 
+     * @return
+     */
+    public synchronized int numPending() {
+        return numPending;
+    }
+
+    /**
+     * Gets, for each tracked partition, the offset following the last polled
+     * record.
+     * 
+     * @return
+     */
+    public synchronized Map<TopicPartition, Long> consumedOffsets() {
+        Map<TopicPartition, Long> result = new HashMap<>();
+        for (Map.Entry<TopicPartition, PartitionState> entry : partitions.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().nextOffset);
+        }
+        return result;
+    }
+
+    /**
+     * Gets offsets that have advanced since the last call, and marks them as
+     * committed.
+     * 
+     * @return
+     */
+    public synchronized Map<TopicPartition, OffsetAndMetadata> committableOffsets() {
+        Map<TopicPartition, OffsetAndMetadata> result = new HashMap<>();
+        for (Map.Entry<TopicPartition, PartitionState> entry : partitions.entrySet()) {
+            PartitionState state = entry.getValue();
+            long offset = state.committableOffset();
+            if (offset > state.committedOffset) {
+                state.committedOffset = offset;
+                result.put(entry.getKey(), new OffsetAndMetadata(offset));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Called when committing offsets failed, so that they will be committed
+     * again by the next {@link #committableOffsets()} call.
+     * 
+     * @param offsets
+     */
+    public synchronized void commitFailed(Map<TopicPartition, OffsetAndMetadata> offsets) {
+        for (Map.Entry<TopicPartition, OffsetAndMetadata> entry : offsets.entrySet()) {
+            PartitionState state = partitions.get(entry.getKey());
+            if (state != null && state.committedOffset == entry.getValue().offset()) {
+                state.committedOffset = -1;
+            }
+        }
+    }
+
+    /**
+     * Stops tracking partitions (e.g. they have been revoked from this
+     * consumer).
+     * 
+     * @param tps
+     */
+    public synchronized void remove(Collection<TopicPartition> tps) {
+        for (TopicPartition tp : tps) {
+            PartitionState state = partitions.remove(tp);
+            if (state != null) {
+                numPending -= state.pending.size();
+            }
+        }
+    }
+}
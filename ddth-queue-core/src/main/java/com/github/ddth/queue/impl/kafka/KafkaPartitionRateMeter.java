@@ -0,0 +1,81 @@
+package com.github.ddth.queue.impl.kafka;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.kafka.common.TopicPartition;
+
+/**
+ * Counts messages per partition, and computes per-partition rates over time
+ * windows.
+ * 
+ * @author Thanh Nguyen <btnguyen2k@gmail.com>
+ * @since 0.5.2
+ */
+public class KafkaPartitionRateMeter {
+
+    private final long windowMs;
+    private final Map<TopicPartition, Long> totals = new HashMap<>();
+    private Map<TopicPartition, Long> windowCounts = new HashMap<>();
+    private Map<TopicPartition, Double> rates = Collections.emptyMap();
+    private long windowStart = System.currentTimeMillis();
+
+    /**
+     * @param windowMs
+     *            length of the windows rates are computed over, in
+     *            milliseconds
+     */
+    public KafkaPartitionRateMeter(long windowMs) {
+        this.windowMs = Math.max(1, windowMs);
+    }
+
+    public long getWindowMs() {
+        return windowMs;
+    }
+
+    private void roll(long now) {
+        long elapsed = now - windowStart;
+        if (elapsed < windowMs) {
+            return;
+        }
+        Map<TopicPartition, Double> newRates = new HashMap<>();
+        for (Map.Entry<TopicPartition, Long> entry : windowCounts.entrySet()) {
+            newRates.put(entry.getKey(), entry.getValue().longValue() * 1000.0 / elapsed);
+        }
+        rates = newRates;
+        windowCounts = new HashMap<>();
+        windowStart = now;
+    }
+
+    /**
+     * Counts one message.
+     * 
+     * @param tp
+     */
+    public synchronized void record(TopicPartition tp) {
+        roll(System.currentTimeMillis());
+        windowCounts.merge(tp, 1L, Long::sum);
+        totals.merge(tp, 1L, Long::sum);
+    }
+
+    /**
+     * Total number of messages per partition.
+     * 
+     * @return
+     */
+    public synchronized Map<TopicPartition, Long> getCounts() {
+        return new HashMap<>(totals);
+    }
+
+    /**
+     * Rates (messages per second) per partition over the last complete window.
+     * Partitions without messages in the last window are omitted.
+     * 
+     * @return
+     */
+    public synchronized Map<TopicPartition, Double> getRates() {
+        roll(System.currentTimeMillis());
+        return new HashMap<>(rates);
+    }
+}
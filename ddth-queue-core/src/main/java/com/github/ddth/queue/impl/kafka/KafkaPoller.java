@@ -0,0 +1,880 @@
+package com.github.ddth.queue.impl.kafka;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.consumer.OffsetCommitCallback;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.WakeupException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Polls records from Kafka in batches into a local buffer, which is drained by
+ * {@link #take()} and {@link #takeBatch(int)}.
+ * 
+ * <p>
+ * {@link KafkaConsumer} is not thread-safe: only one thread polls at a time.
+ * Polling is done either by the threads calling {@link #take()} (only when the
+ * local buffer is empty), or by a dedicated thread (see
+ * {@link #start(Collection, boolean)}) that keeps the local buffer filled up
+ * to {@link #getBufferCapacity()} records.
+ * </p>
+ * 
+ * <p>
+ * Backpressure (dedicated thread only): the local buffer is bounded by a
+ * count budget ({@link #getBufferCapacity()}) and an optional byte budget
+ * ({@link #getBufferMaxBytes()}). When either budget is used up, all assigned
+ * partitions are paused; they are resumed once the buffer has been drained
+ * below {@link #getBufferLowWatermarkRatio()} of both budgets. The consumer
+ * keeps polling while paused, so that it stays in the consumer group. Budgets
+ * are soft: records of the poll that fills the buffer up are still buffered.
+ * </p>
+ * 
+ * <p>
+ * Offset commits (if {@link #isCommitOffsets()}, consumer's
+ * {@code enable.auto.commit} should then be {@code false}): polled records are
+ * tracked by a {@link KafkaOffsetTracker} until acknowledged via
+ * {@link #ack(ConsumerRecord)}. Offsets are committed asynchronously, up to
+ * the lowest unacknowledged offset of each partition, every
+ * {@link #getCommitBatchSize()} acks or every {@link #getCommitIntervalMs()}
+ * milliseconds, whichever comes first.
+ * </p>
+ * 
+ * <p>
+ * Ordered mode (see {@link #setOrderedPartitions(boolean)}): at most one
+ * record per partition is handed out at a time, the next record of the
+ * partition is available only after the previous one has been acknowledged.
+ * A partition is paused while it has {@link #getPartitionBufferCapacity()}
+ * records or more in the local buffer, so that a slow partition does not fill
+ * the buffer up and block the others. Polling goes on as long as no buffered
+ * record can be handed out.
+ * </p>
+ * 
+ * <p>
+ * Delayed topics (see {@link #setTopicDelaysMs(Map)}): a record of a delayed
+ * topic is handed out only once its delay has elapsed since the record's
+ * timestamp. When a record that is not yet due is polled, its partition is
+ * paused and rewound to that record, and resumed when the record is due; other
+ * partitions keep being polled meanwhile.
+ * </p>
+ * 
+ * @author Thanh Nguyen <btnguyen2k@gmail.com>
+ * @since 0.5.2
+ */
+public class KafkaPoller {
+
+    private final static Logger LOGGER = LoggerFactory.getLogger(KafkaPoller.class);
+
+    private final KafkaConsumer<String, byte[]> consumer;
+    private final long pollTimeoutMs;
+    private final Queue<ConsumerRecord<String, byte[]>> buffer = new ConcurrentLinkedQueue<>();
+    private final Lock consumerLock = new ReentrantLock();
+    private int bufferCapacity = 500;
+    private long bufferMaxBytes = 0;
+    private double bufferLowWatermarkRatio = 0.5;
+    private final AtomicLong bufferBytes = new AtomicLong();
+    /* all assigned partitions are paused because the buffer is full, guarded by consumer lock */
+    private volatile boolean backpressurePaused = false;
+
+    private boolean commitOffsets = true;
+    private int commitBatchSize = 100;
+    private long commitIntervalMs = 1000;
+    private final KafkaOffsetTracker offsetTracker = new KafkaOffsetTracker();
+    private final AtomicInteger numAcksSinceCommit = new AtomicInteger();
+    private volatile long lastCommitTimestamp = System.currentTimeMillis();
+    private ScheduledExecutorService commitScheduler;
+
+    private boolean orderedPartitions = false;
+    private int partitionBufferCapacity = 100;
+    /* partitions that have a record being handed out, guarded by itself */
+    private final Map<TopicPartition, ConsumerRecord<String, byte[]>> busyPartitions =
+            new HashMap<>();
+    /* number of buffered records per partition (ordered mode only) */
+    private final Map<TopicPartition, AtomicInteger> partitionBufferSizes =
+            new ConcurrentHashMap<>();
+    /* partitions paused because they have too many buffered records, guarded by consumer lock */
+    private final Set<TopicPartition> fullPartitions = new HashSet<>();
+
+    private Map<String, Long> topicDelaysMs = Collections.emptyMap();
+    /* paused partitions of delayed topics and when to resume them, guarded by consumer lock */
+    private final Map<TopicPartition, Long> delayedPartitions = new HashMap<>();
+
+    private Runnable recordsListener;
+    private Thread pollerThread;
+    private volatile boolean running = false;
+
+    private final OffsetCommitCallback commitCallback = new OffsetCommitCallback() {
+        @Override
+        public void onComplete(Map<TopicPartition, OffsetAndMetadata> offsets,
+                Exception exception) {
+            if (exception != null) {
+                LOGGER.warn("Error while committing offsets: " + exception.getMessage());
+                offsetTracker.commitFailed(offsets);
+            }
+        }
+    };
+
+    private final ConsumerRebalanceListener rebalanceListener = new ConsumerRebalanceListener() {
+        @Override
+        public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
+            // called from within poll(): consumer lock is being held
+            if (commitOffsets) {
+                commitSync();
+                offsetTracker.remove(partitions);
+            }
+            // buffered records of revoked partitions will be consumed by the
+            // partitions' new owner
+            Set<TopicPartition> revoked = new HashSet<>(partitions);
+            delayedPartitions.keySet().removeAll(revoked);
+            fullPartitions.removeAll(revoked);
+            synchronized (busyPartitions) {
+                Iterator<ConsumerRecord<String, byte[]>> it = buffer.iterator();
+                while (it.hasNext()) {
+                    ConsumerRecord<String, byte[]> record = it.next();
+                    if (revoked.contains(topicPartition(record))) {
+                        it.remove();
+                        bufferBytes.addAndGet(-recordSize(record));
+                    }
+                }
+                busyPartitions.keySet().removeAll(revoked);
+                partitionBufferSizes.keySet().removeAll(revoked);
+            }
+        }
+
+        @Override
+        public void onPartitionsAssigned(Collection<TopicPartition> partitions) {
+            // called from within poll(): consumer lock is being held
+            if (backpressurePaused) {
+                consumer.pause(partitions);
+            }
+        }
+    };
+
+    private static TopicPartition topicPartition(ConsumerRecord<?, ?> record) {
+        return new TopicPartition(record.topic(), record.partition());
+    }
+
+    private static long recordSize(ConsumerRecord<?, ?> record) {
+        return Math.max(0, record.serializedKeySize())
+                + Math.max(0, record.serializedValueSize());
+    }
+
+    /*
+     * Accounts for a record about to be added to the local buffer.
+     */
+    private void addedToBuffer(ConsumerRecord<?, ?> record) {
+        bufferBytes.addAndGet(recordSize(record));
+        if (orderedPartitions) {
+            partitionBufferSizes.computeIfAbsent(topicPartition(record), k -> new AtomicInteger())
+                    .incrementAndGet();
+        }
+    }
+
+    /*
+     * Accounts for a record just removed from the local buffer.
+     */
+    private void removedFromBuffer(ConsumerRecord<?, ?> record) {
+        bufferBytes.addAndGet(-recordSize(record));
+        if (orderedPartitions) {
+            AtomicInteger size = partitionBufferSizes.get(topicPartition(record));
+            if (size != null) {
+                size.decrementAndGet();
+            }
+        }
+    }
+
+    private int partitionBufferSize(TopicPartition tp) {
+        AtomicInteger size = partitionBufferSizes.get(tp);
+        return size != null ? size.get() : 0;
+    }
+
+    /**
+     * @param consumer
+     * @param pollTimeoutMs
+     *            max time (in milliseconds) to wait for records in one poll
+     */
+    public KafkaPoller(KafkaConsumer<String, byte[]> consumer, long pollTimeoutMs) {
+        this.consumer = consumer;
+        this.pollTimeoutMs = pollTimeoutMs;
+    }
+
+    public long getPollTimeoutMs() {
+        return pollTimeoutMs;
+    }
+
+    /**
+     * Max number of records the dedicated polling thread keeps in the local
+     * buffer (default {@code 500}).
+     * 
+     * @return
+     */
+    public int getBufferCapacity() {
+        return bufferCapacity;
+    }
+
+    public KafkaPoller setBufferCapacity(int bufferCapacity) {
+        this.bufferCapacity = bufferCapacity;
+        return this;
+    }
+
+    /**
+     * Max total size (in bytes, keys and values) of records the dedicated
+     * polling thread keeps in the local buffer (default {@code 0}: no byte
+     * budget).
+     * 
+     * @return
+     */
+    public long getBufferMaxBytes() {
+        return bufferMaxBytes;
+    }
+
+    public KafkaPoller setBufferMaxBytes(long bufferMaxBytes) {
+        this.bufferMaxBytes = bufferMaxBytes;
+        return this;
+    }
+
+    /**
+     * Partitions paused because the local buffer is full are resumed when the
+     * buffer is at or below this ratio of its budgets (default {@code 0.5}).
+     * 
+     * @return
+     */
+    public double getBufferLowWatermarkRatio() {
+        return bufferLowWatermarkRatio;
+    }
+
+    public KafkaPoller setBufferLowWatermarkRatio(double bufferLowWatermarkRatio) {
+        this.bufferLowWatermarkRatio = Math.max(0, Math.min(1, bufferLowWatermarkRatio));
+        return this;
+    }
+
+    /**
+     * Track and commit offsets of acknowledged records (default {@code true})?
+     * 
+     * @return
+     */
+    public boolean isCommitOffsets() {
+        return commitOffsets;
+    }
+
+    /**
+     * Track and commit offsets of acknowledged records?
+     * 
+     * @param commitOffsets
+     * @return
+     */
+    public KafkaPoller setCommitOffsets(boolean commitOffsets) {
+        this.commitOffsets = commitOffsets;
+        return this;
+    }
+
+    /**
+     * Offsets are committed every this number of acks (default {@code 100}).
+     * 
+     * @return
+     */
+    public int getCommitBatchSize() {
+        return commitBatchSize;
+    }
+
+    public KafkaPoller setCommitBatchSize(int commitBatchSize) {
+        this.commitBatchSize = commitBatchSize;
+        return this;
+    }
+
+    /**
+     * Offsets are committed every this number of milliseconds (default
+     * {@code 1000}).
+     * 
+     * @return
+     */
+    public long getCommitIntervalMs() {
+        return commitIntervalMs;
+    }
+
+    public KafkaPoller setCommitIntervalMs(long commitIntervalMs) {
+        this.commitIntervalMs = commitIntervalMs;
+        return this;
+    }
+
+    /**
+     * Hand out at most one record per partition at a time (default
+     * {@code false})?
+     * 
+     * @return
+     */
+    public boolean isOrderedPartitions() {
+        return orderedPartitions;
+    }
+
+    public KafkaPoller setOrderedPartitions(boolean orderedPartitions) {
+        this.orderedPartitions = orderedPartitions;
+        return this;
+    }
+
+    /**
+     * In ordered mode, a partition is paused while it has this number of
+     * records or more in the local buffer (default {@code 100}).
+     * 
+     * @return
+     */
+    public int getPartitionBufferCapacity() {
+        return partitionBufferCapacity;
+    }
+
+    public KafkaPoller setPartitionBufferCapacity(int partitionBufferCapacity) {
+        this.partitionBufferCapacity = Math.max(1, partitionBufferCapacity);
+        return this;
+    }
+
+    /**
+     * Delays (in milliseconds) of delayed topics, indexed by topic name.
+     * 
+     * @return
+     */
+    public Map<String, Long> getTopicDelaysMs() {
+        return topicDelaysMs;
+    }
+
+    /**
+     * Records of a delayed topic are handed out only after the topic's delay
+     * has elapsed since the record's timestamp.
+     * 
+     * @param topicDelaysMs
+     *            delays (in milliseconds) indexed by topic name
+     * @return
+     */
+    public KafkaPoller setTopicDelaysMs(Map<String, Long> topicDelaysMs) {
+        this.topicDelaysMs = topicDelaysMs != null ? new HashMap<>(topicDelaysMs)
+                : Collections.emptyMap();
+        return this;
+    }
+
+    /**
+     * Listener called when new records are available (e.g. after a poll).
+     * 
+     * @param recordsListener
+     * @return
+     */
+    public KafkaPoller setRecordsListener(Runnable recordsListener) {
+        this.recordsListener = recordsListener;
+        return this;
+    }
+
+    /**
+     * Subscribes to topic(s), polling from the threads calling
+     * {@link #take()}.
+     * 
+     * @param topics
+     * @return
+     */
+    public KafkaPoller start(Collection<String> topics) {
+        return start(topics, false);
+    }
+
+    /**
+     * Subscribes to topic(s).
+     * 
+     * @param topics
+     * @param dedicatedThread
+     *            if {@code true}, records are polled by a dedicated thread,
+     *            otherwise by the threads calling {@link #take()}
+     * @return
+     */
+    public KafkaPoller start(Collection<String> topics, boolean dedicatedThread) {
+        consumer.subscribe(topics, rebalanceListener);
+        running = true;
+        if (dedicatedThread) {
+            pollerThread = new Thread("KafkaPoller-" + topics) {
+                public void run() {
+                    pollLoop();
+                }
+            };
+            pollerThread.setDaemon(true);
+            pollerThread.start();
+        } else if (commitOffsets && commitIntervalMs > 0) {
+            commitScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "KafkaPoller-commit-" + topics);
+                t.setDaemon(true);
+                return t;
+            });
+            commitScheduler.scheduleWithFixedDelay(() -> tryCommit(), commitIntervalMs,
+                    commitIntervalMs, TimeUnit.MILLISECONDS);
+        }
+        return this;
+    }
+
+    /**
+     * Number of records currently in the local buffer.
+     * 
+     * @return
+     */
+    public int bufferSize() {
+        return buffer.size();
+    }
+
+    /**
+     * Total size (in bytes, keys and values) of records currently in the local
+     * buffer.
+     * 
+     * @return
+     */
+    public long bufferBytes() {
+        return bufferBytes.get();
+    }
+
+    /**
+     * Are assigned partitions currently paused because the local buffer is
+     * full?
+     * 
+     * @return
+     */
+    public boolean isBackpressurePaused() {
+        return backpressurePaused;
+    }
+
+    /**
+     * Commits offsets asynchronously, if the consumer is not busy polling
+     * (offsets are also committed right before each poll).
+     */
+    private void tryCommit() {
+        if (consumerLock.tryLock()) {
+            try {
+                commitAsync();
+            } catch (Exception e) {
+                LOGGER.warn("Error while committing offsets: " + e.getMessage());
+            } finally {
+                consumerLock.unlock();
+            }
+        }
+    }
+
+    /*
+     * Must be called while holding the consumer lock.
+     */
+    private void commitAsync() {
+        if (commitOffsets) {
+            numAcksSinceCommit.set(0);
+            lastCommitTimestamp = System.currentTimeMillis();
+            Map<TopicPartition, OffsetAndMetadata> offsets = offsetTracker.committableOffsets();
+            if (!offsets.isEmpty()) {
+                consumer.commitAsync(offsets, commitCallback);
+            }
+        }
+    }
+
+    /*
+     * Must be called while holding the consumer lock.
+     */
+    private void commitSync() {
+        Map<TopicPartition, OffsetAndMetadata> offsets = offsetTracker.committableOffsets();
+        if (!offsets.isEmpty()) {
+            try {
+                try {
+                    consumer.commitSync(offsets);
+                } catch (WakeupException e) {
+                    // pending wakeup (poller is being closed), try once more
+                    consumer.commitSync(offsets);
+                }
+            } catch (Exception e) {
+                LOGGER.warn("Error while committing offsets: " + e.getMessage());
+                offsetTracker.commitFailed(offsets);
+            }
+        }
+    }
+
+    /*
+     * Must be called while holding the consumer lock.
+     */
+    private void pollOnce(long timeoutMs) {
+        resumeDuePartitions();
+        applyPartitionBufferCapacity();
+        ConsumerRecords<String, byte[]> records = consumer.poll(timeoutMs);
+        long now = System.currentTimeMillis();
+        boolean added = false;
+        for (ConsumerRecord<String, byte[]> record : records) {
+            if (!isDue(record, now)) {
+                continue;
+            }
+            if (commitOffsets) {
+                offsetTracker.track(record);
+            }
+            addedToBuffer(record);
+            buffer.add(record);
+            added = true;
+        }
+        if (added) {
+            notifyRecordsListener();
+        }
+    }
+
+    /*
+     * Must be called while holding the consumer lock. If the record is not
+     * due, its partition is paused and rewound to it (following records of
+     * the partition, if any, are discarded: they will be polled again).
+     */
+    private boolean isDue(ConsumerRecord<String, byte[]> record, long now) {
+        Long delayMs = topicDelaysMs.get(record.topic());
+        if (delayMs == null) {
+            return true;
+        }
+        TopicPartition tp = topicPartition(record);
+        if (delayedPartitions.containsKey(tp)) {
+            return false;
+        }
+        long dueTimestamp = record.timestamp() + delayMs.longValue();
+        if (dueTimestamp <= now) {
+            return true;
+        }
+        consumer.pause(Collections.singleton(tp));
+        consumer.seek(tp, record.offset());
+        delayedPartitions.put(tp, dueTimestamp);
+        return false;
+    }
+
+    /*
+     * Must be called while holding the consumer lock.
+     */
+    private void resumeDuePartitions() {
+        if (delayedPartitions.isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        List<TopicPartition> due = new ArrayList<>();
+        Iterator<Map.Entry<TopicPartition, Long>> it = delayedPartitions.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<TopicPartition, Long> entry = it.next();
+            if (entry.getValue().longValue() <= now) {
+                due.add(entry.getKey());
+                it.remove();
+            }
+        }
+        // partitions paused by backpressure are resumed all together later
+        due.removeAll(fullPartitions);
+        if (!due.isEmpty() && !backpressurePaused) {
+            consumer.resume(due);
+        }
+    }
+
+    /*
+     * Must be called while holding the consumer lock. In ordered mode, pauses
+     * partitions that have too many buffered records, resumes them (unless
+     * paused for another reason) once they have fewer.
+     */
+    private void applyPartitionBufferCapacity() {
+        if (!orderedPartitions) {
+            return;
+        }
+        List<TopicPartition> toPause = new ArrayList<>();
+        List<TopicPartition> toResume = new ArrayList<>();
+        for (TopicPartition tp : consumer.assignment()) {
+            boolean full = partitionBufferSize(tp) >= partitionBufferCapacity;
+            if (full && fullPartitions.add(tp)) {
+                toPause.add(tp);
+            } else if (!full && fullPartitions.remove(tp) && !backpressurePaused
+                    && !delayedPartitions.containsKey(tp)) {
+                toResume.add(tp);
+            }
+        }
+        if (!toPause.isEmpty()) {
+            consumer.pause(toPause);
+        }
+        if (!toResume.isEmpty()) {
+            consumer.resume(toResume);
+        }
+    }
+
+    private boolean isBufferFull() {
+        return buffer.size() >= bufferCapacity
+                || (bufferMaxBytes > 0 && bufferBytes.get() >= bufferMaxBytes);
+    }
+
+    private boolean isBufferBelowLowWatermark() {
+        return buffer.size() <= bufferCapacity * bufferLowWatermarkRatio
+                && (bufferMaxBytes <= 0
+                        || bufferBytes.get() <= bufferMaxBytes * bufferLowWatermarkRatio);
+    }
+
+    /*
+     * Must be called while holding the consumer lock. Pauses all assigned
+     * partitions when the buffer is full, resumes them (except for delayed
+     * ones) when the buffer is below the low watermark.
+     */
+    private void applyBackpressure() {
+        if (!backpressurePaused && isBufferFull()) {
+            consumer.pause(consumer.assignment());
+            backpressurePaused = true;
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Buffer is full (" + buffer.size() + " records, "
+                        + bufferBytes.get() + " bytes), partitions paused");
+            }
+        } else if (backpressurePaused && isBufferBelowLowWatermark()) {
+            Set<TopicPartition> partitions = new HashSet<>(consumer.assignment());
+            partitions.removeAll(delayedPartitions.keySet());
+            partitions.removeAll(fullPartitions);
+            consumer.resume(partitions);
+            backpressurePaused = false;
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Buffer is below low watermark (" + buffer.size() + " records, "
+                        + bufferBytes.get() + " bytes), partitions resumed");
+            }
+        }
+    }
+
+    private void notifyRecordsListener() {
+        Runnable listener = recordsListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Is there a buffered record that can be handed out?
+     * 
+     * @return
+     */
+    private boolean hasAvailableRecord() {
+        if (!orderedPartitions) {
+            return !buffer.isEmpty();
+        }
+        synchronized (busyPartitions) {
+            for (ConsumerRecord<String, byte[]> record : buffer) {
+                if (!busyPartitions.containsKey(topicPartition(record))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Polls a batch of records into the local buffer, if (still) no buffered
+     * record can be handed out.
+     */
+    private void fill() {
+        consumerLock.lock();
+        try {
+            if (running && !hasAvailableRecord()) {
+                commitAsync();
+                pollOnce(pollTimeoutMs);
+            }
+        } catch (WakeupException e) {
+            // poller is being closed
+        } finally {
+            consumerLock.unlock();
+        }
+    }
+
+    /**
+     * Polling loop of the dedicated thread.
+     */
+    private void pollLoop() {
+        // short polls so that offsets are committed timely
+        long timeoutMs = Math.min(pollTimeoutMs, 100);
+        while (running) {
+            boolean error = false;
+            consumerLock.lock();
+            try {
+                if (commitOffsets && (numAcksSinceCommit.get() >= commitBatchSize
+                        || lastCommitTimestamp + commitIntervalMs <= System.currentTimeMillis())) {
+                    commitAsync();
+                }
+                applyBackpressure();
+                // keep polling even if paused, to stay in the consumer group
+                pollOnce(timeoutMs);
+            } catch (WakeupException e) {
+                // poller is being closed
+            } catch (Exception e) {
+                LOGGER.warn("Error while polling records: " + e.getMessage(), e);
+                error = true;
+            } finally {
+                consumerLock.unlock();
+            }
+            if (error && running) {
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the next record that can be handed out from the local buffer.
+     * 
+     * @return
+     */
+    private ConsumerRecord<String, byte[]> pollBuffer() {
+        if (!orderedPartitions) {
+            ConsumerRecord<String, byte[]> record = buffer.poll();
+            if (record != null) {
+                removedFromBuffer(record);
+            }
+            return record;
+        }
+        synchronized (busyPartitions) {
+            Iterator<ConsumerRecord<String, byte[]>> it = buffer.iterator();
+            while (it.hasNext()) {
+                ConsumerRecord<String, byte[]> record = it.next();
+                TopicPartition tp = topicPartition(record);
+                if (!busyPartitions.containsKey(tp)) {
+                    it.remove();
+                    removedFromBuffer(record);
+                    busyPartitions.put(tp, record);
+                    return record;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Takes one record. If polling is not done by a dedicated thread, a new
+     * batch is polled from Kafka when no buffered record can be handed out.
+     * 
+     * @return {@code null} if no record is available
+     */
+    public ConsumerRecord<String, byte[]> take() {
+        ConsumerRecord<String, byte[]> record = pollBuffer();
+        if (record == null && pollerThread == null) {
+            fill();
+            record = pollBuffer();
+        }
+        return record;
+    }
+
+    /**
+     * Takes up to {@code maxRecords} records. If polling is not done by a
+     * dedicated thread, a new batch is polled from Kafka when no buffered
+     * record can be handed out.
+     * 
+     * @param maxRecords
+     * @return
+     */
+    public List<ConsumerRecord<String, byte[]>> takeBatch(int maxRecords) {
+        if (maxRecords <= 0) {
+            return Collections.emptyList();
+        }
+        List<ConsumerRecord<String, byte[]>> result = new ArrayList<>();
+        drainBuffer(result, maxRecords);
+        if (result.isEmpty() && pollerThread == null) {
+            fill();
+            drainBuffer(result, maxRecords);
+        }
+        return result;
+    }
+
+    private void drainBuffer(List<ConsumerRecord<String, byte[]>> result, int maxRecords) {
+        ConsumerRecord<String, byte[]> record;
+        while (result.size() < maxRecords && (record = pollBuffer()) != null) {
+            result.add(record);
+        }
+    }
+
+    /**
+     * Acknowledges a record taken from this poller: its offset can be
+     * committed (and, in ordered mode, the next record of its partition can
+     * be handed out).
+     * 
+     * @param record
+     * @return {@code true} if the record was taken from this poller and had
+     *         not been acknowledged yet
+     */
+    public boolean ack(ConsumerRecord<String, byte[]> record) {
+        boolean result = false;
+        if (orderedPartitions) {
+            synchronized (busyPartitions) {
+                result = busyPartitions.remove(topicPartition(record), record);
+            }
+            if (result && !buffer.isEmpty()) {
+                notifyRecordsListener();
+            }
+        }
+        if (commitOffsets && offsetTracker.ack(record)) {
+            result = true;
+            if (numAcksSinceCommit.incrementAndGet() >= commitBatchSize) {
+                tryCommit();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Number of records polled (including the ones in the local buffer) but
+     * not yet acknowledged.
+     * 
+     * @return
+     */
+    public int numPending() {
+        return offsetTracker.numPending();
+    }
+
+    /**
+     * Gets, for each partition being consumed, the offset following the last
+     * polled record (only available if {@link #isCommitOffsets()}).
+     * 
+     * @return
+     */
+    public Map<TopicPartition, Long> consumedOffsets() {
+        return offsetTracker.consumedOffsets();
+    }
+
+    /**
+     * Commits offsets of acknowledged records and closes the underlying
+     * consumer. Buffered records are discarded.
+     */
+    public void close() {
+        running = false;
+        if (commitScheduler != null) {
+            commitScheduler.shutdownNow();
+            commitScheduler = null;
+        }
+        if (pollerThread != null) {
+            consumer.wakeup();
+            try {
+                pollerThread.join(10000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        // wait for the in-progress poll (if any) to finish
+        consumerLock.lock();
+        try {
+            if (commitOffsets) {
+                commitSync();
+            }
+            consumer.close();
+        } catch (Exception e) {
+            LOGGER.warn(e.getMessage(), e);
+        } finally {
+            consumerLock.unlock();
+            buffer.clear();
+            bufferBytes.set(0);
+            partitionBufferSizes.clear();
+        }
+    }
+}
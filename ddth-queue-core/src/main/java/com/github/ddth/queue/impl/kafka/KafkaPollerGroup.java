@@ -0,0 +1,260 @@
+package com.github.ddth.queue.impl.kafka;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
+
+/**
+ * A group of {@link KafkaPoller}s consuming the same topic(s) in the same
+ * consumer group: Kafka assigns each poller a share of the partitions.
+ * 
+ * <p>
+ * With one single poller, records are polled by the threads calling
+ * {@link #take()}, unless dedicated threads are requested. With more than one,
+ * each poller runs its own dedicated polling thread and {@link #take()} pulls
+ * from whichever poller has records available, waiting up to the poll timeout
+ * if none has.
+ * </p>
+ * 
+ * @author Thanh Nguyen <btnguyen2k@gmail.com>
+ * @since 0.5.2
+ */
+public class KafkaPollerGroup {
+
+    private final List<KafkaPoller> pollers;
+    private final boolean dedicatedThreads;
+    private final long waitTimeoutMs;
+    private final AtomicInteger nextPoller = new AtomicInteger();
+
+    private final Lock lock = new ReentrantLock();
+    private final Condition recordsAvailable = lock.newCondition();
+    private volatile long generation = 0;
+
+    /**
+     * @param pollers
+     * @param waitTimeoutMs
+     *            max time (in milliseconds) {@link #take()} waits for records
+     *            when pollers run dedicated threads
+     */
+    public KafkaPollerGroup(List<KafkaPoller> pollers, long waitTimeoutMs) {
+        this(pollers, waitTimeoutMs, false);
+    }
+
+    /**
+     * @param pollers
+     * @param waitTimeoutMs
+     *            max time (in milliseconds) {@link #take()} waits for records
+     *            when pollers run dedicated threads
+     * @param dedicatedThreads
+     *            if {@code true}, pollers run dedicated polling threads even
+     *            if there is only one poller (e.g. for backpressure, see
+     *            {@link KafkaPoller})
+     */
+    public KafkaPollerGroup(List<KafkaPoller> pollers, long waitTimeoutMs,
+            boolean dedicatedThreads) {
+        this.pollers = new ArrayList<>(pollers);
+        this.dedicatedThreads = dedicatedThreads || pollers.size() > 1;
+        this.waitTimeoutMs = waitTimeoutMs;
+    }
+
+    /**
+     * Subscribes all pollers to topic(s).
+     * 
+     * @param topics
+     * @return
+     */
+    public KafkaPollerGroup start(Collection<String> topics) {
+        for (KafkaPoller poller : pollers) {
+            if (dedicatedThreads) {
+                poller.setRecordsListener(this::signal);
+            }
+            poller.start(topics, dedicatedThreads);
+        }
+        return this;
+    }
+
+    private void signal() {
+        lock.lock();
+        try {
+            generation++;
+            recordsAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean await(long token, long nanos) throws InterruptedException {
+        lock.lock();
+        try {
+            while (generation == token) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = recordsAvailable.awaitNanos(nanos);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Pollers in round-robin order, starting from a different one on each
+     * call.
+     * 
+     * @return
+     */
+    private List<KafkaPoller> rotatedPollers() {
+        int n = pollers.size();
+        int start = (nextPoller.getAndIncrement() & Integer.MAX_VALUE) % n;
+        List<KafkaPoller> result = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            result.add(pollers.get((start + i) % n));
+        }
+        return result;
+    }
+
+    private ConsumerRecord<String, byte[]> tryTake() {
+        for (KafkaPoller poller : rotatedPollers()) {
+            ConsumerRecord<String, byte[]> record = poller.take();
+            if (record != null) {
+                return record;
+            }
+        }
+        return null;
+    }
+
+    private void tryTakeBatch(int maxRecords, List<ConsumerRecord<String, byte[]>> result) {
+        for (KafkaPoller poller : rotatedPollers()) {
+            if (result.size() >= maxRecords) {
+                break;
+            }
+            result.addAll(poller.takeBatch(maxRecords - result.size()));
+        }
+    }
+
+    /**
+     * Takes one record.
+     * 
+     * @return {@code null} if no record is available within the poll timeout
+     */
+    public ConsumerRecord<String, byte[]> take() {
+        if (!dedicatedThreads) {
+            return pollers.get(0).take();
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitTimeoutMs);
+        try {
+            while (true) {
+                long token = generation;
+                ConsumerRecord<String, byte[]> record = tryTake();
+                if (record != null || !await(token, deadline - System.nanoTime())) {
+                    return record != null ? record : tryTake();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Takes up to {@code maxRecords} records.
+     * 
+     * @param maxRecords
+     * @return empty list if no record is available within the poll timeout
+     */
+    public List<ConsumerRecord<String, byte[]>> takeBatch(int maxRecords) {
+        if (!dedicatedThreads) {
+            return pollers.get(0).takeBatch(maxRecords);
+        }
+        if (maxRecords <= 0) {
+            return Collections.emptyList();
+        }
+        List<ConsumerRecord<String, byte[]>> result = new ArrayList<>();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitTimeoutMs);
+        try {
+            while (true) {
+                long token = generation;
+                tryTakeBatch(maxRecords, result);
+                if (!result.isEmpty() || !await(token, deadline - System.nanoTime())) {
+                    if (result.isEmpty()) {
+                        tryTakeBatch(maxRecords, result);
+                    }
+                    return result;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return result;
+        }
+    }
+
+    /**
+     * Acknowledges a record taken from this group.
+     * 
+     * @param record
+     */
+    public void ack(ConsumerRecord<String, byte[]> record) {
+        for (KafkaPoller poller : pollers) {
+            if (poller.ack(record)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Are offsets tracked and committed on acknowledgement?
+     * 
+     * @return
+     */
+    public boolean isCommitOffsets() {
+        return pollers.get(0).isCommitOffsets();
+    }
+
+    /**
+     * Number of records currently in local buffers.
+     * 
+     * @return
+     */
+    public int bufferSize() {
+        int result = 0;
+        for (KafkaPoller poller : pollers) {
+            result += poller.bufferSize();
+        }
+        return result;
+    }
+
+    /**
+     * See {@link KafkaPoller#consumedOffsets()}.
+     * 
+     * @return
+     */
+    public Map<TopicPartition, Long> consumedOffsets() {
+        Map<TopicPartition, Long> result = new HashMap<>();
+        for (KafkaPoller poller : pollers) {
+            result.putAll(poller.consumedOffsets());
+        }
+        return result;
+    }
+
+    /**
+     * Closes all pollers.
+     */
+    public void close() {
+        for (KafkaPoller poller : pollers) {
+            poller.close();
+        }
+        signal();
+    }
+}
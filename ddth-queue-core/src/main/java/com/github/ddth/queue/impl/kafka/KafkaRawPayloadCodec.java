@@ -0,0 +1,189 @@
+package com.github.ddth.queue.impl.kafka;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Date;
+
+import com.github.ddth.queue.impl.base.BaseUniversalQueueMessage;
+import com.github.ddth.queue.utils.QueueUtils;
+
+/**
+ * Compact binary format of {@link BaseUniversalQueueMessage}s in Kafka
+ * records: message's metadata is packed into a small fixed-layout prefix,
+ * followed by message's content as-is (no JSON, no Base64).
+ * 
+ * <p>
+ * Layout (big-endian):
+ * </p>
+ * <ul>
+ * <li>{@code magic (1 byte)}: {@code 0xFE}, never the first byte of the JSON
+ * format (see {@link BaseUniversalQueueMessage#toBytes()}) so that both
+ * formats can be read from the same topic, see {@link #isRawPayload(byte[])}</li>
+ * <li>{@code version (1 byte)}</li>
+ * <li>{@code flags (1 byte)}: which of the optional fields below are
+ * present</li>
+ * <li>{@code org_timestamp (8 bytes, optional)}: epoch milliseconds</li>
+ * <li>{@code timestamp (8 bytes, optional)}: epoch milliseconds</li>
+ * <li>{@code num_requeues (4 bytes)}</li>
+ * <li>{@code queue_id (optional)}: 8-byte number, or 2-byte length followed by
+ * UTF-8 string</li>
+ * <li>{@code partition_key (optional)}: 2-byte length followed by UTF-8
+ * string</li>
+ * <li>{@code content (remaining bytes, optional)}</li>
+ * </ul>
+ * 
+ * <p>
+ * Note: kafka-clients v0.10 does not support record headers, hence metadata
+ * is carried in the record value.
+ * </p>
+ * 
+ * @author Thanh Nguyen <btnguyen2k@gmail.com>
+ * @since 0.5.2
+ */
+public class KafkaRawPayloadCodec {
+
+    private final static byte MAGIC = (byte) 0xFE;
+    private final static byte VERSION = 1;
+
+    private final static int FLAG_ORG_TIMESTAMP = 1;
+    private final static int FLAG_TIMESTAMP = 1 << 1;
+    private final static int FLAG_QUEUE_ID_NUMBER = 1 << 2;
+    private final static int FLAG_QUEUE_ID_STRING = 1 << 3;
+    private final static int FLAG_PARTITION_KEY = 1 << 4;
+    private final static int FLAG_CONTENT = 1 << 5;
+
+    private final static int MAX_STRING_LENGTH = 0xFFFF;
+
+    /**
+     * Has the data been encoded by {@link #encode(BaseUniversalQueueMessage)}?
+     * 
+     * @param data
+     * @return
+     */
+    public static boolean isRawPayload(byte[] data) {
+        return data != null && data.length > 2 && data[0] == MAGIC && data[1] == VERSION;
+    }
+
+    private static byte[] toUtf8(String value, String fieldName) {
+        byte[] data = value.getBytes(QueueUtils.UTF8);
+        if (data.length > MAX_STRING_LENGTH) {
+            throw new IllegalArgumentException("Field [" + fieldName + "] is too long ("
+                    + data.length + " bytes, max " + MAX_STRING_LENGTH + ")!");
+        }
+        return data;
+    }
+
+    private static String readUtf8(ByteBuffer buffer) {
+        byte[] data = new byte[buffer.getShort() & MAX_STRING_LENGTH];
+        buffer.get(data);
+        return new String(data, QueueUtils.UTF8);
+    }
+
+    /**
+     * Encodes a message.
+     * 
+     * @param msg
+     * @return
+     * @throws IllegalArgumentException
+     *             if queue id or partition key is longer than 65535 bytes
+     */
+    public static byte[] encode(BaseUniversalQueueMessage msg) {
+        Date orgTimestamp = msg.qOriginalTimestamp();
+        Date timestamp = msg.qTimestamp();
+        Object qId = msg.qId();
+        String partitionKey = msg.qPartitionKey();
+        byte[] content = msg.content();
+
+        int flags = 0;
+        int size = 3 + 4;
+        if (orgTimestamp != null) {
+            flags |= FLAG_ORG_TIMESTAMP;
+            size += 8;
+        }
+        if (timestamp != null) {
+            flags |= FLAG_TIMESTAMP;
+            size += 8;
+        }
+        byte[] qIdData = null;
+        if (qId instanceof Long || qId instanceof Integer) {
+            flags |= FLAG_QUEUE_ID_NUMBER;
+            size += 8;
+        } else if (qId != null) {
+            flags |= FLAG_QUEUE_ID_STRING;
+            qIdData = toUtf8(qId.toString(), BaseUniversalQueueMessage.FIELD_QUEUE_ID);
+            size += 2 + qIdData.length;
+        }
+        byte[] partitionKeyData = null;
+        if (partitionKey != null) {
+            flags |= FLAG_PARTITION_KEY;
+            partitionKeyData = toUtf8(partitionKey, "partition_key");
+            size += 2 + partitionKeyData.length;
+        }
+        if (content != null) {
+            flags |= FLAG_CONTENT;
+            size += content.length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.put(MAGIC).put(VERSION).put((byte) flags);
+        if (orgTimestamp != null) {
+            buffer.putLong(orgTimestamp.getTime());
+        }
+        if (timestamp != null) {
+            buffer.putLong(timestamp.getTime());
+        }
+        buffer.putInt(msg.qNumRequeues());
+        if ((flags & FLAG_QUEUE_ID_NUMBER) != 0) {
+            buffer.putLong(((Number) qId).longValue());
+        } else if (qIdData != null) {
+            buffer.putShort((short) qIdData.length).put(qIdData);
+        }
+        if (partitionKeyData != null) {
+            buffer.putShort((short) partitionKeyData.length).put(partitionKeyData);
+        }
+        if (content != null) {
+            buffer.put(content);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Decodes data encoded by {@link #encode(BaseUniversalQueueMessage)}
+     * into a message.
+     * 
+     * @param data
+     * @param msg
+     *            message to populate
+     * @return the populated message
+     * @throws IllegalArgumentException
+     *             if data is not in raw-payload format or is malformed
+     */
+    public static <T extends BaseUniversalQueueMessage> T decode(byte[] data, T msg) {
+        if (!isRawPayload(data)) {
+            throw new IllegalArgumentException("Data is not in raw-payload format!");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data, 2, data.length - 2);
+        try {
+            int flags = buffer.get();
+            msg.qOriginalTimestamp(
+                    (flags & FLAG_ORG_TIMESTAMP) != 0 ? new Date(buffer.getLong()) : null);
+            msg.qTimestamp((flags & FLAG_TIMESTAMP) != 0 ? new Date(buffer.getLong()) : null);
+            msg.qNumRequeues(buffer.getInt());
+            if ((flags & FLAG_QUEUE_ID_NUMBER) != 0) {
+                msg.qId(buffer.getLong());
+            } else if ((flags & FLAG_QUEUE_ID_STRING) != 0) {
+                msg.qId(readUtf8(buffer));
+            }
+            if ((flags & FLAG_PARTITION_KEY) != 0) {
+                msg.qPartitionKey(readUtf8(buffer));
+            }
+            if ((flags & FLAG_CONTENT) != 0) {
+                msg.content(Arrays.copyOfRange(data, buffer.position(), data.length));
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Malformed raw-payload data!", e);
+        }
+        return msg;
+    }
+}
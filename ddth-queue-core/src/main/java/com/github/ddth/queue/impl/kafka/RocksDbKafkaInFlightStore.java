@@ -0,0 +1,214 @@
+package com.github.ddth.queue.impl.kafka;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.Function;
+
+import org.apache.commons.io.FileUtils;
+import org.rocksdb.ColumnFamilyHandle;
+import org.rocksdb.DBOptions;
+import org.rocksdb.RocksIterator;
+import org.rocksdb.WriteOptions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.ddth.queue.IQueueMessage;
+import com.github.ddth.queue.impl.rocksdb.RocksDbUtils;
+import com.github.ddth.queue.impl.rocksdb.RocksDbWrapper;
+import com.github.ddth.queue.utils.QueueUtils;
+
+/**
+ * {@link KafkaInFlightStore} backed by a local RocksDB column family.
+ * 
+ * <p>
+ * Each in-flight message is also written to RocksDB, along with the time it
+ * was taken and the topic, partition and offset of its record. Messages that
+ * were in flight when the application stopped are loaded back on
+ * {@link #init()}, without their Kafka records, so that they can still be
+ * found and recovered as orphan messages; they are dropped as soon as Kafka
+ * redelivers them to this store, or once their offsets have been committed.
+ * </p>
+ * 
+ * @author Thanh Nguyen <btnguyen2k@gmail.com>
+ * @since 0.5.2
+ */
+public class RocksDbKafkaInFlightStore extends KafkaInFlightStore {
+
+    private final static Logger LOGGER = LoggerFactory.getLogger(RocksDbKafkaInFlightStore.class);
+
+    /**
+     * Default name of the column family to store in-flight messages.
+     */
+    public final static String DEFAULT_CF_NAME = "kafka_inflight";
+
+    private final String storageDir;
+    private String cfName = DEFAULT_CF_NAME;
+    private final Function<IQueueMessage, byte[]> serializer;
+    private final Function<byte[], IQueueMessage> deserializer;
+
+    private DBOptions dbOptions;
+    private RocksDbWrapper rocksDbWrapper;
+    private WriteOptions writeOptions;
+    private ColumnFamilyHandle cf;
+
+    /**
+     * @param storageDir
+     *            directory to store RocksDB data
+     * @param serializer
+     * @param deserializer
+     */
+    public RocksDbKafkaInFlightStore(String storageDir, Function<IQueueMessage, byte[]> serializer,
+            Function<byte[], IQueueMessage> deserializer) {
+        this.storageDir = storageDir;
+        this.serializer = serializer;
+        this.deserializer = deserializer;
+    }
+
+    /**
+     * Name of the column family to store in-flight messages.
+     * 
+     * @return
+     */
+    public String getCfName() {
+        return cfName;
+    }
+
+    /**
+     * Sets name of the column family to store in-flight messages.
+     * 
+     * @param cfName
+     * @return
+     */
+    public RocksDbKafkaInFlightStore setCfName(String cfName) {
+        this.cfName = cfName;
+        return this;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public RocksDbKafkaInFlightStore init() {
+        File STORAGE_DIR = new File(storageDir);
+        try {
+            FileUtils.forceMkdir(STORAGE_DIR);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        try {
+            dbOptions = RocksDbUtils.buildDbOptions();
+            rocksDbWrapper = RocksDbWrapper.openReadWrite(STORAGE_DIR, dbOptions, null, null,
+                    new String[] { cfName });
+            writeOptions = rocksDbWrapper.getWriteOptions();
+            cf = rocksDbWrapper.getColumnFamilyHandle(cfName);
+            loadEntries();
+        } catch (Exception e) {
+            close();
+            throw e instanceof RuntimeException ? (RuntimeException) e : new RuntimeException(e);
+        }
+        return this;
+    }
+
+    private void loadEntries() {
+        RocksIterator it = rocksDbWrapper.getIterator(cfName);
+        int numEntries = 0;
+        for (it.seekToFirst(); it.isValid(); it.next()) {
+            Entry entry = null;
+            try {
+                entry = toEntry(it.value());
+            } catch (Exception e) {
+                LOGGER.warn("Error while loading in-flight message: " + e.getMessage());
+            }
+            if (entry == null || entry.getMessage().qId() == null) {
+                rocksDbWrapper.delete(cf, writeOptions, it.key());
+                continue;
+            }
+            load(entry.getMessage().qId(), entry);
+            numEntries++;
+        }
+        if (numEntries > 0) {
+            LOGGER.info("Loaded [" + numEntries + "] in-flight message(s) from " + storageDir);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() {
+        try {
+            if (rocksDbWrapper != null) {
+                rocksDbWrapper.close();
+            }
+        } catch (Exception e) {
+            LOGGER.error(e.getMessage(), e);
+        } finally {
+            rocksDbWrapper = null;
+            RocksDbUtils.closeRocksObjects(dbOptions);
+        }
+    }
+
+    private static byte[] toKey(Object qId) {
+        return qId.toString().getBytes(QueueUtils.UTF8);
+    }
+
+    /*
+     * Value format: taken timestamp (8 bytes), offset (8 bytes), partition (4
+     * bytes), topic length (2 bytes), topic, serialized message.
+     */
+    private byte[] toValue(Entry entry) {
+        byte[] topic = entry.getTopic().getBytes(QueueUtils.UTF8);
+        byte[] msgData = serializer.apply(entry.getMessage());
+        ByteBuffer value = ByteBuffer.allocate(22 + topic.length + msgData.length);
+        value.putLong(entry.getTakenTimestamp()).putLong(entry.getOffset())
+                .putInt(entry.getPartition()).putShort((short) topic.length).put(topic)
+                .put(msgData);
+        return value.array();
+    }
+
+    private Entry toEntry(byte[] data) {
+        ByteBuffer value = ByteBuffer.wrap(data);
+        long takenTimestamp = value.getLong();
+        long offset = value.getLong();
+        int partition = value.getInt();
+        byte[] topic = new byte[value.getShort()];
+        value.get(topic);
+        if (!value.hasRemaining()) {
+            return null;
+        }
+        IQueueMessage msg = deserializer
+                .apply(Arrays.copyOfRange(data, value.position(), data.length));
+        return msg != null
+                ? new Entry(new String(topic, QueueUtils.UTF8), partition, offset, msg,
+                        takenTimestamp)
+                : null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void persist(Object qId, Entry entry) {
+        try {
+            rocksDbWrapper.put(cf, writeOptions, toKey(qId), toValue(entry));
+        } catch (Exception e) {
+            LOGGER.warn("Error while persisting in-flight message [" + qId + "]: "
+                    + e.getMessage());
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void unpersist(Object qId) {
+        try {
+            rocksDbWrapper.delete(cf, writeOptions, toKey(qId));
+        } catch (Exception e) {
+            LOGGER.warn("Error while removing in-flight message [" + qId + "]: "
+                    + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.github.ddth.queue.impl.kafka;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Messages without partition key stick to one randomly chosen partition for
+ * {@link #getStickyBatchSize()} messages, then move to another one: producer
+ * batches fill up faster than when spreading messages one by one. Messages
+ * with partition key are left to Kafka producer (hashing the key).
+ * 
+ * @author Thanh Nguyen <btnguyen2k@gmail.com>
+ * @since 0.5.2
+ */
+public class StickyRandomPartitioningStrategy implements IKafkaPartitioningStrategy {
+
+    private static class StickyPartition {
+        int partition = -1;
+        int remaining = 0;
+    }
+
+    private int stickyBatchSize = 100;
+    private final ConcurrentMap<String, StickyPartition> stickyPartitions =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Number of messages produced to a partition before moving to another one
+     * (default {@code 100}).
+     * 
+     * @return
+     */
+    public int getStickyBatchSize() {
+        return stickyBatchSize;
+    }
+
+    public StickyRandomPartitioningStrategy setStickyBatchSize(int stickyBatchSize) {
+        this.stickyBatchSize = Math.max(1, stickyBatchSize);
+        return this;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Integer partition(String topic, String partitionKey, int numPartitions) {
+        return partitionKey == null ? stickyPartition(topic, numPartitions) : null;
+    }
+
+    /**
+     * Gets the current sticky partition of a topic, moving to a new random
+     * partition if the current one has received enough messages.
+     * 
+     * @param topic
+     * @param numPartitions
+     * @return
+     */
+    protected int stickyPartition(String topic, int numPartitions) {
+        StickyPartition sticky = stickyPartitions.computeIfAbsent(topic,
+                k -> new StickyPartition());
+        synchronized (sticky) {
+            if (sticky.remaining <= 0 || sticky.partition >= numPartitions) {
+                int partition = ThreadLocalRandom.current().nextInt(numPartitions);
+                if (partition == sticky.partition && numPartitions > 1) {
+                    partition = (partition + 1) % numPartitions;
+                }
+                sticky.partition = partition;
+                sticky.remaining = stickyBatchSize;
+            }
+            sticky.remaining--;
+            return sticky.partition;
+        }
+    }
+}
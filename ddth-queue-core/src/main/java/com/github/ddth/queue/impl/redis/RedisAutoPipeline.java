@@ -0,0 +1,235 @@
+package com.github.ddth.queue.impl.redis;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.exceptions.JedisNoScriptException;
+
+/**
+ * Executes Redis commands submitted by many threads over a few connections,
+ * automatically pipelining them.
+ * 
+ * <p>
+ * Each connection is served by one worker thread, which drains all commands
+ * submitted so far (up to {@link #getMaxBatchSize()}) and sends them in one
+ * single pipeline: under load, one round trip serves many commands from many
+ * threads. Results are delivered via {@link CompletableFuture}s.
+ * </p>
+ * 
+ * @author Thanh Nguyen <btnguyen2k@gmail.com>
+ * @since 0.5.2
+ */
+public class RedisAutoPipeline {
+
+    private final static Logger LOGGER = LoggerFactory.getLogger(RedisAutoPipeline.class);
+
+    /**
+     * A command (or a group of commands) to be executed in a pipeline.
+     * 
+     * @param <T>
+     */
+    public static interface Command<T> {
+        /**
+         * Appends command(s) to the pipeline.
+         * 
+         * @param pipeline
+         * @return supplier to build the command's result once the pipeline has
+         *         been synced (it may throw exceptions)
+         */
+        Supplier<T> append(Pipeline pipeline);
+    }
+
+    private static class Task<T> {
+        final Command<T> command;
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        Supplier<T> result;
+        boolean retried = false;
+
+        Task(Command<T> command) {
+            this.command = command;
+        }
+
+        void complete() {
+            future.complete(result.get());
+        }
+    }
+
+    private final JedisPool jedisPool;
+    private final int numConnections, maxBatchSize;
+    private final RedisLuaScript[] scripts;
+    private final BlockingQueue<Task<?>> tasks = new LinkedBlockingQueue<>();
+    private final List<Thread> workers = new ArrayList<>();
+    private volatile boolean running = false;
+
+    /**
+     * @param jedisPool
+     *            connections are borrowed from this pool (one per worker, for
+     *            the worker's whole life)
+     * @param numConnections
+     * @param maxBatchSize
+     *            max number of commands per pipeline
+     * @param scripts
+     *            LUA scripts to be loaded on each connection
+     */
+    public RedisAutoPipeline(JedisPool jedisPool, int numConnections, int maxBatchSize,
+            RedisLuaScript... scripts) {
+        this.jedisPool = jedisPool;
+        this.numConnections = numConnections;
+        this.maxBatchSize = maxBatchSize;
+        this.scripts = scripts;
+    }
+
+    public int getNumConnections() {
+        return numConnections;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * Starts worker threads.
+     * 
+     * @return
+     */
+    public RedisAutoPipeline start() {
+        running = true;
+        for (int i = 0; i < numConnections; i++) {
+            Thread worker = new Thread("RedisAutoPipeline-" + i) {
+                public void run() {
+                    work();
+                }
+            };
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+        return this;
+    }
+
+    /**
+     * Stops worker threads. Pending commands are failed.
+     */
+    public void stop() {
+        running = false;
+        for (Thread worker : workers) {
+            try {
+                worker.join(10000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        workers.clear();
+        Task<?> task;
+        while ((task = tasks.poll()) != null) {
+            task.future.completeExceptionally(
+                    new IllegalStateException("Auto-pipeline has been stopped!"));
+        }
+    }
+
+    /**
+     * Submits a command for execution.
+     * 
+     * @param command
+     * @return
+     */
+    public <T> CompletableFuture<T> submit(Command<T> command) {
+        Task<T> task = new Task<>(command);
+        if (!running) {
+            task.future.completeExceptionally(
+                    new IllegalStateException("Auto-pipeline is not running!"));
+        } else {
+            tasks.add(task);
+        }
+        return task.future;
+    }
+
+    private Jedis connect() {
+        Jedis jedis = jedisPool.getResource();
+        for (RedisLuaScript script : scripts) {
+            script.load(jedis);
+        }
+        return jedis;
+    }
+
+    private void work() {
+        List<Task<?>> batch = new ArrayList<>();
+        Jedis jedis = null;
+        while (running || !tasks.isEmpty()) {
+            try {
+                Task<?> first = tasks.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                tasks.drainTo(batch, maxBatchSize - 1);
+                if (jedis == null) {
+                    jedis = connect();
+                }
+                execute(jedis, batch);
+            } catch (InterruptedException e) {
+                break;
+            } catch (Exception e) {
+                LOGGER.warn("Error while executing pipeline: " + e.getMessage());
+                for (Task<?> task : batch) {
+                    task.future.completeExceptionally(e);
+                }
+                if (jedis != null) {
+                    // connection may be broken, let the pool validate it
+                    jedis.close();
+                    jedis = null;
+                }
+            } finally {
+                batch.clear();
+            }
+        }
+        if (jedis != null) {
+            jedis.close();
+        }
+    }
+
+    private static <T> void append(Task<T> task, Pipeline pipeline) {
+        task.result = task.command.append(pipeline);
+    }
+
+    private void execute(Jedis jedis, List<Task<?>> batch) {
+        Pipeline pipeline = jedis.pipelined();
+        for (Task<?> task : batch) {
+            append(task, pipeline);
+        }
+        pipeline.sync();
+        boolean reloadScripts = false;
+        for (Task<?> task : batch) {
+            try {
+                task.complete();
+            } catch (JedisNoScriptException e) {
+                if (task.retried) {
+                    task.future.completeExceptionally(e);
+                } else {
+                    // server has lost scripts (SCRIPT FLUSH, fail-over...)
+                    reloadScripts = true;
+                    task.retried = true;
+                    tasks.add(task);
+                }
+            } catch (Exception e) {
+                task.future.completeExceptionally(e);
+            }
+        }
+        if (reloadScripts) {
+            for (RedisLuaScript script : scripts) {
+                script.load(jedis);
+            }
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.github.ddth.queue.impl.redis;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import com.github.ddth.queue.utils.QueueUtils;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisCluster;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisNoScriptException;
+
+/**
+ * A LUA script to be executed on Redis server via {@code EVALSHA}.
+ * 
+ * <p>
+ * The script's SHA1 digest is calculated locally. The script body is only
+ * sent to Redis server ({@code SCRIPT LOAD}) when the server does not know
+ * the script yet (e.g. first call, after a {@code SCRIPT FLUSH} or a
+ * fail-over); all other calls only send the 40-byte digest.
+ * </p>
+ * 
+ * @author Thanh Nguyen <btnguyen2k@gmail.com>
+ * @since 0.5.2
+ */
+public class RedisLuaScript {
+
+    private final String script;
+    private final byte[] scriptBytes, sha1;
+
+    public RedisLuaScript(String script) {
+        this.script = script;
+        this.scriptBytes = script.getBytes(QueueUtils.UTF8);
+        this.sha1 = DigestUtils.sha1Hex(scriptBytes).getBytes(QueueUtils.UTF8);
+    }
+
+    /**
+     * The script's body.
+     * 
+     * @return
+     */
+    public String getScript() {
+        return script;
+    }
+
+    /**
+     * The script's SHA1 digest (hex string).
+     * 
+     * @return
+     */
+    public String getSha1() {
+        return new String(sha1, QueueUtils.UTF8);
+    }
+
+    /**
+     * Loads the script to Redis server ({@code SCRIPT LOAD}).
+     * 
+     * @param jedis
+     */
+    public void load(Jedis jedis) {
+        jedis.scriptLoad(scriptBytes);
+    }
+
+    /**
+     * Executes the script via {@code EVALSHA}, (re)loading the script if the
+     * Redis server replies {@code NOSCRIPT}.
+     * 
+     * @param jedis
+     * @param keyCount
+     * @param params
+     * @return raw response from Redis server ({@code byte[]}, {@link Long},
+     *         {@code List} or {@code null})
+     */
+    public Object eval(Jedis jedis, int keyCount, byte[]... params) {
+        try {
+            return jedis.evalsha(sha1, keyCount, params);
+        } catch (JedisNoScriptException e) {
+            load(jedis);
+            return jedis.evalsha(sha1, keyCount, params);
+        }
+    }
+
+    /**
+     * Executes the script via {@code EVALSHA}, (re)loading the script if the
+     * Redis server replies {@code NOSCRIPT}.
+     * 
+     * @param jedis
+     * @param keyCount
+     * @param params
+     * @return raw response from Redis server ({@code byte[]}, {@link Long},
+     *         {@code List} or {@code null})
+     */
+    public Object eval(Jedis jedis, int keyCount, String... params) {
+        byte[][] _params = new byte[params.length][];
+        for (int i = 0; i < params.length; i++) {
+            _params[i] = params[i].getBytes(QueueUtils.UTF8);
+        }
+        return eval(jedis, keyCount, _params);
+    }
+
+    /**
+     * Appends the script's execution ({@code EVALSHA}) to a pipeline.
+     * 
+     * <p>
+     * Note: the script must have been loaded on the pipeline's connection,
+     * otherwise the response throws
+     * {@link redis.clients.jedis.exceptions.JedisNoScriptException}.
+     * </p>
+     * 
+     * @param pipeline
+     * @param keyCount
+     * @param params
+     * @return
+     */
+    public Response<Object> eval(Pipeline pipeline, int keyCount, byte[]... params) {
+        return pipeline.evalsha(sha1, keyCount, params);
+    }
+
+    /**
+     * Executes the script on a Redis cluster via {@code EVALSHA}, (re)loading
+     * the script if the Redis node replies {@code NOSCRIPT}.
+     * 
+     * <p>
+     * The script is routed to the node that serves the slot of the first key
+     * (so {@code keyCount} must be at least 1), and all keys used by the script
+     * must be in that same slot (e.g. by sharing one hash tag).
+     * </p>
+     * 
+     * @param jedisCluster
+     * @param keyCount
+     * @param params
+     * @return raw response from Redis server ({@code byte[]}, {@link Long},
+     *         {@code List} or {@code null})
+     */
+    public Object eval(JedisCluster jedisCluster, int keyCount, byte[]... params) {
+        if (keyCount < 1) {
+            throw new IllegalArgumentException("At least one key is required!");
+        }
+        try {
+            return jedisCluster.evalsha(sha1, keyCount, params);
+        } catch (JedisNoScriptException e) {
+            jedisCluster.scriptLoad(scriptBytes, params[0]);
+            return jedisCluster.evalsha(sha1, keyCount, params);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return script;
+    }
+}
@@ -0,0 +1,231 @@
+package com.github.ddth.queue.impl.redis;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPubSub;
+
+/**
+ * Listens to "work available" notifications on a Redis Pub/Sub channel and
+ * wakes up threads that are waiting for messages.
+ * 
+ * <p>
+ * One single listener (one dedicated Redis connection and one daemon thread)
+ * is shared by all queue instances in the JVM that listen to the same channel
+ * on the same Redis server, see {@link #acquire(String, String)} and
+ * {@link #release()}.
+ * </p>
+ * 
+ * <p>
+ * Usage: obtain a token via {@link #currentToken()} <i>before</i> trying to
+ * take a message; if no message is available, call
+ * {@link #await(long, long)} with the token, so that notifications arriving in
+ * between are not missed.
+ * </p>
+ * 
+ * <p>
+ * Each notification wakes up one single waiting thread (see
+ * {@link #wakeup()}); a thread that has taken a message while more are
+ * available should pass the notification on, so that waiting threads are
+ * woken up one by one instead of all at once for one message.
+ * </p>
+ * 
+ * @author Thanh Nguyen <btnguyen2k@gmail.com>
+ * @since 0.5.2
+ */
+public class RedisWakeupListener {
+
+    private final static Logger LOGGER = LoggerFactory.getLogger(RedisWakeupListener.class);
+
+    private final static ConcurrentMap<String, RedisWakeupListener> INSTANCES =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Obtains the shared listener for a channel on a Redis server, starting it
+     * if needed.
+     * 
+     * @param redisHostAndPort
+     *            format {@code host:port} or {@code unix:///path/to/redis.sock}
+     * @param channel
+     * @return
+     */
+    public static RedisWakeupListener acquire(String redisHostAndPort, String channel) {
+        String key = redisHostAndPort + "/" + channel;
+        synchronized (INSTANCES) {
+            RedisWakeupListener listener = INSTANCES.get(key);
+            if (listener == null) {
+                listener = new RedisWakeupListener(key, redisHostAndPort, channel);
+                listener.start();
+                INSTANCES.put(key, listener);
+            }
+            listener.refCount++;
+            return listener;
+        }
+    }
+
+    private final String key, redisHostAndPort, channel;
+    private int refCount = 0;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition signal = lock.newCondition();
+    private volatile long generation = 0;
+
+    private volatile boolean running = true;
+    private volatile Jedis jedis;
+    private final JedisPubSub pubSub = new JedisPubSub() {
+        @Override
+        public void onSubscribe(String channel, int subscribedChannels) {
+            // notifications may have been missed while (re)connecting
+            wakeupAll();
+        }
+
+        @Override
+        public void onMessage(String channel, String message) {
+            wakeup();
+        }
+    };
+
+    private RedisWakeupListener(String key, String redisHostAndPort, String channel) {
+        this.key = key;
+        this.channel = channel;
+        this.redisHostAndPort = redisHostAndPort;
+    }
+
+    private void start() {
+        Thread thread = new Thread("RedisWakeupListener-" + key) {
+            public void run() {
+                while (running) {
+                    try (Jedis jedis = UnixSocketJedisPool.newJedis(redisHostAndPort)) {
+                        RedisWakeupListener.this.jedis = jedis;
+                        jedis.subscribe(pubSub, channel);
+                    } catch (Exception e) {
+                        if (running) {
+                            LOGGER.warn("Error while listening to channel [" + key + "]: "
+                                    + e.getMessage());
+                            try {
+                                Thread.sleep(1000);
+                            } catch (InterruptedException ie) {
+                            }
+                        }
+                    } finally {
+                        RedisWakeupListener.this.jedis = null;
+                    }
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Releases the listener obtained by {@link #acquire(String, String)}. The
+     * listener is stopped when it is released by all its users.
+     */
+    public void release() {
+        synchronized (INSTANCES) {
+            if (--refCount > 0) {
+                return;
+            }
+            INSTANCES.remove(key, this);
+        }
+        running = false;
+        try {
+            if (pubSub.isSubscribed()) {
+                pubSub.unsubscribe();
+            }
+        } catch (Exception e) {
+        }
+        Jedis jedis = this.jedis;
+        if (jedis != null) {
+            try {
+                jedis.disconnect();
+            } catch (Exception e) {
+            }
+        }
+        wakeupAll();
+    }
+
+    /**
+     * Wakes up one waiting thread (threads that obtained their token before
+     * and have not started waiting yet do not wait either).
+     */
+    public void wakeup() {
+        lock.lock();
+        try {
+            generation++;
+            signal.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wakes up all waiting threads.
+     */
+    public void wakeupAll() {
+        lock.lock();
+        try {
+            generation++;
+            signal.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Are there threads waiting for notifications?
+     * 
+     * @return
+     */
+    public boolean hasWaiters() {
+        lock.lock();
+        try {
+            return lock.hasWaiters(signal);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Token to be passed to {@link #await(long, long)}.
+     * 
+     * @return
+     */
+    public long currentToken() {
+        return generation;
+    }
+
+    /**
+     * Waits until a notification arrives after the token was obtained, or the
+     * wait time elapses.
+     * 
+     * @param token
+     *            obtained by {@link #currentToken()}
+     * @param timeoutMs
+     * @return {@code true} if a notification has arrived, {@code false} if
+     *         the wait time elapsed
+     * @throws InterruptedException
+     */
+    public boolean await(long token, long timeoutMs) throws InterruptedException {
+        long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        lock.lock();
+        try {
+            while (generation == token) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = signal.awaitNanos(nanos);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
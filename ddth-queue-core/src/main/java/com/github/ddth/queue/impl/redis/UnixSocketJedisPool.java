@@ -0,0 +1,410 @@
+package com.github.ddth.queue.impl.redis;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.ProtocolFamily;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+import org.apache.commons.pool2.PooledObject;
+import org.apache.commons.pool2.PooledObjectFactory;
+import org.apache.commons.pool2.impl.DefaultPooledObject;
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+
+import redis.clients.jedis.Client;
+import redis.clients.jedis.Connection;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.util.RedisInputStream;
+import redis.clients.util.RedisOutputStream;
+
+/**
+ * Pool of {@link Jedis} connections to a Redis server over a Unix domain
+ * socket.
+ * 
+ * <p>
+ * Redis server address has format {@code unix:///path/to/redis.sock}, see
+ * {@link #isUnixSocket(String)}.
+ * </p>
+ * 
+ * <p>
+ * Notes:
+ * <ul>
+ * <li>Jedis v2.9 only supports TCP connections and Java 8 has no Unix domain
+ * socket support: connections are opened via {@link SocketChannel} and
+ * {@code java.net.UnixDomainSocketAddress}, which requires Java 16+ at
+ * runtime: the pool fails to be created on older runtimes, see
+ * {@link #isSupported()}.</li>
+ * <li>Socket timeouts set by Jedis (connection timeout for normal commands,
+ * none for blocking commands) are applied to reads and writes: the channel is
+ * non-blocking and waits on {@link Selector}s with a deadline.</li>
+ * <li>Password and database selection are not supported.</li>
+ * </ul>
+ * </p>
+ * 
+ * @author Thanh Nguyen <btnguyen2k@gmail.com>
+ * @since 0.5.2
+ */
+public class UnixSocketJedisPool extends JedisPool {
+
+    /**
+     * Scheme prefix of Unix domain socket addresses.
+     */
+    public final static String UNIX_SOCKET_PREFIX = "unix://";
+
+    /**
+     * Is the Redis server address a Unix domain socket (format
+     * {@code unix:///path/to/redis.sock})?
+     * 
+     * @param redisHostAndPort
+     * @return
+     */
+    public static boolean isUnixSocket(String redisHostAndPort) {
+        return redisHostAndPort != null && redisHostAndPort.startsWith(UNIX_SOCKET_PREFIX);
+    }
+
+    /**
+     * Extracts socket file's path from a Unix domain socket address.
+     * 
+     * @param redisHostAndPort
+     *            format {@code unix:///path/to/redis.sock}
+     * @return
+     */
+    public static String socketPath(String redisHostAndPort) {
+        return redisHostAndPort.substring(UNIX_SOCKET_PREFIX.length());
+    }
+
+    /**
+     * Are Unix domain socket connections supported by the running JVM (Java
+     * 16+)?
+     * 
+     * @return
+     */
+    public static boolean isSupported() {
+        try {
+            Class.forName("java.net.UnixDomainSocketAddress");
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Creates a new (not yet connected) {@link Jedis} instance: a Unix domain
+     * socket connection if the address has format
+     * {@code unix:///path/to/redis.sock}, a TCP connection otherwise.
+     * 
+     * @param redisHostAndPort
+     *            format {@code host:port} or {@code unix:///path/to/redis.sock}
+     * @return
+     */
+    public static Jedis newJedis(String redisHostAndPort) {
+        if (isUnixSocket(redisHostAndPort)) {
+            return new UnixSocketJedis(socketPath(redisHostAndPort));
+        }
+        String[] tokens = redisHostAndPort.split(":");
+        String redisHost = tokens.length > 0 ? tokens[0] : "localhost";
+        int redisPort = tokens.length > 1 ? Integer.parseInt(tokens[1]) : 6379;
+        return new Jedis(redisHost, redisPort);
+    }
+
+    /**
+     * @param poolConfig
+     * @param socketPath
+     *            path to Redis server's socket file
+     */
+    public UnixSocketJedisPool(GenericObjectPoolConfig poolConfig, final String socketPath) {
+        super(poolConfig, UNIX_SOCKET_PREFIX + socketPath);
+        if (!isSupported()) {
+            throw new UnsupportedOperationException(
+                    "Unix domain sockets require Java 16 or later, current Java version is "
+                            + System.getProperty("java.version") + "!");
+        }
+        // replace the default (TCP) connection factory
+        initPool(poolConfig, new PooledObjectFactory<Jedis>() {
+            @Override
+            public PooledObject<Jedis> makeObject() throws Exception {
+                Jedis jedis = new UnixSocketJedis(socketPath);
+                jedis.connect();
+                return new DefaultPooledObject<>(jedis);
+            }
+
+            @Override
+            public void destroyObject(PooledObject<Jedis> p) throws Exception {
+                Jedis jedis = p.getObject();
+                try {
+                    jedis.quit();
+                } catch (Exception e) {
+                }
+                try {
+                    jedis.disconnect();
+                } catch (Exception e) {
+                }
+            }
+
+            @Override
+            public boolean validateObject(PooledObject<Jedis> p) {
+                try {
+                    return "PONG".equals(p.getObject().ping());
+                } catch (Exception e) {
+                    return false;
+                }
+            }
+
+            @Override
+            public void activateObject(PooledObject<Jedis> p) throws Exception {
+            }
+
+            @Override
+            public void passivateObject(PooledObject<Jedis> p) throws Exception {
+            }
+        });
+    }
+
+    /**
+     * {@link Jedis} connection over a Unix domain socket.
+     * 
+     * @author Thanh Nguyen <btnguyen2k@gmail.com>
+     * @since 0.5.2
+     */
+    public static class UnixSocketJedis extends Jedis {
+        public UnixSocketJedis(String socketPath) {
+            super();
+            client = new UnixSocketClient(socketPath);
+        }
+    }
+
+    private static class UnixSocketClient extends Client {
+        private final static Field SOCKET, OUTPUT_STREAM, INPUT_STREAM, BROKEN;
+        static {
+            try {
+                SOCKET = Connection.class.getDeclaredField("socket");
+                OUTPUT_STREAM = Connection.class.getDeclaredField("outputStream");
+                INPUT_STREAM = Connection.class.getDeclaredField("inputStream");
+                BROKEN = Connection.class.getDeclaredField("broken");
+                for (Field field : new Field[] { SOCKET, OUTPUT_STREAM, INPUT_STREAM, BROKEN }) {
+                    field.setAccessible(true);
+                }
+            } catch (NoSuchFieldException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private final String socketPath;
+
+        UnixSocketClient(String socketPath) {
+            super(UNIX_SOCKET_PREFIX + socketPath);
+            this.socketPath = socketPath;
+        }
+
+        @Override
+        public void connect() {
+            if (isConnected()) {
+                return;
+            }
+            try {
+                UnixSocket socket = new UnixSocket(socketPath);
+                socket.setSoTimeout(getSoTimeout());
+                SOCKET.set(this, socket);
+                OUTPUT_STREAM.set(this, new RedisOutputStream(socket.getOutputStream()));
+                INPUT_STREAM.set(this, new RedisInputStream(socket.getInputStream()));
+                BROKEN.set(this, false);
+            } catch (IOException e) {
+                throw new JedisConnectionException(e);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * Adapts a Unix domain {@link SocketChannel} to the {@link Socket} API
+     * used by Jedis.
+     */
+    private static class UnixSocket extends Socket {
+        private final SocketChannel channel;
+        private final Selector readSelector, writeSelector;
+        private final InputStream inputStream;
+        private final OutputStream outputStream;
+        private volatile int soTimeout = 0;
+
+        UnixSocket(String socketPath) throws IOException {
+            channel = openChannel(socketPath);
+            try {
+                channel.configureBlocking(false);
+                // reads and writes do not share a selector: a thread blocked
+                // reading (e.g. SUBSCRIBE) does not block another thread writing
+                readSelector = Selector.open();
+                writeSelector = Selector.open();
+                channel.register(readSelector, SelectionKey.OP_READ);
+                channel.register(writeSelector, SelectionKey.OP_WRITE);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            inputStream = new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    byte[] b = new byte[1];
+                    return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (len == 0) {
+                        return 0;
+                    }
+                    ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+                    long deadline = deadline();
+                    synchronized (readSelector) {
+                        int n;
+                        while ((n = channel.read(buffer)) == 0) {
+                            await(readSelector, deadline, "Read timed out");
+                        }
+                        return n;
+                    }
+                }
+            };
+            outputStream = new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[] { (byte) b }, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+                    long deadline = deadline();
+                    synchronized (writeSelector) {
+                        while (buffer.hasRemaining()) {
+                            if (channel.write(buffer) == 0) {
+                                await(writeSelector, deadline, "Write timed out");
+                            }
+                        }
+                    }
+                }
+            };
+        }
+
+        /* deadline of an I/O operation starting now, 0 means "no timeout" */
+        private long deadline() {
+            int timeout = soTimeout;
+            return timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+        }
+
+        /**
+         * Waits until the channel is ready for the selector's operation.
+         * 
+         * @param selector
+         * @param deadline
+         * @param timeoutMessage
+         * @throws IOException
+         *             {@link SocketTimeoutException} if the deadline has passed
+         */
+        private void await(Selector selector, long deadline, String timeoutMessage)
+                throws IOException {
+            long waitMs = 0;
+            if (deadline > 0) {
+                waitMs = deadline - System.currentTimeMillis();
+                if (waitMs <= 0) {
+                    throw new SocketTimeoutException(timeoutMessage);
+                }
+            }
+            try {
+                selector.select(waitMs);
+                selector.selectedKeys().clear();
+            } catch (ClosedSelectorException e) {
+                throw new SocketException("Socket is closed");
+            }
+        }
+
+        private static SocketChannel openChannel(String socketPath) throws IOException {
+            try {
+                Class<?> addressClass = Class.forName("java.net.UnixDomainSocketAddress");
+                Method of = addressClass.getMethod("of", String.class);
+                SocketAddress address = (SocketAddress) of.invoke(null, socketPath);
+                ProtocolFamily unix = StandardProtocolFamily.valueOf("UNIX");
+                Method open = SocketChannel.class.getMethod("open", ProtocolFamily.class);
+                SocketChannel channel = (SocketChannel) open.invoke(null, unix);
+                try {
+                    channel.connect(address);
+                } catch (IOException e) {
+                    channel.close();
+                    throw e;
+                }
+                return channel;
+            } catch (ReflectiveOperationException | IllegalArgumentException e) {
+                throw new UnsupportedOperationException(
+                        "Unix domain sockets require Java 16 or later!", e);
+            }
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return inputStream;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return outputStream;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return channel.isConnected();
+        }
+
+        @Override
+        public boolean isBound() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public boolean isClosed() {
+            return !channel.isOpen();
+        }
+
+        @Override
+        public boolean isInputShutdown() {
+            return false;
+        }
+
+        @Override
+        public boolean isOutputShutdown() {
+            return false;
+        }
+
+        @Override
+        public synchronized void setSoTimeout(int timeout) {
+            soTimeout = timeout;
+        }
+
+        @Override
+        public synchronized int getSoTimeout() {
+            return soTimeout;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            try {
+                channel.close();
+            } finally {
+                // also wakes up threads waiting for the channel
+                readSelector.close();
+                writeSelector.close();
+            }
+        }
+    }
+}
@@ -3,6 +3,7 @@ package com.github.ddth.queue.impl.universal;
 import com.github.ddth.queue.IQueue;
 import com.github.ddth.queue.impl.KafkaQueue;
 import com.github.ddth.queue.impl.base.BaseUniversalKafkaQueue;
+import com.github.ddth.queue.impl.kafka.KafkaRawPayloadCodec;
 import com.github.ddth.queue.utils.QueueException;
 
 /**
@@ -27,6 +28,9 @@ public class UniversalKafkaQueue extends BaseUniversalKafkaQueue<UniversalQueueM
     @Override
     protected UniversalQueueMessage deserialize(byte[] msgData) {
         try {
+            if (KafkaRawPayloadCodec.isRawPayload(msgData)) {
+                return KafkaRawPayloadCodec.decode(msgData, new UniversalQueueMessage());
+            }
             return UniversalQueueMessage.fromBytes(msgData);
         } catch (RuntimeException re) {
             throw new QueueException.CannotDeserializeQueueMessage(re);
@@ -0,0 +1,36 @@
+package com.github.ddth.queue.impl.universal;
+
+import com.github.ddth.queue.IQueue;
+import com.github.ddth.queue.impl.RedisStreamQueue;
+import com.github.ddth.queue.impl.base.BaseUniversalRedisStreamQueue;
+import com.github.ddth.queue.utils.QueueException;
+
+/**
+ * Universal Redis Streams implementation of {@link IQueue}.
+ * 
+ * <p>
+ * Queue and Take {@link UniversalQueueMessage}s.
+ * </p>
+ * 
+ * <p>
+ * Implementation: see {@link RedisStreamQueue}.
+ * </p>
+ * 
+ * @author Thanh Ba Nguyen <bnguyen2k@gmail.com>
+ * @since 0.5.2
+ */
+public class UniversalRedisStreamQueue
+        extends BaseUniversalRedisStreamQueue<UniversalQueueMessage> {
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected UniversalQueueMessage deserialize(byte[] msgData) {
+        try {
+            return UniversalQueueMessage.fromBytes(msgData);
+        } catch (RuntimeException re) {
+            throw new QueueException.CannotDeserializeQueueMessage(re);
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.github.ddth.queue.impl.universal;
+
+import com.github.ddth.queue.QueueSpec;
+import com.github.ddth.queue.impl.RedisStreamQueueFactory;
+
+/**
+ * Factory to create {@link UniversalRedisStreamQueue} instances.
+ * 
+ * @author Thanh Ba Nguyen <bnguyen2k@gmail.com>
+ * @since 0.5.2
+ */
+public class UniversalRedisStreamQueueFactory
+        extends RedisStreamQueueFactory<UniversalRedisStreamQueue> {
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected UniversalRedisStreamQueue createQueueInstance(final QueueSpec spec) {
+        UniversalRedisStreamQueue queue = new UniversalRedisStreamQueue() {
+            public void destroy() {
+                disposeQueue(spec, this);
+                super.destroy();
+            }
+        };
+        return queue;
+    }
+
+}
@@ -0,0 +1,29 @@
+package com.github.ddth.queue.impl.universal2;
+
+import com.github.ddth.queue.QueueSpec;
+import com.github.ddth.queue.impl.RedisClusterQueueFactory;
+
+/**
+ * Factory to create {@link UniversalRedisClusterQueue} instances.
+ * 
+ * @author Thanh Ba Nguyen <bnguyen2k@gmail.com>
+ * @since 0.5.2
+ */
+public class UniversalRedisClusterQueueFactory
+        extends RedisClusterQueueFactory<UniversalRedisClusterQueue> {
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected UniversalRedisClusterQueue createQueueInstance(final QueueSpec spec) {
+        UniversalRedisClusterQueue queue = new UniversalRedisClusterQueue() {
+            public void destroy() {
+                disposeQueue(spec, this);
+                super.destroy();
+            }
+        };
+        return queue;
+    }
+
+}
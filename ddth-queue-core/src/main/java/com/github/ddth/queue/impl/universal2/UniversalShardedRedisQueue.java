@@ -0,0 +1,35 @@
+package com.github.ddth.queue.impl.universal2;
+
+import com.github.ddth.queue.IQueue;
+import com.github.ddth.queue.impl.ShardedRedisQueue;
+import com.github.ddth.queue.impl.base.BaseUniversalShardedRedisQueue;
+import com.github.ddth.queue.utils.QueueException;
+
+/**
+ * Universal sharded Redis implementation of {@link IQueue}.
+ * 
+ * <p>
+ * Queue and Take {@link UniversalQueueMessage}s.
+ * </p>
+ * 
+ * <p>
+ * Implementation: see {@link ShardedRedisQueue}.
+ * </p>
+ * 
+ * @author Thanh Ba Nguyen <bnguyen2k@gmail.com>
+ * @since 0.5.2
+ */
+public class UniversalShardedRedisQueue
+        extends BaseUniversalShardedRedisQueue<UniversalQueueMessage> {
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected UniversalQueueMessage deserialize(byte[] msgData) {
+        try {
+            return UniversalQueueMessage.fromBytes(msgData);
+        } catch (RuntimeException re) {
+            throw new QueueException.CannotDeserializeQueueMessage(re);
+        }
+    }
+}
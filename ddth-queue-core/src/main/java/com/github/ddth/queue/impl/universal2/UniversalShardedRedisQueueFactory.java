@@ -0,0 +1,29 @@
+package com.github.ddth.queue.impl.universal2;
+
+import com.github.ddth.queue.QueueSpec;
+import com.github.ddth.queue.impl.ShardedRedisQueueFactory;
+
+/**
+ * Factory to create {@link UniversalShardedRedisQueue} instances.
+ * 
+ * @author Thanh Ba Nguyen <bnguyen2k@gmail.com>
+ * @since 0.5.2
+ */
+public class UniversalShardedRedisQueueFactory
+        extends ShardedRedisQueueFactory<UniversalShardedRedisQueue> {
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected UniversalShardedRedisQueue createQueueInstance(final QueueSpec spec) {
+        UniversalShardedRedisQueue queue = new UniversalShardedRedisQueue() {
+            public void destroy() {
+                disposeQueue(spec, this);
+                super.destroy();
+            }
+        };
+        return queue;
+    }
+
+}
@@ -0,0 +1,224 @@
+package com.github.ddth.queue.test.kafka;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.utils.Utils;
+
+import com.github.ddth.queue.impl.kafka.HotKeySplittingPartitioningStrategy;
+import com.github.ddth.queue.impl.kafka.KafkaPartitionRateMeter;
+import com.github.ddth.queue.impl.kafka.StickyRandomPartitioningStrategy;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests of Kafka partitioning strategies and partition rate meter, no broker
+ * needed.
+ */
+public class TestKafkaPartitioning extends TestCase {
+
+    public TestKafkaPartitioning(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestKafkaPartitioning.class);
+    }
+
+    private final static String TOPIC = "ddth-queue";
+    private final static int NUM_PARTITIONS = 16;
+    private final static long WINDOW_MS = 200;
+
+    private static int murmur2Partition(String key, int numPartitions) {
+        return Utils.toPositive(Utils.murmur2(key.getBytes(StandardCharsets.UTF_8)))
+                % numPartitions;
+    }
+
+    private static void send(HotKeySplittingPartitioningStrategy strategy, String key, int n) {
+        for (int i = 0; i < n; i++) {
+            strategy.partition(TOPIC, key, NUM_PARTITIONS);
+        }
+    }
+
+    /* waits for the current counting window to end */
+    private static void nextWindow() throws InterruptedException {
+        Thread.sleep(WINDOW_MS + 50);
+    }
+
+    public void testStickyRotation() {
+        StickyRandomPartitioningStrategy strategy = new StickyRandomPartitioningStrategy()
+                .setStickyBatchSize(5);
+        Integer previous = null;
+        for (int round = 0; round < 10; round++) {
+            Integer partition = strategy.partition(TOPIC, null, NUM_PARTITIONS);
+            assertNotNull(partition);
+            assertTrue(partition >= 0 && partition < NUM_PARTITIONS);
+            assertFalse(partition.equals(previous));
+            for (int i = 1; i < 5; i++) {
+                assertEquals(partition, strategy.partition(TOPIC, null, NUM_PARTITIONS));
+            }
+            previous = partition;
+        }
+    }
+
+    public void testStickyKeyedMessages() {
+        StickyRandomPartitioningStrategy strategy = new StickyRandomPartitioningStrategy();
+        assertNull(strategy.partition(TOPIC, "key", NUM_PARTITIONS));
+    }
+
+    public void testStickyPartitionsShrink() {
+        StickyRandomPartitioningStrategy strategy = new StickyRandomPartitioningStrategy()
+                .setStickyBatchSize(1000);
+        for (int i = 0; i < 100; i++) {
+            int partition = strategy.partition(TOPIC, null, NUM_PARTITIONS);
+            assertTrue(partition < NUM_PARTITIONS);
+            assertEquals(0, strategy.partition(TOPIC, null, 1).intValue());
+        }
+    }
+
+    public void testHotKeyDetection() throws Exception {
+        HotKeySplittingPartitioningStrategy strategy = new HotKeySplittingPartitioningStrategy()
+                .setWindowMs(WINDOW_MS).setHotKeyMinCount(100).setHotKeyRatio(0.1)
+                .setSplitPartitions(4);
+        nextWindow();
+        send(strategy, "hot", 150);
+        send(strategy, "cold", 50);
+        // not hot yet: counted in the current window
+        assertNull(strategy.partition(TOPIC, "hot", NUM_PARTITIONS));
+        assertTrue(strategy.getHotKeys().isEmpty());
+
+        nextWindow();
+        assertNull(strategy.partition(TOPIC, "cold", NUM_PARTITIONS));
+        assertEquals(Collections.singleton("hot"), strategy.getHotKeys());
+
+        int base = murmur2Partition("hot", NUM_PARTITIONS);
+        Set<Integer> expected = new HashSet<>();
+        for (int i = 0; i < 4; i++) {
+            expected.add((base + i) % NUM_PARTITIONS);
+        }
+        Set<Integer> partitions = new HashSet<>();
+        for (int i = 0; i < 40; i++) {
+            Integer partition = strategy.partition(TOPIC, "hot", NUM_PARTITIONS);
+            assertNotNull(partition);
+            partitions.add(partition);
+        }
+        assertEquals(expected, partitions);
+
+        // a window without traffic of the key: no longer hot
+        nextWindow();
+        send(strategy, "cold", 1);
+        nextWindow();
+        assertNull(strategy.partition(TOPIC, "hot", NUM_PARTITIONS));
+        assertTrue(strategy.getHotKeys().isEmpty());
+    }
+
+    public void testHotKeySpreadWrapsAround() throws Exception {
+        HotKeySplittingPartitioningStrategy strategy = new HotKeySplittingPartitioningStrategy()
+                .setWindowMs(WINDOW_MS).setHotKeyMinCount(1).setSplitPartitions(8);
+        int numPartitions = 3;
+        nextWindow();
+        for (int i = 0; i < 10; i++) {
+            strategy.partition(TOPIC, "hot", numPartitions);
+        }
+        nextWindow();
+        Set<Integer> partitions = new HashSet<>();
+        for (int i = 0; i < 30; i++) {
+            partitions.add(strategy.partition(TOPIC, "hot", numPartitions));
+        }
+        // spread is capped at the number of partitions
+        assertEquals(new HashSet<>(Arrays.asList(0, 1, 2)), partitions);
+    }
+
+    public void testHotKeyMinCount() throws Exception {
+        HotKeySplittingPartitioningStrategy strategy = new HotKeySplittingPartitioningStrategy()
+                .setWindowMs(WINDOW_MS).setHotKeyMinCount(100).setHotKeyRatio(0.1);
+        nextWindow();
+        // 99% of the window, but below min count
+        send(strategy, "hot", 99);
+        send(strategy, "cold", 1);
+        nextWindow();
+        assertNull(strategy.partition(TOPIC, "hot", NUM_PARTITIONS));
+        assertTrue(strategy.getHotKeys().isEmpty());
+    }
+
+    public void testHotKeyRatio() throws Exception {
+        HotKeySplittingPartitioningStrategy strategy = new HotKeySplittingPartitioningStrategy()
+                .setWindowMs(WINDOW_MS).setHotKeyMinCount(10).setHotKeyRatio(0.5);
+        nextWindow();
+        send(strategy, "a", 60);
+        send(strategy, "b", 40);
+        nextWindow();
+        strategy.partition(TOPIC, "c", NUM_PARTITIONS);
+        assertEquals(Collections.singleton("a"), strategy.getHotKeys());
+        assertNull(strategy.partition(TOPIC, "b", NUM_PARTITIONS));
+    }
+
+    public void testMaxTrackedKeys() throws Exception {
+        HotKeySplittingPartitioningStrategy strategy = new HotKeySplittingPartitioningStrategy()
+                .setWindowMs(WINDOW_MS).setHotKeyMinCount(10).setHotKeyRatio(0.05)
+                .setMaxTrackedKeys(2);
+        nextWindow();
+        send(strategy, "k1", 10);
+        send(strategy, "k2", 10);
+        // third distinct key of the window is not counted
+        send(strategy, "k3", 100);
+        nextWindow();
+        strategy.partition(TOPIC, "k4", NUM_PARTITIONS);
+        assertEquals(new HashSet<>(Arrays.asList("k1", "k2")),
+                strategy.getHotKeys());
+        assertNull(strategy.partition(TOPIC, "k3", NUM_PARTITIONS));
+    }
+
+    public void testHotKeyUnkeyedMessages() {
+        HotKeySplittingPartitioningStrategy strategy = new HotKeySplittingPartitioningStrategy()
+                .setSplitPartitions(4);
+        strategy.setStickyBatchSize(3);
+        Integer partition = strategy.partition(TOPIC, null, NUM_PARTITIONS);
+        assertNotNull(partition);
+        assertEquals(partition, strategy.partition(TOPIC, null, NUM_PARTITIONS));
+        assertEquals(partition, strategy.partition(TOPIC, null, NUM_PARTITIONS));
+        assertFalse(partition.equals(strategy.partition(TOPIC, null, NUM_PARTITIONS)));
+    }
+
+    public void testRateMeter() throws Exception {
+        KafkaPartitionRateMeter meter = new KafkaPartitionRateMeter(WINDOW_MS);
+        TopicPartition tp0 = new TopicPartition(TOPIC, 0);
+        TopicPartition tp1 = new TopicPartition(TOPIC, 1);
+        nextWindow();
+        meter.getRates();
+        for (int i = 0; i < 20; i++) {
+            meter.record(tp0);
+        }
+        meter.record(tp1);
+
+        Map<TopicPartition, Long> counts = meter.getCounts();
+        assertEquals(20L, counts.get(tp0).longValue());
+        assertEquals(1L, counts.get(tp1).longValue());
+        // current window is not complete yet
+        assertTrue(meter.getRates().isEmpty());
+
+        nextWindow();
+        Map<TopicPartition, Double> rates = meter.getRates();
+        assertEquals(2, rates.size());
+        double maxRate = 20 * 1000.0 / WINDOW_MS;
+        assertTrue(rates.get(tp0) > 0 && rates.get(tp0) <= maxRate);
+        assertTrue(rates.get(tp1) > 0 && rates.get(tp1) < rates.get(tp0));
+
+        // window without messages: rates roll over to empty, totals are kept
+        meter.record(tp1);
+        nextWindow();
+        rates = meter.getRates();
+        assertEquals(Collections.singleton(tp1), rates.keySet());
+        nextWindow();
+        assertTrue(meter.getRates().isEmpty());
+        assertEquals(20L, meter.getCounts().get(tp0).longValue());
+        assertEquals(2L, meter.getCounts().get(tp1).longValue());
+    }
+}
@@ -1,6 +1,8 @@
 package com.github.ddth.queue.test.universal;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 
 import org.junit.After;
 import org.junit.Before;
@@ -175,6 +177,43 @@ public abstract class BaseQueueFunctionalTest extends TestCase {
         }
     }
 
+    @org.junit.Test
+    public void testQueueAllTakeBatchFinishAll() throws Exception {
+        if (queue == null) {
+            return;
+        }
+
+        final int NUM_MSGS = 5;
+        List<UniversalQueueMessage> msgs = new ArrayList<>();
+        for (int i = 0; i < NUM_MSGS; i++) {
+            UniversalQueueMessage msg = UniversalQueueMessage.newInstance();
+            msg.content(idGen.generateId128Ascii());
+            msgs.add(msg);
+        }
+
+        assertEquals(NUM_MSGS, queue.queueAll(msgs));
+        int queueSize = queue.queueSize();
+        assertTrue(queueSize == NUM_MSGS || queueSize < 0);
+
+        Collection<IQueueMessage> taken = queue.takeBatch(NUM_MSGS + 1);
+        assertNotNull(taken);
+        int ephemeralSize = queue.ephemeralSize();
+        if (ephemeralSize >= 0) {
+            // ephemeral storage is bounded by EPHEMERAL_MAX_SIZE
+            assertEquals(Math.min(NUM_MSGS, EPHEMERAL_MAX_SIZE), taken.size());
+            assertEquals(taken.size(), ephemeralSize);
+        }
+        int i = 0;
+        for (IQueueMessage msg : taken) {
+            assertEquals(msgs.get(i++).contentAsString(),
+                    ((UniversalQueueMessage) msg).contentAsString());
+        }
+
+        queue.finishAll(taken);
+        ephemeralSize = queue.ephemeralSize();
+        assertTrue(ephemeralSize == 0 || ephemeralSize < 0);
+    }
+
     @org.junit.Test
     public void testEphemeralDisabled() throws Exception {
         if (queue == null) {
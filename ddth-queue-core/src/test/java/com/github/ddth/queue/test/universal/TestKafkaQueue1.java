@@ -1,8 +1,21 @@
 package com.github.ddth.queue.test.universal;
 
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.apache.commons.io.FileUtils;
+
 import com.github.ddth.queue.IQueue;
 import com.github.ddth.queue.IQueueMessage;
 import com.github.ddth.queue.impl.KafkaQueue;
+import com.github.ddth.queue.impl.kafka.StickyRandomPartitioningStrategy;
+import com.github.ddth.queue.impl.universal.UniversalQueueMessage;
 import com.github.ddth.queue.impl.universal.UniversalKafkaQueue;
 
 import junit.framework.Test;
@@ -21,6 +34,7 @@ public class TestKafkaQueue1 extends BaseQueueFunctionalTest {
         public void flush() {
             IQueueMessage msg = takeFromQueue();
             while (msg != null) {
+                finish(msg);
                 msg = takeFromQueue();
             }
             msg = takeFromQueue();
@@ -31,17 +45,53 @@ public class TestKafkaQueue1 extends BaseQueueFunctionalTest {
         if (System.getProperty("enableTestsKafka") == null) {
             return null;
         }
+        MyKafkaQueue queue = newQueue(ephemeralMaxSize);
+        queue.flush();
+        return queue;
+    }
+
+    private MyKafkaQueue newQueue(int ephemeralMaxSize) throws Exception {
+        return newQueue(ephemeralMaxSize, null);
+    }
+
+    /**
+     * @param ephemeralMaxSize
+     * @param settings
+     *            extra settings applied before the queue is initialized, may
+     *            be {@code null}
+     */
+    private MyKafkaQueue newQueue(int ephemeralMaxSize, Consumer<MyKafkaQueue> settings)
+            throws Exception {
         String kafkaBrokers = System.getProperty("kafka.brokers", "localhost:9092");
         String topic = System.getProperty("kafka.topic", "ddth-queue");
         String groupId = System.getProperty("kafka.groupid", "ddth-queue");
 
         MyKafkaQueue queue = new MyKafkaQueue();
+        queue.setEphemeralMaxSize(ephemeralMaxSize);
         queue.setKafkaBootstrapServers(kafkaBrokers).setTopicName(topic).setConsumerGroupId(groupId)
-                .setSendAsync(false).init();
-        queue.flush();
+                .setQueueSizeCacheMs(0).setSendAsync(false);
+        if (settings != null) {
+            settings.accept(queue);
+        }
+        queue.init();
         return queue;
     }
 
+    /**
+     * Replaces the queue created by {@link #setUp()} with a new (flushed) one.
+     * 
+     * @param settings
+     * @return
+     */
+    private MyKafkaQueue replaceQueue(Consumer<MyKafkaQueue> settings) throws Exception {
+        destroyQueueInstance(queue);
+        queue = null;
+        MyKafkaQueue kafkaQueue = newQueue(0, settings);
+        queue = kafkaQueue;
+        kafkaQueue.flush();
+        return kafkaQueue;
+    }
+
     protected void destroyQueueInstance(IQueue queue) {
         if (queue instanceof KafkaQueue) {
             ((KafkaQueue) queue).destroy();
@@ -50,4 +100,370 @@ public class TestKafkaQueue1 extends BaseQueueFunctionalTest {
         }
     }
 
+    public void testTakeBatchFromLocalBuffer() throws Exception {
+        if (queue == null) {
+            return;
+        }
+        final int NUM_MSGS = 7;
+        for (int i = 0; i < NUM_MSGS; i++) {
+            UniversalQueueMessage msg = UniversalQueueMessage.newInstance();
+            msg.content(String.valueOf(i));
+            assertTrue(queue.queue(msg));
+        }
+        int numTaken = 0;
+        for (int i = 0; i < 10 && numTaken < NUM_MSGS; i++) {
+            Collection<IQueueMessage> taken = queue.takeBatch(3);
+            // bounded by ephemeral storage's max size
+            assertTrue(taken.size() <= Math.min(3, EPHEMERAL_MAX_SIZE));
+            assertEquals(taken.size(), queue.ephemeralSize());
+            numTaken += taken.size();
+            queue.finishAll(taken);
+            assertEquals(0, queue.ephemeralSize());
+        }
+        assertEquals(NUM_MSGS, numTaken);
+        assertNull(queue.take());
+    }
+
+    public void testUnfinishedMessageIsRedelivered() throws Exception {
+        if (queue == null) {
+            return;
+        }
+        final int NUM_MSGS = 3;
+        for (int i = 0; i < NUM_MSGS; i++) {
+            UniversalQueueMessage msg = UniversalQueueMessage.newInstance();
+            msg.content(String.valueOf(i));
+            assertTrue(queue.queue(msg));
+        }
+        UniversalQueueMessage unfinished = null;
+        for (int i = 0; i < NUM_MSGS; i++) {
+            UniversalQueueMessage msg = (UniversalQueueMessage) queue.take();
+            assertNotNull(msg);
+            if (unfinished == null) {
+                unfinished = msg;
+            } else {
+                queue.finish(msg);
+            }
+        }
+        destroyQueueInstance(queue);
+
+        // offset of the unfinished message has not been committed
+        queue = newQueue(0);
+        Set<String> redelivered = new HashSet<>();
+        UniversalQueueMessage msg;
+        while ((msg = (UniversalQueueMessage) queue.take()) != null) {
+            redelivered.add(msg.contentAsString());
+            queue.finish(msg);
+        }
+        assertTrue(redelivered.contains(unfinished.contentAsString()));
+    }
+
+    public void testQueueAsync() throws Exception {
+        if (queue == null) {
+            return;
+        }
+        KafkaQueue kafkaQueue = (KafkaQueue) queue;
+        UniversalQueueMessage msg = UniversalQueueMessage.newInstance();
+        msg.content("async");
+        CompletableFuture<Boolean> future = kafkaQueue.queueAsync(msg);
+        assertTrue(future.get(10, TimeUnit.SECONDS));
+
+        UniversalQueueMessage taken = (UniversalQueueMessage) queue.take();
+        assertNotNull(taken);
+        assertEquals("async", taken.contentAsString());
+        queue.finish(taken);
+    }
+
+    public void testRequeueToDelayedRetryTopic() throws Exception {
+        if (queue == null) {
+            return;
+        }
+        replaceQueue(q -> q.setRetryDelaysMs(2000));
+
+        UniversalQueueMessage msg = UniversalQueueMessage.newInstance();
+        msg.content("retry");
+        assertTrue(queue.queue(msg));
+        IQueueMessage taken = queue.take();
+        assertNotNull(taken);
+        long requeueTimestamp = System.currentTimeMillis();
+        assertTrue(queue.requeue(taken));
+
+        UniversalQueueMessage retried = null;
+        while (retried == null && System.currentTimeMillis() - requeueTimestamp < 10000) {
+            retried = (UniversalQueueMessage) queue.take();
+        }
+        assertNotNull(retried);
+        assertTrue(System.currentTimeMillis() - requeueTimestamp >= 2000);
+        assertEquals(taken.qId(), retried.qId());
+        assertEquals(1, retried.qNumRequeues());
+        queue.finish(retried);
+    }
+
+    public void testStickyRandomPartitioning() throws Exception {
+        if (queue == null) {
+            return;
+        }
+        MyKafkaQueue kafkaQueue = replaceQueue(
+                q -> q.setPartitioningStrategy(new StickyRandomPartitioningStrategy()));
+
+        final int numMsgs = 10;
+        for (int i = 0; i < numMsgs; i++) {
+            UniversalQueueMessage msg = UniversalQueueMessage.newInstance();
+            msg.content("sticky " + i);
+            assertTrue(queue.queue(msg));
+        }
+        long total = 0;
+        for (Long count : kafkaQueue.getProduceCounts().values()) {
+            total += count.longValue();
+        }
+        assertEquals(numMsgs, total);
+        // default sticky batch size is larger than numMsgs
+        assertEquals(1, kafkaQueue.getProduceCounts().size());
+    }
+
+    public void testBackpressure() throws Exception {
+        if (queue == null) {
+            return;
+        }
+        replaceQueue(q -> q.setBufferMaxRecords(5).setBufferMaxBytes(1024));
+
+        final int numMsgs = 50;
+        Set<Object> queued = new HashSet<>();
+        for (int i = 0; i < numMsgs; i++) {
+            UniversalQueueMessage msg = UniversalQueueMessage.newInstance();
+            msg.content("backpressure " + i);
+            assertTrue(queue.queue(msg));
+            queued.add(msg.qId());
+        }
+        // partitions are paused and resumed as the local buffer is drained
+        Set<Object> taken = new HashSet<>();
+        long startTimestamp = System.currentTimeMillis();
+        while (taken.size() < numMsgs && System.currentTimeMillis() - startTimestamp < 30000) {
+            IQueueMessage msg = queue.take();
+            if (msg != null) {
+                taken.add(msg.qId());
+                queue.finish(msg);
+            }
+        }
+        assertEquals(queued, taken);
+    }
+
+    public void testOrphanMessagesMovedToQueue() throws Exception {
+        if (queue == null) {
+            return;
+        }
+        UniversalQueueMessage msg = UniversalQueueMessage.newInstance();
+        msg.content("orphan");
+        assertTrue(queue.queue(msg));
+        IQueueMessage taken = queue.take();
+        assertNotNull(taken);
+        Thread.sleep(10);
+
+        Collection<IQueueMessage> orphans = queue.getOrphanMessages(0);
+        assertEquals(1, orphans.size());
+        IQueueMessage orphan = orphans.iterator().next();
+        assertEquals(taken.qId(), orphan.qId());
+        assertTrue(queue.moveFromEphemeralToQueueStorage(orphan));
+        assertFalse(queue.moveFromEphemeralToQueueStorage(orphan));
+        assertEquals(0, queue.ephemeralSize());
+
+        UniversalQueueMessage retaken = (UniversalQueueMessage) queue.take();
+        assertNotNull(retaken);
+        assertEquals(taken.qId(), retaken.qId());
+        assertEquals("orphan", retaken.contentAsString());
+        queue.finish(retaken);
+        assertEquals(0, queue.ephemeralSize());
+    }
+
+    public void testRecoveredInFlightMessagesDoNotFillEphemeral() throws Exception {
+        if (queue == null) {
+            return;
+        }
+        File storageDir = new File(FileUtils.getTempDirectory(),
+                String.valueOf(System.currentTimeMillis()));
+        try {
+            MyKafkaQueue kafkaQueue = replaceQueue(
+                    q -> q.setInFlightStorageDir(storageDir.getAbsolutePath())
+                            .setEphemeralMaxSize(EPHEMERAL_MAX_SIZE));
+            Set<Object> queued = new HashSet<>();
+            for (int i = 0; i < EPHEMERAL_MAX_SIZE; i++) {
+                UniversalQueueMessage msg = UniversalQueueMessage.newInstance();
+                msg.content(String.valueOf(i));
+                assertTrue(queue.queue(msg));
+                queued.add(msg.qId());
+            }
+            for (int i = 0; i < EPHEMERAL_MAX_SIZE; i++) {
+                assertNotNull(queue.take());
+            }
+            assertEquals(EPHEMERAL_MAX_SIZE, kafkaQueue.ephemeralSize());
+            destroyQueueInstance(queue);
+            queue = null;
+
+            // restart: unfinished messages are recovered, yet can be taken again
+            queue = newQueue(EPHEMERAL_MAX_SIZE,
+                    q -> q.setInFlightStorageDir(storageDir.getAbsolutePath()));
+            assertEquals(EPHEMERAL_MAX_SIZE, queue.ephemeralSize());
+            Set<Object> redelivered = new HashSet<>();
+            IQueueMessage msg;
+            while ((msg = queue.take()) != null) {
+                redelivered.add(msg.qId());
+                queue.finish(msg);
+            }
+            assertEquals(queued, redelivered);
+            assertEquals(0, queue.ephemeralSize());
+        } finally {
+            if (queue != null) {
+                destroyQueueInstance(queue);
+                queue = null;
+            }
+            FileUtils.deleteQuietly(storageDir);
+        }
+    }
+
+    public void testRecoveredInFlightMessagesExpireOnceCommitted() throws Exception {
+        if (queue == null) {
+            return;
+        }
+        File storageDir = new File(FileUtils.getTempDirectory(),
+                String.valueOf(System.currentTimeMillis()));
+        try {
+            replaceQueue(q -> q.setInFlightStorageDir(storageDir.getAbsolutePath()));
+            final int NUM_MSGS = 3;
+            for (int i = 0; i < NUM_MSGS; i++) {
+                UniversalQueueMessage msg = UniversalQueueMessage.newInstance();
+                msg.content(String.valueOf(i));
+                assertTrue(queue.queue(msg));
+            }
+            for (int i = 0; i < NUM_MSGS; i++) {
+                assertNotNull(queue.take());
+            }
+            destroyQueueInstance(queue);
+            queue = null;
+
+            // another consumer of the group processes the messages meanwhile
+            queue = newQueue(0, null);
+            int numFinished = 0;
+            IQueueMessage msg;
+            while ((msg = queue.take()) != null) {
+                queue.finish(msg);
+                numFinished++;
+            }
+            assertEquals(NUM_MSGS, numFinished);
+            destroyQueueInstance(queue);
+            queue = null;
+
+            // restart: recovered messages are dropped as their offsets are committed
+            queue = newQueue(0, q -> q.setInFlightStorageDir(storageDir.getAbsolutePath()));
+            assertEquals(NUM_MSGS, queue.ephemeralSize());
+            assertEquals(0, queue.getOrphanMessages(0).size());
+            assertEquals(0, queue.ephemeralSize());
+        } finally {
+            if (queue != null) {
+                destroyQueueInstance(queue);
+                queue = null;
+            }
+            FileUtils.deleteQuietly(storageDir);
+        }
+    }
+
+    public void testRawPayloadAndJsonMixed() throws Exception {
+        if (queue == null) {
+            return;
+        }
+        MyKafkaQueue kafkaQueue = (MyKafkaQueue) queue;
+        byte[] content = { 0, 1, 2, (byte) 0xFE, (byte) 0xFF };
+        UniversalQueueMessage raw = UniversalQueueMessage.newInstance();
+        raw.content(content).qPartitionKey("key").qNumRequeues(2);
+        kafkaQueue.setRawPayload(true);
+        assertTrue(queue.queue(raw));
+        kafkaQueue.setRawPayload(false);
+        UniversalQueueMessage json = UniversalQueueMessage.newInstance();
+        json.content(content).qPartitionKey("key");
+        assertTrue(queue.queue(json));
+
+        UniversalQueueMessage taken = (UniversalQueueMessage) queue.take();
+        assertNotNull(taken);
+        assertEquals(raw.qId(), taken.qId());
+        assertEquals(raw.qOriginalTimestamp(), taken.qOriginalTimestamp());
+        assertEquals(2, taken.qNumRequeues());
+        assertEquals("key", taken.qPartitionKey());
+        assertTrue(Arrays.equals(content, taken.content()));
+        queue.finish(taken);
+
+        taken = (UniversalQueueMessage) queue.take();
+        assertNotNull(taken);
+        assertEquals(json.qId(), taken.qId());
+        assertTrue(Arrays.equals(content, taken.content()));
+        queue.finish(taken);
+    }
+
+    public void testOrderedPartitionsMultiConsumers() throws Exception {
+        if (queue == null) {
+            return;
+        }
+        replaceQueue(q -> q.setNumConsumers(3).setOrderedPartitions(true));
+
+        // same partition key: all messages go to the same partition
+        final int NUM_MSGS = 5;
+        for (int i = 0; i < NUM_MSGS; i++) {
+            UniversalQueueMessage msg = UniversalQueueMessage.newInstance();
+            msg.qPartitionKey("key").content(String.valueOf(i));
+            assertTrue(queue.queue(msg));
+        }
+        for (int i = 0; i < NUM_MSGS; i++) {
+            UniversalQueueMessage msg = (UniversalQueueMessage) queue.take();
+            assertNotNull(msg);
+            assertEquals(String.valueOf(i), msg.contentAsString());
+            // next message of the partition is not available until finished
+            assertNull(queue.take());
+            queue.finish(msg);
+        }
+    }
+
+    public void testOrderedPartitionsBusyPartitionDoesNotBlockOthers() throws Exception {
+        if (queue == null) {
+            return;
+        }
+        MyKafkaQueue kafkaQueue = replaceQueue(
+                q -> q.setOrderedPartitions(true).setPartitionBufferMaxRecords(2));
+
+        final int NUM_MSGS = 20;
+        for (int i = 0; i < NUM_MSGS; i++) {
+            UniversalQueueMessage msg = UniversalQueueMessage.newInstance();
+            msg.qPartitionKey("busy").content("busy " + i);
+            assertTrue(queue.queue(msg));
+        }
+        UniversalQueueMessage other = UniversalQueueMessage.newInstance();
+        other.qPartitionKey("other").content("other");
+        assertTrue(queue.queue(other));
+        if (kafkaQueue.getProduceCounts().size() < 2) {
+            // both keys are in the same partition, nothing to test
+            return;
+        }
+
+        // first message of the busy partition is taken but not finished
+        IQueueMessage busy = null;
+        UniversalQueueMessage taken = null;
+        long startTimestamp = System.currentTimeMillis();
+        while (taken == null && System.currentTimeMillis() - startTimestamp < 10000) {
+            UniversalQueueMessage msg = (UniversalQueueMessage) queue.take();
+            if (msg == null) {
+                continue;
+            }
+            if (msg.contentAsString().startsWith("busy")) {
+                if (busy != null) {
+                    fail("Next message of a busy partition must not be handed out");
+                }
+                busy = msg;
+            } else {
+                taken = msg;
+            }
+        }
+        assertNotNull(taken);
+        assertEquals("other", taken.contentAsString());
+        queue.finish(taken);
+        if (busy != null) {
+            queue.finish(busy);
+        }
+    }
+
 }
@@ -0,0 +1,103 @@
+package com.github.ddth.queue.test.universal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.github.ddth.queue.IQueue;
+import com.github.ddth.queue.IQueueMessage;
+import com.github.ddth.queue.impl.RedisClusterQueue;
+import com.github.ddth.queue.impl.universal.UniversalQueueMessage;
+import com.github.ddth.queue.impl.universal.UniversalRedisClusterQueue;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+
+public class TestRedisClusterQueue1 extends BaseQueueFunctionalTest {
+    public TestRedisClusterQueue1(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestRedisClusterQueue1.class);
+    }
+
+    private static class MyRedisClusterQueue extends UniversalRedisClusterQueue {
+        public void flush() {
+            for (JedisPool jedisPool : getJedisCluster().getClusterNodes().values()) {
+                try (Jedis jedis = jedisPool.getResource()) {
+                    jedis.flushAll();
+                } catch (Exception e) {
+                    // replica nodes are read-only
+                }
+            }
+        }
+    }
+
+    protected IQueue initQueueInstance(int ephemeralMaxSize) throws Exception {
+        if (System.getProperty("enableTestsRedisCluster") == null) {
+            return null;
+        }
+        String redisClusterNodes = System.getProperty("redis.cluster.nodes", "localhost:7000");
+
+        MyRedisClusterQueue queue = new MyRedisClusterQueue();
+        queue.setRedisClusterNodes(redisClusterNodes).setNumShards(1).setEphemeralDisabled(false)
+                .setEphemeralMaxSize(ephemeralMaxSize).init();
+        queue.flush();
+        return queue;
+    }
+
+    protected void destroyQueueInstance(IQueue queue) {
+        if (queue instanceof RedisClusterQueue) {
+            ((RedisClusterQueue) queue).destroy();
+        } else {
+            throw new RuntimeException("[queue] is not closed!");
+        }
+    }
+
+    @org.junit.Test
+    public void testShards() throws Exception {
+        if (queue == null) {
+            return;
+        }
+        final int NUM_SHARDS = 4, NUM_KEYS = 8, NUM_MSGS = 100;
+        MyRedisClusterQueue shardedQueue = new MyRedisClusterQueue();
+        shardedQueue.setRedisClusterNodes(((RedisClusterQueue) queue).getRedisClusterNodes())
+                .setNumShards(NUM_SHARDS).setEphemeralDisabled(false).init();
+        try {
+            List<IQueueMessage> msgs = new ArrayList<>();
+            for (int i = 0; i < NUM_MSGS; i++) {
+                UniversalQueueMessage msg = UniversalQueueMessage.newInstance();
+                msg.qPartitionKey(String.valueOf(i % NUM_KEYS)).content(String.valueOf(i));
+                msgs.add(msg);
+            }
+            assertEquals(NUM_MSGS, shardedQueue.queueAll(msgs));
+            assertEquals(NUM_MSGS, shardedQueue.queueSize());
+
+            // messages of the same partition key are taken in order
+            Map<String, Integer> lastSeen = new HashMap<>();
+            Collection<IQueueMessage> taken;
+            int numTaken = 0;
+            while (!(taken = shardedQueue.takeBatch(7)).isEmpty()) {
+                for (IQueueMessage _msg : taken) {
+                    UniversalQueueMessage msg = (UniversalQueueMessage) _msg;
+                    int value = Integer.parseInt(msg.contentAsString());
+                    Integer last = lastSeen.put(msg.qPartitionKey(), value);
+                    assertTrue(last == null || last.intValue() < value);
+                    numTaken++;
+                }
+                shardedQueue.finishAll(taken);
+            }
+            assertEquals(NUM_MSGS, numTaken);
+            assertEquals(0, shardedQueue.queueSize());
+            assertEquals(0, shardedQueue.ephemeralSize());
+        } finally {
+            shardedQueue.destroy();
+        }
+    }
+
+}
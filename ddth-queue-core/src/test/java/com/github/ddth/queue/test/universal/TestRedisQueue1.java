@@ -1,7 +1,11 @@
 package com.github.ddth.queue.test.universal;
 
+import java.util.concurrent.TimeUnit;
+
 import com.github.ddth.queue.IQueue;
+import com.github.ddth.queue.IQueueMessage;
 import com.github.ddth.queue.impl.RedisQueue;
+import com.github.ddth.queue.impl.universal.UniversalQueueMessage;
 import com.github.ddth.queue.impl.universal.UniversalRedisQueue;
 
 import junit.framework.Test;
@@ -47,4 +51,146 @@ public class TestRedisQueue1 extends BaseQueueFunctionalTest {
         }
     }
 
+    @org.junit.Test
+    public void testTakeWithTimeout() throws Exception {
+        if (queue == null) {
+            return;
+        }
+        final RedisQueue redisQueue = (RedisQueue) queue;
+
+        long t1 = System.currentTimeMillis();
+        assertNull(redisQueue.take(1, TimeUnit.SECONDS));
+        assertTrue(System.currentTimeMillis() - t1 >= 1000);
+
+        // sub-second wait is rounded up to BLPOP's one second
+        t1 = System.currentTimeMillis();
+        assertNull(redisQueue.take(10, TimeUnit.MILLISECONDS));
+        assertTrue(System.currentTimeMillis() - t1 >= 900);
+
+        // signal left by a message taken without waiting: keeps waiting
+        UniversalQueueMessage taken = UniversalQueueMessage.newInstance();
+        taken.content("taken");
+        redisQueue.queue(taken);
+        taken = (UniversalQueueMessage) redisQueue.take();
+        assertNotNull(taken);
+        redisQueue.finish(taken);
+        t1 = System.currentTimeMillis();
+        assertNull(redisQueue.take(1, TimeUnit.SECONDS));
+        assertTrue(System.currentTimeMillis() - t1 >= 1000);
+
+        final String content = idGen.generateId128Ascii();
+        new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                }
+                UniversalQueueMessage msg = UniversalQueueMessage.newInstance();
+                msg.content(content);
+                redisQueue.queue(msg);
+            }
+        }.start();
+        UniversalQueueMessage msg = (UniversalQueueMessage) redisQueue.take(5, TimeUnit.SECONDS);
+        assertNotNull(msg);
+        assertEquals(content, msg.contentAsString());
+        assertEquals(0, redisQueue.queueSize());
+        assertEquals(1, redisQueue.ephemeralSize());
+    }
+
+    @org.junit.Test
+    public void testTakeOnNotification() throws Exception {
+        if (queue == null) {
+            return;
+        }
+        final RedisQueue consumer = new UniversalRedisQueue();
+        consumer.setRedisHostAndPort(((RedisQueue) queue).getRedisHostAndPort())
+                .setRedisChannelName("queue_c").init();
+        final RedisQueue producer = new UniversalRedisQueue();
+        producer.setRedisHostAndPort(((RedisQueue) queue).getRedisHostAndPort())
+                .setRedisChannelName("queue_c").init();
+        try {
+            final String content = idGen.generateId128Ascii();
+            new Thread() {
+                public void run() {
+                    try {
+                        Thread.sleep(200);
+                    } catch (InterruptedException e) {
+                    }
+                    UniversalQueueMessage msg = UniversalQueueMessage.newInstance();
+                    msg.content(content);
+                    producer.queue(msg);
+                }
+            }.start();
+            long t1 = System.currentTimeMillis();
+            UniversalQueueMessage msg = (UniversalQueueMessage) consumer.take(5,
+                    TimeUnit.SECONDS);
+            assertNotNull(msg);
+            assertEquals(content, msg.contentAsString());
+            assertTrue(System.currentTimeMillis() - t1 < 2000);
+
+            t1 = System.currentTimeMillis();
+            assertNull(consumer.take(300, TimeUnit.MILLISECONDS));
+            assertTrue(System.currentTimeMillis() - t1 >= 300);
+        } finally {
+            consumer.destroy();
+            producer.destroy();
+        }
+    }
+
+    @org.junit.Test
+    public void testStats() throws Exception {
+        if (queue == null) {
+            return;
+        }
+        RedisQueue redisQueue = (RedisQueue) queue;
+        RedisQueue.QueueStats stats = redisQueue.getStats();
+        assertEquals(0, stats.getQueueSize());
+        assertEquals(0, stats.getEphemeralSize());
+        assertEquals(0, stats.getOldestEphemeralTimestamp());
+        assertEquals(0, stats.getOldestQueuedTimestamp());
+
+        long t1 = System.currentTimeMillis();
+        for (int i = 0; i < 2; i++) {
+            UniversalQueueMessage msg = UniversalQueueMessage.newInstance();
+            msg.content(String.valueOf(i));
+            redisQueue.queue(msg);
+        }
+        assertNotNull(redisQueue.take());
+        long t2 = System.currentTimeMillis();
+        stats = redisQueue.getStats();
+        assertEquals(1, stats.getQueueSize());
+        assertEquals(1, stats.getEphemeralSize());
+        assertTrue(stats.getOldestEphemeralTimestamp() >= t1
+                && stats.getOldestEphemeralTimestamp() <= t2);
+        assertTrue(stats.getOldestQueuedTimestamp() / 1000 >= t1 / 1000
+                && stats.getOldestQueuedTimestamp() <= t2);
+
+        // cached snapshot is shared until it expires
+        RedisQueue cachedQueue = new UniversalRedisQueue();
+        cachedQueue.setStatsCacheMs(500).setRedisHostAndPort(redisQueue.getRedisHostAndPort())
+                .init();
+        try {
+            assertEquals(1, cachedQueue.queueSize());
+            redisQueue.queue(UniversalQueueMessage.newInstance());
+            assertEquals(1, cachedQueue.queueSize());
+            assertSame(cachedQueue.getStats(), cachedQueue.getStats());
+            Thread.sleep(600);
+            assertEquals(2, cachedQueue.queueSize());
+        } finally {
+            cachedQueue.destroy();
+        }
+
+        // queued timestamps are removed along with messages' contents
+        IQueueMessage msg;
+        while ((msg = redisQueue.take()) != null) {
+            redisQueue.finish(msg);
+        }
+        for (IQueueMessage orphan : redisQueue.getOrphanMessages(0)) {
+            redisQueue.finish(orphan);
+        }
+        String[] hostAndPort = redisQueue.getRedisHostAndPort().split(":");
+        try (Jedis jedis = new Jedis(hostAndPort[0], Integer.parseInt(hostAndPort[1]))) {
+            assertEquals(0, jedis.hlen(redisQueue.getRedisHashName() + ":queued_at").longValue());
+        }
+    }
 }
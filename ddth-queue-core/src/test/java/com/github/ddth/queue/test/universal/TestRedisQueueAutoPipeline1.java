@@ -0,0 +1,109 @@
+package com.github.ddth.queue.test.universal;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import com.github.ddth.queue.IQueue;
+import com.github.ddth.queue.IQueueMessage;
+import com.github.ddth.queue.impl.RedisQueue;
+import com.github.ddth.queue.impl.universal.UniversalQueueMessage;
+import com.github.ddth.queue.impl.universal.UniversalRedisQueue;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import redis.clients.jedis.Jedis;
+
+public class TestRedisQueueAutoPipeline1 extends BaseQueueFunctionalTest {
+    public TestRedisQueueAutoPipeline1(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestRedisQueueAutoPipeline1.class);
+    }
+
+    private static class MyRedisQueue extends UniversalRedisQueue {
+        public void flush() {
+            try (Jedis jedis = getJedisPool().getResource()) {
+                jedis.flushAll();
+            }
+        }
+    }
+
+    protected IQueue initQueueInstance(int ephemeralMaxSize) throws Exception {
+        if (System.getProperty("enableTestsRedis") == null) {
+            return null;
+        }
+        String redisHost = System.getProperty("redis.host", "localhost");
+        String redisPort = System.getProperty("redis.port", "6379");
+
+        MyRedisQueue queue = new MyRedisQueue();
+        queue.setAutoPipelineConnections(2);
+        queue.setRedisHostAndPort(redisHost + ":" + redisPort).setEphemeralDisabled(false)
+                .setEphemeralMaxSize(ephemeralMaxSize).init();
+        queue.flush();
+        return queue;
+    }
+
+    protected void destroyQueueInstance(IQueue queue) {
+        if (queue instanceof RedisQueue) {
+            ((RedisQueue) queue).destroy();
+        } else {
+            throw new RuntimeException("[queue] is not closed!");
+        }
+    }
+
+    @org.junit.Test
+    public void testAsync() throws Exception {
+        if (queue == null) {
+            return;
+        }
+        final RedisQueue redisQueue = new UniversalRedisQueue();
+        redisQueue.setAutoPipelineConnections(2);
+        redisQueue.setRedisHostAndPort(((RedisQueue) queue).getRedisHostAndPort())
+                .setEphemeralDisabled(false).setEphemeralMaxSize(0).init();
+        try {
+            doTestAsync(redisQueue, 1000);
+        } finally {
+            redisQueue.destroy();
+        }
+    }
+
+    private void doTestAsync(RedisQueue redisQueue, int numMsgs) throws Exception {
+        Set<String> contents = new HashSet<>();
+        List<CompletableFuture<Boolean>> queueResults = new ArrayList<>();
+        for (int i = 0; i < numMsgs; i++) {
+            String content = idGen.generateId128Ascii();
+            contents.add(content);
+            UniversalQueueMessage msg = UniversalQueueMessage.newInstance();
+            msg.content(content);
+            queueResults.add(redisQueue.queueAsync(msg));
+        }
+        for (CompletableFuture<Boolean> result : queueResults) {
+            assertTrue(result.get());
+        }
+        assertEquals(numMsgs, redisQueue.queueSize());
+
+        List<CompletableFuture<IQueueMessage>> takeResults = new ArrayList<>();
+        for (int i = 0; i < numMsgs; i++) {
+            takeResults.add(redisQueue.takeAsync());
+        }
+        List<CompletableFuture<Void>> finishResults = new ArrayList<>();
+        for (CompletableFuture<IQueueMessage> result : takeResults) {
+            UniversalQueueMessage msg = (UniversalQueueMessage) result.get();
+            assertNotNull(msg);
+            assertTrue(contents.remove(msg.contentAsString()));
+            finishResults.add(redisQueue.finishAsync(msg));
+        }
+        for (CompletableFuture<Void> result : finishResults) {
+            result.get();
+        }
+        assertTrue(contents.isEmpty());
+        assertNull(redisQueue.takeAsync().get());
+        assertEquals(0, redisQueue.queueSize());
+        assertEquals(0, redisQueue.ephemeralSize());
+    }
+}
@@ -0,0 +1,185 @@
+package com.github.ddth.queue.test.universal;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import com.github.ddth.queue.IQueue;
+import com.github.ddth.queue.IQueueMessage;
+import com.github.ddth.queue.impl.RedisQueue;
+import com.github.ddth.queue.impl.universal.UniversalQueueMessage;
+import com.github.ddth.queue.impl.universal.UniversalRedisQueue;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import redis.clients.jedis.Jedis;
+
+public class TestRedisQueueProcessingList1 extends BaseQueueFunctionalTest {
+    public TestRedisQueueProcessingList1(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestRedisQueueProcessingList1.class);
+    }
+
+    protected IQueue initQueueInstance(int ephemeralMaxSize) throws Exception {
+        if (System.getProperty("enableTestsRedis") == null) {
+            return null;
+        }
+        String redisHost = System.getProperty("redis.host", "localhost");
+        String redisPort = System.getProperty("redis.port", "6379");
+
+        // flush before init: init registers the consumer
+        try (Jedis jedis = new Jedis(redisHost, Integer.parseInt(redisPort))) {
+            jedis.flushAll();
+        }
+        RedisQueue queue = new UniversalRedisQueue();
+        queue.setProcessingListLayout(true);
+        queue.setRedisHostAndPort(redisHost + ":" + redisPort).setEphemeralDisabled(false)
+                .setEphemeralMaxSize(ephemeralMaxSize);
+        return queue.init();
+    }
+
+    protected void destroyQueueInstance(IQueue queue) {
+        if (queue instanceof RedisQueue) {
+            ((RedisQueue) queue).destroy();
+        } else {
+            throw new RuntimeException("[queue] is not closed!");
+        }
+    }
+
+    @org.junit.Test
+    public void testTakeWithTimeout() throws Exception {
+        if (queue == null) {
+            return;
+        }
+        final RedisQueue redisQueue = (RedisQueue) queue;
+
+        // sub-second wait is rounded up to BRPOPLPUSH's one second
+        long t1 = System.currentTimeMillis();
+        assertNull(redisQueue.take(10, TimeUnit.MILLISECONDS));
+        long elapsed = System.currentTimeMillis() - t1;
+        assertTrue(elapsed >= 900 && elapsed < 3000);
+
+        final String content = idGen.generateId128Ascii();
+        new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                }
+                UniversalQueueMessage msg = UniversalQueueMessage.newInstance();
+                msg.content(content);
+                redisQueue.queue(msg);
+            }
+        }.start();
+        UniversalQueueMessage msg = (UniversalQueueMessage) redisQueue.take(5, TimeUnit.SECONDS);
+        assertNotNull(msg);
+        assertEquals(content, msg.contentAsString());
+        assertEquals(0, redisQueue.queueSize());
+        // moved to the processing list by BRPOPLPUSH
+        assertEquals(1, redisQueue.ephemeralSize());
+        redisQueue.finish(msg);
+        assertEquals(0, redisQueue.ephemeralSize());
+    }
+
+    @org.junit.Test
+    public void testOrphanRecovery() throws Exception {
+        if (queue == null) {
+            return;
+        }
+        RedisQueue consumer1 = new UniversalRedisQueue();
+        consumer1.setProcessingListLayout(true).setConsumerId("consumer1")
+                .setRedisHostAndPort(((RedisQueue) queue).getRedisHostAndPort()).init();
+        RedisQueue consumer2 = new UniversalRedisQueue();
+        consumer2.setProcessingListLayout(true).setConsumerId("consumer2")
+                .setRedisHostAndPort(((RedisQueue) queue).getRedisHostAndPort()).init();
+        try {
+            for (int i = 0; i < 3; i++) {
+                UniversalQueueMessage msg = UniversalQueueMessage.newInstance();
+                msg.content(String.valueOf(i));
+                consumer1.queue(msg);
+            }
+            assertNotNull(consumer1.take());
+            assertNotNull(consumer1.take());
+            IQueueMessage msg = consumer2.take();
+            assertNotNull(msg);
+            assertEquals(0, consumer2.queueSize());
+            assertEquals(3, consumer2.ephemeralSize());
+
+            // both consumers are alive: no orphan message
+            assertEquals(0, consumer2.getOrphanMessages(60000).size());
+            assertEquals(0, consumer2.moveAllOrphansToQueueStorage(60000));
+
+            // consumer1 dies with 2 messages in progress
+            consumer1.destroy();
+            consumer1 = null;
+            Collection<IQueueMessage> orphans = consumer2.getOrphanMessages(60000);
+            assertEquals(2, orphans.size());
+            assertEquals(2, consumer2.moveAllOrphansToQueueStorage(60000));
+            assertEquals(2, consumer2.queueSize());
+            assertEquals(1, consumer2.ephemeralSize());
+
+            consumer2.finish(msg);
+            assertEquals(0, consumer2.ephemeralSize());
+            assertNotNull(consumer2.take());
+            assertNotNull(consumer2.take());
+            assertNull(consumer2.take());
+            assertEquals(2, consumer2.ephemeralSize());
+        } finally {
+            if (consumer1 != null) {
+                consumer1.destroy();
+            }
+            consumer2.destroy();
+        }
+    }
+
+    @org.junit.Test
+    public void testOrphanPagingAfterMove() throws Exception {
+        if (queue == null) {
+            return;
+        }
+        RedisQueue consumer1 = new UniversalRedisQueue();
+        consumer1.setProcessingListLayout(true).setConsumerId("consumer1")
+                .setRedisHostAndPort(((RedisQueue) queue).getRedisHostAndPort()).init();
+        RedisQueue consumer2 = (RedisQueue) queue;
+        Set<Object> inProgress = new HashSet<>();
+        try {
+            final int NUM_MSGS = 5;
+            for (int i = 0; i < NUM_MSGS; i++) {
+                UniversalQueueMessage msg = UniversalQueueMessage.newInstance();
+                msg.content(String.valueOf(i));
+                consumer1.queue(msg);
+            }
+            for (int i = 0; i < NUM_MSGS; i++) {
+                inProgress.add(consumer1.take().qId());
+            }
+        } finally {
+            // consumer1 dies with all messages in progress
+            consumer1.destroy();
+        }
+
+        // page 1 is moved back to the queue before page 2 is fetched
+        RedisQueue.OrphanMessagesPage page = consumer2.getOrphanMessages(60000, null, 2);
+        assertEquals(2, page.getMessages().size());
+        assertNotNull(page.getNextCursor());
+        for (IQueueMessage msg : page.getMessages()) {
+            assertTrue(consumer2.moveFromEphemeralToQueueStorage(msg));
+            inProgress.remove(msg.qId());
+        }
+
+        // remaining orphans are still found
+        Set<Object> orphans = new HashSet<>();
+        String cursor = page.getNextCursor();
+        while (cursor != null) {
+            page = consumer2.getOrphanMessages(60000, cursor, 2);
+            for (IQueueMessage msg : page.getMessages()) {
+                orphans.add(msg.qId());
+            }
+            cursor = page.getNextCursor();
+        }
+        assertEquals(inProgress, orphans);
+    }
+}
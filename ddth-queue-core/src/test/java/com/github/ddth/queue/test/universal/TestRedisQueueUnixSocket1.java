@@ -0,0 +1,53 @@
+package com.github.ddth.queue.test.universal;
+
+import com.github.ddth.queue.IQueue;
+import com.github.ddth.queue.impl.RedisQueue;
+import com.github.ddth.queue.impl.universal.UniversalRedisQueue;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import redis.clients.jedis.Jedis;
+
+/**
+ * Requires Java 16+ and a Redis server listening on a Unix domain socket, e.g.
+ * {@code -Dredis.unixsocket=/tmp/redis.sock}.
+ */
+public class TestRedisQueueUnixSocket1 extends BaseQueueFunctionalTest {
+    public TestRedisQueueUnixSocket1(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestRedisQueueUnixSocket1.class);
+    }
+
+    private static class MyRedisQueue extends UniversalRedisQueue {
+        public void flush() {
+            try (Jedis jedis = getJedisPool().getResource()) {
+                jedis.flushAll();
+            }
+        }
+    }
+
+    protected IQueue initQueueInstance(int ephemeralMaxSize) throws Exception {
+        if (System.getProperty("enableTestsRedis") == null
+                || System.getProperty("redis.unixsocket") == null) {
+            return null;
+        }
+        String redisSocket = System.getProperty("redis.unixsocket");
+
+        MyRedisQueue queue = new MyRedisQueue();
+        queue.setRedisHostAndPort("unix://" + redisSocket).setEphemeralDisabled(false)
+                .setEphemeralMaxSize(ephemeralMaxSize).init();
+        queue.flush();
+        return queue;
+    }
+
+    protected void destroyQueueInstance(IQueue queue) {
+        if (queue instanceof RedisQueue) {
+            ((RedisQueue) queue).destroy();
+        } else {
+            throw new RuntimeException("[queue] is not closed!");
+        }
+    }
+}
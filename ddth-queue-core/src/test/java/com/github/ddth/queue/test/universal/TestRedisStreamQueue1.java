@@ -0,0 +1,151 @@
+package com.github.ddth.queue.test.universal;
+
+import java.util.concurrent.TimeUnit;
+
+import com.github.ddth.queue.IQueue;
+import com.github.ddth.queue.IQueueMessage;
+import com.github.ddth.queue.impl.RedisStreamQueue;
+import com.github.ddth.queue.impl.universal.UniversalQueueMessage;
+import com.github.ddth.queue.impl.universal.UniversalRedisStreamQueue;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import redis.clients.jedis.Jedis;
+
+public class TestRedisStreamQueue1 extends BaseQueueFunctionalTest {
+    public TestRedisStreamQueue1(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestRedisStreamQueue1.class);
+    }
+
+    private static class MyRedisStreamQueue extends UniversalRedisStreamQueue {
+        public void flush() {
+            try (Jedis jedis = getJedisPool().getResource()) {
+                jedis.flushAll();
+            }
+        }
+
+        public long numConsumers() {
+            try (Jedis jedis = getJedisPool().getResource()) {
+                Object result = jedis.eval(
+                        "return #redis.call(\"XINFO\", \"CONSUMERS\", KEYS[1], ARGV[1])", 1,
+                        getRedisStreamName(), getConsumerGroup());
+                return result instanceof Long ? ((Long) result).longValue() : -1;
+            }
+        }
+    }
+
+    protected IQueue initQueueInstance(int ephemeralMaxSize) throws Exception {
+        // Redis Streams queue requires Redis server v6.2+
+        if (System.getProperty("enableTestsRedisStream") == null) {
+            return null;
+        }
+        String redisHost = System.getProperty("redis.host", "localhost");
+        String redisPort = System.getProperty("redis.port", "6379");
+
+        MyRedisStreamQueue queue = new MyRedisStreamQueue();
+        queue.setRedisHostAndPort(redisHost + ":" + redisPort).setEphemeralDisabled(false)
+                .setEphemeralMaxSize(ephemeralMaxSize);
+        queue.init();
+        queue.flush();
+        queue.init();
+        return queue;
+    }
+
+    protected void destroyQueueInstance(IQueue queue) {
+        if (queue instanceof RedisStreamQueue) {
+            ((RedisStreamQueue) queue).destroy();
+        } else {
+            throw new RuntimeException("[queue] is not closed!");
+        }
+    }
+
+    public void testConsumerRemovedOnDestroyIfIdle() throws Exception {
+        if (queue == null) {
+            return;
+        }
+        MyRedisStreamQueue consumer = new MyRedisStreamQueue();
+        consumer.setConsumerName("consumer1")
+                .setRedisHostAndPort(((RedisStreamQueue) queue).getRedisHostAndPort()).init();
+        UniversalQueueMessage msg = UniversalQueueMessage.newInstance();
+        msg.content("msg");
+        assertTrue(consumer.queue(msg));
+        IQueueMessage taken = consumer.take();
+        assertNotNull(taken);
+        long numConsumers = ((MyRedisStreamQueue) queue).numConsumers();
+
+        // consumer1 has a pending message: it stays in the group
+        consumer.destroy();
+        assertEquals(numConsumers, ((MyRedisStreamQueue) queue).numConsumers());
+
+        // consumer1 comes back with the same name, finishes and leaves
+        consumer = new MyRedisStreamQueue();
+        consumer.setConsumerName("consumer1")
+                .setRedisHostAndPort(((RedisStreamQueue) queue).getRedisHostAndPort()).init();
+        assertTrue(consumer.takeOrphanMessages(0, 10).size() > 0);
+        consumer.finish(taken);
+        consumer.destroy();
+        assertEquals(numConsumers - 1, ((MyRedisStreamQueue) queue).numConsumers());
+    }
+
+    public void testFinishByAnotherInstance() throws Exception {
+        if (queue == null) {
+            return;
+        }
+        RedisStreamQueue consumer = new MyRedisStreamQueue();
+        consumer.setConsumerName("consumer1")
+                .setRedisHostAndPort(((RedisStreamQueue) queue).getRedisHostAndPort()).init();
+        try {
+            UniversalQueueMessage msg = UniversalQueueMessage.newInstance();
+            msg.content("msg");
+            assertTrue(queue.queue(msg));
+            IQueueMessage taken = consumer.take();
+            assertNotNull(taken);
+            assertEquals(1, queue.ephemeralSize());
+
+            // entry id is resolved server-side by queue_id
+            queue.finish(taken);
+            assertEquals(0, queue.ephemeralSize());
+            assertEquals(0, queue.queueSize());
+        } finally {
+            consumer.destroy();
+        }
+    }
+
+    public void testTakeWithTimeout() throws Exception {
+        if (queue == null) {
+            return;
+        }
+        final RedisStreamQueue streamQueue = (RedisStreamQueue) queue;
+
+        // sub-second wait is rounded up to BLPOP's one second
+        long t1 = System.currentTimeMillis();
+        assertNull(streamQueue.take(10, TimeUnit.MILLISECONDS));
+        assertTrue(System.currentTimeMillis() - t1 >= 900);
+
+        final String content = idGen.generateId128Ascii();
+        new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                }
+                UniversalQueueMessage msg = UniversalQueueMessage.newInstance();
+                msg.content(content);
+                streamQueue.queue(msg);
+            }
+        }.start();
+        t1 = System.currentTimeMillis();
+        UniversalQueueMessage msg = (UniversalQueueMessage) streamQueue.take(5, TimeUnit.SECONDS);
+        assertNotNull(msg);
+        assertEquals(content, msg.contentAsString());
+        assertTrue(System.currentTimeMillis() - t1 < 2000);
+        assertEquals(1, streamQueue.ephemeralSize());
+        streamQueue.finish(msg);
+        assertEquals(0, streamQueue.ephemeralSize());
+    }
+
+}
@@ -21,6 +21,7 @@ public class TestKafkaQueue1 extends BaseQueueFunctionalTest {
         public void flush() {
             IQueueMessage msg = takeFromQueue();
             while (msg != null) {
+                finish(msg);
                 msg = takeFromQueue();
             }
             msg = takeFromQueue();
@@ -36,8 +37,9 @@ public class TestKafkaQueue1 extends BaseQueueFunctionalTest {
         String groupId = System.getProperty("kafka.groupid", "ddth-queue");
 
         MyKafkaQueue queue = new MyKafkaQueue();
+        queue.setEphemeralMaxSize(ephemeralMaxSize);
         queue.setKafkaBootstrapServers(kafkaBrokers).setTopicName(topic).setConsumerGroupId(groupId)
-                .setSendAsync(false).init();
+                .setQueueSizeCacheMs(0).setSendAsync(false).init();
         queue.flush();
         return queue;
     }
@@ -1,7 +1,10 @@
 package com.github.ddth.queue.test.universal2;
 
+import java.util.concurrent.TimeUnit;
+
 import com.github.ddth.queue.IQueue;
 import com.github.ddth.queue.impl.RedisQueue;
+import com.github.ddth.queue.impl.universal2.UniversalQueueMessage;
 import com.github.ddth.queue.impl.universal2.UniversalRedisQueue;
 
 import junit.framework.Test;
@@ -47,4 +50,87 @@ public class TestRedisQueue1 extends BaseQueueFunctionalTest {
         }
     }
 
+    @org.junit.Test
+    public void testTakeOnNotification() throws Exception {
+        if (queue == null) {
+            return;
+        }
+        final RedisQueue consumer = new UniversalRedisQueue();
+        consumer.setRedisHostAndPort(((RedisQueue) queue).getRedisHostAndPort())
+                .setRedisChannelName("queue_c").init();
+        final RedisQueue producer = new UniversalRedisQueue();
+        producer.setRedisHostAndPort(((RedisQueue) queue).getRedisHostAndPort())
+                .setRedisChannelName("queue_c").init();
+        try {
+            final String content = idGen.generateId128Ascii();
+            new Thread() {
+                public void run() {
+                    try {
+                        Thread.sleep(200);
+                    } catch (InterruptedException e) {
+                    }
+                    UniversalQueueMessage msg = UniversalQueueMessage.newInstance();
+                    msg.content(content);
+                    producer.queue(msg);
+                }
+            }.start();
+            long t1 = System.currentTimeMillis();
+            UniversalQueueMessage msg = (UniversalQueueMessage) consumer.take(5,
+                    TimeUnit.SECONDS);
+            assertNotNull(msg);
+            assertEquals(content, msg.contentAsString());
+            assertTrue(System.currentTimeMillis() - t1 < 2000);
+
+            t1 = System.currentTimeMillis();
+            assertNull(consumer.take(300, TimeUnit.MILLISECONDS));
+            assertTrue(System.currentTimeMillis() - t1 >= 300);
+        } finally {
+            consumer.destroy();
+            producer.destroy();
+        }
+    }
+
+    @org.junit.Test
+    public void testStats() throws Exception {
+        if (queue == null) {
+            return;
+        }
+        RedisQueue redisQueue = (RedisQueue) queue;
+        RedisQueue.QueueStats stats = redisQueue.getStats();
+        assertEquals(0, stats.getQueueSize());
+        assertEquals(0, stats.getEphemeralSize());
+        assertEquals(0, stats.getOldestEphemeralTimestamp());
+        assertEquals(0, stats.getOldestQueuedTimestamp());
+
+        long t1 = System.currentTimeMillis();
+        for (int i = 0; i < 2; i++) {
+            UniversalQueueMessage msg = UniversalQueueMessage.newInstance();
+            msg.content(String.valueOf(i));
+            redisQueue.queue(msg);
+        }
+        assertNotNull(redisQueue.take());
+        long t2 = System.currentTimeMillis();
+        stats = redisQueue.getStats();
+        assertEquals(1, stats.getQueueSize());
+        assertEquals(1, stats.getEphemeralSize());
+        assertTrue(stats.getOldestEphemeralTimestamp() >= t1
+                && stats.getOldestEphemeralTimestamp() <= t2);
+        assertTrue(stats.getOldestQueuedTimestamp() / 1000 >= t1 / 1000
+                && stats.getOldestQueuedTimestamp() <= t2);
+
+        // cached snapshot is shared until it expires
+        RedisQueue cachedQueue = new UniversalRedisQueue();
+        cachedQueue.setStatsCacheMs(500).setRedisHostAndPort(redisQueue.getRedisHostAndPort())
+                .init();
+        try {
+            assertEquals(1, cachedQueue.queueSize());
+            redisQueue.queue(UniversalQueueMessage.newInstance());
+            assertEquals(1, cachedQueue.queueSize());
+            assertSame(cachedQueue.getStats(), cachedQueue.getStats());
+            Thread.sleep(600);
+            assertEquals(2, cachedQueue.queueSize());
+        } finally {
+            cachedQueue.destroy();
+        }
+    }
 }
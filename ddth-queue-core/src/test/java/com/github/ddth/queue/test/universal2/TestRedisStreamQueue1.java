@@ -0,0 +1,53 @@
+package com.github.ddth.queue.test.universal2;
+
+import com.github.ddth.queue.IQueue;
+import com.github.ddth.queue.impl.RedisStreamQueue;
+import com.github.ddth.queue.impl.universal2.UniversalRedisStreamQueue;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import redis.clients.jedis.Jedis;
+
+public class TestRedisStreamQueue1 extends BaseQueueFunctionalTest {
+    public TestRedisStreamQueue1(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestRedisStreamQueue1.class);
+    }
+
+    private static class MyRedisStreamQueue extends UniversalRedisStreamQueue {
+        public void flush() {
+            try (Jedis jedis = getJedisPool().getResource()) {
+                jedis.flushAll();
+            }
+        }
+    }
+
+    protected IQueue initQueueInstance(int ephemeralMaxSize) throws Exception {
+        // Redis Streams queue requires Redis server v6.2+
+        if (System.getProperty("enableTestsRedisStream") == null) {
+            return null;
+        }
+        String redisHost = System.getProperty("redis.host", "localhost");
+        String redisPort = System.getProperty("redis.port", "6379");
+
+        MyRedisStreamQueue queue = new MyRedisStreamQueue();
+        queue.setRedisHostAndPort(redisHost + ":" + redisPort).setEphemeralDisabled(false)
+                .setEphemeralMaxSize(ephemeralMaxSize);
+        queue.init();
+        queue.flush();
+        queue.init();
+        return queue;
+    }
+
+    protected void destroyQueueInstance(IQueue queue) {
+        if (queue instanceof RedisStreamQueue) {
+            ((RedisStreamQueue) queue).destroy();
+        } else {
+            throw new RuntimeException("[queue] is not closed!");
+        }
+    }
+
+}
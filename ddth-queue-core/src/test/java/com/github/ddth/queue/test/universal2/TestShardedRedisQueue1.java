@@ -0,0 +1,105 @@
+package com.github.ddth.queue.test.universal2;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.github.ddth.queue.IQueue;
+import com.github.ddth.queue.IQueueMessage;
+import com.github.ddth.queue.impl.ShardedRedisQueue;
+import com.github.ddth.queue.impl.universal2.UniversalQueueMessage;
+import com.github.ddth.queue.impl.universal2.UniversalShardedRedisQueue;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import redis.clients.jedis.Jedis;
+
+public class TestShardedRedisQueue1 extends BaseQueueFunctionalTest {
+    public TestShardedRedisQueue1(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestShardedRedisQueue1.class);
+    }
+
+    private static void flush(String redisHostsAndPorts) {
+        for (String hostAndPort : StringUtils.split(redisHostsAndPorts, ", ")) {
+            String[] tokens = hostAndPort.split(":");
+            try (Jedis jedis = new Jedis(tokens[0], Integer.parseInt(tokens[1]))) {
+                jedis.flushAll();
+            }
+        }
+    }
+
+    private String redisShards;
+
+    protected IQueue initQueueInstance(int ephemeralMaxSize) throws Exception {
+        if (System.getProperty("enableTestsRedis") == null) {
+            return null;
+        }
+        redisShards = System.getProperty("redis.shards", "localhost:6379");
+        flush(redisShards);
+
+        // messages are FIFO per shard only: functional tests run on one shard
+        ShardedRedisQueue queue = new UniversalShardedRedisQueue();
+        queue.setRedisHostsAndPorts(StringUtils.split(redisShards, ", ")[0])
+                .setEphemeralDisabled(false).setEphemeralMaxSize(ephemeralMaxSize);
+        return queue.init();
+    }
+
+    protected void destroyQueueInstance(IQueue queue) {
+        if (queue instanceof ShardedRedisQueue) {
+            ((ShardedRedisQueue) queue).destroy();
+        } else {
+            throw new RuntimeException("[queue] is not closed!");
+        }
+    }
+
+    @org.junit.Test
+    public void testShards() throws Exception {
+        if (queue == null) {
+            return;
+        }
+        final int NUM_KEYS = 8, NUM_MSGS = 100;
+        ShardedRedisQueue shardedQueue = new UniversalShardedRedisQueue();
+        shardedQueue.setRedisHostsAndPorts(redisShards).setEphemeralDisabled(false);
+        shardedQueue.init();
+        try {
+            List<IQueueMessage> msgs = new ArrayList<>();
+            for (int i = 0; i < NUM_MSGS; i++) {
+                UniversalQueueMessage msg = UniversalQueueMessage.newInstance();
+                msg.qPartitionKey(String.valueOf(i % NUM_KEYS)).content(String.valueOf(i));
+                msgs.add(msg);
+            }
+            assertEquals(NUM_MSGS, shardedQueue.queueAll(msgs));
+            assertEquals(NUM_MSGS, shardedQueue.queueSize());
+
+            // messages of the same partition key are taken in order
+            Map<String, Integer> lastSeen = new HashMap<>();
+            Collection<IQueueMessage> taken;
+            int numTaken = 0;
+            while (!(taken = shardedQueue.takeBatch(7)).isEmpty()) {
+                for (IQueueMessage _msg : taken) {
+                    UniversalQueueMessage msg = (UniversalQueueMessage) _msg;
+                    int value = Integer.parseInt(msg.contentAsString());
+                    Integer last = lastSeen.put(msg.qPartitionKey(), value);
+                    assertTrue(last == null || last.intValue() < value);
+                    numTaken++;
+                }
+                // finish goes to the shard that owns the message
+                shardedQueue.finishAll(taken);
+            }
+            assertEquals(NUM_MSGS, numTaken);
+            assertEquals(0, shardedQueue.queueSize());
+            assertEquals(0, shardedQueue.ephemeralSize());
+        } finally {
+            shardedQueue.destroy();
+        }
+    }
+
+}